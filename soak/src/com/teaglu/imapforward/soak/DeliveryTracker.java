@@ -0,0 +1,278 @@
+/****************************************************************************
+ * Copyright 2022 Teaglu, LLC                                               *
+ *                                                                          *
+ * Licensed under the Apache License, Version 2.0 (the "License");          *
+ * you may not use this file except in compliance with the License.         *
+ * You may obtain a copy of the License at                                  *
+ *                                                                          *
+ *   http://www.apache.org/licenses/LICENSE-2.0                             *
+ *                                                                          *
+ * Unless required by applicable law or agreed to in writing, software      *
+ * distributed under the License is distributed on an "AS IS" BASIS,        *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. *
+ * See the License for the specific language governing permissions and      *
+ * limitations under the License.                                           *
+ ****************************************************************************/
+
+package com.teaglu.imapforward.soak;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.eclipse.jdt.annotation.NonNull;
+import org.eclipse.jdt.annotation.Nullable;
+
+import com.google.gson.JsonObject;
+
+/**
+ * DeliveryTracker
+ *
+ * Matches what arrives at the destination against what the load generator injected.  Each
+ * generated message carries an X-Soak-Id header, which is all that's needed to spot losses
+ * and duplicates.
+ */
+public class DeliveryTracker implements FakeImapServer.DeliveryListener {
+	private static final String ID_HEADER= "\r\nX-Soak-Id: ";
+	
+	// Injection time in nanoseconds of everything not delivered yet
+	private final Map<@NonNull Long, @NonNull Long> pending= new ConcurrentHashMap<>();
+	private final Map<@NonNull Long, @NonNull Boolean> delivered= new ConcurrentHashMap<>();
+	
+	private final AtomicLong injected= new AtomicLong();
+	private final AtomicLong duplicates= new AtomicLong();
+	private final AtomicLong unknown= new AtomicLong();
+	private final AtomicLong deliveredBytes= new AtomicLong();
+	
+	// Injection and delivery times in nanoseconds of everything delivered, guarded by this
+	private long[] sentTimes= new long[4096];
+	private long[] deliveredTimes= new long[4096];
+	private int deliveredCount= 0;
+	
+	private volatile long firstDelivery= 0;
+	private volatile long lastDelivery= 0;
+	
+	/**
+	 * injected
+	 *
+	 * Record that a message went into a source mailbox
+	 *
+	 * @param id						Value of its X-Soak-Id header
+	 */
+	public void injected(
+			long id)
+	{
+		pending.put(id, System.nanoTime());
+		injected.incrementAndGet();
+	}
+	
+	@Override
+	public void delivered(
+			@NonNull String user,
+			@NonNull String folder,
+			byte @NonNull[] data)
+	{
+		long now= System.nanoTime();
+		
+		Long id= findId(data);
+		if (id == null) {
+			unknown.incrementAndGet();
+			return;
+		}
+		
+		if (delivered.putIfAbsent(id, Boolean.TRUE) != null) {
+			duplicates.incrementAndGet();
+			return;
+		}
+		
+		Long sent= pending.remove(id);
+		if (sent == null) {
+			unknown.incrementAndGet();
+			return;
+		}
+		
+		deliveredBytes.addAndGet(data.length);
+		if (firstDelivery == 0) {
+			firstDelivery= now;
+		}
+		lastDelivery= now;
+		
+		synchronized (this) {
+			if (deliveredCount == sentTimes.length) {
+				sentTimes= Arrays.copyOf(sentTimes, sentTimes.length * 2);
+				deliveredTimes= Arrays.copyOf(deliveredTimes, deliveredTimes.length * 2);
+			}
+			sentTimes[deliveredCount]= sent;
+			deliveredTimes[deliveredCount]= now;
+			deliveredCount++;
+		}
+	}
+	
+	private static @Nullable Long findId(
+			byte @NonNull[] data)
+	{
+		// Headers are ASCII, and the ID is always near the top
+		String text= new String(data, 0, Math.min(data.length, 8192), StandardCharsets.ISO_8859_1);
+		
+		int start= text.indexOf(ID_HEADER);
+		if (start < 0) {
+			return null;
+		}
+		start+= ID_HEADER.length();
+		
+		int end= text.indexOf('\r', start);
+		if (end < 0) {
+			return null;
+		}
+		
+		try {
+			return Long.parseLong(text.substring(start, end).trim());
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+	
+	public int getPending() {
+		return pending.size();
+	}
+	
+	public long getDelivered() {
+		return delivered.size();
+	}
+	
+	public long getDuplicates() {
+		return duplicates.get();
+	}
+	
+	/**
+	 * awaitDrain
+	 *
+	 * Wait for everything injected to show up
+	 *
+	 * @param timeoutMillis				How long to wait
+	 *
+	 * @return							True if nothing is pending
+	 *
+	 * @throws InterruptedException
+	 */
+	public boolean awaitDrain(
+			long timeoutMillis) throws InterruptedException
+	{
+		long deadline= System.currentTimeMillis() + timeoutMillis;
+		while (!pending.isEmpty() && (System.currentTimeMillis() < deadline)) {
+			Thread.sleep(250);
+		}
+		return pending.isEmpty();
+	}
+	
+	/**
+	 * getLostIds
+	 *
+	 * @return							IDs of messages that never arrived
+	 */
+	public @NonNull List<@NonNull Long> getLostIds() {
+		List<@NonNull Long> ids= new ArrayList<>(pending.keySet());
+		ids.sort(null);
+		return ids;
+	}
+	
+	/**
+	 * buildReport
+	 *
+	 * @return							Counts, latency percentiles in milliseconds, and
+	 * 									throughput over the delivery period
+	 */
+	public synchronized @NonNull JsonObject buildReport() {
+		long[] sorted= new long[deliveredCount];
+		for (int i= 0; i < deliveredCount; i++) {
+			sorted[i]= (deliveredTimes[i] - sentTimes[i]) / 1000;
+		}
+		Arrays.sort(sorted);
+		
+		JsonObject report= new JsonObject();
+		report.addProperty("injected", injected.get());
+		report.addProperty("delivered", delivered.size());
+		report.addProperty("lost", pending.size());
+		report.addProperty("duplicates", duplicates.get());
+		report.addProperty("unknown", unknown.get());
+		
+		JsonObject latency= new JsonObject();
+		latency.addProperty("p50", percentile(sorted, 0.50));
+		latency.addProperty("p90", percentile(sorted, 0.90));
+		latency.addProperty("p99", percentile(sorted, 0.99));
+		latency.addProperty("p999", percentile(sorted, 0.999));
+		latency.addProperty("max", (sorted.length > 0) ? sorted[sorted.length - 1] / 1000.0 : 0);
+		report.add("latencyMillis", latency);
+		
+		double seconds= (lastDelivery - firstDelivery) / 1_000_000_000.0;
+		if (seconds > 0) {
+			report.addProperty("messagesPerSecond", (sorted.length - 1) / seconds);
+			report.addProperty("bytesPerSecond", deliveredBytes.get() / seconds);
+		}
+		
+		return report;
+	}
+	
+	/**
+	 * buildRecoveryReport
+	 *
+	 * Work out how long delivery took to recover after a fault was lifted, from when it was
+	 * lifted until the first delivery and until everything injected before it had arrived
+	 *
+	 * @param point						Time the fault was lifted, from System.nanoTime
+	 *
+	 * @return							Times in milliseconds, null if it never happened
+	 */
+	public synchronized @NonNull JsonObject buildRecoveryReport(
+			long point)
+	{
+		long firstDelivery= Long.MAX_VALUE;
+		long backlogCleared= point;
+		int backlog= 0;
+		
+		for (int i= 0; i < deliveredCount; i++) {
+			if (deliveredTimes[i] > point) {
+				firstDelivery= Math.min(firstDelivery, deliveredTimes[i]);
+			}
+			if (sentTimes[i] < point) {
+				backlogCleared= Math.max(backlogCleared, deliveredTimes[i]);
+				if (deliveredTimes[i] > point) {
+					backlog++;
+				}
+			}
+		}
+		
+		int backlogLost= 0;
+		for (long sent : pending.values()) {
+			if (sent < point) {
+				backlogLost++;
+			}
+		}
+		
+		JsonObject report= new JsonObject();
+		report.addProperty("firstDeliveryMillis",
+				(firstDelivery != Long.MAX_VALUE) ? (firstDelivery - point) / 1_000_000 : null);
+		report.addProperty("backlogClearedMillis",
+				(backlogLost == 0) ? (backlogCleared - point) / 1_000_000 : null);
+		report.addProperty("backlogMessages", backlog + backlogLost);
+		report.addProperty("backlogLost", backlogLost);
+		return report;
+	}
+	
+	private static double percentile(
+			long @NonNull[] sorted,
+			double fraction)
+	{
+		if (sorted.length == 0) {
+			return 0;
+		}
+		
+		// Nearest rank
+		int rank= (int)Math.ceil(fraction * sorted.length);
+		return sorted[Math.max(0, Math.min(sorted.length, rank) - 1)] / 1000.0;
+	}
+}
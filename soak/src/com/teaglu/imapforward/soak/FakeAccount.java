@@ -0,0 +1,114 @@
+/****************************************************************************
+ * Copyright 2022 Teaglu, LLC                                               *
+ *                                                                          *
+ * Licensed under the Apache License, Version 2.0 (the "License");          *
+ * you may not use this file except in compliance with the License.         *
+ * You may obtain a copy of the License at                                  *
+ *                                                                          *
+ *   http://www.apache.org/licenses/LICENSE-2.0                             *
+ *                                                                          *
+ * Unless required by applicable law or agreed to in writing, software      *
+ * distributed under the License is distributed on an "AS IS" BASIS,        *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. *
+ * See the License for the specific language governing permissions and      *
+ * limitations under the License.                                           *
+ ****************************************************************************/
+
+package com.teaglu.imapforward.soak;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.regex.Pattern;
+
+import org.eclipse.jdt.annotation.NonNull;
+import org.eclipse.jdt.annotation.Nullable;
+
+/**
+ * FakeAccount
+ *
+ * A login on the stand-in server, with its folders.  INBOX always exists and is matched
+ * without regard to case, like a real server.  The hierarchy separator is a dot.
+ */
+class FakeAccount {
+	private final @NonNull String password;
+	private final Map<@NonNull String, @NonNull FakeMailbox> mailboxes= new TreeMap<>();
+	
+	FakeAccount(
+			@NonNull String password)
+	{
+		this.password= password;
+		mailboxes.put("INBOX", new FakeMailbox("INBOX"));
+	}
+	
+	boolean checkPassword(
+			@NonNull String attempt)
+	{
+		return password.equals(attempt);
+	}
+	
+	private static @NonNull String normalize(
+			@NonNull String name)
+	{
+		return name.equalsIgnoreCase("INBOX") ? "INBOX" : name;
+	}
+	
+	synchronized @Nullable FakeMailbox get(
+			@NonNull String name)
+	{
+		return mailboxes.get(normalize(name));
+	}
+	
+	/**
+	 * create
+	 *
+	 * @param name						Folder name
+	 *
+	 * @return							False if it already exists
+	 */
+	synchronized boolean create(
+			@NonNull String name)
+	{
+		String key= normalize(name);
+		if (mailboxes.containsKey(key)) {
+			return false;
+		}
+		mailboxes.put(key, new FakeMailbox(key));
+		return true;
+	}
+	
+	/**
+	 * list
+	 *
+	 * @param pattern					LIST pattern, where * matches anything and % matches
+	 * 									anything but the separator
+	 *
+	 * @return							Matching folder names
+	 */
+	synchronized @NonNull List<@NonNull String> list(
+			@NonNull String pattern)
+	{
+		StringBuilder regex= new StringBuilder();
+		for (char c : pattern.toCharArray()) {
+			if (c == '*') {
+				regex.append(".*");
+			} else if (c == '%') {
+				regex.append("[^.]*");
+			} else {
+				regex.append(Pattern.quote(String.valueOf(c)));
+			}
+		}
+		
+		List<@NonNull String> names= new ArrayList<>();
+		for (String name : mailboxes.keySet()) {
+			boolean inbox= name.equals("INBOX");
+			if (name.matches(regex.toString()) ||
+					(inbox && name.matches("(?i)" + regex.toString())))
+			{
+				names.add(name);
+			}
+		}
+		return names;
+	}
+}
@@ -0,0 +1,256 @@
+/****************************************************************************
+ * Copyright 2022 Teaglu, LLC                                               *
+ *                                                                          *
+ * Licensed under the Apache License, Version 2.0 (the "License");          *
+ * you may not use this file except in compliance with the License.         *
+ * You may obtain a copy of the License at                                  *
+ *                                                                          *
+ *   http://www.apache.org/licenses/LICENSE-2.0                             *
+ *                                                                          *
+ * Unless required by applicable law or agreed to in writing, software      *
+ * distributed under the License is distributed on an "AS IS" BASIS,        *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. *
+ * See the License for the specific language governing permissions and      *
+ * limitations under the License.                                           *
+ ****************************************************************************/
+
+package com.teaglu.imapforward.soak;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.SSLContext;
+
+import org.eclipse.jdt.annotation.NonNull;
+import org.eclipse.jdt.annotation.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * FakeImapServer
+ *
+ * A stand-in IMAPS server that keeps everything in memory, so a soak run doesn't need a mail
+ * server or a network.  It only listens on loopback.
+ *
+ * It implements the part of IMAP4rev1 that JavaMail uses for the jobs in this project, plus
+ * UIDPLUS for APPENDUID.  Every connection gets its own thread, which is fine for the few
+ * hundred connections a soak run makes.
+ */
+public class FakeImapServer {
+	private static final Logger log= LoggerFactory.getLogger(FakeImapServer.class);
+	
+	/**
+	 * DeliveryListener
+	 *
+	 * Told about every APPEND, which is how the soak harness sees mail arrive
+	 */
+	public interface DeliveryListener {
+		public void delivered(
+				@NonNull String user,
+				@NonNull String folder,
+				byte @NonNull[] data);
+	}
+	
+	private final @NonNull String name;
+	private final @NonNull SSLContext context;
+	
+	private final Map<@NonNull String, @NonNull FakeAccount> accounts= new ConcurrentHashMap<>();
+	private final Set<@NonNull Socket> connections= ConcurrentHashMap.newKeySet();
+	private final AtomicInteger peakConnections= new AtomicInteger();
+	private final AtomicInteger logins= new AtomicInteger();
+	
+	private volatile @Nullable DeliveryListener deliveryListener= null;
+	
+	private ServerSocket serverSocket= null;
+	private Thread acceptThread= null;
+	private volatile boolean run= false;
+	
+	private FakeImapServer(
+			@NonNull String name,
+			@NonNull SSLContext context)
+	{
+		this.name= name;
+		this.context= context;
+	}
+	
+	/**
+	 * Create
+	 *
+	 * @param name						Name for logs and thread names
+	 * @param context					TLS context holding the server certificate
+	 *
+	 * @return							New server, not listening yet
+	 */
+	public static @NonNull FakeImapServer Create(
+			@NonNull String name,
+			@NonNull SSLContext context)
+	{
+		return new FakeImapServer(name, context);
+	}
+	
+	public void addAccount(
+			@NonNull String user,
+			@NonNull String password)
+	{
+		accounts.put(user, new FakeAccount(password));
+	}
+	
+	@Nullable FakeAccount getAccount(
+			@NonNull String user)
+	{
+		return accounts.get(user);
+	}
+	
+	/**
+	 * append
+	 *
+	 * Put a message straight into a folder, the way a new delivery would show up
+	 *
+	 * @param user						Account
+	 * @param folder					Folder
+	 * @param data						Message text
+	 */
+	public void append(
+			@NonNull String user,
+			@NonNull String folder,
+			byte @NonNull[] data)
+	{
+		FakeAccount account= accounts.get(user);
+		if (account == null) {
+			throw new IllegalArgumentException("No account " + user);
+		}
+		
+		FakeMailbox mailbox= account.get(folder);
+		if (mailbox == null) {
+			throw new IllegalArgumentException("No folder " + folder + " for " + user);
+		}
+		
+		mailbox.append(data, System.currentTimeMillis(), Set.of());
+	}
+	
+	/**
+	 * countMessages
+	 *
+	 * @return							Messages in every folder of every account
+	 */
+	public int countMessages() {
+		int count= 0;
+		for (FakeAccount account : accounts.values()) {
+			for (String folder : account.list("*")) {
+				FakeMailbox mailbox= account.get(folder);
+				if (mailbox != null) {
+					count+= mailbox.size();
+				}
+			}
+		}
+		return count;
+	}
+	
+	public void setDeliveryListener(
+			@Nullable DeliveryListener listener)
+	{
+		deliveryListener= listener;
+	}
+	
+	void notifyDelivery(
+			@NonNull String user,
+			@NonNull String folder,
+			byte @NonNull[] data)
+	{
+		DeliveryListener listener= deliveryListener;
+		if (listener != null) {
+			listener.delivered(user, folder, data);
+		}
+	}
+	
+	void noteLogin() {
+		logins.incrementAndGet();
+	}
+	
+	public int getLogins() {
+		return logins.get();
+	}
+	
+	public int getPort() {
+		return serverSocket.getLocalPort();
+	}
+	
+	public int getPeakConnections() {
+		return peakConnections.get();
+	}
+	
+	/**
+	 * start
+	 *
+	 * Listen on an ephemeral loopback port
+	 *
+	 * @throws IOException
+	 */
+	public void start() throws IOException {
+		serverSocket= context.getServerSocketFactory().createServerSocket();
+		serverSocket.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 256);
+		
+		run= true;
+		acceptThread= new Thread(() -> { acceptLoop(); }, "soak-" + name + "-accept");
+		acceptThread.setDaemon(true);
+		acceptThread.start();
+		
+		log.info("Stand-in IMAP server " + name + " listening on port " + getPort());
+	}
+	
+	private void acceptLoop() {
+		while (run) {
+			Socket socket;
+			try {
+				socket= serverSocket.accept();
+			} catch (IOException e) {
+				if (run) {
+					log.error("Error accepting on " + name, e);
+				}
+				return;
+			}
+			
+			connections.add(socket);
+			peakConnections.accumulateAndGet(connections.size(), Math::max);
+			
+			Thread thread= new Thread(() -> {
+				try {
+					new FakeImapSession(this, socket).run();
+				} finally {
+					connections.remove(socket);
+				}
+			}, "soak-" + name + "-session");
+			thread.setDaemon(true);
+			thread.start();
+		}
+	}
+	
+	/**
+	 * stop
+	 *
+	 * Stop listening and drop every connection
+	 */
+	public void stop() {
+		run= false;
+		
+		try {
+			serverSocket.close();
+		} catch (IOException e) {
+			log.warn("Error closing server socket", e);
+		}
+		
+		for (Socket socket : connections) {
+			try {
+				socket.close();
+			} catch (IOException e) {
+			}
+		}
+	}
+}
@@ -0,0 +1,884 @@
+/****************************************************************************
+ * Copyright 2022 Teaglu, LLC                                               *
+ *                                                                          *
+ * Licensed under the Apache License, Version 2.0 (the "License");          *
+ * you may not use this file except in compliance with the License.         *
+ * You may obtain a copy of the License at                                  *
+ *                                                                          *
+ *   http://www.apache.org/licenses/LICENSE-2.0                             *
+ *                                                                          *
+ * Unless required by applicable law or agreed to in writing, software      *
+ * distributed under the License is distributed on an "AS IS" BASIS,        *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. *
+ * See the License for the specific language governing permissions and      *
+ * limitations under the License.                                           *
+ ****************************************************************************/
+
+package com.teaglu.imapforward.soak;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.eclipse.jdt.annotation.NonNull;
+import org.eclipse.jdt.annotation.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * FakeImapSession
+ *
+ * One client connection to the stand-in server.  Commands are handled one at a time on the
+ * connection's thread.
+ */
+class FakeImapSession {
+	private static final Logger log= LoggerFactory.getLogger(FakeImapSession.class);
+	
+	private static final String CAPABILITIES= "IMAP4rev1 UIDPLUS";
+	
+	private static final DateTimeFormatter APPEND_DATE= DateTimeFormatter.ofPattern(
+			"d-MMM-yyyy HH:mm:ss xx", Locale.US);
+	private static final DateTimeFormatter SEARCH_DATE= DateTimeFormatter.ofPattern(
+			"d-MMM-yyyy", Locale.US);
+	
+	private final @NonNull FakeImapServer server;
+	private final @NonNull Socket socket;
+	
+	private OutputStream output;
+	
+	private String user= null;
+	private FakeAccount account= null;
+	
+	private FakeMailbox selected= null;
+	private boolean readOnly= false;
+	
+	// How many messages the client has been told about
+	private int knownExists= 0;
+	
+	FakeImapSession(
+			@NonNull FakeImapServer server,
+			@NonNull Socket socket)
+	{
+		this.server= server;
+		this.socket= socket;
+	}
+	
+	void run() {
+		try (Socket closer= socket) {
+			output= new BufferedOutputStream(socket.getOutputStream(), 65536);
+			ImapReader reader= new ImapReader(
+					new BufferedInputStream(socket.getInputStream(), 65536), output);
+			
+			write("* OK [CAPABILITY " + CAPABILITIES + "] Soak server ready\r\n");
+			output.flush();
+			
+			for (boolean run= true; run; ) {
+				List<@NonNull Object> tokens;
+				try {
+					tokens= reader.readCommand();
+				} catch (ImapSyntaxException e) {
+					write("* BAD " + e.getMessage() + "\r\n");
+					output.flush();
+					continue;
+				}
+				if (tokens == null) {
+					break;
+				}
+				
+				if ((tokens.size() < 2) || !(tokens.get(0) instanceof String) ||
+						!(tokens.get(1) instanceof String))
+				{
+					write("* BAD Missing command\r\n");
+				} else {
+					String tag= (String)tokens.get(0);
+					String command= ((String)tokens.get(1)).toUpperCase(Locale.ROOT);
+					
+					try {
+						run= dispatch(tag, command, tokens.subList(2, tokens.size()));
+					} catch (ImapSyntaxException e) {
+						write(tag + " BAD " + e.getMessage() + "\r\n");
+					} catch (RuntimeException e) {
+						log.warn("Error handling " + command, e);
+						write(tag + " BAD Internal error\r\n");
+					}
+				}
+				output.flush();
+			}
+		} catch (IOException e) {
+			// Clients drop connections all the time, and so does the fault proxy
+			log.debug("Session ended", e);
+		}
+	}
+	
+	private boolean dispatch(
+			@NonNull String tag,
+			@NonNull String command,
+			@NonNull List<@NonNull Object> args) throws IOException, ImapSyntaxException
+	{
+		switch (command) {
+		case "CAPABILITY":
+			write("* CAPABILITY " + CAPABILITIES + "\r\n");
+			complete(tag, "OK CAPABILITY completed");
+			return true;
+			
+		case "NOOP":
+		case "CHECK":
+			complete(tag, "OK " + command + " completed");
+			return true;
+			
+		case "LOGOUT":
+			write("* BYE Soak server logging out\r\n");
+			write(tag + " OK LOGOUT completed\r\n");
+			return false;
+			
+		case "LOGIN":
+			login(tag, args);
+			return true;
+		}
+		
+		if (account == null) {
+			write(tag + " NO Not authenticated\r\n");
+			return true;
+		}
+		
+		switch (command) {
+		case "LIST":
+		case "LSUB":
+			list(tag, command, args);
+			break;
+			
+		case "STATUS":
+			status(tag, args);
+			break;
+			
+		case "SELECT":
+		case "EXAMINE":
+			select(tag, command, args);
+			break;
+			
+		case "CREATE":
+			if (account.create(getString(args, 0))) {
+				complete(tag, "OK CREATE completed");
+			} else {
+				complete(tag, "NO [ALREADYEXISTS] Mailbox exists");
+			}
+			break;
+			
+		case "SUBSCRIBE":
+		case "UNSUBSCRIBE":
+			complete(tag, "OK " + command + " completed");
+			break;
+			
+		case "APPEND":
+			append(tag, args);
+			break;
+			
+		case "CLOSE":
+		case "UNSELECT":
+			requireSelected();
+			if (command.equals("CLOSE") && !readOnly) {
+				selected.expunge(knownExists);
+			}
+			selected= null;
+			write(tag + " OK " + command + " completed\r\n");
+			break;
+			
+		case "EXPUNGE":
+			expunge(tag);
+			break;
+			
+		case "FETCH":
+			fetch(tag, args, false);
+			break;
+			
+		case "STORE":
+			store(tag, args, false);
+			break;
+			
+		case "SEARCH":
+			search(tag, args, false);
+			break;
+			
+		case "UID":
+			String subcommand= getString(args, 0).toUpperCase(Locale.ROOT);
+			List<@NonNull Object> subargs= args.subList(1, args.size());
+			
+			switch (subcommand) {
+			case "FETCH":
+				fetch(tag, subargs, true);
+				break;
+			case "STORE":
+				store(tag, subargs, true);
+				break;
+			case "SEARCH":
+				search(tag, subargs, true);
+				break;
+			default:
+				throw new ImapSyntaxException("UID " + subcommand + " not supported");
+			}
+			break;
+			
+		default:
+			throw new ImapSyntaxException(command + " not supported");
+		}
+		
+		return true;
+	}
+	
+	private void login(
+			@NonNull String tag,
+			@NonNull List<@NonNull Object> args) throws IOException, ImapSyntaxException
+	{
+		String name= getString(args, 0);
+		String password= getString(args, 1);
+		
+		FakeAccount found= server.getAccount(name);
+		if ((found == null) || !found.checkPassword(password)) {
+			write(tag + " NO [AUTHENTICATIONFAILED] Invalid credentials\r\n");
+			return;
+		}
+		
+		user= name;
+		account= found;
+		server.noteLogin();
+		write(tag + " OK [CAPABILITY " + CAPABILITIES + "] LOGIN completed\r\n");
+	}
+	
+	private void list(
+			@NonNull String tag,
+			@NonNull String command,
+			@NonNull List<@NonNull Object> args) throws IOException, ImapSyntaxException
+	{
+		String reference= getString(args, 0);
+		String pattern= getString(args, 1);
+		
+		if (pattern.isEmpty()) {
+			// Just asking for the hierarchy separator
+			write("* " + command + " (\\Noselect) \".\" \"\"\r\n");
+		} else {
+			for (String name : account.list(reference + pattern)) {
+				write("* " + command + " (\\HasNoChildren) \".\" " +
+						FakeMessage.nstring(name) + "\r\n");
+			}
+		}
+		complete(tag, "OK " + command + " completed");
+	}
+	
+	private void status(
+			@NonNull String tag,
+			@NonNull List<@NonNull Object> args) throws IOException, ImapSyntaxException
+	{
+		String name= getString(args, 0);
+		FakeMailbox mailbox= account.get(name);
+		if (mailbox == null) {
+			complete(tag, "NO [NONEXISTENT] No such mailbox");
+			return;
+		}
+		
+		List<String> items= new ArrayList<>();
+		if ((args.size() > 1) && (args.get(1) instanceof List)) {
+			for (Object item : (List<?>)args.get(1)) {
+				String upper= item.toString().toUpperCase(Locale.ROOT);
+				switch (upper) {
+				case "MESSAGES":
+					items.add("MESSAGES " + mailbox.size());
+					break;
+				case "RECENT":
+					items.add("RECENT 0");
+					break;
+				case "UIDNEXT":
+					items.add("UIDNEXT " + mailbox.getUidNext());
+					break;
+				case "UIDVALIDITY":
+					items.add("UIDVALIDITY " + mailbox.getUidValidity());
+					break;
+				case "UNSEEN":
+					items.add("UNSEEN " + mailbox.countUnseen());
+					break;
+				default:
+					throw new ImapSyntaxException("Unknown STATUS item " + upper);
+				}
+			}
+		}
+		
+		write("* STATUS " + FakeMessage.nstring(mailbox.getName()) + " (" +
+				String.join(" ", items) + ")\r\n");
+		complete(tag, "OK STATUS completed");
+	}
+	
+	private void select(
+			@NonNull String tag,
+			@NonNull String command,
+			@NonNull List<@NonNull Object> args) throws IOException, ImapSyntaxException
+	{
+		selected= null;
+		
+		FakeMailbox mailbox= account.get(getString(args, 0));
+		if (mailbox == null) {
+			write(tag + " NO [NONEXISTENT] No such mailbox\r\n");
+			return;
+		}
+		
+		readOnly= command.equals("EXAMINE");
+		knownExists= mailbox.size();
+		
+		write("* FLAGS (\\Answered \\Flagged \\Deleted \\Seen \\Draft)\r\n");
+		write("* " + knownExists + " EXISTS\r\n");
+		write("* 0 RECENT\r\n");
+		write("* OK [UIDVALIDITY " + mailbox.getUidValidity() + "] UIDs valid\r\n");
+		write("* OK [UIDNEXT " + mailbox.getUidNext() + "] Predicted next UID\r\n");
+		write("* OK [PERMANENTFLAGS (\\Answered \\Flagged \\Deleted \\Seen \\Draft \\*)] " +
+				"Limited\r\n");
+		
+		selected= mailbox;
+		write(tag + " OK [" + (readOnly ? "READ-ONLY" : "READ-WRITE") + "] " +
+				command + " completed\r\n");
+	}
+	
+	private void append(
+			@NonNull String tag,
+			@NonNull List<@NonNull Object> args) throws IOException, ImapSyntaxException
+	{
+		String name= getString(args, 0);
+		
+		List<@NonNull String> flags= new ArrayList<>();
+		long internalDate= System.currentTimeMillis();
+		byte[] data= null;
+		
+		for (Object arg : args.subList(1, args.size())) {
+			if (arg instanceof List) {
+				for (Object flag : (List<?>)arg) {
+					flags.add(flag.toString());
+				}
+			} else if (arg instanceof String) {
+				try {
+					internalDate= ZonedDateTime.parse(((String)arg).trim(), APPEND_DATE)
+							.toInstant().toEpochMilli();
+				} catch (DateTimeParseException e) {
+					throw new ImapSyntaxException("Bad date " + arg);
+				}
+			} else if (arg instanceof byte[]) {
+				data= (byte[])arg;
+			}
+		}
+		if (data == null) {
+			throw new ImapSyntaxException("APPEND without a message");
+		}
+		
+		FakeMailbox mailbox= account.get(name);
+		if (mailbox == null) {
+			complete(tag, "NO [TRYCREATE] No such mailbox");
+			return;
+		}
+		
+		long uid= mailbox.append(data, internalDate, flags);
+		server.notifyDelivery(user, mailbox.getName(), data);
+		
+		complete(tag, "OK [APPENDUID " + mailbox.getUidValidity() + " " + uid + "] " +
+				"APPEND completed");
+	}
+	
+	private void expunge(
+			@NonNull String tag) throws IOException, ImapSyntaxException
+	{
+		requireSelected();
+		if (readOnly) {
+			write(tag + " NO Mailbox is read-only\r\n");
+			return;
+		}
+		
+		for (int sequence : selected.expunge(knownExists)) {
+			write("* " + sequence + " EXPUNGE\r\n");
+			knownExists--;
+		}
+		complete(tag, "OK EXPUNGE completed");
+	}
+	
+	private void fetch(
+			@NonNull String tag,
+			@NonNull List<@NonNull Object> args,
+			boolean uid) throws IOException, ImapSyntaxException
+	{
+		requireSelected();
+		if (args.size() < 2) {
+			throw new ImapSyntaxException("FETCH needs a set and items");
+		}
+		
+		List<@NonNull String> items= new ArrayList<>();
+		Object itemArg= args.get(1);
+		if (itemArg instanceof List) {
+			for (Object item : (List<?>)itemArg) {
+				items.add(item.toString());
+			}
+		} else {
+			String macro= itemArg.toString().toUpperCase(Locale.ROOT);
+			switch (macro) {
+			case "ALL":
+				items.addAll(List.of("FLAGS", "INTERNALDATE", "RFC822.SIZE", "ENVELOPE"));
+				break;
+			case "FAST":
+				items.addAll(List.of("FLAGS", "INTERNALDATE", "RFC822.SIZE"));
+				break;
+			case "FULL":
+				items.addAll(List.of("FLAGS", "INTERNALDATE", "RFC822.SIZE", "ENVELOPE", "BODY"));
+				break;
+			default:
+				items.add(itemArg.toString());
+			}
+		}
+		
+		if (uid && !items.stream().anyMatch((item) -> item.equalsIgnoreCase("UID"))) {
+			items.add(0, "UID");
+		}
+		
+		for (int sequence : resolve(getString(args, 0), uid)) {
+			FakeMessage message= selected.get(sequence);
+			
+			ByteArrayOutputStream response= new ByteArrayOutputStream();
+			write(response, "* " + sequence + " FETCH (");
+			
+			boolean flagsSent= false;
+			boolean seenChanged= false;
+			boolean first= true;
+			
+			for (String item : items) {
+				if (!first) {
+					write(response, " ");
+				}
+				first= false;
+				
+				String upper= item.toUpperCase(Locale.ROOT);
+				switch (upper) {
+				case "FLAGS":
+					write(response, "FLAGS (" + formatFlags(message) + ")");
+					flagsSent= true;
+					break;
+				case "UID":
+					write(response, "UID " + message.getUid());
+					break;
+				case "INTERNALDATE":
+					write(response, "INTERNALDATE \"" + message.formatInternalDate() + "\"");
+					break;
+				case "RFC822.SIZE":
+					write(response, "RFC822.SIZE " + message.getSize());
+					break;
+				case "ENVELOPE":
+					write(response, "ENVELOPE " + message.buildEnvelope());
+					break;
+				case "BODY":
+				case "BODYSTRUCTURE":
+					write(response, upper + " " + message.buildBodyStructure());
+					break;
+				case "RFC822":
+					writeLiteral(response, "RFC822", message.getData());
+					seenChanged|= markSeen(message);
+					break;
+				case "RFC822.HEADER":
+					writeLiteral(response, "RFC822.HEADER", message.getHeader());
+					break;
+				case "RFC822.TEXT":
+					writeLiteral(response, "RFC822.TEXT", message.getText());
+					seenChanged|= markSeen(message);
+					break;
+				default:
+					if (upper.startsWith("BODY[") || upper.startsWith("BODY.PEEK[")) {
+						fetchSection(response, message, item);
+						if (!upper.startsWith("BODY.PEEK[")) {
+							seenChanged|= markSeen(message);
+						}
+					} else {
+						throw new ImapSyntaxException("Unknown FETCH item " + item);
+					}
+				}
+			}
+			
+			if (seenChanged && !flagsSent) {
+				write(response, " FLAGS (" + formatFlags(message) + ")");
+			}
+			write(response, ")\r\n");
+			
+			response.writeTo(output);
+		}
+		
+		complete(tag, "OK FETCH completed");
+	}
+	
+	private void fetchSection(
+			@NonNull ByteArrayOutputStream response,
+			@NonNull FakeMessage message,
+			@NonNull String item) throws IOException, ImapSyntaxException
+	{
+		int open= item.indexOf('[');
+		int close= item.lastIndexOf(']');
+		if (close < open) {
+			throw new ImapSyntaxException("Bad section in " + item);
+		}
+		
+		String section= item.substring(open + 1, close);
+		String partial= item.substring(close + 1);
+		String upper= section.toUpperCase(Locale.ROOT);
+		
+		byte[] content;
+		if (upper.isEmpty()) {
+			content= message.getData();
+		} else if (upper.equals("HEADER") || upper.equals("MIME") || upper.equals("1.MIME")) {
+			content= message.getHeader();
+		} else if (upper.equals("TEXT") || upper.equals("1")) {
+			content= message.getText();
+		} else if (upper.startsWith("HEADER.FIELDS")) {
+			boolean not= upper.startsWith("HEADER.FIELDS.NOT");
+			
+			int listOpen= section.indexOf('(');
+			int listClose= section.lastIndexOf(')');
+			if ((listOpen < 0) || (listClose < listOpen)) {
+				throw new ImapSyntaxException("Bad header list in " + item);
+			}
+			
+			List<@NonNull String> names= new ArrayList<>();
+			for (String name : section.substring(listOpen + 1, listClose).split(" ")) {
+				if (!name.isEmpty()) {
+					names.add(name.replace("\"", ""));
+				}
+			}
+			content= message.getHeaderFields(names, not);
+		} else {
+			throw new ImapSyntaxException("Unknown section " + section);
+		}
+		
+		String label= "BODY[" + section + "]";
+		
+		if (!partial.isEmpty()) {
+			// <origin.count>
+			if (!partial.startsWith("<") || !partial.endsWith(">")) {
+				throw new ImapSyntaxException("Bad partial " + partial);
+			}
+			String[] parts= partial.substring(1, partial.length() - 1).split("\\.");
+			try {
+				int origin= Integer.parseInt(parts[0]);
+				int count= (parts.length > 1) ? Integer.parseInt(parts[1]) : Integer.MAX_VALUE;
+				
+				int start= Math.min(origin, content.length);
+				int end= (int)Math.min((long)start + count, content.length);
+				
+				byte[] slice= new byte[end - start];
+				System.arraycopy(content, start, slice, 0, slice.length);
+				content= slice;
+				
+				label+= "<" + origin + ">";
+			} catch (NumberFormatException e) {
+				throw new ImapSyntaxException("Bad partial " + partial);
+			}
+		}
+		
+		writeLiteral(response, label, content);
+	}
+	
+	private boolean markSeen(
+			@NonNull FakeMessage message)
+	{
+		if (readOnly) {
+			return false;
+		}
+		synchronized (selected) {
+			return message.getFlags().add("\\Seen");
+		}
+	}
+	
+	private void store(
+			@NonNull String tag,
+			@NonNull List<@NonNull Object> args,
+			boolean uid) throws IOException, ImapSyntaxException
+	{
+		requireSelected();
+		if (readOnly) {
+			write(tag + " NO Mailbox is read-only\r\n");
+			return;
+		}
+		if (args.size() < 3) {
+			throw new ImapSyntaxException("STORE needs a set, an operation and flags");
+		}
+		
+		String operation= getString(args, 1).toUpperCase(Locale.ROOT);
+		boolean silent= operation.endsWith(".SILENT");
+		if (silent) {
+			operation= operation.substring(0, operation.length() - ".SILENT".length());
+		}
+		
+		List<@NonNull String> flags= new ArrayList<>();
+		Object flagArg= args.get(2);
+		if (flagArg instanceof List) {
+			for (Object flag : (List<?>)flagArg) {
+				flags.add(flag.toString());
+			}
+		} else {
+			for (Object flag : args.subList(2, args.size())) {
+				flags.add(flag.toString());
+			}
+		}
+		
+		for (int sequence : resolve(getString(args, 0), uid)) {
+			FakeMessage message= selected.get(sequence);
+			
+			String formatted;
+			synchronized (selected) {
+				Set<@NonNull String> current= message.getFlags();
+				switch (operation) {
+				case "+FLAGS":
+					current.addAll(flags);
+					break;
+				case "-FLAGS":
+					current.removeAll(flags);
+					break;
+				case "FLAGS":
+					current.clear();
+					current.addAll(flags);
+					break;
+				default:
+					throw new ImapSyntaxException("Unknown STORE operation " + operation);
+				}
+				formatted= formatFlags(message);
+			}
+			
+			if (!silent) {
+				write("* " + sequence + " FETCH (" + (uid ? ("UID " + message.getUid() + " ") : "") +
+						"FLAGS (" + formatted + "))\r\n");
+			}
+		}
+		
+		complete(tag, "OK STORE completed");
+	}
+	
+	private void search(
+			@NonNull String tag,
+			@NonNull List<@NonNull Object> args,
+			boolean uid) throws IOException, ImapSyntaxException
+	{
+		requireSelected();
+		
+		List<@NonNull Integer> matches= new ArrayList<>();
+		for (int sequence= 1; sequence <= knownExists; sequence++) {
+			matches.add(sequence);
+		}
+		
+		for (int i= 0; i < args.size(); i++) {
+			String key= args.get(i).toString().toUpperCase(Locale.ROOT);
+			
+			switch (key) {
+			case "CHARSET":
+				i++;
+				break;
+			case "ALL":
+				break;
+			case "SEEN":
+			case "UNSEEN":
+			case "DELETED":
+			case "UNDELETED":
+			case "FLAGGED":
+			case "UNFLAGGED": {
+				boolean negate= key.startsWith("UN");
+				String flag= "\\" + key.substring(negate ? 2 : 0).charAt(0) +
+						key.substring(negate ? 3 : 1).toLowerCase(Locale.ROOT);
+				matches.removeIf((sequence) -> {
+					synchronized (selected) {
+						return selected.get(sequence).getFlags().contains(flag) == negate;
+					}
+				});
+				break;
+			}
+			case "SINCE":
+			case "BEFORE":
+			case "ON": {
+				LocalDate day;
+				try {
+					day= LocalDate.parse(getString(args, ++i), SEARCH_DATE);
+				} catch (DateTimeParseException e) {
+					throw new ImapSyntaxException("Bad date " + args.get(i));
+				}
+				
+				// Internal dates are compared by day in our time zone, which is the same
+				// one JavaMail used to write the search
+				matches.removeIf((sequence) -> {
+					LocalDate internal= Instant.ofEpochMilli(
+							selected.get(sequence).getInternalDate())
+							.atZone(ZoneId.systemDefault()).toLocalDate();
+					switch (key) {
+					case "SINCE":
+						return internal.isBefore(day);
+					case "BEFORE":
+						return !internal.isBefore(day);
+					default:
+						return !internal.equals(day);
+					}
+				});
+				break;
+			}
+			case "UID": {
+				Set<Integer> inSet= new TreeSet<>(resolve(getString(args, ++i), true));
+				matches.retainAll(inSet);
+				break;
+			}
+			default:
+				if (key.matches("[0-9*:,]+")) {
+					Set<Integer> inSet= new TreeSet<>(resolve(key, false));
+					matches.retainAll(inSet);
+				} else {
+					throw new ImapSyntaxException("SEARCH key " + key + " not supported");
+				}
+			}
+		}
+		
+		StringBuilder line= new StringBuilder("* SEARCH");
+		for (int sequence : matches) {
+			line.append(' ').append(uid ? selected.get(sequence).getUid() : sequence);
+		}
+		write(line.append("\r\n").toString());
+		
+		complete(tag, "OK SEARCH completed");
+	}
+	
+	/**
+	 * resolve
+	 *
+	 * Turn a sequence set or UID set into the sequence numbers it covers
+	 *
+	 * @param set						Set like 1:5,7,9:*
+	 * @param uid						True if the set is of UIDs
+	 *
+	 * @return							Sequence numbers in ascending order
+	 *
+	 * @throws ImapSyntaxException
+	 */
+	private @NonNull List<@NonNull Integer> resolve(
+			@NonNull String set,
+			boolean uid) throws ImapSyntaxException
+	{
+		long highest= 0;
+		if (knownExists > 0) {
+			highest= uid ? selected.get(knownExists).getUid() : knownExists;
+		}
+		
+		List<long[]> ranges= new ArrayList<>();
+		try {
+			for (String part : set.split(",")) {
+				String[] ends= part.split(":");
+				long low= ends[0].equals("*") ? highest : Long.parseLong(ends[0]);
+				long high= (ends.length > 1) ?
+						(ends[1].equals("*") ? highest : Long.parseLong(ends[1])) : low;
+				ranges.add(new long[] { Math.min(low, high), Math.max(low, high) });
+			}
+		} catch (NumberFormatException e) {
+			throw new ImapSyntaxException("Bad set " + set);
+		}
+		
+		List<@NonNull Integer> sequences= new ArrayList<>();
+		for (int sequence= 1; sequence <= knownExists; sequence++) {
+			long value= uid ? selected.get(sequence).getUid() : sequence;
+			for (long[] range : ranges) {
+				if ((value >= range[0]) && (value <= range[1])) {
+					sequences.add(sequence);
+					break;
+				}
+			}
+		}
+		return sequences;
+	}
+	
+	private @NonNull String formatFlags(
+			@NonNull FakeMessage message)
+	{
+		synchronized (selected) {
+			return String.join(" ", message.getFlags());
+		}
+	}
+	
+	private void requireSelected() throws ImapSyntaxException {
+		if (selected == null) {
+			throw new ImapSyntaxException("No mailbox selected");
+		}
+	}
+	
+	private static @NonNull String getString(
+			@NonNull List<@NonNull Object> args,
+			int index) throws ImapSyntaxException
+	{
+		if (index >= args.size()) {
+			throw new ImapSyntaxException("Missing argument");
+		}
+		
+		Object arg= args.get(index);
+		if (arg instanceof byte[]) {
+			return new String((byte[])arg, StandardCharsets.UTF_8);
+		}
+		if (arg instanceof String) {
+			return (String)arg;
+		}
+		throw new ImapSyntaxException("Expected a string");
+	}
+	
+	/**
+	 * complete
+	 *
+	 * Send a tagged response, first telling the client about anything that was delivered to
+	 * the selected folder in the meantime
+	 *
+	 * @param tag						Command tag
+	 * @param text						Response after the tag
+	 *
+	 * @throws IOException
+	 */
+	private void complete(
+			@NonNull String tag,
+			@NonNull String text) throws IOException
+	{
+		if (selected != null) {
+			int size= selected.size();
+			if (size > knownExists) {
+				knownExists= size;
+				write("* " + knownExists + " EXISTS\r\n");
+			}
+		}
+		write(tag + " " + text + "\r\n");
+	}
+	
+	private void write(
+			@NonNull String text) throws IOException
+	{
+		output.write(text.getBytes(StandardCharsets.ISO_8859_1));
+	}
+	
+	private static void write(
+			@NonNull ByteArrayOutputStream response,
+			@NonNull String text)
+	{
+		response.writeBytes(text.getBytes(StandardCharsets.ISO_8859_1));
+	}
+	
+	private static void writeLiteral(
+			@NonNull ByteArrayOutputStream response,
+			@NonNull String label,
+			byte @NonNull[] content)
+	{
+		write(response, label + " {" + content.length + "}\r\n");
+		response.writeBytes(content);
+	}
+	
+	@Override
+	public @NonNull String toString() {
+		return "session for " + ((user != null) ? user : "nobody");
+	}
+}
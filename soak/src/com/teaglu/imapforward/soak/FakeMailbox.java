@@ -0,0 +1,137 @@
+/****************************************************************************
+ * Copyright 2022 Teaglu, LLC                                               *
+ *                                                                          *
+ * Licensed under the Apache License, Version 2.0 (the "License");          *
+ * you may not use this file except in compliance with the License.         *
+ * You may obtain a copy of the License at                                  *
+ *                                                                          *
+ *   http://www.apache.org/licenses/LICENSE-2.0                             *
+ *                                                                          *
+ * Unless required by applicable law or agreed to in writing, software      *
+ * distributed under the License is distributed on an "AS IS" BASIS,        *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. *
+ * See the License for the specific language governing permissions and      *
+ * limitations under the License.                                           *
+ ****************************************************************************/
+
+package com.teaglu.imapforward.soak;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+
+import org.eclipse.jdt.annotation.NonNull;
+
+/**
+ * FakeMailbox
+ *
+ * One folder on the stand-in server.  The load generator appends to it directly, and IMAP
+ * sessions read and expunge through it.  Everything synchronizes on the mailbox.
+ *
+ * New messages only ever go on the end, so a session's sequence numbers stay good as long as
+ * it's the only one expunging, which is how the forwarding job uses a folder.
+ */
+class FakeMailbox {
+	private final @NonNull String name;
+	private final long uidValidity;
+	private long uidNext= 1;
+	
+	private final List<@NonNull FakeMessage> messages= new ArrayList<>();
+	
+	FakeMailbox(
+			@NonNull String name)
+	{
+		this.name= name;
+		this.uidValidity= System.currentTimeMillis() / 1000;
+	}
+	
+	@NonNull String getName() { return name; }
+	long getUidValidity() { return uidValidity; }
+	
+	synchronized long getUidNext() {
+		return uidNext;
+	}
+	
+	synchronized int size() {
+		return messages.size();
+	}
+	
+	/**
+	 * append
+	 *
+	 * @param data						Message text
+	 * @param internalDate				INTERNALDATE in epoch milliseconds
+	 * @param flags						Initial flags
+	 *
+	 * @return							UID assigned
+	 */
+	synchronized long append(
+			byte @NonNull[] data,
+			long internalDate,
+			@NonNull Collection<@NonNull String> flags)
+	{
+		long uid= uidNext++;
+		messages.add(new FakeMessage(uid, data, internalDate, flags));
+		return uid;
+	}
+	
+	/**
+	 * get
+	 *
+	 * @param sequence					Sequence number, starting at 1
+	 *
+	 * @return							Message
+	 */
+	synchronized @NonNull FakeMessage get(
+			int sequence)
+	{
+		return messages.get(sequence - 1);
+	}
+	
+	/**
+	 * countUnseen
+	 *
+	 * @return							Messages without \Seen
+	 */
+	synchronized int countUnseen() {
+		int count= 0;
+		for (FakeMessage message : messages) {
+			if (!message.getFlags().contains("\\Seen")) {
+				count++;
+			}
+		}
+		return count;
+	}
+	
+	/**
+	 * expunge
+	 *
+	 * Remove everything flagged \Deleted
+	 *
+	 * @param limit						Only look at this many messages from the start, which
+	 * 									is as far as the expunging session knows about
+	 *
+	 * @return							Sequence numbers removed, highest first so each one is
+	 * 									still right when the client applies it
+	 */
+	synchronized @NonNull List<@NonNull Integer> expunge(
+			int limit)
+	{
+		List<@NonNull Integer> removed= new ArrayList<>();
+		
+		int sequence= 0;
+		Iterator<@NonNull FakeMessage> iterator= messages.iterator();
+		while (iterator.hasNext() && (sequence < limit)) {
+			FakeMessage message= iterator.next();
+			sequence++;
+			
+			if (message.getFlags().contains("\\Deleted")) {
+				iterator.remove();
+				removed.add(0, sequence);
+			}
+		}
+		
+		return removed;
+	}
+}
@@ -0,0 +1,312 @@
+/****************************************************************************
+ * Copyright 2022 Teaglu, LLC                                               *
+ *                                                                          *
+ * Licensed under the Apache License, Version 2.0 (the "License");          *
+ * you may not use this file except in compliance with the License.         *
+ * You may obtain a copy of the License at                                  *
+ *                                                                          *
+ *   http://www.apache.org/licenses/LICENSE-2.0                             *
+ *                                                                          *
+ * Unless required by applicable law or agreed to in writing, software      *
+ * distributed under the License is distributed on an "AS IS" BASIS,        *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. *
+ * See the License for the specific language governing permissions and      *
+ * limitations under the License.                                           *
+ ****************************************************************************/
+
+package com.teaglu.imapforward.soak;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+import org.eclipse.jdt.annotation.NonNull;
+import org.eclipse.jdt.annotation.Nullable;
+
+/**
+ * FakeMessage
+ *
+ * One message held by the stand-in IMAP server, with just enough parsing of its header to
+ * answer ENVELOPE and HEADER.FIELDS fetches.  Flags are the only thing that change, and the
+ * mailbox's lock protects them.
+ */
+class FakeMessage {
+	static final DateTimeFormatter INTERNAL_DATE= DateTimeFormatter.ofPattern(
+			"dd-MMM-yyyy HH:mm:ss xx", Locale.US).withZone(ZoneOffset.UTC);
+	
+	private final long uid;
+	private final byte @NonNull[] data;
+	private final long internalDate;
+	private final int headerLength;
+	
+	private final Set<@NonNull String> flags= new LinkedHashSet<>();
+	
+	FakeMessage(
+			long uid,
+			byte @NonNull[] data,
+			long internalDate,
+			@NonNull Collection<@NonNull String> flags)
+	{
+		this.uid= uid;
+		this.data= data;
+		this.internalDate= internalDate;
+		this.headerLength= findHeaderEnd(data);
+		this.flags.addAll(flags);
+	}
+	
+	private static int findHeaderEnd(
+			byte @NonNull[] data)
+	{
+		for (int i= 0; i + 1 < data.length; i++) {
+			if (data[i] == '\n') {
+				if (data[i + 1] == '\n') {
+					return i + 2;
+				}
+				if ((data[i + 1] == '\r') && (i + 2 < data.length) && (data[i + 2] == '\n')) {
+					return i + 3;
+				}
+			}
+		}
+		return data.length;
+	}
+	
+	long getUid() { return uid; }
+	byte @NonNull[] getData() { return data; }
+	int getSize() { return data.length; }
+	long getInternalDate() { return internalDate; }
+	@NonNull Set<@NonNull String> getFlags() { return flags; }
+	
+	@NonNull String formatInternalDate() {
+		return INTERNAL_DATE.format(Instant.ofEpochMilli(internalDate));
+	}
+	
+	byte @NonNull[] getHeader() {
+		byte[] header= new byte[headerLength];
+		System.arraycopy(data, 0, header, 0, headerLength);
+		return header;
+	}
+	
+	byte @NonNull[] getText() {
+		byte[] text= new byte[data.length - headerLength];
+		System.arraycopy(data, headerLength, text, 0, text.length);
+		return text;
+	}
+	
+	/**
+	 * getHeaderLines
+	 *
+	 * @return							Header fields with folded lines joined back up, each
+	 * 									still ending in CRLF
+	 */
+	@NonNull List<@NonNull String> getHeaderLines() {
+		String header= new String(data, 0, headerLength, StandardCharsets.ISO_8859_1);
+		
+		List<@NonNull String> fields= new ArrayList<>();
+		StringBuilder current= null;
+		for (String line : header.split("\r?\n")) {
+			if (line.isEmpty()) {
+				break;
+			}
+			if ((current != null) && ((line.charAt(0) == ' ') || (line.charAt(0) == '\t'))) {
+				current.append("\r\n").append(line);
+			} else {
+				if (current != null) {
+					fields.add(current.append("\r\n").toString());
+				}
+				current= new StringBuilder(line);
+			}
+		}
+		if (current != null) {
+			fields.add(current.append("\r\n").toString());
+		}
+		return fields;
+	}
+	
+	/**
+	 * getHeader
+	 *
+	 * @param name						Header name
+	 *
+	 * @return							Unfolded value of the first header with that name
+	 */
+	@Nullable String getHeader(
+			@NonNull String name)
+	{
+		for (String field : getHeaderLines()) {
+			int colon= field.indexOf(':');
+			if ((colon > 0) && field.substring(0, colon).trim().equalsIgnoreCase(name)) {
+				return field.substring(colon + 1).replaceAll("\r\n[ \t]+", " ").trim();
+			}
+		}
+		return null;
+	}
+	
+	/**
+	 * getHeaderFields
+	 *
+	 * @param names						Header names
+	 * @param not						True to return everything but those
+	 *
+	 * @return							Matching header lines followed by a blank line
+	 */
+	byte @NonNull[] getHeaderFields(
+			@NonNull Collection<@NonNull String> names,
+			boolean not)
+	{
+		StringBuilder result= new StringBuilder();
+		for (String field : getHeaderLines()) {
+			int colon= field.indexOf(':');
+			String fieldName= (colon > 0) ? field.substring(0, colon).trim() : "";
+			
+			boolean listed= false;
+			for (String name : names) {
+				if (name.equalsIgnoreCase(fieldName)) {
+					listed= true;
+				}
+			}
+			if (listed != not) {
+				result.append(field);
+			}
+		}
+		result.append("\r\n");
+		return result.toString().getBytes(StandardCharsets.ISO_8859_1);
+	}
+	
+	/**
+	 * buildEnvelope
+	 *
+	 * @return							ENVELOPE structure for a FETCH response
+	 */
+	@NonNull String buildEnvelope() {
+		String from= buildAddresses(getHeader("From"));
+		String sender= buildAddresses(getHeader("Sender"));
+		String replyTo= buildAddresses(getHeader("Reply-To"));
+		
+		// The server is supposed to fill these in from From
+		if (sender.equals("NIL")) {
+			sender= from;
+		}
+		if (replyTo.equals("NIL")) {
+			replyTo= from;
+		}
+		
+		return "(" + nstring(getHeader("Date")) + " " + nstring(getHeader("Subject")) + " " +
+				from + " " + sender + " " + replyTo + " " +
+				buildAddresses(getHeader("To")) + " " + buildAddresses(getHeader("Cc")) + " " +
+				buildAddresses(getHeader("Bcc")) + " " + nstring(getHeader("In-Reply-To")) + " " +
+				nstring(getHeader("Message-ID")) + ")";
+	}
+	
+	/**
+	 * buildBodyStructure
+	 *
+	 * Everything here is treated as a single text part, which is all the load generator makes
+	 *
+	 * @return							BODYSTRUCTURE for a FETCH response
+	 */
+	@NonNull String buildBodyStructure() {
+		byte[] text= getText();
+		int lines= 0;
+		for (byte b : text) {
+			if (b == '\n') {
+				lines++;
+			}
+		}
+		return "(\"TEXT\" \"PLAIN\" (\"CHARSET\" \"US-ASCII\") NIL NIL \"7BIT\" " +
+				text.length + " " + lines + ")";
+	}
+	
+	private static @NonNull String buildAddresses(
+			@Nullable String value)
+	{
+		if ((value == null) || value.isEmpty()) {
+			return "NIL";
+		}
+		
+		StringBuilder result= new StringBuilder("(");
+		for (String address : splitAddresses(value)) {
+			String name= null;
+			String mailbox= address.trim();
+			
+			int open= mailbox.lastIndexOf('<');
+			int close= mailbox.lastIndexOf('>');
+			if ((open >= 0) && (close > open)) {
+				name= mailbox.substring(0, open).trim();
+				if (name.startsWith("\"") && name.endsWith("\"") && (name.length() >= 2)) {
+					name= name.substring(1, name.length() - 1);
+				}
+				if (name.isEmpty()) {
+					name= null;
+				}
+				mailbox= mailbox.substring(open + 1, close).trim();
+			}
+			
+			int at= mailbox.lastIndexOf('@');
+			String local= (at >= 0) ? mailbox.substring(0, at) : mailbox;
+			String host= (at >= 0) ? mailbox.substring(at + 1) : null;
+			
+			result.append("(").append(nstring(name)).append(" NIL ")
+					.append(nstring(local)).append(" ").append(nstring(host)).append(")");
+		}
+		result.append(")");
+		return result.toString();
+	}
+	
+	private static @NonNull List<@NonNull String> splitAddresses(
+			@NonNull String value)
+	{
+		List<@NonNull String> addresses= new ArrayList<>();
+		
+		boolean quoted= false;
+		int angle= 0;
+		int start= 0;
+		for (int i= 0; i < value.length(); i++) {
+			char c= value.charAt(i);
+			if (c == '"') {
+				quoted= !quoted;
+			} else if (!quoted && (c == '<')) {
+				angle++;
+			} else if (!quoted && (c == '>')) {
+				angle--;
+			} else if (!quoted && (angle == 0) && (c == ',')) {
+				addresses.add(value.substring(start, i));
+				start= i + 1;
+			}
+		}
+		addresses.add(value.substring(start));
+		
+		addresses.removeIf((address) -> address.trim().isEmpty());
+		return addresses;
+	}
+	
+	/**
+	 * nstring
+	 *
+	 * @param value						String or null
+	 *
+	 * @return							NIL, a quoted string, or a literal if it can't be quoted
+	 */
+	static @NonNull String nstring(
+			@Nullable String value)
+	{
+		if (value == null) {
+			return "NIL";
+		}
+		
+		for (int i= 0; i < value.length(); i++) {
+			char c= value.charAt(i);
+			if ((c == '\r') || (c == '\n') || (c > 126)) {
+				// Header text is kept one char per byte, and responses are written that way
+				return "{" + value.length() + "}\r\n" + value;
+			}
+		}
+		return "\"" + value.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+	}
+}
@@ -0,0 +1,353 @@
+/****************************************************************************
+ * Copyright 2022 Teaglu, LLC                                               *
+ *                                                                          *
+ * Licensed under the Apache License, Version 2.0 (the "License");          *
+ * you may not use this file except in compliance with the License.         *
+ * You may obtain a copy of the License at                                  *
+ *                                                                          *
+ *   http://www.apache.org/licenses/LICENSE-2.0                             *
+ *                                                                          *
+ * Unless required by applicable law or agreed to in writing, software      *
+ * distributed under the License is distributed on an "AS IS" BASIS,        *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. *
+ * See the License for the specific language governing permissions and      *
+ * limitations under the License.                                           *
+ ****************************************************************************/
+
+package com.teaglu.imapforward.soak;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.eclipse.jdt.annotation.NonNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.gson.JsonObject;
+
+/**
+ * FaultProxy
+ *
+ * A TCP proxy that sits between the forwarder and a stand-in server and misbehaves on
+ * request.  TLS passes through it untouched, so the faults look exactly like a bad network or
+ * a bad server to the forwarder.
+ *
+ * Faults can be changed while connections are open:
+ *
+ *   delay - hold each chunk of data this long before passing it on
+ *   bandwidth - pass data on no faster than this many bytes a second
+ *   cut - reset each connection once this many bytes have gone through it, which lands in
+ *     the middle of a literal when messages are large
+ *   stall - stop passing data but leave connections open, like a server that has hung
+ *   refuse - reset new connections as soon as they're accepted
+ *
+ * and resetAll drops every open connection at once.  Resets are real RSTs, not clean closes.
+ */
+public class FaultProxy {
+	private static final Logger log= LoggerFactory.getLogger(FaultProxy.class);
+	
+	private static final int BUFFER_SIZE= 8192;
+	
+	// How often a stalled or throttled pump looks at the settings again
+	private static final long POLL_MILLIS= 50;
+	
+	private final @NonNull String name;
+	private final int targetPort;
+	
+	private volatile long delayMillis= 0;
+	private volatile long bandwidth= 0;
+	private volatile long cutAfter= 0;
+	private volatile boolean stalled= false;
+	private volatile boolean refusing= false;
+	
+	private final Set<@NonNull Link> links= ConcurrentHashMap.newKeySet();
+	private final AtomicInteger connections= new AtomicInteger();
+	private final AtomicInteger resets= new AtomicInteger();
+	
+	private ServerSocket serverSocket= null;
+	private volatile boolean run= false;
+	
+	private FaultProxy(
+			@NonNull String name,
+			int targetPort)
+	{
+		this.name= name;
+		this.targetPort= targetPort;
+	}
+	
+	/**
+	 * Create
+	 *
+	 * @param name						Name for logs and thread names
+	 * @param targetPort				Loopback port to pass connections on to
+	 *
+	 * @return							New proxy, not listening yet
+	 */
+	public static @NonNull FaultProxy Create(
+			@NonNull String name,
+			int targetPort)
+	{
+		return new FaultProxy(name, targetPort);
+	}
+	
+	public @NonNull String getName() { return name; }
+	
+	public void setDelay(long millis) { delayMillis= millis; }
+	public void setBandwidth(long bytesPerSecond) { bandwidth= bytesPerSecond; }
+	public void setCutAfter(long bytes) { cutAfter= bytes; }
+	public void setStalled(boolean stalled) { this.stalled= stalled; }
+	public void setRefusing(boolean refusing) { this.refusing= refusing; }
+	
+	/**
+	 * clear
+	 *
+	 * Go back to passing everything straight through
+	 */
+	public void clear() {
+		delayMillis= 0;
+		bandwidth= 0;
+		cutAfter= 0;
+		stalled= false;
+		refusing= false;
+	}
+	
+	/**
+	 * resetAll
+	 *
+	 * Reset every open connection
+	 */
+	public void resetAll() {
+		for (Link link : links) {
+			link.reset();
+		}
+	}
+	
+	/**
+	 * start
+	 *
+	 * Listen on an ephemeral loopback port
+	 *
+	 * @throws IOException
+	 */
+	public void start() throws IOException {
+		serverSocket= new ServerSocket();
+		serverSocket.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 256);
+		
+		run= true;
+		Thread thread= new Thread(() -> { acceptLoop(); }, "fault-" + name + "-accept");
+		thread.setDaemon(true);
+		thread.start();
+		
+		log.info("Fault proxy " + name + " listening on port " + getPort() +
+				" for port " + targetPort);
+	}
+	
+	public int getPort() {
+		return serverSocket.getLocalPort();
+	}
+	
+	public void stop() {
+		run= false;
+		
+		try {
+			serverSocket.close();
+		} catch (IOException e) {
+			log.warn("Error closing proxy socket", e);
+		}
+		
+		for (Link link : links) {
+			link.close();
+		}
+	}
+	
+	private void acceptLoop() {
+		while (run) {
+			Socket client;
+			try {
+				client= serverSocket.accept();
+			} catch (IOException e) {
+				if (run) {
+					log.error("Error accepting on proxy " + name, e);
+				}
+				return;
+			}
+			
+			connections.incrementAndGet();
+			if (refusing) {
+				resetSocket(client);
+				resets.incrementAndGet();
+				continue;
+			}
+			
+			Socket server= new Socket();
+			try {
+				server.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), targetPort));
+			} catch (IOException e) {
+				log.warn("Proxy " + name + " unable to reach port " + targetPort, e);
+				resetSocket(client);
+				continue;
+			}
+			
+			new Link(client, server).start();
+		}
+	}
+	
+	/**
+	 * Link
+	 *
+	 * One proxied connection, with a thread pumping each direction
+	 */
+	private class Link {
+		private final @NonNull Socket client;
+		private final @NonNull Socket server;
+		
+		// Bytes through the link in both directions, for the cut fault
+		private final AtomicLong bytes= new AtomicLong();
+		
+		private volatile boolean closed= false;
+		
+		Link(
+				@NonNull Socket client,
+				@NonNull Socket server)
+		{
+			this.client= client;
+			this.server= server;
+		}
+		
+		void start() {
+			links.add(this);
+			
+			startPump(client, server, "up");
+			startPump(server, client, "down");
+		}
+		
+		private void startPump(
+				@NonNull Socket from,
+				@NonNull Socket to,
+				@NonNull String direction)
+		{
+			Thread thread= new Thread(() -> {
+				try {
+					pump(from.getInputStream(), to.getOutputStream());
+				} catch (IOException e) {
+					// Resets from either end come out here
+				} catch (InterruptedException e) {
+				}
+				close();
+			}, "fault-" + name + "-" + direction);
+			thread.setDaemon(true);
+			thread.start();
+		}
+		
+		private void pump(
+				@NonNull InputStream input,
+				@NonNull OutputStream output) throws IOException, InterruptedException
+		{
+			byte[] buffer= new byte[BUFFER_SIZE];
+			
+			for (int length; (length= input.read(buffer)) >= 0; ) {
+				while (stalled && !closed) {
+					Thread.sleep(POLL_MILLIS);
+				}
+				
+				long delay= delayMillis;
+				if (delay > 0) {
+					Thread.sleep(delay);
+				}
+				
+				long cut= cutAfter;
+				if (cut > 0) {
+					long allowed= cut - bytes.get();
+					if (allowed <= length) {
+						// Let part of it through so the other end is left mid-stream
+						output.write(buffer, 0, (int)Math.max(0, allowed));
+						output.flush();
+						
+						log.debug("Proxy " + name + " cutting connection after " + cut + " bytes");
+						reset();
+						return;
+					}
+				}
+				
+				for (int offset= 0; offset < length; ) {
+					int chunk= length - offset;
+					
+					long limit= bandwidth;
+					if (limit > 0) {
+						// Small slices so the rate is smooth rather than bursty
+						chunk= (int)Math.min(chunk, Math.max(1, limit * POLL_MILLIS / 1000));
+						Thread.sleep(chunk * 1000L / limit);
+					}
+					if (closed) {
+						return;
+					}
+					
+					output.write(buffer, offset, chunk);
+					offset+= chunk;
+				}
+				output.flush();
+				
+				bytes.addAndGet(length);
+			}
+		}
+		
+		void reset() {
+			if (!closed) {
+				closed= true;
+				resets.incrementAndGet();
+				
+				resetSocket(client);
+				resetSocket(server);
+				links.remove(this);
+			}
+		}
+		
+		void close() {
+			if (!closed) {
+				closed= true;
+				
+				try {
+					client.close();
+				} catch (IOException e) {
+				}
+				try {
+					server.close();
+				} catch (IOException e) {
+				}
+				links.remove(this);
+			}
+		}
+	}
+	
+	private static void resetSocket(
+			@NonNull Socket socket)
+	{
+		try {
+			// A zero linger turns the close into an RST
+			socket.setSoLinger(true, 0);
+			socket.close();
+		} catch (IOException e) {
+		}
+	}
+	
+	/**
+	 * buildReport
+	 *
+	 * @return							Connection and reset counts
+	 */
+	public @NonNull JsonObject buildReport() {
+		JsonObject report= new JsonObject();
+		report.addProperty("connections", connections.get());
+		report.addProperty("resets", resets.get());
+		return report;
+	}
+}
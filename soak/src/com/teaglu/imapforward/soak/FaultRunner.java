@@ -0,0 +1,179 @@
+/****************************************************************************
+ * Copyright 2022 Teaglu, LLC                                               *
+ *                                                                          *
+ * Licensed under the Apache License, Version 2.0 (the "License");          *
+ * you may not use this file except in compliance with the License.         *
+ * You may obtain a copy of the License at                                  *
+ *                                                                          *
+ *   http://www.apache.org/licenses/LICENSE-2.0                             *
+ *                                                                          *
+ * Unless required by applicable law or agreed to in writing, software      *
+ * distributed under the License is distributed on an "AS IS" BASIS,        *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. *
+ * See the License for the specific language governing permissions and      *
+ * limitations under the License.                                           *
+ ****************************************************************************/
+
+package com.teaglu.imapforward.soak;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.jdt.annotation.NonNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+/**
+ * FaultRunner
+ *
+ * Plays a fault script against a set of proxies on its own thread, and remembers when each
+ * fault was lifted so recovery can be measured afterwards.
+ */
+public class FaultRunner {
+	private static final Logger log= LoggerFactory.getLogger(FaultRunner.class);
+	
+	private final @NonNull FaultScript script;
+	private final @NonNull List<@NonNull FaultProxy> proxies;
+	
+	// Steps that were run and when, from System.nanoTime, guarded by this
+	private final List<FaultScript.@NonNull Step> ranSteps= new ArrayList<>();
+	private final List<@NonNull Long> ranTimes= new ArrayList<>();
+	
+	private Thread thread= null;
+	
+	private FaultRunner(
+			@NonNull FaultScript script,
+			@NonNull List<@NonNull FaultProxy> proxies)
+	{
+		this.script= script;
+		this.proxies= proxies;
+	}
+	
+	public static @NonNull FaultRunner Create(
+			@NonNull FaultScript script,
+			@NonNull List<@NonNull FaultProxy> proxies)
+	{
+		return new FaultRunner(script, proxies);
+	}
+	
+	/**
+	 * start
+	 *
+	 * Start the script, with times counted from now
+	 */
+	public void start() {
+		long start= System.nanoTime();
+		
+		thread= new Thread(() -> { run(start); }, "fault-runner");
+		thread.setDaemon(true);
+		thread.start();
+	}
+	
+	/**
+	 * stop
+	 *
+	 * Stop running steps and put every proxy back to normal
+	 */
+	public void stop() {
+		thread.interrupt();
+		try {
+			thread.join();
+		} catch (InterruptedException e) {
+		}
+		
+		for (FaultProxy proxy : proxies) {
+			proxy.clear();
+		}
+	}
+	
+	private void run(
+			long start)
+	{
+		for (FaultScript.Step step : script.getSteps()) {
+			long due= start + TimeUnit.SECONDS.toNanos(step.getSeconds());
+			try {
+				for (long wait; (wait= due - System.nanoTime()) > 0; ) {
+					TimeUnit.NANOSECONDS.sleep(wait);
+				}
+			} catch (InterruptedException e) {
+				return;
+			}
+			
+			log.info("Fault step: " + step);
+			for (FaultProxy proxy : proxies) {
+				apply(proxy, step);
+			}
+			
+			synchronized (this) {
+				ranSteps.add(step);
+				ranTimes.add(System.nanoTime());
+			}
+		}
+	}
+	
+	private static void apply(
+			@NonNull FaultProxy proxy,
+			FaultScript.@NonNull Step step)
+	{
+		switch (step.getAction()) {
+		case "delay":
+			proxy.setDelay(step.getValue());
+			break;
+		case "bandwidth":
+			proxy.setBandwidth(step.getValue());
+			break;
+		case "cut":
+			proxy.setCutAfter(step.getValue());
+			break;
+		case "stall":
+			proxy.setStalled(true);
+			break;
+		case "refuse":
+			proxy.setRefusing(true);
+			break;
+		case "reset":
+			proxy.resetAll();
+			break;
+		case "clear":
+			proxy.clear();
+			break;
+		}
+	}
+	
+	/**
+	 * buildReport
+	 *
+	 * @param tracker					Tracker that saw the deliveries
+	 *
+	 * @return							Each recovery point with how long recovery took
+	 */
+	public synchronized @NonNull JsonObject buildReport(
+			@NonNull DeliveryTracker tracker)
+	{
+		JsonArray recoveries= new JsonArray();
+		for (int i= 0; i < ranSteps.size(); i++) {
+			FaultScript.Step step= ranSteps.get(i);
+			if (step.isRecoveryPoint()) {
+				JsonObject recovery= tracker.buildRecoveryReport(ranTimes.get(i));
+				recovery.addProperty("step", step.toString());
+				recoveries.add(recovery);
+			}
+		}
+		
+		JsonObject proxyReports= new JsonObject();
+		for (FaultProxy proxy : proxies) {
+			proxyReports.add(proxy.getName(), proxy.buildReport());
+		}
+		
+		JsonObject report= new JsonObject();
+		report.addProperty("stepsRun", ranSteps.size());
+		report.addProperty("stepsScripted", script.getSteps().size());
+		report.add("recoveries", recoveries);
+		report.add("proxies", proxyReports);
+		return report;
+	}
+}
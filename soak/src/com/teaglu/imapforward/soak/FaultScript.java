@@ -0,0 +1,240 @@
+/****************************************************************************
+ * Copyright 2022 Teaglu, LLC                                               *
+ *                                                                          *
+ * Licensed under the Apache License, Version 2.0 (the "License");          *
+ * you may not use this file except in compliance with the License.         *
+ * You may obtain a copy of the License at                                  *
+ *                                                                          *
+ *   http://www.apache.org/licenses/LICENSE-2.0                             *
+ *                                                                          *
+ * Unless required by applicable law or agreed to in writing, software      *
+ * distributed under the License is distributed on an "AS IS" BASIS,        *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. *
+ * See the License for the specific language governing permissions and      *
+ * limitations under the License.                                           *
+ ****************************************************************************/
+
+package com.teaglu.imapforward.soak;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.eclipse.jdt.annotation.NonNull;
+
+/**
+ * FaultScript
+ *
+ * A timed list of faults for the proxies.  Each line is a time in seconds from the start of
+ * the load, an action, and for some actions a value:
+ *
+ *   60 delay 2000          hold each chunk of data 2000ms
+ *   60 bandwidth 8192      pass at most 8192 bytes a second
+ *   60 cut 65536           reset each connection after 65536 bytes
+ *   60 stall               stop passing data but keep connections open
+ *   60 refuse              reset new connections
+ *   60 reset               reset every open connection once
+ *   180 clear              back to normal
+ *
+ * Blank lines and lines starting with # are ignored.  Recovery is measured from every clear
+ * and every reset.
+ */
+public class FaultScript {
+	/**
+	 * Step
+	 *
+	 * One line of a script
+	 */
+	public static class Step {
+		private final int seconds;
+		private final @NonNull String action;
+		private final long value;
+		
+		private Step(
+				int seconds,
+				@NonNull String action,
+				long value)
+		{
+			this.seconds= seconds;
+			this.action= action;
+			this.value= value;
+		}
+		
+		public int getSeconds() { return seconds; }
+		public @NonNull String getAction() { return action; }
+		public long getValue() { return value; }
+		
+		/**
+		 * isRecoveryPoint
+		 *
+		 * @return							True if things should start working again after this
+		 */
+		public boolean isRecoveryPoint() {
+			return action.equals("clear") || action.equals("reset");
+		}
+		
+		@Override
+		public @NonNull String toString() {
+			return seconds + " " + action + (needsValue(action) ? (" " + value) : "");
+		}
+	}
+	
+	// Built-in benchmark scenarios, which all fit in the default five minute run
+	private static final Map<@NonNull String, @NonNull String> SCENARIOS= new LinkedHashMap<>();
+	static {
+		SCENARIOS.put("latency",
+				"60 delay 2000\n" +
+				"180 clear\n");
+		SCENARIOS.put("bandwidth",
+				"60 bandwidth 16384\n" +
+				"180 clear\n");
+		SCENARIOS.put("reset",
+				"60 reset\n" +
+				"120 reset\n" +
+				"180 reset\n");
+		SCENARIOS.put("midliteral",
+				"60 cut 65536\n" +
+				"180 clear\n");
+		SCENARIOS.put("stall",
+				"60 stall\n" +
+				"180 clear\n");
+		SCENARIOS.put("outage",
+				"60 refuse\n" +
+				"60 reset\n" +
+				"180 clear\n");
+	}
+	
+	private final @NonNull List<@NonNull Step> steps;
+	
+	private FaultScript(
+			@NonNull List<@NonNull Step> steps)
+	{
+		this.steps= Collections.unmodifiableList(steps);
+	}
+	
+	/**
+	 * Parse
+	 *
+	 * @param text						Script text
+	 *
+	 * @return							Script
+	 *
+	 * @throws IllegalArgumentException	For a line that doesn't make sense
+	 */
+	public static @NonNull FaultScript Parse(
+			@NonNull String text)
+	{
+		List<@NonNull Step> steps= new ArrayList<>();
+		
+		int lineNumber= 0;
+		for (String line : text.split("\n")) {
+			lineNumber++;
+			line= line.trim();
+			if (line.isEmpty() || line.startsWith("#")) {
+				continue;
+			}
+			
+			String[] fields= line.split("\\s+");
+			try {
+				int seconds= Integer.parseInt(fields[0]);
+				String action= (fields.length > 1) ? fields[1] : "";
+				
+				if (!needsValue(action) && !isKnown(action)) {
+					throw new IllegalArgumentException("Unknown fault action on line " +
+							lineNumber + ": " + line);
+				}
+				if (fields.length != (needsValue(action) ? 3 : 2)) {
+					throw new IllegalArgumentException("Wrong number of fields on line " +
+							lineNumber + ": " + line);
+				}
+				
+				long value= needsValue(action) ? Long.parseLong(fields[2]) : 0;
+				
+				if (!steps.isEmpty() && (seconds < steps.get(steps.size() - 1).seconds)) {
+					throw new IllegalArgumentException("Steps are out of order on line " +
+							lineNumber);
+				}
+				
+				steps.add(new Step(seconds, action, value));
+			} catch (NumberFormatException e) {
+				throw new IllegalArgumentException("Bad number on line " + lineNumber + ": " + line);
+			}
+		}
+		
+		return new FaultScript(steps);
+	}
+	
+	/**
+	 * Load
+	 *
+	 * @param path						Script file
+	 *
+	 * @return							Script
+	 *
+	 * @throws IOException
+	 */
+	public static @NonNull FaultScript Load(
+			@NonNull Path path) throws IOException
+	{
+		return Parse(Files.readString(path, StandardCharsets.UTF_8));
+	}
+	
+	/**
+	 * ForScenario
+	 *
+	 * @param name						Name of a built-in scenario
+	 *
+	 * @return							Script
+	 *
+	 * @throws IllegalArgumentException	If there's no such scenario
+	 */
+	public static @NonNull FaultScript ForScenario(
+			@NonNull String name)
+	{
+		String text= SCENARIOS.get(name);
+		if (text == null) {
+			throw new IllegalArgumentException("Unknown scenario " + name + " - choose from " +
+					String.join(", ", SCENARIOS.keySet()));
+		}
+		return Parse(text);
+	}
+	
+	private static boolean needsValue(
+			@NonNull String action)
+	{
+		return action.equals("delay") || action.equals("bandwidth") || action.equals("cut");
+	}
+	
+	private static boolean isKnown(
+			@NonNull String action)
+	{
+		switch (action) {
+		case "stall":
+		case "refuse":
+		case "reset":
+		case "clear":
+			return true;
+		default:
+			return false;
+		}
+	}
+	
+	public @NonNull List<@NonNull Step> getSteps() {
+		return steps;
+	}
+	
+	/**
+	 * getLastSecond
+	 *
+	 * @return							Time of the last step
+	 */
+	public int getLastSecond() {
+		return steps.isEmpty() ? 0 : steps.get(steps.size() - 1).seconds;
+	}
+}
@@ -0,0 +1,191 @@
+/****************************************************************************
+ * Copyright 2022 Teaglu, LLC                                               *
+ *                                                                          *
+ * Licensed under the Apache License, Version 2.0 (the "License");          *
+ * you may not use this file except in compliance with the License.         *
+ * You may obtain a copy of the License at                                  *
+ *                                                                          *
+ *   http://www.apache.org/licenses/LICENSE-2.0                             *
+ *                                                                          *
+ * Unless required by applicable law or agreed to in writing, software      *
+ * distributed under the License is distributed on an "AS IS" BASIS,        *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. *
+ * See the License for the specific language governing permissions and      *
+ * limitations under the License.                                           *
+ ****************************************************************************/
+
+package com.teaglu.imapforward.soak;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.jdt.annotation.NonNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+/**
+ * ForwarderProcess
+ *
+ * Runs the real forwarder in a child JVM from a generated config file, the same way it runs
+ * in production.  Keeping it in its own process means the resource numbers are for the
+ * forwarder alone and not the stand-in servers, and that killing it works like a real crash.
+ *
+ * The child gets this JVM's class path, which has the forwarder in it, and trusts the soak
+ * certificate through the standard trust store properties.
+ */
+public class ForwarderProcess {
+	private static final Logger log= LoggerFactory.getLogger(ForwarderProcess.class);
+	
+	private static final String MAIN_CLASS= "com.teaglu.imapforward.Main";
+	
+	private final @NonNull Process process;
+	
+	private ForwarderProcess(
+			@NonNull Process process)
+	{
+		this.process= process;
+	}
+	
+	/**
+	 * Start
+	 *
+	 * Write the config and start the forwarder
+	 *
+	 * @param directory					Work directory for the config and log
+	 * @param config					Forwarder configuration
+	 * @param certificate				Certificate the stand-in servers use
+	 * @param jvmArgs					Extra JVM arguments like a heap size
+	 *
+	 * @return							Running process
+	 *
+	 * @throws IOException
+	 */
+	public static @NonNull ForwarderProcess Start(
+			@NonNull Path directory,
+			@NonNull JsonObject config,
+			@NonNull TestCertificate certificate,
+			@NonNull List<@NonNull String> jvmArgs) throws IOException
+	{
+		Path configFile= directory.resolve("config.json");
+		Files.writeString(configFile,
+				new GsonBuilder().setPrettyPrinting().create().toJson(config),
+				StandardCharsets.UTF_8);
+		
+		Path logFile= directory.resolve("forwarder.log");
+		
+		List<@NonNull String> command= new ArrayList<>();
+		command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+		command.addAll(jvmArgs);
+		command.addAll(certificate.getTrustProperties());
+		command.add("-cp");
+		command.add(System.getProperty("java.class.path"));
+		command.add(MAIN_CLASS);
+		
+		ProcessBuilder builder= new ProcessBuilder(command)
+				.redirectErrorStream(true)
+				.redirectOutput(logFile.toFile());
+		builder.environment().put("IMAPFORWARD_CONFIG", configFile.toAbsolutePath().toString());
+		
+		Process process= builder.start();
+		log.info("Started forwarder as process " + process.pid() + ", logging to " + logFile);
+		
+		return new ForwarderProcess(process);
+	}
+	
+	/**
+	 * BuildForwardConfig
+	 *
+	 * Build a config with one imap-forward job per account, moving INBOX to INBOX
+	 *
+	 * @param users						Accounts, which use the same name on both servers
+	 * @param sourcePort				Port for the source server
+	 * @param sourcePassword			Password for every source account
+	 * @param destinationPort			Port for the destination server
+	 * @param destinationPassword		Password for every destination account
+	 * @param cycleSeconds				Polling interval for the jobs
+	 * @param jobSettings				Extra settings copied into every job, or empty
+	 *
+	 * @return							Config
+	 */
+	public static @NonNull JsonObject BuildForwardConfig(
+			@NonNull List<@NonNull String> users,
+			int sourcePort,
+			@NonNull String sourcePassword,
+			int destinationPort,
+			@NonNull String destinationPassword,
+			int cycleSeconds,
+			@NonNull JsonObject jobSettings)
+	{
+		JsonArray jobs= new JsonArray();
+		for (String user : users) {
+			JsonObject job= jobSettings.deepCopy();
+			job.addProperty("name", "soak-" + user);
+			job.addProperty("type", "imap-forward");
+			job.addProperty("seconds", cycleSeconds);
+			job.add("source", buildMailbox(sourcePort, user, sourcePassword));
+			job.add("destination", buildMailbox(destinationPort, user, destinationPassword));
+			
+			JsonObject pair= new JsonObject();
+			pair.addProperty("source", "INBOX");
+			pair.addProperty("destination", "INBOX");
+			
+			JsonArray folders= new JsonArray();
+			folders.add(pair);
+			job.add("folders", folders);
+			
+			jobs.add(job);
+		}
+		
+		JsonObject config= new JsonObject();
+		config.add("jobs", jobs);
+		return config;
+	}
+	
+	private static @NonNull JsonObject buildMailbox(
+			int port,
+			@NonNull String user,
+			@NonNull String password)
+	{
+		JsonObject mailbox= new JsonObject();
+		mailbox.addProperty("host", "127.0.0.1");
+		mailbox.addProperty("port", port);
+		mailbox.addProperty("username", user);
+		mailbox.addProperty("password", password);
+		return mailbox;
+	}
+	
+	public long getPid() {
+		return process.pid();
+	}
+	
+	public boolean isAlive() {
+		return process.isAlive();
+	}
+	
+	/**
+	 * stop
+	 *
+	 * Ask the forwarder to exit, and kill it if it doesn't
+	 */
+	public void stop() {
+		process.destroy();
+		try {
+			if (!process.waitFor(30, TimeUnit.SECONDS)) {
+				log.warn("Forwarder did not exit - killing it");
+				process.destroyForcibly().waitFor();
+			}
+		} catch (InterruptedException e) {
+			process.destroyForcibly();
+		}
+	}
+}
@@ -0,0 +1,238 @@
+/****************************************************************************
+ * Copyright 2022 Teaglu, LLC                                               *
+ *                                                                          *
+ * Licensed under the Apache License, Version 2.0 (the "License");          *
+ * you may not use this file except in compliance with the License.         *
+ * You may obtain a copy of the License at                                  *
+ *                                                                          *
+ *   http://www.apache.org/licenses/LICENSE-2.0                             *
+ *                                                                          *
+ * Unless required by applicable law or agreed to in writing, software      *
+ * distributed under the License is distributed on an "AS IS" BASIS,        *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. *
+ * See the License for the specific language governing permissions and      *
+ * limitations under the License.                                           *
+ ****************************************************************************/
+
+package com.teaglu.imapforward.soak;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.eclipse.jdt.annotation.NonNull;
+import org.eclipse.jdt.annotation.Nullable;
+
+/**
+ * ImapReader
+ *
+ * Reads IMAP commands off a connection and splits them into tokens.  Atoms and quoted
+ * strings come back as String, literals as byte[], and parenthesized lists as List.  An atom
+ * with a bracketed part like BODY.PEEK[HEADER.FIELDS (List-Id)]<0.100> is kept as one atom,
+ * spaces and all, since that's how the FETCH code wants it.
+ *
+ * This only has to understand what JavaMail sends, not everything a client could.
+ */
+class ImapReader {
+	private static final int MAX_LINE= 65536;
+	private static final int MAX_LITERAL= 64 * 1024 * 1024;
+	
+	private final @NonNull InputStream input;
+	private final @NonNull OutputStream output;
+	
+	// The command being tokenized - text lines with a literal after every one but the last
+	private final List<@NonNull String> lines= new ArrayList<>();
+	private final List<byte @NonNull[]> literals= new ArrayList<>();
+	private int lineIndex;
+	private int position;
+	
+	ImapReader(
+			@NonNull InputStream input,
+			@NonNull OutputStream output)
+	{
+		this.input= input;
+		this.output= output;
+	}
+	
+	/**
+	 * readCommand
+	 *
+	 * Read one command, asking for literals with a continuation as they come up
+	 *
+	 * @return							Tokens, or null at end of stream
+	 *
+	 * @throws IOException
+	 * @throws ImapSyntaxException		If the command can't be tokenized
+	 */
+	@Nullable List<@NonNull Object> readCommand() throws IOException, ImapSyntaxException {
+		lines.clear();
+		literals.clear();
+		
+		for (;;) {
+			String line= readLine();
+			if (line == null) {
+				if (lines.isEmpty()) {
+					return null;
+				}
+				throw new EOFException("Connection closed in the middle of a command");
+			}
+			lines.add(line);
+			
+			int size= literalSize(line);
+			if (size < 0) {
+				break;
+			}
+			if (size > MAX_LITERAL) {
+				throw new ImapSyntaxException("Literal too large");
+			}
+			
+			if (!line.endsWith("+}")) {
+				output.write("+ Ready for literal data\r\n".getBytes(StandardCharsets.US_ASCII));
+				output.flush();
+			}
+			
+			byte[] literal= new byte[size];
+			for (int read= 0; read < size; ) {
+				int count= input.read(literal, read, size - read);
+				if (count < 0) {
+					throw new EOFException("Connection closed in a literal");
+				}
+				read+= count;
+			}
+			literals.add(literal);
+		}
+		
+		lineIndex= 0;
+		position= 0;
+		
+		List<@NonNull Object> tokens= new ArrayList<>();
+		for (Object token; (token= nextToken()) != null; ) {
+			if (token == CLOSE) {
+				throw new ImapSyntaxException("Unbalanced parenthesis");
+			}
+			tokens.add(token);
+		}
+		return tokens;
+	}
+	
+	private static int literalSize(
+			@NonNull String line)
+	{
+		if (!line.endsWith("}")) {
+			return -1;
+		}
+		int open= line.lastIndexOf('{');
+		if (open < 0) {
+			return -1;
+		}
+		
+		String digits= line.substring(open + 1, line.length() - 1);
+		if (digits.endsWith("+")) {
+			digits= digits.substring(0, digits.length() - 1);
+		}
+		try {
+			return Integer.parseInt(digits);
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+	
+	private @Nullable String readLine() throws IOException {
+		ByteArrayOutputStream buffer= new ByteArrayOutputStream();
+		for (;;) {
+			int b= input.read();
+			if (b < 0) {
+				return (buffer.size() > 0) ? buffer.toString(StandardCharsets.UTF_8) : null;
+			}
+			if (b == '\n') {
+				byte[] bytes= buffer.toByteArray();
+				int length= bytes.length;
+				if ((length > 0) && (bytes[length - 1] == '\r')) {
+					length--;
+				}
+				return new String(bytes, 0, length, StandardCharsets.UTF_8);
+			}
+			if (buffer.size() >= MAX_LINE) {
+				throw new IOException("Command line too long");
+			}
+			buffer.write(b);
+		}
+	}
+	
+	// Marks the end of a list while tokenizing
+	private static final Object CLOSE= new Object();
+	
+	private @Nullable Object nextToken() throws ImapSyntaxException {
+		String line= lines.get(lineIndex);
+		
+		while ((position < line.length()) && (line.charAt(position) == ' ')) {
+			position++;
+		}
+		if (position >= line.length()) {
+			return null;
+		}
+		
+		char c= line.charAt(position);
+		if (c == '(') {
+			position++;
+			
+			List<@NonNull Object> list= new ArrayList<>();
+			for (;;) {
+				Object token= nextToken();
+				if (token == null) {
+					throw new ImapSyntaxException("Unterminated list");
+				}
+				if (token == CLOSE) {
+					return list;
+				}
+				list.add(token);
+			}
+		} else if (c == ')') {
+			position++;
+			return CLOSE;
+		} else if (c == '"') {
+			StringBuilder value= new StringBuilder();
+			for (position++; position < line.length(); position++) {
+				c= line.charAt(position);
+				if (c == '\\') {
+					position++;
+					if (position < line.length()) {
+						value.append(line.charAt(position));
+					}
+				} else if (c == '"') {
+					position++;
+					return value.toString();
+				} else {
+					value.append(c);
+				}
+			}
+			throw new ImapSyntaxException("Unterminated quoted string");
+		} else if ((c == '{') && (literalSize(line) >= 0) &&
+				(position == line.lastIndexOf('{')) && (lineIndex < literals.size()))
+		{
+			byte[] literal= literals.get(lineIndex);
+			lineIndex++;
+			position= 0;
+			return literal;
+		} else {
+			int start= position;
+			int depth= 0;
+			for (; position < line.length(); position++) {
+				c= line.charAt(position);
+				if (c == '[') {
+					depth++;
+				} else if (c == ']') {
+					depth--;
+				} else if ((depth == 0) && ((c == ' ') || (c == '(') || (c == ')'))) {
+					break;
+				}
+			}
+			return line.substring(start, position);
+		}
+	}
+}
@@ -0,0 +1,185 @@
+/****************************************************************************
+ * Copyright 2022 Teaglu, LLC                                               *
+ *                                                                          *
+ * Licensed under the Apache License, Version 2.0 (the "License");          *
+ * you may not use this file except in compliance with the License.         *
+ * You may obtain a copy of the License at                                  *
+ *                                                                          *
+ *   http://www.apache.org/licenses/LICENSE-2.0                             *
+ *                                                                          *
+ * Unless required by applicable law or agreed to in writing, software      *
+ * distributed under the License is distributed on an "AS IS" BASIS,        *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. *
+ * See the License for the specific language governing permissions and      *
+ * limitations under the License.                                           *
+ ****************************************************************************/
+
+package com.teaglu.imapforward.soak;
+
+import java.nio.charset.StandardCharsets;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import org.eclipse.jdt.annotation.NonNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * LoadGenerator
+ *
+ * Drops synthetic messages into source mailboxes the way outside mail would arrive.  Arrivals
+ * are a Poisson process at the configured total rate, each one going to a mailbox picked at
+ * random, and sizes follow a log-normal distribution since real mail is mostly small with a
+ * long tail of attachments.
+ */
+public class LoadGenerator {
+	private static final Logger log= LoggerFactory.getLogger(LoadGenerator.class);
+	
+	private static final int MIN_SIZE= 512;
+	private static final int MAX_SIZE= 64 * 1024 * 1024;
+	
+	// Body lines are this long before the CRLF, like base64 from a real mailer
+	private static final int LINE_LENGTH= 76;
+	
+	private final @NonNull FakeImapServer server;
+	private final @NonNull List<@NonNull String> users;
+	private final @NonNull String folder;
+	private final @NonNull DeliveryTracker tracker;
+	
+	private final double rate;
+	private final int sizeMedian;
+	private final double sizeSigma;
+	
+	private final @NonNull Random random;
+	
+	private long nextId= 1;
+	
+	private LoadGenerator(
+			@NonNull FakeImapServer server,
+			@NonNull List<@NonNull String> users,
+			@NonNull String folder,
+			@NonNull DeliveryTracker tracker,
+			double rate,
+			int sizeMedian,
+			double sizeSigma,
+			long seed)
+	{
+		this.server= server;
+		this.users= users;
+		this.folder= folder;
+		this.tracker= tracker;
+		this.rate= rate;
+		this.sizeMedian= sizeMedian;
+		this.sizeSigma= sizeSigma;
+		this.random= new Random(seed);
+	}
+	
+	/**
+	 * Create
+	 *
+	 * @param server					Server holding the source mailboxes
+	 * @param users						Accounts to spread messages across
+	 * @param folder					Folder to put them in
+	 * @param tracker					Told about each message injected
+	 * @param rate						Messages per second across all accounts
+	 * @param sizeMedian				Median message size in bytes
+	 * @param sizeSigma					Standard deviation of the log of the size
+	 * @param seed						Random seed, so a run can be repeated
+	 *
+	 * @return							New generator
+	 */
+	public static @NonNull LoadGenerator Create(
+			@NonNull FakeImapServer server,
+			@NonNull List<@NonNull String> users,
+			@NonNull String folder,
+			@NonNull DeliveryTracker tracker,
+			double rate,
+			int sizeMedian,
+			double sizeSigma,
+			long seed)
+	{
+		return new LoadGenerator(server, users, folder, tracker, rate, sizeMedian, sizeSigma, seed);
+	}
+	
+	/**
+	 * run
+	 *
+	 * Inject messages on the calling thread until the time is up
+	 *
+	 * @param seconds					How long to run
+	 *
+	 * @return							Number of messages injected
+	 */
+	public long run(
+			int seconds)
+	{
+		long start= System.nanoTime();
+		long end= start + TimeUnit.SECONDS.toNanos(seconds);
+		
+		// Arrival times are scheduled from the start rather than from whenever the last one
+		// finished, so a slow append doesn't lower the rate
+		long next= start;
+		long count= 0;
+		
+		while (true) {
+			next+= (long)(-Math.log(1.0 - random.nextDouble()) / rate * 1_000_000_000L);
+			if (next >= end) {
+				break;
+			}
+			
+			for (long wait; (wait= next - System.nanoTime()) > 0; ) {
+				LockSupport.parkNanos(wait);
+			}
+			
+			String user= users.get(random.nextInt(users.size()));
+			long id= nextId++;
+			
+			byte[] message= buildMessage(id, user, pickSize());
+			
+			// Tracker first, so a fast delivery can't beat it
+			tracker.injected(id);
+			server.append(user, folder, message);
+			count++;
+		}
+		
+		log.info("Injected " + count + " messages in " + seconds + " seconds");
+		return count;
+	}
+	
+	private int pickSize() {
+		double size= sizeMedian * Math.exp(sizeSigma * random.nextGaussian());
+		return (int)Math.max(MIN_SIZE, Math.min(MAX_SIZE, size));
+	}
+	
+	private byte @NonNull[] buildMessage(
+			long id,
+			@NonNull String user,
+			int size)
+	{
+		StringBuilder text= new StringBuilder(size + 256);
+		text.append("From: Soak Sender <sender@soak.invalid>\r\n");
+		text.append("To: <").append(user).append("@soak.invalid>\r\n");
+		text.append("Subject: Soak message ").append(id).append("\r\n");
+		text.append("Date: ").append(
+				DateTimeFormatter.RFC_1123_DATE_TIME.format(ZonedDateTime.now())).append("\r\n");
+		text.append("Message-ID: <soak-").append(id).append("@soak.invalid>\r\n");
+		text.append("X-Soak-Id: ").append(id).append("\r\n");
+		text.append("MIME-Version: 1.0\r\n");
+		text.append("Content-Type: text/plain; charset=us-ascii\r\n");
+		text.append("\r\n");
+		
+		while (text.length() < size) {
+			int length= Math.min(LINE_LENGTH, Math.max(1, size - text.length() - 2));
+			for (int i= 0; i < length; i++) {
+				text.append((char)('a' + random.nextInt(26)));
+			}
+			text.append("\r\n");
+		}
+		
+		return text.toString().getBytes(StandardCharsets.US_ASCII);
+	}
+}
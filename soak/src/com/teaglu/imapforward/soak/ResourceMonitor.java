@@ -0,0 +1,157 @@
+/****************************************************************************
+ * Copyright 2022 Teaglu, LLC                                               *
+ *                                                                          *
+ * Licensed under the Apache License, Version 2.0 (the "License");          *
+ * you may not use this file except in compliance with the License.         *
+ * You may obtain a copy of the License at                                  *
+ *                                                                          *
+ *   http://www.apache.org/licenses/LICENSE-2.0                             *
+ *                                                                          *
+ * Unless required by applicable law or agreed to in writing, software      *
+ * distributed under the License is distributed on an "AS IS" BASIS,        *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. *
+ * See the License for the specific language governing permissions and      *
+ * limitations under the License.                                           *
+ ****************************************************************************/
+
+package com.teaglu.imapforward.soak;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.stream.Stream;
+
+import org.eclipse.jdt.annotation.NonNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.gson.JsonObject;
+
+/**
+ * ResourceMonitor
+ *
+ * Samples the forwarder process from /proc once a second - resident memory, threads, open
+ * descriptors and CPU time.  This only works on Linux, which is the only place the soak test
+ * is meant to run.
+ */
+public class ResourceMonitor {
+	private static final Logger log= LoggerFactory.getLogger(ResourceMonitor.class);
+	
+	// USER_HZ is 100 on every Linux build we care about, and there's no way to ask from Java
+	private static final double TICKS_PER_SECOND= 100.0;
+	
+	private final long pid;
+	private final @NonNull Path procDirectory;
+	
+	private long samples= 0;
+	private long peakRssKb= 0;
+	private long totalRssKb= 0;
+	private long lastRssKb= 0;
+	private int peakThreads= 0;
+	private int peakDescriptors= 0;
+	private long cpuTicks= 0;
+	
+	private long startNanos= 0;
+	private long stopNanos= 0;
+	
+	private Thread thread= null;
+	private volatile boolean run= false;
+	
+	private ResourceMonitor(
+			long pid)
+	{
+		this.pid= pid;
+		this.procDirectory= Paths.get("/proc", Long.toString(pid));
+	}
+	
+	public static @NonNull ResourceMonitor Create(
+			long pid)
+	{
+		return new ResourceMonitor(pid);
+	}
+	
+	public void start() {
+		startNanos= System.nanoTime();
+		
+		run= true;
+		thread= new Thread(() -> { runLoop(); }, "soak-monitor");
+		thread.setDaemon(true);
+		thread.start();
+	}
+	
+	public void stop() {
+		run= false;
+		thread.interrupt();
+		try {
+			thread.join();
+		} catch (InterruptedException e) {
+		}
+		stopNanos= System.nanoTime();
+	}
+	
+	private void runLoop() {
+		while (run) {
+			try {
+				sample();
+			} catch (IOException e) {
+				// Most likely the process exited
+				log.debug("Unable to sample process " + pid, e);
+			}
+			
+			try {
+				Thread.sleep(1000);
+			} catch (InterruptedException e) {
+			}
+		}
+	}
+	
+	private synchronized void sample() throws IOException {
+		for (String line : Files.readAllLines(procDirectory.resolve("status"))) {
+			String[] fields= line.split("\\s+");
+			if (line.startsWith("VmRSS:") && (fields.length > 1)) {
+				lastRssKb= Long.parseLong(fields[1]);
+				peakRssKb= Math.max(peakRssKb, lastRssKb);
+				totalRssKb+= lastRssKb;
+			} else if (line.startsWith("Threads:") && (fields.length > 1)) {
+				peakThreads= Math.max(peakThreads, Integer.parseInt(fields[1]));
+			}
+		}
+		
+		try (Stream<Path> descriptors= Files.list(procDirectory.resolve("fd"))) {
+			peakDescriptors= Math.max(peakDescriptors, (int)descriptors.count());
+		}
+		
+		// The command name can have spaces in it, so count fields from after the parenthesis
+		String stat= Files.readString(procDirectory.resolve("stat"));
+		String[] fields= stat.substring(stat.lastIndexOf(')') + 2).split(" ");
+		cpuTicks= Long.parseLong(fields[11]) + Long.parseLong(fields[12]);
+		
+		samples++;
+	}
+	
+	/**
+	 * buildReport
+	 *
+	 * @return							Memory in megabytes, thread and descriptor peaks, and
+	 * 									CPU as a share of one core
+	 */
+	public synchronized @NonNull JsonObject buildReport() {
+		JsonObject report= new JsonObject();
+		report.addProperty("samples", samples);
+		report.addProperty("peakRssMb", peakRssKb / 1024.0);
+		report.addProperty("averageRssMb", (samples > 0) ? (totalRssKb / samples) / 1024.0 : 0);
+		report.addProperty("finalRssMb", lastRssKb / 1024.0);
+		report.addProperty("peakThreads", peakThreads);
+		report.addProperty("peakDescriptors", peakDescriptors);
+		
+		double cpuSeconds= cpuTicks / TICKS_PER_SECOND;
+		double wallSeconds= (stopNanos - startNanos) / 1_000_000_000.0;
+		report.addProperty("cpuSeconds", cpuSeconds);
+		if (wallSeconds > 0) {
+			report.addProperty("cpuCores", cpuSeconds / wallSeconds);
+		}
+		
+		return report;
+	}
+}
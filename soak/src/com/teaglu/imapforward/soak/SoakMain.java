@@ -0,0 +1,223 @@
+/****************************************************************************
+ * Copyright 2022 Teaglu, LLC                                               *
+ *                                                                          *
+ * Licensed under the Apache License, Version 2.0 (the "License");          *
+ * you may not use this file except in compliance with the License.         *
+ * You may obtain a copy of the License at                                  *
+ *                                                                          *
+ *   http://www.apache.org/licenses/LICENSE-2.0                             *
+ *                                                                          *
+ * Unless required by applicable law or agreed to in writing, software      *
+ * distributed under the License is distributed on an "AS IS" BASIS,        *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. *
+ * See the License for the specific language governing permissions and      *
+ * limitations under the License.                                           *
+ ****************************************************************************/
+
+package com.teaglu.imapforward.soak;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.eclipse.jdt.annotation.NonNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonObject;
+
+/**
+ * SoakMain
+ *
+ * End-to-end soak test.  Two stand-in IMAP servers play source and destination, the real
+ * forwarder runs against them in a child JVM with one imap-forward job per account, and
+ * synthetic mail is injected into the source accounts for the length of the run.  Afterwards
+ * it reports delivery latency, throughput, lost and duplicated messages, and what the
+ * forwarder process used.
+ *
+ * With a fault scenario or script, proxies that misbehave on a schedule are put between the
+ * forwarder and the servers, and the report also says how long delivery took to recover
+ * after each fault was lifted.
+ *
+ * The exit code is zero only if every message arrived exactly once.
+ */
+public class SoakMain {
+	private static final Logger log= LoggerFactory.getLogger(SoakMain.class);
+	
+	static final String SOURCE_PASSWORD= "source-secret";
+	static final String DESTINATION_PASSWORD= "destination-secret";
+	
+	// How long to wait for every job to log in before starting the load
+	private static final long STARTUP_MILLIS= 60_000;
+	
+	public static void main(String[] args) {
+		SoakOptions options;
+		try {
+			options= SoakOptions.Parse(args);
+		} catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			System.err.print(SoakOptions.USAGE);
+			System.exit(2);
+			return;
+		}
+		
+		try {
+			System.exit(run(options) ? 0 : 1);
+		} catch (Exception e) {
+			log.error("Soak run failed", e);
+			System.exit(3);
+		}
+	}
+	
+	private static boolean run(
+			@NonNull SoakOptions options) throws Exception
+	{
+		Path work= options.workDirectory;
+		if (work == null) {
+			work= Files.createTempDirectory("imapforward-soak");
+		} else {
+			Files.createDirectories(work);
+		}
+		
+		TestCertificate certificate= TestCertificate.Create(work);
+		
+		FakeImapServer source= FakeImapServer.Create("source", certificate.createServerContext());
+		FakeImapServer destination= FakeImapServer.Create(
+				"destination", certificate.createServerContext());
+		
+		List<@NonNull String> users= new ArrayList<>();
+		for (int i= 1; i <= options.mailboxes; i++) {
+			String user= "user" + i;
+			users.add(user);
+			
+			source.addAccount(user, SOURCE_PASSWORD);
+			destination.addAccount(user, DESTINATION_PASSWORD);
+		}
+		
+		DeliveryTracker tracker= new DeliveryTracker();
+		destination.setDeliveryListener(tracker);
+		
+		source.start();
+		destination.start();
+		
+		FaultScript script= null;
+		if (options.scenario != null) {
+			script= FaultScript.ForScenario(options.scenario);
+		} else if (options.script != null) {
+			script= FaultScript.Load(options.script);
+		}
+		
+		// With faults, the jobs talk to the servers through proxies
+		int sourcePort= source.getPort();
+		int destinationPort= destination.getPort();
+		List<@NonNull FaultProxy> proxies= new ArrayList<>();
+		
+		if (script != null) {
+			if (script.getLastSecond() >= options.durationSeconds) {
+				log.warn("Fault script runs past the end of the load");
+			}
+			
+			if (!options.faultTarget.equals("destination")) {
+				FaultProxy proxy= FaultProxy.Create("source", sourcePort);
+				proxy.start();
+				proxies.add(proxy);
+				sourcePort= proxy.getPort();
+			}
+			if (!options.faultTarget.equals("source")) {
+				FaultProxy proxy= FaultProxy.Create("destination", destinationPort);
+				proxy.start();
+				proxies.add(proxy);
+				destinationPort= proxy.getPort();
+			}
+		}
+		
+		JsonObject config= ForwarderProcess.BuildForwardConfig(
+				users, sourcePort, SOURCE_PASSWORD,
+				destinationPort, DESTINATION_PASSWORD,
+				options.cycleSeconds, options.jobSettings);
+		
+		ForwarderProcess forwarder= ForwarderProcess.Start(
+				work, config, certificate, options.jvmArgs);
+		ResourceMonitor monitor= ResourceMonitor.Create(forwarder.getPid());
+		FaultRunner faultRunner= (script != null) ? FaultRunner.Create(script, proxies) : null;
+		
+		boolean clean= false;
+		try {
+			monitor.start();
+			
+			// Latency numbers shouldn't include JVM startup
+			long deadline= System.currentTimeMillis() + STARTUP_MILLIS;
+			while ((source.getLogins() < users.size()) && forwarder.isAlive() &&
+					(System.currentTimeMillis() < deadline))
+			{
+				Thread.sleep(250);
+			}
+			if (!forwarder.isAlive()) {
+				throw new IllegalStateException("Forwarder exited during startup - see " +
+						work.resolve("forwarder.log"));
+			}
+			log.info(source.getLogins() + " of " + users.size() + " jobs logged in, " +
+					"starting load");
+			
+			LoadGenerator generator= LoadGenerator.Create(source, users, "INBOX", tracker,
+					options.rate, options.sizeMedian, options.sizeSigma, options.seed);
+			
+			if (faultRunner != null) {
+				faultRunner.start();
+			}
+			generator.run(options.durationSeconds);
+			if (faultRunner != null) {
+				// Anything still in effect would keep the backlog from draining
+				faultRunner.stop();
+			}
+			
+			log.info("Load finished, waiting up to " + options.drainSeconds + " seconds for " +
+					tracker.getPending() + " messages still in flight");
+			tracker.awaitDrain(options.drainSeconds * 1000L);
+		} finally {
+			monitor.stop();
+			forwarder.stop();
+			
+			for (FaultProxy proxy : proxies) {
+				proxy.stop();
+			}
+			source.stop();
+			destination.stop();
+		}
+		
+		JsonObject report= new JsonObject();
+		report.add("delivery", tracker.buildReport());
+		report.add("forwarder", monitor.buildReport());
+		
+		JsonObject servers= new JsonObject();
+		servers.addProperty("sourcePeakConnections", source.getPeakConnections());
+		servers.addProperty("destinationPeakConnections", destination.getPeakConnections());
+		servers.addProperty("sourceLogins", source.getLogins());
+		servers.addProperty("destinationLogins", destination.getLogins());
+		servers.addProperty("leftInSource", source.countMessages());
+		report.add("servers", servers);
+		
+		if (faultRunner != null) {
+			report.add("faults", faultRunner.buildReport(tracker));
+		}
+		
+		String json= new GsonBuilder().setPrettyPrinting().create().toJson(report);
+		System.out.println(json);
+		
+		if (options.reportFile != null) {
+			Files.writeString(options.reportFile, json, StandardCharsets.UTF_8);
+		}
+		
+		List<@NonNull Long> lost= tracker.getLostIds();
+		if (!lost.isEmpty()) {
+			log.error("Lost " + lost.size() + " messages, first IDs " +
+					lost.subList(0, Math.min(20, lost.size())));
+		}
+		
+		clean= lost.isEmpty() && (tracker.getDuplicates() == 0);
+		return clean;
+	}
+}
@@ -0,0 +1,192 @@
+/****************************************************************************
+ * Copyright 2022 Teaglu, LLC                                               *
+ *                                                                          *
+ * Licensed under the Apache License, Version 2.0 (the "License");          *
+ * you may not use this file except in compliance with the License.         *
+ * You may obtain a copy of the License at                                  *
+ *                                                                          *
+ *   http://www.apache.org/licenses/LICENSE-2.0                             *
+ *                                                                          *
+ * Unless required by applicable law or agreed to in writing, software      *
+ * distributed under the License is distributed on an "AS IS" BASIS,        *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. *
+ * See the License for the specific language governing permissions and      *
+ * limitations under the License.                                           *
+ ****************************************************************************/
+
+package com.teaglu.imapforward.soak;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.eclipse.jdt.annotation.NonNull;
+import org.eclipse.jdt.annotation.Nullable;
+
+import com.google.gson.JsonObject;
+
+/**
+ * SoakOptions
+ *
+ * Command line options for a soak run, all given as --name=value
+ */
+public class SoakOptions {
+	int mailboxes= 20;
+	double rate= 5.0;
+	int durationSeconds= 300;
+	int sizeMedian= 20000;
+	double sizeSigma= 1.0;
+	int drainSeconds= 120;
+	int cycleSeconds= 5;
+	long seed= 1;
+	
+	@Nullable Path workDirectory= null;
+	@Nullable Path reportFile= null;
+	@NonNull List<@NonNull String> jvmArgs= new ArrayList<>();
+	@NonNull JsonObject jobSettings= new JsonObject();
+	
+	// Faults are only injected if one of these is set
+	@Nullable String scenario= null;
+	@Nullable Path script= null;
+	@NonNull String faultTarget= "both";
+	
+	static final String USAGE=
+			"Options:\n" +
+			"  --mailboxes=N       Accounts to forward, one job each (20)\n" +
+			"  --rate=R            Messages per second across all accounts (5)\n" +
+			"  --duration=S        Seconds to inject load (300)\n" +
+			"  --size-median=B     Median message size in bytes (20000)\n" +
+			"  --size-sigma=X      Log-normal sigma for sizes (1.0)\n" +
+			"  --drain=S           Seconds to wait for stragglers afterwards (120)\n" +
+			"  --cycle=S           Polling interval for the jobs (5)\n" +
+			"  --seed=N            Random seed (1)\n" +
+			"  --work=DIR          Directory for certificates, config and logs (temporary)\n" +
+			"  --report=FILE       Also write the report as JSON\n" +
+			"  --jvm=ARG           Extra argument for the forwarder JVM, can repeat\n" +
+			"  --job=NAME=VALUE    Extra setting for every job, like readSeconds=30, can repeat\n" +
+			"  --scenario=NAME     Inject faults from a built-in scenario: latency, bandwidth,\n" +
+			"                      reset, midliteral, stall or outage\n" +
+			"  --script=FILE       Inject faults from a script file instead\n" +
+			"  --fault-target=T    Put the faults in front of source, destination or both (both)\n";
+	
+	private SoakOptions() {}
+	
+	/**
+	 * Parse
+	 *
+	 * @param args						Command line
+	 *
+	 * @return							Options
+	 *
+	 * @throws IllegalArgumentException	For anything not understood
+	 */
+	public static @NonNull SoakOptions Parse(
+			@NonNull String[] args)
+	{
+		SoakOptions options= new SoakOptions();
+		
+		for (String arg : args) {
+			int equals= arg.indexOf('=');
+			if (!arg.startsWith("--") || (equals < 0)) {
+				throw new IllegalArgumentException("Unable to parse option " + arg);
+			}
+			
+			String name= arg.substring(2, equals);
+			String value= arg.substring(equals + 1);
+			
+			try {
+				switch (name) {
+				case "mailboxes":
+					options.mailboxes= Integer.parseInt(value);
+					break;
+				case "rate":
+					options.rate= Double.parseDouble(value);
+					break;
+				case "duration":
+					options.durationSeconds= Integer.parseInt(value);
+					break;
+				case "size-median":
+					options.sizeMedian= Integer.parseInt(value);
+					break;
+				case "size-sigma":
+					options.sizeSigma= Double.parseDouble(value);
+					break;
+				case "drain":
+					options.drainSeconds= Integer.parseInt(value);
+					break;
+				case "cycle":
+					options.cycleSeconds= Integer.parseInt(value);
+					break;
+				case "seed":
+					options.seed= Long.parseLong(value);
+					break;
+				case "work":
+					options.workDirectory= Paths.get(value);
+					break;
+				case "report":
+					options.reportFile= Paths.get(value);
+					break;
+				case "jvm":
+					options.jvmArgs.add(value);
+					break;
+				case "job":
+					addJobSetting(options.jobSettings, value);
+					break;
+				case "scenario":
+					options.scenario= value;
+					break;
+				case "script":
+					options.script= Paths.get(value);
+					break;
+				case "fault-target":
+					if (!value.equals("source") && !value.equals("destination") &&
+							!value.equals("both"))
+					{
+						throw new IllegalArgumentException("Fault target must be source, " +
+								"destination or both");
+					}
+					options.faultTarget= value;
+					break;
+				default:
+					throw new IllegalArgumentException("Unknown option " + name);
+				}
+			} catch (NumberFormatException e) {
+				throw new IllegalArgumentException("Bad value for " + name + ": " + value);
+			}
+		}
+		
+		if ((options.mailboxes < 1) || (options.rate <= 0) || (options.durationSeconds < 1)) {
+			throw new IllegalArgumentException(
+					"Need at least one mailbox, a positive rate and a positive duration");
+		}
+		
+		if ((options.scenario != null) && (options.script != null)) {
+			throw new IllegalArgumentException("Use a scenario or a script, not both");
+		}
+		
+		return options;
+	}
+	
+	private static void addJobSetting(
+			@NonNull JsonObject settings,
+			@NonNull String setting)
+	{
+		int equals= setting.indexOf('=');
+		if (equals < 1) {
+			throw new IllegalArgumentException("Job settings look like name=value");
+		}
+		
+		String name= setting.substring(0, equals);
+		String value= setting.substring(equals + 1);
+		
+		// Job settings are numbers, booleans or strings, and nothing here needs objects
+		if (value.matches("-?[0-9]+")) {
+			settings.addProperty(name, Long.parseLong(value));
+		} else if (value.equals("true") || value.equals("false")) {
+			settings.addProperty(name, Boolean.parseBoolean(value));
+		} else {
+			settings.addProperty(name, value);
+		}
+	}
+}
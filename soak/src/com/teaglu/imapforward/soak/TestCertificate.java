@@ -0,0 +1,151 @@
+/****************************************************************************
+ * Copyright 2022 Teaglu, LLC                                               *
+ *                                                                          *
+ * Licensed under the Apache License, Version 2.0 (the "License");          *
+ * you may not use this file except in compliance with the License.         *
+ * You may obtain a copy of the License at                                  *
+ *                                                                          *
+ *   http://www.apache.org/licenses/LICENSE-2.0                             *
+ *                                                                          *
+ * Unless required by applicable law or agreed to in writing, software      *
+ * distributed under the License is distributed on an "AS IS" BASIS,        *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. *
+ * See the License for the specific language governing permissions and      *
+ * limitations under the License.                                           *
+ ****************************************************************************/
+
+package com.teaglu.imapforward.soak;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+
+import org.eclipse.jdt.annotation.NonNull;
+
+/**
+ * TestCertificate
+ *
+ * A throwaway self-signed certificate for the stand-in servers, made with the keytool that
+ * comes with the running JDK so nothing has to be fetched.  The certificate is also put in
+ * its own trust store, which the forwarder under test is pointed at.
+ */
+public class TestCertificate {
+	private static final String ALIAS= "soak";
+	private static final String PASSWORD= "soakpass";
+	
+	private final @NonNull Path keyStore;
+	private final @NonNull Path trustStore;
+	
+	private TestCertificate(
+			@NonNull Path directory) throws IOException
+	{
+		keyStore= directory.resolve("server.p12");
+		trustStore= directory.resolve("trust.p12");
+		
+		Path certificate= directory.resolve("server.cer");
+		
+		Files.deleteIfExists(keyStore);
+		Files.deleteIfExists(trustStore);
+		Files.deleteIfExists(certificate);
+		
+		keytool("-genkeypair", "-alias", ALIAS, "-keyalg", "RSA", "-keysize", "2048",
+				"-validity", "7", "-dname", "CN=localhost",
+				"-ext", "SAN=dns:localhost,ip:127.0.0.1",
+				"-storetype", "PKCS12", "-keystore", keyStore.toString(),
+				"-storepass", PASSWORD, "-keypass", PASSWORD);
+		
+		keytool("-exportcert", "-alias", ALIAS, "-keystore", keyStore.toString(),
+				"-storepass", PASSWORD, "-file", certificate.toString());
+		
+		keytool("-importcert", "-noprompt", "-alias", ALIAS, "-file", certificate.toString(),
+				"-storetype", "PKCS12", "-keystore", trustStore.toString(),
+				"-storepass", PASSWORD);
+	}
+	
+	/**
+	 * Create
+	 *
+	 * Generate a new certificate and trust store
+	 *
+	 * @param directory					Directory to write the stores to
+	 *
+	 * @return							Certificate
+	 *
+	 * @throws IOException
+	 */
+	public static @NonNull TestCertificate Create(
+			@NonNull Path directory) throws IOException
+	{
+		return new TestCertificate(directory);
+	}
+	
+	private static void keytool(
+			@NonNull String... args) throws IOException
+	{
+		List<@NonNull String> command= new ArrayList<>();
+		command.add(Paths.get(System.getProperty("java.home"), "bin", "keytool").toString());
+		for (String arg : args) {
+			command.add(arg);
+		}
+		
+		Process process= new ProcessBuilder(command)
+				.redirectErrorStream(true)
+				.start();
+		
+		String output= new String(process.getInputStream().readAllBytes());
+		try {
+			int exitCode= process.waitFor();
+			if (exitCode != 0) {
+				throw new IOException("keytool " + args[0] + " failed: " + output.trim());
+			}
+		} catch (InterruptedException e) {
+			process.destroy();
+			throw new IOException("Interrupted running keytool", e);
+		}
+	}
+	
+	/**
+	 * createServerContext
+	 *
+	 * @return							TLS context presenting the certificate
+	 *
+	 * @throws IOException
+	 * @throws GeneralSecurityException
+	 */
+	public @NonNull SSLContext createServerContext() throws IOException, GeneralSecurityException {
+		KeyStore store= KeyStore.getInstance("PKCS12");
+		try (InputStream input= Files.newInputStream(keyStore)) {
+			store.load(input, PASSWORD.toCharArray());
+		}
+		
+		KeyManagerFactory keyManagerFactory= KeyManagerFactory.getInstance(
+				KeyManagerFactory.getDefaultAlgorithm());
+		keyManagerFactory.init(store, PASSWORD.toCharArray());
+		
+		SSLContext context= SSLContext.getInstance("TLS");
+		context.init(keyManagerFactory.getKeyManagers(), null, null);
+		
+		return context;
+	}
+	
+	/**
+	 * getTrustProperties
+	 *
+	 * @return							System properties that make a JVM trust the certificate
+	 */
+	public @NonNull List<@NonNull String> getTrustProperties() {
+		return List.of(
+				"-Djavax.net.ssl.trustStore=" + trustStore,
+				"-Djavax.net.ssl.trustStorePassword=" + PASSWORD,
+				"-Djavax.net.ssl.trustStoreType=PKCS12");
+	}
+}
@@ -18,9 +18,9 @@ package com.teaglu.imapforward;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.ArrayList;
 import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.CountDownLatch;
 
 import org.eclipse.jdt.annotation.NonNull;
@@ -36,11 +36,15 @@ import com.teaglu.configure.secret.SecretProvider;
 import com.teaglu.configure.secret.SecretProviderFactory;
 import com.teaglu.configure.secret.SecretReplacer;
 import com.teaglu.configure.secret.replacer.AtIdSecretReplacer;
+import com.teaglu.imapforward.admin.AdminServer;
 import com.teaglu.imapforward.alert.AlertSink;
 import com.teaglu.imapforward.alert.AlertSinkFactory;
 import com.teaglu.imapforward.alert.ConsoleAlertSink;
+import com.teaglu.imapforward.circuit.CircuitBreakerRegistry;
+import com.teaglu.imapforward.cluster.ClusterCoordinator;
 import com.teaglu.imapforward.job.Job;
 import com.teaglu.imapforward.job.JobFactory;
+import com.teaglu.imapforward.throttle.ThrottleRegistry;
 import com.teaglu.imapforward.timeout.TimeoutManager;
 import com.teaglu.imapforward.timeout.TimeoutManagerImpl;
 
@@ -54,8 +58,13 @@ public class Main {
 	private static final Logger log= LoggerFactory.getLogger(Main.class);
     private static final CountDownLatch quitLatch= new CountDownLatch(1);
     
-	private static final List<@NonNull Job> jobList= new ArrayList<>();
+	// Copy-on-write so the admin interface can walk it while a reconfigure swaps jobs
+	private static final List<@NonNull Job> jobList= new CopyOnWriteArrayList<>();
 	private static AlertSink alertSink= null;
+	private static AdminServer adminServer= null;
+	
+	// Only set in clustering mode, where it decides which jobs run here
+	private static ClusterCoordinator clusterCoordinator= null;
 	
 	private static final @NonNull TimeoutManager timeoutManager= TimeoutManagerImpl.Create();
 	
@@ -134,9 +143,20 @@ public class Main {
 
 	}
 	
-	private static void configure(@NonNull Composite config) throws SchemaException {
-		for (Job job : jobList) {
-			job.stop();
+	private static void configure(@NonNull Composite config) throws SchemaException, IOException {
+		if (adminServer != null) {
+			adminServer.stop();
+			adminServer= null;
+		}
+		
+		if (clusterCoordinator != null) {
+			// This stops whatever jobs it had running here
+			clusterCoordinator.stop();
+			clusterCoordinator= null;
+		} else {
+			for (Job job : jobList) {
+				job.stop();
+			}
 		}
 		jobList.clear();
 		
@@ -154,6 +174,12 @@ public class Main {
 			throw new RuntimeException("Alert sink unexpectedly null");
 		}
 		
+		// Per-host circuit breakers shared by all the jobs
+		CircuitBreakerRegistry.Configure(config.getOptionalObject("circuitBreaker"), tmpAlertSink);
+		
+		// Per-host rate limits shared by all the jobs
+		ThrottleRegistry.Configure(config.getOptionalObject("throttle"));
+		
 		// Build the jobs
 		Iterable<@NonNull Composite> jobSpecs= config.getRequiredObjectArray("jobs");
 		for (Composite jobSpec : jobSpecs) {
@@ -163,8 +189,25 @@ public class Main {
 			}
 		}
 		
-		for (Job job : jobList) {
-			job.start();
+		Composite clusterConfig= config.getOptionalObject("cluster");
+		if (clusterConfig != null) {
+			// Each job only runs on whichever instance holds its lease
+			ClusterCoordinator tmpCoordinator=
+					ClusterCoordinator.Create(clusterConfig, jobList, tmpAlertSink);
+			tmpCoordinator.start();
+			clusterCoordinator= tmpCoordinator;
+		} else {
+			for (Job job : jobList) {
+				job.start();
+			}
+		}
+		
+		// Start the admin interface if requested
+		Composite adminConfig= config.getOptionalObject("admin");
+		if (adminConfig != null) {
+			AdminServer tmpAdminServer= AdminServer.Create(adminConfig, jobList);
+			tmpAdminServer.start();
+			adminServer= tmpAdminServer;
 		}
 		
         log.info("Configuration successfully applied");
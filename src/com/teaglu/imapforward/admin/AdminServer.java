@@ -0,0 +1,292 @@
+/****************************************************************************
+ * Copyright 2022 Teaglu, LLC                                               *
+ *                                                                          *
+ * Licensed under the Apache License, Version 2.0 (the "License");          *
+ * you may not use this file except in compliance with the License.         *
+ * You may obtain a copy of the License at                                  *
+ *                                                                          *
+ *   http://www.apache.org/licenses/LICENSE-2.0                             *
+ *                                                                          *
+ * Unless required by applicable law or agreed to in writing, software      *
+ * distributed under the License is distributed on an "AS IS" BASIS,        *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. *
+ * See the License for the specific language governing permissions and      *
+ * limitations under the License.                                           *
+ ****************************************************************************/
+
+package com.teaglu.imapforward.admin;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.eclipse.jdt.annotation.NonNull;
+import org.eclipse.jdt.annotation.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import com.teaglu.composite.Composite;
+import com.teaglu.composite.exception.FormatException;
+import com.teaglu.composite.exception.SchemaException;
+import com.teaglu.imapforward.job.Job;
+
+/**
+ * AdminServer
+ *
+ * Small HTTP interface for poking at running jobs without restarting the process - look at
+ * the backlog, kick off a cycle now instead of waiting, or pause a job while something is
+ * being fixed on the server.
+ *
+ * It binds to localhost unless told otherwise, and if a token is configured every request has
+ * to carry it as a bearer token.  There's no TLS, so don't bind it anywhere that isn't trusted.
+ *
+ *   GET  /jobs						Status of every job
+ *   GET  /jobs/{name}				Status of one job
+ *   POST /jobs/{name}/cycle		Run a cycle now
+ *   POST /jobs/{name}/pause		Stop running cycles
+ *   POST /jobs/{name}/resume		Start running cycles again
+ */
+public class AdminServer {
+	private static final Logger log= LoggerFactory.getLogger(AdminServer.class);
+	
+	private final @NonNull String bind;
+	private final int port;
+	private final @Nullable String token;
+	
+	// The job list is swapped out from under us on reconfiguration, so it has to be safe to
+	// iterate while that happens.
+	private final @NonNull List<@NonNull Job> jobs;
+	
+	private HttpServer server= null;
+	private ExecutorService executor= null;
+	
+	private AdminServer(
+			@NonNull Composite spec,
+			@NonNull List<@NonNull Job> jobs) throws SchemaException
+	{
+		Integer portInt= spec.getOptionalInteger("port");
+		port= (portInt != null) ? portInt : 8025;
+		if ((port < 1) || (port > 65535)) {
+			throw new FormatException("Admin port " + port + " is not valid");
+		}
+		
+		String bindString= spec.getOptionalString("bind");
+		bind= (bindString != null) ? bindString : "127.0.0.1";
+		
+		token= spec.getOptionalString("token");
+		
+		this.jobs= jobs;
+	}
+	
+	/**
+	 * Create
+	 *
+	 * Create an admin server from configuration.  It isn't listening until started.
+	 *
+	 * @param spec						Admin configuration
+	 * @param jobs						Live list of jobs
+	 *
+	 * @return							New server
+	 *
+	 * @throws SchemaException
+	 */
+	public static @NonNull AdminServer Create(
+			@NonNull Composite spec,
+			@NonNull List<@NonNull Job> jobs) throws SchemaException
+	{
+		return new AdminServer(spec, jobs);
+	}
+	
+	/**
+	 * start
+	 *
+	 * Start listening
+	 *
+	 * @throws IOException				If the port can't be bound
+	 */
+	public void start() throws IOException {
+		server= HttpServer.create(new InetSocketAddress(bind, port), 0);
+		server.createContext("/jobs", (exchange) -> { handle(exchange); });
+		
+		// One thread is plenty, and it shouldn't hold the process up on exit
+		executor= Executors.newSingleThreadExecutor((runnable) -> {
+			Thread thread= new Thread(runnable, "admin-http");
+			thread.setDaemon(true);
+			return thread;
+		});
+		server.setExecutor(executor);
+		server.start();
+		
+		log.info("Admin interface listening on " + bind + ":" + port);
+	}
+	
+	/**
+	 * stop
+	 *
+	 * Stop listening and release the port
+	 */
+	public void stop() {
+		if (server != null) {
+			server.stop(0);
+			server= null;
+		}
+		if (executor != null) {
+			executor.shutdown();
+			executor= null;
+		}
+	}
+	
+	private void handle(
+			@NonNull HttpExchange exchange) throws IOException
+	{
+		try {
+			if (!authorized(exchange)) {
+				sendError(exchange, 401, "Missing or incorrect token");
+				return;
+			}
+			
+			String method= exchange.getRequestMethod();
+			String path= exchange.getRequestURI().getPath();
+			
+			// Path is /jobs, /jobs/{name}, or /jobs/{name}/{action}
+			String[] parts= path.substring(1).split("/");
+			if ((parts.length == 1) || ((parts.length == 2) && parts[1].isEmpty())) {
+				if (!method.equals("GET")) {
+					sendError(exchange, 405, "Method not allowed");
+					return;
+				}
+				
+				JsonArray list= new JsonArray();
+				for (Job job : jobs) {
+					list.add(job.getStatus());
+				}
+				JsonObject response= new JsonObject();
+				response.add("jobs", list);
+				
+				send(exchange, 200, response);
+				return;
+			}
+			
+			if (parts.length > 3) {
+				sendError(exchange, 404, "Not found");
+				return;
+			}
+			
+			Job job= findJob(parts[1]);
+			if (job == null) {
+				sendError(exchange, 404, "No job named " + parts[1]);
+				return;
+			}
+			
+			if (parts.length == 2) {
+				if (!method.equals("GET")) {
+					sendError(exchange, 405, "Method not allowed");
+					return;
+				}
+				send(exchange, 200, job.getStatus());
+				return;
+			}
+			
+			if (!method.equals("POST")) {
+				sendError(exchange, 405, "Method not allowed");
+				return;
+			}
+			
+			String action= parts[2];
+			switch (action) {
+			case "cycle":
+				if (!job.requestCycle()) {
+					sendError(exchange, 409, "Job is paused");
+					return;
+				}
+				log.info("Cycle requested for job " + job.getName() + " from admin interface");
+				break;
+				
+			case "pause":
+				job.pause();
+				log.info("Job " + job.getName() + " paused from admin interface");
+				break;
+				
+			case "resume":
+				job.resume();
+				log.info("Job " + job.getName() + " resumed from admin interface");
+				break;
+				
+			default:
+				sendError(exchange, 404, "Action " + action + " not known");
+				return;
+			}
+			
+			send(exchange, 202, job.getStatus());
+		} catch (RuntimeException e) {
+			log.error("Error handling admin request", e);
+			sendError(exchange, 500, "Internal error");
+		} finally {
+			exchange.close();
+		}
+	}
+	
+	private @Nullable Job findJob(
+			@NonNull String name)
+	{
+		for (Job job : jobs) {
+			if (job.getName().equals(name)) {
+				return job;
+			}
+		}
+		return null;
+	}
+	
+	private boolean authorized(
+			@NonNull HttpExchange exchange)
+	{
+		String expected= token;
+		if (expected == null) {
+			return true;
+		}
+		
+		String header= exchange.getRequestHeaders().getFirst("Authorization");
+		if ((header == null) || !header.startsWith("Bearer ")) {
+			return false;
+		}
+		
+		// Constant time so the token can't be guessed a character at a time
+		return MessageDigest.isEqual(
+				header.substring(7).trim().getBytes(StandardCharsets.UTF_8),
+				expected.getBytes(StandardCharsets.UTF_8));
+	}
+	
+	private static void sendError(
+			@NonNull HttpExchange exchange,
+			int status,
+			@NonNull String message) throws IOException
+	{
+		JsonObject response= new JsonObject();
+		response.addProperty("error", message);
+		send(exchange, status, response);
+	}
+	
+	private static void send(
+			@NonNull HttpExchange exchange,
+			int status,
+			@NonNull JsonObject response) throws IOException
+	{
+		byte[] body= response.toString().getBytes(StandardCharsets.UTF_8);
+		
+		exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+		exchange.sendResponseHeaders(status, body.length);
+		
+		try (OutputStream stream= exchange.getResponseBody()) {
+			stream.write(body);
+		}
+	}
+}
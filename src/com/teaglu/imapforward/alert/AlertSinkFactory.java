@@ -39,6 +39,15 @@ public final class AlertSinkFactory {
 		case "smtp":
 			return SmtpAlertSink.Create(spec);
 			
+		case "webhook":
+			return WebhookAlertSink.Create(spec);
+			
+		case "file":
+			return FileAlertSink.Create(spec);
+			
+		case "multi":
+			return MultiAlertSink.Create(spec);
+			
 		default:
 			throw new UndefinedOptionException("Alert type " + type + " not known");
 		}
@@ -0,0 +1,85 @@
+/****************************************************************************
+ * Copyright 2022 Teaglu, LLC                                               *
+ *                                                                          *
+ * Licensed under the Apache License, Version 2.0 (the "License");          *
+ * you may not use this file except in compliance with the License.         *
+ * You may obtain a copy of the License at                                  *
+ *                                                                          *
+ *   http://www.apache.org/licenses/LICENSE-2.0                             *
+ *                                                                          *
+ * Unless required by applicable law or agreed to in writing, software      *
+ * distributed under the License is distributed on an "AS IS" BASIS,        *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. *
+ * See the License for the specific language governing permissions and      *
+ * limitations under the License.                                           *
+ ****************************************************************************/
+
+package com.teaglu.imapforward.alert;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+
+import org.eclipse.jdt.annotation.NonNull;
+import org.eclipse.jdt.annotation.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.teaglu.composite.Composite;
+import com.teaglu.composite.exception.SchemaException;
+
+/**
+ * FileAlertSink
+ *
+ * Alert sink that appends alerts to a file, for keeping a record that doesn't depend on the
+ * console log being kept.  The file is opened for each alert so it can be rotated out from
+ * under us.
+ */
+public class FileAlertSink implements AlertSink {
+	private static final Logger log= LoggerFactory.getLogger(FileAlertSink.class);
+	
+	private final @NonNull Path path;
+	
+	private FileAlertSink(
+			@NonNull Composite spec) throws SchemaException
+	{
+		path= Paths.get(spec.getRequiredString("path"));
+	}
+	
+	public static @NonNull AlertSink Create(
+			@NonNull Composite spec) throws SchemaException
+	{
+		return new FileAlertSink(spec);
+	}
+	
+	@Override
+	public synchronized void sendAlert(
+			@NonNull String message,
+			@Nullable Exception exception)
+	{
+		StringBuilder text= new StringBuilder();
+		text.append(Instant.now().toString());
+		text.append(" ");
+		text.append(message);
+		text.append("\n");
+		
+		if (exception != null) {
+			SmtpAlertSink.addException(exception, text);
+		}
+		text.append("\n");
+		
+		try (Writer writer= Files.newBufferedWriter(path, StandardCharsets.UTF_8,
+				StandardOpenOption.CREATE, StandardOpenOption.APPEND, StandardOpenOption.WRITE))
+		{
+			writer.write(text.toString());
+		} catch (IOException e) {
+			log.error("Unable to write alert to " + path, e);
+			log.error("Original alert: " + message, exception);
+		}
+	}
+}
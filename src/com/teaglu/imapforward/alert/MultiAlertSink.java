@@ -0,0 +1,71 @@
+/****************************************************************************
+ * Copyright 2022 Teaglu, LLC                                               *
+ *                                                                          *
+ * Licensed under the Apache License, Version 2.0 (the "License");          *
+ * you may not use this file except in compliance with the License.         *
+ * You may obtain a copy of the License at                                  *
+ *                                                                          *
+ *   http://www.apache.org/licenses/LICENSE-2.0                             *
+ *                                                                          *
+ * Unless required by applicable law or agreed to in writing, software      *
+ * distributed under the License is distributed on an "AS IS" BASIS,        *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. *
+ * See the License for the specific language governing permissions and      *
+ * limitations under the License.                                           *
+ ****************************************************************************/
+
+package com.teaglu.imapforward.alert;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.eclipse.jdt.annotation.NonNull;
+import org.eclipse.jdt.annotation.Nullable;
+
+import com.teaglu.composite.Composite;
+import com.teaglu.composite.exception.MissingValueException;
+import com.teaglu.composite.exception.SchemaException;
+
+/**
+ * MultiAlertSink
+ *
+ * Sends every alert to several other sinks, each behind its own queue and worker so a sink
+ * that's slow or hung - SMTP to a dead server, say - can't hold up the others or the job
+ * that raised the alert.
+ */
+public class MultiAlertSink implements AlertSink {
+	private final @NonNull List<@NonNull AlertSink> sinks= new ArrayList<>();
+	
+	private MultiAlertSink(
+			@NonNull Composite spec) throws SchemaException
+	{
+		Integer queueInt= spec.getOptionalInteger("queueLimit");
+		int queueLimit= (queueInt != null) ? queueInt : 1000;
+		
+		for (Composite sinkSpec : spec.getRequiredObjectArray("sinks")) {
+			AlertSink sink= AlertSinkFactory.Create(sinkSpec);
+			String name= sinkSpec.getRequiredString("type") + "-" + (sinks.size() + 1);
+			
+			sinks.add(QueuedAlertSink.Create(sink, name, queueLimit));
+		}
+		if (sinks.isEmpty()) {
+			throw new MissingValueException("At least one alert sink is required");
+		}
+	}
+	
+	public static @NonNull AlertSink Create(
+			@NonNull Composite spec) throws SchemaException
+	{
+		return new MultiAlertSink(spec);
+	}
+	
+	@Override
+	public void sendAlert(
+			@NonNull String message,
+			@Nullable Exception exception)
+	{
+		for (AlertSink sink : sinks) {
+			sink.sendAlert(message, exception);
+		}
+	}
+}
@@ -0,0 +1,160 @@
+/****************************************************************************
+ * Copyright 2022 Teaglu, LLC                                               *
+ *                                                                          *
+ * Licensed under the Apache License, Version 2.0 (the "License");          *
+ * you may not use this file except in compliance with the License.         *
+ * You may obtain a copy of the License at                                  *
+ *                                                                          *
+ *   http://www.apache.org/licenses/LICENSE-2.0                             *
+ *                                                                          *
+ * Unless required by applicable law or agreed to in writing, software      *
+ * distributed under the License is distributed on an "AS IS" BASIS,        *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. *
+ * See the License for the specific language governing permissions and      *
+ * limitations under the License.                                           *
+ ****************************************************************************/
+
+package com.teaglu.imapforward.alert;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+import org.eclipse.jdt.annotation.NonNull;
+import org.eclipse.jdt.annotation.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * QueuedAlertSink
+ *
+ * Wraps another alert sink so it's called from its own worker thread through a bounded queue.
+ * The caller never waits, and if the wrapped sink hangs or throws, only its own alerts are
+ * affected - once the queue is full they're logged and dropped.
+ *
+ * The worker exits after it has been idle for a minute and is started again by the next
+ * alert, so a sink replaced by a reconfigure doesn't leave a thread behind.
+ */
+public class QueuedAlertSink implements AlertSink {
+	private static final Logger log= LoggerFactory.getLogger(QueuedAlertSink.class);
+	
+	private static final long IDLE_MILLISECONDS= 60_000;
+	
+	private final @NonNull AlertSink sink;
+	private final @NonNull String name;
+	private final int queueLimit;
+	
+	private static class QueuedAlert {
+		private final @NonNull String message;
+		private final @Nullable Exception exception;
+		
+		private QueuedAlert(
+				@NonNull String message,
+				@Nullable Exception exception)
+		{
+			this.message= message;
+			this.exception= exception;
+		}
+	}
+	
+	// Alerts waiting, the worker if there is one, and how many have been dropped since the
+	// queue was last full.  All guarded by the queue.
+	private final Deque<@NonNull QueuedAlert> queue= new ArrayDeque<>();
+	private Thread workerThread= null;
+	private int dropped= 0;
+	
+	private QueuedAlertSink(
+			@NonNull AlertSink sink,
+			@NonNull String name,
+			int queueLimit)
+	{
+		this.sink= sink;
+		this.name= name;
+		this.queueLimit= queueLimit;
+	}
+	
+	/**
+	 * Create
+	 *
+	 * @param sink						Sink to wrap
+	 * @param name						Name for logs and the worker thread
+	 * @param queueLimit				Most alerts to hold before dropping them
+	 *
+	 * @return							Wrapped sink
+	 */
+	public static @NonNull AlertSink Create(
+			@NonNull AlertSink sink,
+			@NonNull String name,
+			int queueLimit)
+	{
+		return new QueuedAlertSink(sink, name, queueLimit);
+	}
+	
+	@Override
+	public void sendAlert(
+			@NonNull String message,
+			@Nullable Exception exception)
+	{
+		synchronized (queue) {
+			if (queue.size() >= queueLimit) {
+				// Only say so once per backup, or a hung sink fills the log
+				if (dropped++ == 0) {
+					log.error("Alert sink " + name + " is not keeping up - dropping alerts");
+				}
+				return;
+			}
+			
+			queue.addLast(new QueuedAlert(message, exception));
+			
+			if (workerThread == null) {
+				Thread thread= new Thread(() -> { workerLoop(); }, "alert-" + name);
+				thread.setDaemon(true);
+				thread.start();
+				
+				workerThread= thread;
+			} else {
+				queue.notify();
+			}
+		}
+	}
+	
+	private void workerLoop() {
+		for (;;) {
+			QueuedAlert alert;
+			int droppedCount;
+			
+			synchronized (queue) {
+				long idleUntil= System.currentTimeMillis() + IDLE_MILLISECONDS;
+				
+				while (queue.isEmpty()) {
+					long wait= idleUntil - System.currentTimeMillis();
+					if (wait <= 0) {
+						workerThread= null;
+						return;
+					}
+					
+					try {
+						queue.wait(wait);
+					} catch (InterruptedException e) {
+					}
+				}
+				
+				alert= queue.removeFirst();
+				
+				droppedCount= dropped;
+				dropped= 0;
+			}
+			
+			if (droppedCount > 0) {
+				log.error("Alert sink " + name + " dropped " + droppedCount + " alerts");
+			}
+			
+			try {
+				sink.sendAlert(alert.message, alert.exception);
+			} catch (RuntimeException e) {
+				// A broken sink shouldn't take its worker down with it
+				log.error("Alert sink " + name + " failed", e);
+				log.error("Original alert: " + alert.message, alert.exception);
+			}
+		}
+	}
+}
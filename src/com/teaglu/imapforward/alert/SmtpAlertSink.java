@@ -17,7 +17,9 @@
 package com.teaglu.imapforward.alert;
 
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Deque;
 import java.util.List;
 import java.util.Properties;
 
@@ -31,10 +33,8 @@ import com.teaglu.composite.exception.FormatException;
 import com.teaglu.composite.exception.MissingValueException;
 import com.teaglu.composite.exception.SchemaException;
 
-import jakarta.mail.Authenticator;
 import jakarta.mail.MessagingException;
 import jakarta.mail.Multipart;
-import jakarta.mail.PasswordAuthentication;
 import jakarta.mail.Session;
 import jakarta.mail.Transport;
 import jakarta.mail.internet.AddressException;
@@ -48,6 +48,14 @@ import jakarta.mail.internet.MimeMultipart;
  * SmtpAlertSink
  * 
  * Alert sink to send everything as an SMTP message
+ * 
+ * Connecting with STARTTLS and AUTH takes a few seconds, which used to be paid for every
+ * alert.  That made bursts very slow right when alerts matter most - during an outage every
+ * job is failing at once.  Now the session is built once, and alerts are queued and sent by
+ * a sender thread over one transport connection that's kept open between alerts.  If the
+ * connection has gone bad it's reopened and the send retried once.  After the connection
+ * has been idle for a while it's closed and the sender thread exits, so a sink that's been
+ * replaced by a reconfigure doesn't leave anything behind.
  */
 public class SmtpAlertSink implements AlertSink {
 	private static final Logger log= LoggerFactory.getLogger(SmtpAlertSink.class);
@@ -64,6 +72,38 @@ public class SmtpAlertSink implements AlertSink {
 	private @NonNull InternetAddress fromAddress;
 	private @NonNull List<InternetAddress> toAddresses= new ArrayList<>();
 	
+	// How long to keep the connection open with nothing to send
+	private final long idleMilliseconds;
+	
+	// Alerts past this many waiting are logged and dropped
+	private final int queueLimit;
+	
+	private final @NonNull Session session;
+	
+	private static class QueuedAlert {
+		private final @NonNull MimeMessage mail;
+		private final @NonNull String message;
+		private final @Nullable Exception exception;
+		
+		private QueuedAlert(
+				@NonNull MimeMessage mail,
+				@NonNull String message,
+				@Nullable Exception exception)
+		{
+			this.mail= mail;
+			this.message= message;
+			this.exception= exception;
+		}
+	}
+	
+	// Alerts waiting to go out, and the thread sending them if there is one.  Both are
+	// guarded by the queue.
+	private final Deque<@NonNull QueuedAlert> queue= new ArrayDeque<>();
+	private Thread senderThread= null;
+	
+	// Only touched by the sender thread
+	private Transport transport= null;
+	
 	private SmtpAlertSink(
 			@NonNull Composite spec) throws SchemaException
 	{
@@ -76,6 +116,12 @@ public class SmtpAlertSink implements AlertSink {
 		Integer portInt= spec.getOptionalInteger("port");
 		port= (portInt != null) ? portInt : 587;
 		
+		Integer idleInt= spec.getOptionalInteger("idleSeconds");
+		idleMilliseconds= ((idleInt != null) ? idleInt : 60) * 1000L;
+		
+		Integer queueInt= spec.getOptionalInteger("queueLimit");
+		queueLimit= (queueInt != null) ? queueInt : 1000;
+		
 		// Go ahead and parse the addresses here so format errors get thrown on startup
 		try {
 			fromAddress= new InternetAddress(spec.getRequiredString("from"));
@@ -94,6 +140,24 @@ public class SmtpAlertSink implements AlertSink {
 		if (toAddresses.isEmpty()) {
 			throw new MissingValueException("At least one TO address is required");
 		}
+		
+		Properties props= new Properties();
+		
+		props.setProperty("mail.smtp.host", host);
+		props.setProperty("mail.smtp.port", Integer.toString(port));
+		props.setProperty("mail.smtp.connectiontimeout", "20000");
+		props.setProperty("mail.smtp.timeout", "20000");
+		props.setProperty("mail.smtp.sendpartial", "true");
+		
+		if (tls) {
+			props.setProperty("mail.smtp.starttls.enable", "true");
+			props.setProperty("mail.smtp.ssl.protocols", "TLSv1 TLSv1.1 TLSv1.2 TLSv1.3");
+		}
+		if ((username != null) && (password != null)) {
+			props.setProperty("mail.smtp.auth", "true");
+		}
+		
+		session= Session.getInstance(props);
 	}
 	
 	public static @NonNull AlertSink Create(
@@ -102,79 +166,169 @@ public class SmtpAlertSink implements AlertSink {
 		return new SmtpAlertSink(spec);
 	}
 	
-	private class PasswordAuthenticator extends Authenticator {
-		private PasswordAuthentication auth;
-		
-		private PasswordAuthenticator(String username, String password) {
-			auth= new PasswordAuthentication(username, password);
-		}
-		
-		@Override
-		protected PasswordAuthentication getPasswordAuthentication() {
-			return auth;
-		}
-	}
-	
 	@Override
 	public void sendAlert(
 			@NonNull String message,
 			@Nullable Exception exception)
 	{
+		MimeMessage mail;
 		try {
-			Properties props= new Properties();
-			
-			props.setProperty("mail.smtp.host", host);
-			props.setProperty("mail.smtp.port", Integer.toString(port));
-			props.setProperty("mail.smtp.connectionTimeout", "20000");
-			props.setProperty("mail.smtp.timeout", "20000");
-			props.setProperty("mail.smtp.sendPartial", "true");
-			
-			if (tls) {
-				props.setProperty("mail.smtp.starttls.enable", "true");
-				props.setProperty("mail.smtp.ssl.protocols", "TLSv1 TLSv1.1 TLSv1.2 TLSv1.3");
+			mail= buildMail(message, exception);
+		} catch (MessagingException e) {
+			log.error("Error building alert", e);
+			log.error("Original alert: " + message, exception);
+			return;
+		}
+		
+		synchronized (queue) {
+			if (queue.size() >= queueLimit) {
+				log.error("Alert queue is full - dropping alert");
+				log.error("Original alert: " + message, exception);
+				return;
 			}
 			
-			Session session= null;
+			queue.addLast(new QueuedAlert(mail, message, exception));
 			
-			if ((username != null) && (password != null)) {
-				session= Session.getInstance(
-						props, new PasswordAuthenticator(username, password));
+			if (senderThread == null) {
+				Thread thread= new Thread(() -> { senderLoop(); }, "smtp-alert-sender");
+				thread.setDaemon(true);
+				thread.start();
 				
-				props.setProperty("mail.smtp.auth", "true");
+				senderThread= thread;
 			} else {
-				session= Session.getInstance(props);
+				queue.notify();
 			}
+		}
+	}
+	
+	private @NonNull MimeMessage buildMail(
+			@NonNull String message,
+			@Nullable Exception exception) throws MessagingException
+	{
+		MimeMessage mail= new MimeMessage(session);
+		mail.setFrom(fromAddress);
 		
-			MimeMessage mail= new MimeMessage(session);
-			mail.setFrom(fromAddress);
-			
-			for (InternetAddress address : toAddresses) {
-				mail.addRecipient(RecipientType.TO, address);
+		for (InternetAddress address : toAddresses) {
+			mail.addRecipient(RecipientType.TO, address);
+		}
+		mail.setSubject("Error in ImapForward Job");
+		
+		Multipart multipart= new MimeMultipart();
+		
+		StringBuilder body= new StringBuilder();
+		body.append(message);
+		body.append("\n");
+		
+		if (exception != null) {
+			addException(exception, body);
+		}
+		
+		MimeBodyPart textPart= new MimeBodyPart();
+		textPart.setText(body.toString(), StandardCharsets.UTF_8.name());
+		textPart.setHeader("Content-Type", "text/plain");
+		multipart.addBodyPart(textPart);
+		
+		mail.setContent(multipart);
+		mail.saveChanges();
+		
+		return mail;
+	}
+	
+	private void senderLoop() {
+		List<@NonNull QueuedAlert> batch= new ArrayList<>();
+		Transport idleTransport= null;
+		
+		for (boolean localRun= true; localRun; ) {
+			synchronized (queue) {
+				long idleUntil= System.currentTimeMillis() + idleMilliseconds;
+				
+				while (queue.isEmpty()) {
+					long wait= idleUntil - System.currentTimeMillis();
+					if (wait <= 0) {
+						// Nothing to send for a while - give up the connection and the thread.
+						// Giving up the thread has to happen under the lock so a new alert
+						// starts a new sender, but the QUIT can block on the network so the
+						// connection is only detached here and closed after the lock is let go.
+						idleTransport= transport;
+						transport= null;
+						senderThread= null;
+						localRun= false;
+						break;
+					}
+					
+					try {
+						queue.wait(wait);
+					} catch (InterruptedException e) {
+					}
+				}
+				
+				// Take everything that's waiting so it goes out over the same connection
+				batch.addAll(queue);
+				queue.clear();
 			}
-			mail.setSubject("Error in ImapForward Job");
-			
-			Multipart multipart= new MimeMultipart();
 			
-			StringBuilder body= new StringBuilder();
-			body.append(message);
-			body.append("\n");
-			
-			if (exception != null) {
-				addException(exception, body);
+			for (QueuedAlert alert : batch) {
+				send(alert);
 			}
-			
-			MimeBodyPart textPart= new MimeBodyPart();
-			textPart.setText(body.toString(), StandardCharsets.UTF_8.name());
-			textPart.setHeader("Content-Type", "text/plain");
-			multipart.addBodyPart(textPart);
-			
-			mail.setContent(multipart);
-			mail.saveChanges();
+			batch.clear();
+		}
 		
-			Transport.send(mail);
+		closeTransport(idleTransport);
+	}
+	
+	private void send(
+			@NonNull QueuedAlert alert)
+	{
+		try {
+			try {
+				sendOnce(alert.mail);
+			} catch (MessagingException e) {
+				// The server may have dropped an idle connection, so try once more on a new one
+				log.warn("Error sending alert - retrying on a new connection", e);
+				
+				closeTransport();
+				sendOnce(alert.mail);
+			}
 		} catch (MessagingException e) {
+			closeTransport();
+			
 			log.error("Error sending alert", e);
-			log.error("Original alert: " + message, exception);
+			log.error("Original alert: " + alert.message, alert.exception);
+		}
+	}
+	
+	private void sendOnce(
+			@NonNull MimeMessage mail) throws MessagingException
+	{
+		if ((transport == null) || !transport.isConnected()) {
+			closeTransport();
+			
+			Transport newTransport= session.getTransport("smtp");
+			if ((username != null) && (password != null)) {
+				newTransport.connect(host, port, username, password);
+			} else {
+				newTransport.connect();
+			}
+			transport= newTransport;
+		}
+		
+		transport.sendMessage(mail, mail.getAllRecipients());
+	}
+	
+	private void closeTransport() {
+		closeTransport(transport);
+		transport= null;
+	}
+	
+	private static void closeTransport(
+			Transport closeTransport)
+	{
+		if (closeTransport != null) {
+			try {
+				closeTransport.close();
+			} catch (MessagingException e) {
+				log.debug("Error closing SMTP connection", e);
+			}
 		}
 	}
 
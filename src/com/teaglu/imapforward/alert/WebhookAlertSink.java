@@ -0,0 +1,264 @@
+/****************************************************************************
+ * Copyright 2022 Teaglu, LLC                                               *
+ *                                                                          *
+ * Licensed under the Apache License, Version 2.0 (the "License");          *
+ * you may not use this file except in compliance with the License.         *
+ * You may obtain a copy of the License at                                  *
+ *                                                                          *
+ *   http://www.apache.org/licenses/LICENSE-2.0                             *
+ *                                                                          *
+ * Unless required by applicable law or agreed to in writing, software      *
+ * distributed under the License is distributed on an "AS IS" BASIS,        *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. *
+ * See the License for the specific language governing permissions and      *
+ * limitations under the License.                                           *
+ ****************************************************************************/
+
+package com.teaglu.imapforward.alert;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.jdt.annotation.NonNull;
+import org.eclipse.jdt.annotation.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.teaglu.composite.Composite;
+import com.teaglu.composite.exception.FormatException;
+import com.teaglu.composite.exception.SchemaException;
+
+/**
+ * WebhookAlertSink
+ *
+ * Alert sink that POSTs alerts as JSON to a webhook, for on-call tools that take them that
+ * way.  This doesn't depend on the mail infrastructure that may be what's failing.
+ *
+ * Nothing here blocks the caller.  Alerts go on a bounded queue, and whatever has collected
+ * after the flush interval is sent as one request with the JDK's asynchronous HTTP client,
+ * which reuses its connection and speaks HTTP/2 where the server does.  Only one request is
+ * outstanding at a time, so alerts arrive in order.  Failures are retried with a doubling
+ * delay, and a batch that still can't be sent is written to the log.
+ */
+public class WebhookAlertSink implements AlertSink {
+	private static final Logger log= LoggerFactory.getLogger(WebhookAlertSink.class);
+	
+	// First retry delay, doubled for each one after
+	private static final long RETRY_BASE_MILLISECONDS= 1000;
+	
+	private final @NonNull URI uri;
+	private final @Nullable String token;
+	
+	private final long flushMilliseconds;
+	private final int batchSize;
+	private final int queueLimit;
+	private final int retries;
+	private final @NonNull Duration requestTimeout;
+	
+	private final @NonNull HttpClient client;
+	
+	private static class QueuedAlert {
+		private final @NonNull Instant time;
+		private final @NonNull String message;
+		private final @Nullable Exception exception;
+		
+		private QueuedAlert(
+				@NonNull String message,
+				@Nullable Exception exception)
+		{
+			this.time= Instant.now();
+			this.message= message;
+			this.exception= exception;
+		}
+	}
+	
+	// Alerts waiting for the next flush, and whether a flush is scheduled or a request is
+	// outstanding.  All guarded by the queue.
+	private final Deque<@NonNull QueuedAlert> queue= new ArrayDeque<>();
+	private boolean busy= false;
+	
+	private WebhookAlertSink(
+			@NonNull Composite spec) throws SchemaException
+	{
+		String url= spec.getRequiredString("url");
+		try {
+			uri= new URI(url);
+		} catch (URISyntaxException e) {
+			throw new FormatException("Unable to parse webhook URL " + url);
+		}
+		if (!"https".equals(uri.getScheme()) && !"http".equals(uri.getScheme())) {
+			throw new FormatException("Webhook URL must be http or https");
+		}
+		
+		// Sent as a bearer token if given
+		token= spec.getOptionalString("token");
+		
+		Integer flushInt= spec.getOptionalInteger("flushSeconds");
+		flushMilliseconds= ((flushInt != null) ? flushInt : 2) * 1000L;
+		
+		Integer batchInt= spec.getOptionalInteger("batchSize");
+		batchSize= Math.max(1, (batchInt != null) ? batchInt : 100);
+		
+		Integer queueInt= spec.getOptionalInteger("queueLimit");
+		queueLimit= (queueInt != null) ? queueInt : 1000;
+		
+		Integer retriesInt= spec.getOptionalInteger("retries");
+		retries= (retriesInt != null) ? retriesInt : 3;
+		
+		Integer timeoutInt= spec.getOptionalInteger("timeoutSeconds");
+		requestTimeout= Duration.ofSeconds((timeoutInt != null) ? timeoutInt : 20);
+		
+		client= HttpClient.newBuilder()
+				.version(HttpClient.Version.HTTP_2)
+				.connectTimeout(requestTimeout)
+				.build();
+	}
+	
+	public static @NonNull AlertSink Create(
+			@NonNull Composite spec) throws SchemaException
+	{
+		return new WebhookAlertSink(spec);
+	}
+	
+	@Override
+	public void sendAlert(
+			@NonNull String message,
+			@Nullable Exception exception)
+	{
+		synchronized (queue) {
+			if (queue.size() >= queueLimit) {
+				log.error("Webhook alert queue is full - dropping alert");
+				log.error("Original alert: " + message, exception);
+				return;
+			}
+			
+			queue.addLast(new QueuedAlert(message, exception));
+			
+			if (!busy) {
+				busy= true;
+				schedule(this::flush, flushMilliseconds);
+			}
+		}
+	}
+	
+	private static void schedule(
+			@NonNull Runnable task,
+			long delayMilliseconds)
+	{
+		// The delayed executor runs on a shared daemon thread, so there's nothing of our own
+		// to start or stop
+		CompletableFuture.delayedExecutor(delayMilliseconds, TimeUnit.MILLISECONDS).execute(task);
+	}
+	
+	private void flush() {
+		List<@NonNull QueuedAlert> batch= new ArrayList<>();
+		synchronized (queue) {
+			while (!queue.isEmpty() && (batch.size() < batchSize)) {
+				batch.add(queue.removeFirst());
+			}
+		}
+		
+		if (batch.isEmpty()) {
+			finished();
+		} else {
+			post(batch, buildPayload(batch), 0);
+		}
+	}
+	
+	private @NonNull String buildPayload(
+			@NonNull List<@NonNull QueuedAlert> batch)
+	{
+		JsonArray alerts= new JsonArray();
+		for (QueuedAlert alert : batch) {
+			JsonObject entry= new JsonObject();
+			entry.addProperty("time", alert.time.toString());
+			entry.addProperty("message", alert.message);
+			
+			if (alert.exception != null) {
+				StringBuilder detail= new StringBuilder();
+				SmtpAlertSink.addException(alert.exception, detail);
+				
+				entry.addProperty("exception", alert.exception.getClass().getName());
+				entry.addProperty("detail", detail.toString());
+			}
+			
+			alerts.add(entry);
+		}
+		
+		JsonObject payload= new JsonObject();
+		payload.addProperty("source", "imapforward");
+		payload.add("alerts", alerts);
+		
+		return payload.toString();
+	}
+	
+	private void post(
+			@NonNull List<@NonNull QueuedAlert> batch,
+			@NonNull String payload,
+			int attempt)
+	{
+		HttpRequest.Builder builder= HttpRequest.newBuilder(uri)
+				.timeout(requestTimeout)
+				.header("Content-Type", "application/json")
+				.POST(HttpRequest.BodyPublishers.ofString(payload));
+		
+		if (token != null) {
+			builder.header("Authorization", "Bearer " + token);
+		}
+		
+		client.sendAsync(builder.build(), HttpResponse.BodyHandlers.discarding())
+				.whenComplete((response, error) -> {
+					String problem= null;
+					boolean retry= true;
+					
+					if (error != null) {
+						problem= error.toString();
+					} else if ((response.statusCode() < 200) || (response.statusCode() > 299)) {
+						problem= "HTTP status " + response.statusCode();
+						
+						// Anything but throttling or a server error won't get better by itself
+						retry= (response.statusCode() == 429) || (response.statusCode() >= 500);
+					}
+					
+					if (problem == null) {
+						finished();
+					} else if (retry && (attempt < retries)) {
+						long delay= RETRY_BASE_MILLISECONDS << attempt;
+						log.warn("Error posting alerts to webhook (" + problem + ") - retrying in " +
+								delay + "ms");
+						
+						schedule(() -> { post(batch, payload, attempt + 1); }, delay);
+					} else {
+						log.error("Unable to post " + batch.size() + " alerts to webhook: " + problem);
+						for (QueuedAlert alert : batch) {
+							log.error("Original alert: " + alert.message, alert.exception);
+						}
+						finished();
+					}
+				});
+	}
+	
+	private void finished() {
+		synchronized (queue) {
+			if (queue.isEmpty()) {
+				busy= false;
+			} else {
+				// A full batch goes right away, otherwise wait for more to collect
+				schedule(this::flush, (queue.size() >= batchSize) ? 0 : flushMilliseconds);
+			}
+		}
+	}
+}
@@ -0,0 +1,241 @@
+/****************************************************************************
+ * Copyright 2022 Teaglu, LLC                                               *
+ *                                                                          *
+ * Licensed under the Apache License, Version 2.0 (the "License");          *
+ * you may not use this file except in compliance with the License.         *
+ * You may obtain a copy of the License at                                  *
+ *                                                                          *
+ *   http://www.apache.org/licenses/LICENSE-2.0                             *
+ *                                                                          *
+ * Unless required by applicable law or agreed to in writing, software      *
+ * distributed under the License is distributed on an "AS IS" BASIS,        *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. *
+ * See the License for the specific language governing permissions and      *
+ * limitations under the License.                                           *
+ ****************************************************************************/
+
+package com.teaglu.imapforward.circuit;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.net.ssl.SSLSocketFactory;
+
+import org.eclipse.jdt.annotation.NonNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.teaglu.imapforward.alert.AlertSink;
+
+/**
+ * CircuitBreaker
+ *
+ * Tracks whether one IMAP server is healthy, shared by every job that talks to it.  After
+ * enough failures in a row the breaker opens, and jobs skip that host without trying to
+ * connect.  One prober thread checks the host with increasing delays - a TLS connect and
+ * looking for the server greeting, no login - and when it answers the breaker closes and
+ * every job waiting on it is woken up at once.
+ *
+ * Without this each job fails on its own, alerts on its own, and retries on its own, which is
+ * a lot of noise and a lot of connection attempts against a server trying to come back up.
+ */
+public class CircuitBreaker {
+	private static final Logger log= LoggerFactory.getLogger(CircuitBreaker.class);
+	
+	private static final int PROBE_TIMEOUT_MILLISECONDS= 15_000;
+	
+	private final @NonNull String host;
+	private final int port;
+	private final @NonNull AlertSink alertSink;
+	
+	private final int failureThreshold;
+	private final long probeMilliseconds;
+	private final long maxProbeMilliseconds;
+	
+	// All protected by synchronizing on the breaker
+	private int failures= 0;
+	private boolean open= false;
+	private boolean shutdown= false;
+	private Thread prober= null;
+	private final List<@NonNull Runnable> closeListeners= new ArrayList<>();
+	
+	CircuitBreaker(
+			@NonNull String host,
+			int port,
+			@NonNull AlertSink alertSink,
+			int failureThreshold,
+			long probeMilliseconds,
+			long maxProbeMilliseconds)
+	{
+		this.host= host;
+		this.port= port;
+		this.alertSink= alertSink;
+		this.failureThreshold= failureThreshold;
+		this.probeMilliseconds= probeMilliseconds;
+		this.maxProbeMilliseconds= maxProbeMilliseconds;
+	}
+	
+	public @NonNull String getHost() { return host; }
+	public int getPort() { return port; }
+	
+	/**
+	 * isOpen
+	 *
+	 * @return							True if the host is considered down
+	 */
+	public synchronized boolean isOpen() {
+		return open;
+	}
+	
+	/**
+	 * recordSuccess
+	 *
+	 * Note that something worked against the host, which resets the failure count
+	 */
+	public synchronized void recordSuccess() {
+		failures= 0;
+	}
+	
+	/**
+	 * recordFailure
+	 *
+	 * Note a connection-level failure against the host, opening the breaker if there have
+	 * been enough of them in a row
+	 *
+	 * @param cause						What went wrong
+	 */
+	public synchronized void recordFailure(
+			@NonNull Exception cause)
+	{
+		if (open || shutdown) {
+			return;
+		}
+		
+		if (++failures >= failureThreshold) {
+			open= true;
+			
+			alertSink.sendAlert("Host " + host + ":" + port + " failed " + failures +
+					" times in a row - suspending all jobs using it until it recovers", cause);
+			
+			prober= new Thread(()->{ probeLoop(); }, "probe-" + host + "-" + port);
+			prober.setDaemon(true);
+			prober.start();
+		}
+	}
+	
+	/**
+	 * addCloseListener
+	 *
+	 * Ask to be called once when the breaker closes
+	 *
+	 * @param listener					Called on the prober thread when the host recovers
+	 *
+	 * @return							False if the breaker is already closed, in which
+	 * 									case the listener won't be called
+	 */
+	public synchronized boolean addCloseListener(
+			@NonNull Runnable listener)
+	{
+		if (!open) {
+			return false;
+		}
+		closeListeners.add(listener);
+		return true;
+	}
+	
+	/**
+	 * shutdown
+	 *
+	 * Stop probing, for reconfiguration.  Anything waiting is woken up so it can look at the
+	 * new configuration.
+	 */
+	public void shutdown() {
+		List<@NonNull Runnable> listeners;
+		
+		synchronized (this) {
+			shutdown= true;
+			open= false;
+			
+			if (prober != null) {
+				prober.interrupt();
+				prober= null;
+			}
+			
+			listeners= new ArrayList<>(closeListeners);
+			closeListeners.clear();
+		}
+		
+		for (Runnable listener : listeners) {
+			listener.run();
+		}
+	}
+	
+	private void probeLoop() {
+		long delay= probeMilliseconds;
+		
+		for (;;) {
+			try {
+				Thread.sleep(delay);
+			} catch (InterruptedException e) {
+				return;
+			}
+			
+			synchronized (this) {
+				if (shutdown) {
+					return;
+				}
+			}
+			
+			try {
+				probe();
+				break;
+			} catch (IOException e) {
+				log.debug("Probe of " + host + ":" + port + " failed: " + e.getMessage());
+				delay= Math.min(delay * 2, maxProbeMilliseconds);
+			}
+		}
+		
+		List<@NonNull Runnable> listeners;
+		synchronized (this) {
+			if (shutdown) {
+				return;
+			}
+			
+			open= false;
+			failures= 0;
+			prober= null;
+			
+			listeners= new ArrayList<>(closeListeners);
+			closeListeners.clear();
+		}
+		
+		alertSink.sendAlert("Host " + host + ":" + port + " is answering again - resuming " +
+				listeners.size() + " waiting jobs", null);
+		
+		for (Runnable listener : listeners) {
+			listener.run();
+		}
+	}
+	
+	private void probe() throws IOException {
+		try (Socket socket= SSLSocketFactory.getDefault().createSocket()) {
+			socket.connect(new InetSocketAddress(host, port), PROBE_TIMEOUT_MILLISECONDS);
+			socket.setSoTimeout(PROBE_TIMEOUT_MILLISECONDS);
+			
+			// The handshake happens on the first read
+			BufferedReader reader= new BufferedReader(new InputStreamReader(
+					socket.getInputStream(), StandardCharsets.US_ASCII));
+			
+			String greeting= reader.readLine();
+			if ((greeting == null) || !greeting.startsWith("* OK")) {
+				throw new IOException("Unexpected greeting " + greeting);
+			}
+		}
+	}
+}
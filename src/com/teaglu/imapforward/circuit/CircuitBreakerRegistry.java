@@ -0,0 +1,155 @@
+/****************************************************************************
+ * Copyright 2022 Teaglu, LLC                                               *
+ *                                                                          *
+ * Licensed under the Apache License, Version 2.0 (the "License");          *
+ * you may not use this file except in compliance with the License.         *
+ * You may obtain a copy of the License at                                  *
+ *                                                                          *
+ *   http://www.apache.org/licenses/LICENSE-2.0                             *
+ *                                                                          *
+ * Unless required by applicable law or agreed to in writing, software      *
+ * distributed under the License is distributed on an "AS IS" BASIS,        *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. *
+ * See the License for the specific language governing permissions and      *
+ * limitations under the License.                                           *
+ ****************************************************************************/
+
+package com.teaglu.imapforward.circuit;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.eclipse.jdt.annotation.NonNull;
+import org.eclipse.jdt.annotation.Nullable;
+
+import com.teaglu.composite.Composite;
+import com.teaglu.composite.exception.FormatException;
+import com.teaglu.composite.exception.SchemaException;
+import com.teaglu.imapforward.alert.AlertSink;
+
+import jakarta.mail.FolderClosedException;
+import jakarta.mail.StoreClosedException;
+
+/**
+ * CircuitBreakerRegistry
+ *
+ * Process-wide circuit breakers, one per host and port, created the first time one is asked
+ * for.  If circuit breaking isn't configured there are no breakers at all.
+ */
+public final class CircuitBreakerRegistry {
+	private static final int IMAPS_PORT= 993;
+	
+	private static boolean enabled= false;
+	private static AlertSink alertSink= null;
+	
+	private static int failureThreshold= 3;
+	private static long probeMilliseconds= 5_000;
+	private static long maxProbeMilliseconds= 300_000;
+	
+	private static final Map<@NonNull String, @NonNull CircuitBreaker> breakers= new HashMap<>();
+	
+	private CircuitBreakerRegistry() {}
+	
+	/**
+	 * Configure
+	 *
+	 * Replace the configuration, dropping any existing breakers
+	 *
+	 * @param spec						Circuit breaker configuration, or null to disable
+	 * @param sink						Where breakers send alerts
+	 *
+	 * @throws SchemaException
+	 */
+	public static synchronized void Configure(
+			@Nullable Composite spec,
+			@NonNull AlertSink sink) throws SchemaException
+	{
+		for (CircuitBreaker breaker : breakers.values()) {
+			breaker.shutdown();
+		}
+		breakers.clear();
+		
+		enabled= (spec != null);
+		alertSink= sink;
+		
+		if (spec != null) {
+			Integer failureSpec= spec.getOptionalInteger("failures");
+			failureThreshold= (failureSpec != null) ? failureSpec : 3;
+			if (failureThreshold < 1) {
+				throw new FormatException("Circuit breaker failures must be at least 1");
+			}
+			
+			Integer probeSpec= spec.getOptionalInteger("probeSeconds");
+			probeMilliseconds= ((probeSpec != null) ? probeSpec : 5) * 1000L;
+			
+			Integer maxProbeSpec= spec.getOptionalInteger("maxProbeSeconds");
+			maxProbeMilliseconds= ((maxProbeSpec != null) ? maxProbeSpec : 300) * 1000L;
+			
+			if ((probeMilliseconds < 1000) || (maxProbeMilliseconds < probeMilliseconds)) {
+				throw new FormatException("Circuit breaker probe times are not valid");
+			}
+		}
+	}
+	
+	/**
+	 * Get
+	 *
+	 * Get the breaker for a server.  Servers on the same host but different ports get their
+	 * own breakers, since they can be different servers entirely.
+	 *
+	 * @param host						Host name
+	 * @param port						Port, or -1 for the IMAPS default
+	 *
+	 * @return							Breaker, or null if circuit breaking is off
+	 */
+	public static synchronized @Nullable CircuitBreaker Get(
+			@NonNull String host,
+			int port)
+	{
+		AlertSink sink= alertSink;
+		if (!enabled || (sink == null)) {
+			return null;
+		}
+		
+		String lowerHost= host.toLowerCase();
+		int actualPort= (port > 0) ? port : IMAPS_PORT;
+		
+		String key= lowerHost + ":" + actualPort;
+		CircuitBreaker breaker= breakers.get(key);
+		if (breaker == null) {
+			breaker= new CircuitBreaker(lowerHost, actualPort, sink,
+					failureThreshold, probeMilliseconds, maxProbeMilliseconds);
+			breakers.put(key, breaker);
+		}
+		return breaker;
+	}
+	
+	/**
+	 * IsHostFailure
+	 *
+	 * Whether an exception means the host itself is in trouble - the connection dropped, timed
+	 * out, or couldn't be made - as opposed to something like a bad password or a missing
+	 * folder that only affects one job.
+	 *
+	 * @param e							Exception
+	 *
+	 * @return							True if it should count against the host
+	 */
+	public static boolean IsHostFailure(
+			@NonNull Throwable e)
+	{
+		for (Throwable cause= e; cause != null; cause= cause.getCause()) {
+			if ((cause instanceof IOException) ||
+					(cause instanceof StoreClosedException) ||
+					(cause instanceof FolderClosedException))
+			{
+				return true;
+			}
+			if (cause.getCause() == cause) {
+				break;
+			}
+		}
+		return false;
+	}
+}
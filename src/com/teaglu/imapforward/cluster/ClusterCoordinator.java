@@ -0,0 +1,434 @@
+/****************************************************************************
+ * Copyright 2022 Teaglu, LLC                                               *
+ *                                                                          *
+ * Licensed under the Apache License, Version 2.0 (the "License");          *
+ * you may not use this file except in compliance with the License.         *
+ * You may obtain a copy of the License at                                  *
+ *                                                                          *
+ *   http://www.apache.org/licenses/LICENSE-2.0                             *
+ *                                                                          *
+ * Unless required by applicable law or agreed to in writing, software      *
+ * distributed under the License is distributed on an "AS IS" BASIS,        *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. *
+ * See the License for the specific language governing permissions and      *
+ * limitations under the License.                                           *
+ ****************************************************************************/
+
+package com.teaglu.imapforward.cluster;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.eclipse.jdt.annotation.NonNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.teaglu.composite.Composite;
+import com.teaglu.composite.exception.FormatException;
+import com.teaglu.composite.exception.SchemaException;
+import com.teaglu.imapforward.alert.AlertSink;
+import com.teaglu.imapforward.job.Job;
+
+/**
+ * ClusterCoordinator
+ *
+ * Runs jobs in clustering mode, where several instances share one configuration and each job
+ * only runs on one of them.  Without this, running a second copy for redundancy just forwards
+ * everything twice.
+ *
+ * Every instance heartbeats into a shared lease backend, and all of them hash the job names
+ * onto the same ring of live instances to decide who should own what.  An instance only starts
+ * a job once it holds the lease for it, and keeps renewing the lease while the job runs.
+ *
+ * When an instance disappears its membership runs out, the ring changes, and the jobs it had
+ * are picked up by the others once their leases expire.  When an instance joins, the jobs that
+ * now hash to it are released by their current owners and picked up on the next round.
+ *
+ * If the backend can't be reached, jobs are stopped before their leases could run out, since
+ * at that point another instance may take them over.
+ *
+ * A job that hangs stops itself but doesn't restart itself in cluster mode.  The coordinator
+ * starts it again after the job's error wait, keeping the lease the whole time, so the restart
+ * can't race a handover or a lease that's running out.
+ *
+ * Stopping a job can take up to a minute, which is longer than a lease, so the coordinator
+ * never waits for one.  It only asks the job to stop, keeps renewing the lease until the job's
+ * thread has actually exited, and releases the lease after that.
+ */
+public class ClusterCoordinator {
+	private static final Logger log= LoggerFactory.getLogger(ClusterCoordinator.class);
+	
+	private final @NonNull LeaseBackend backend;
+	private final @NonNull String instance;
+	private final long leaseMilliseconds;
+	private final long renewMilliseconds;
+	
+	private final @NonNull List<@NonNull Job> jobs;
+	private final @NonNull AlertSink alertSink;
+	
+	// Jobs running here, by name, with when we last know our lease runs out
+	private final Map<@NonNull String, Long> running= new HashMap<>();
+	
+	// Jobs stopped after a hang by the timeout thread, by name, with how long to wait
+	private final Map<@NonNull String, Long> hung= new ConcurrentHashMap<>();
+	
+	// Jobs stopped after a hang that we still hold the lease on, with when to start them again
+	private final Map<@NonNull String, Long> restarting= new HashMap<>();
+	
+	// Jobs told to stop whose threads haven't exited yet, by name, with when our lease runs
+	// out - zero if somebody else has it
+	private final Map<@NonNull String, Long> stopping= new HashMap<>();
+	
+	// So a backend outage only alerts once
+	private boolean backendFailed= false;
+	
+	private volatile boolean run;
+	private Lock runLock= new ReentrantLock();
+	private Condition runWake= runLock.newCondition();
+	private Thread thread;
+	
+	private ClusterCoordinator(
+			@NonNull Composite spec,
+			@NonNull List<@NonNull Job> jobs,
+			@NonNull AlertSink alertSink) throws SchemaException
+	{
+		backend= LeaseBackendFactory.Create(spec.getRequiredObject("backend"));
+		
+		String instanceString= spec.getOptionalString("instance");
+		instance= (instanceString != null) ? instanceString : defaultInstance();
+		
+		Integer leaseSecondsInt= spec.getOptionalInteger("leaseSeconds");
+		int leaseSeconds= (leaseSecondsInt != null) ? leaseSecondsInt : 30;
+		if (leaseSeconds < 3) {
+			throw new FormatException("Cluster leaseSeconds must be at least 3");
+		}
+		
+		leaseMilliseconds= leaseSeconds * 1000L;
+		
+		// Renew three times per lease, so one missed round doesn't lose anything
+		renewMilliseconds= leaseMilliseconds / 3;
+		
+		this.jobs= jobs;
+		this.alertSink= alertSink;
+		
+		for (Job job : jobs) {
+			job.setHangHandler((hungJob, retryMilliseconds) -> {
+				hangDetected(hungJob, retryMilliseconds);
+			});
+		}
+	}
+	
+	/**
+	 * Create
+	 *
+	 * Create a coordinator from configuration
+	 *
+	 * @param spec						Cluster configuration
+	 * @param jobs						Jobs to distribute, not yet started
+	 * @param alertSink					Where to send alerts
+	 *
+	 * @return							New coordinator
+	 *
+	 * @throws SchemaException
+	 */
+	public static @NonNull ClusterCoordinator Create(
+			@NonNull Composite spec,
+			@NonNull List<@NonNull Job> jobs,
+			@NonNull AlertSink alertSink) throws SchemaException
+	{
+		return new ClusterCoordinator(spec, jobs, alertSink);
+	}
+	
+	private static @NonNull String defaultInstance() {
+		String host= null;
+		try {
+			host= InetAddress.getLocalHost().getHostName();
+		} catch (UnknownHostException e) {
+			host= System.getenv("HOSTNAME");
+		}
+		if (host == null) {
+			host= "unknown";
+		}
+		
+		// The process ID keeps two instances on the same machine apart
+		return host + "-" + ProcessHandle.current().pid();
+	}
+	
+	/**
+	 * start
+	 *
+	 * Join the cluster and start taking jobs
+	 */
+	public void start() {
+		runLock.lock();
+		try {
+			if (thread != null) {
+				throw new RuntimeException("Duplicate thread launch");
+			}
+			
+			run= true;
+			thread= new Thread(()->{ runLoop(); }, "cluster");
+			thread.start();
+		} finally {
+			runLock.unlock();
+		}
+		
+		log.info("Joining cluster as instance " + instance);
+	}
+	
+	/**
+	 * stop
+	 *
+	 * Stop every job running here, give up their leases, and leave the cluster
+	 */
+	public void stop() {
+		Thread waitThread= null;
+		
+		runLock.lock();
+		try {
+			if (thread == null) {
+				throw new RuntimeException("Attempt to stop stopped thread");
+			}
+			
+			run= false;
+			runWake.signal();
+			waitThread= thread;
+			thread= null;
+		} finally {
+			runLock.unlock();
+		}
+		
+		try {
+			waitThread.join(120_000);
+		} catch (InterruptedException e) {
+		}
+	}
+	
+	/**
+	 * hangDetected
+	 * 
+	 * Called on the timeout thread once a hung job has stopped.  This only makes a note and
+	 * wakes up the coordinator thread, which does the restart.
+	 * 
+	 * @param job						Job that hung
+	 * @param retryMilliseconds			How long to wait before restarting it
+	 */
+	private void hangDetected(
+			@NonNull Job job,
+			long retryMilliseconds)
+	{
+		hung.put(job.getName(), retryMilliseconds);
+		
+		runLock.lock();
+		try {
+			runWake.signal();
+		} finally {
+			runLock.unlock();
+		}
+	}
+	
+	private void runLoop() {
+		for (boolean localRun= true; localRun; ) {
+			try {
+				scheduleRestarts();
+				balance();
+				
+				if (backendFailed) {
+					log.info("Lease backend is reachable again");
+					backendFailed= false;
+				}
+			} catch (IOException e) {
+				if (!backendFailed) {
+					alertSink.sendAlert("Unable to reach cluster lease backend", e);
+					backendFailed= true;
+				}
+				
+				stopExpiring();
+			} catch (RuntimeException e) {
+				// Whatever this was, the coordinator thread has to keep going or the leases
+				// stop being renewed while the jobs carry on
+				alertSink.sendAlert("Error coordinating cluster jobs", e);
+			}
+			
+			runLock.lock();
+			try {
+				if ((localRun= run)) {
+					try {
+						runWake.await(renewMilliseconds, TimeUnit.MILLISECONDS);
+					} catch (InterruptedException e) {
+					}
+					localRun= run;
+				}
+			} finally {
+				runLock.unlock();
+			}
+		}
+		
+		// Shutting down - let everything go so the other instances can pick it up right away.
+		// Everything is told to stop first so the jobs wind down together.
+		for (Job job : jobs) {
+			String name= job.getName();
+			Long expires= running.remove(name);
+			if (expires != null) {
+				restarting.remove(name);
+				job.requestStop();
+				stopping.put(name, expires);
+			}
+		}
+		
+		for (Job job : jobs) {
+			String name= job.getName();
+			Long expires= stopping.remove(name);
+			if (expires != null) {
+				job.stop();
+				
+				if (!job.isStopped()) {
+					// Letting the lease run out is all we can do, since releasing it could
+					// start the job somewhere else while it's still running here
+					log.warn("Job " + name + " didn't stop - leaving its lease to expire");
+				} else if (expires > 0) {
+					try {
+						backend.release(name, instance);
+					} catch (IOException e) {
+						log.warn("Unable to release lease on job " + name, e);
+					}
+				}
+			}
+		}
+		
+		try {
+			backend.leave(instance);
+		} catch (IOException e) {
+			log.warn("Unable to leave cluster", e);
+		}
+	}
+	
+	private void balance() throws IOException {
+		backend.heartbeat(instance, leaseMilliseconds);
+		
+		List<@NonNull String> members= backend.getMembers();
+		if (!members.contains(instance)) {
+			// We just heartbeated, so this is only a listing race
+			members.add(instance);
+		}
+		
+		HashRing ring= HashRing.Create(members);
+		
+		// Renew everything first, including jobs that are still stopping, so nothing below
+		// can hold up a renewal
+		long expires= System.currentTimeMillis() + leaseMilliseconds;
+		Map<@NonNull String, Boolean> held= new HashMap<>();
+		
+		for (Job job : jobs) {
+			String name= job.getName();
+			if (instance.equals(ring.getOwner(name)) ||
+					running.containsKey(name) || stopping.containsKey(name))
+			{
+				held.put(name, backend.acquire(name, instance, leaseMilliseconds));
+			}
+		}
+		
+		for (Job job : jobs) {
+			String name= job.getName();
+			boolean mine= instance.equals(ring.getOwner(name));
+			boolean isHeld= Boolean.TRUE.equals(held.get(name));
+			
+			if (stopping.containsKey(name)) {
+				if (!job.isStopped()) {
+					stopping.put(name, isHeld ? expires : 0L);
+					continue;
+				}
+				
+				stopping.remove(name);
+				if (isHeld && !mine) {
+					log.info("Job " + name + " has stopped - releasing it to " +
+							ring.getOwner(name));
+					backend.release(name, instance);
+					continue;
+				}
+			}
+			
+			boolean isRunning= running.containsKey(name);
+			
+			if (mine && isHeld) {
+				running.put(name, expires);
+				
+				if (!isRunning) {
+					log.info("Took ownership of job " + name);
+					job.start();
+				} else {
+					Long restartAt= restarting.get(name);
+					if ((restartAt != null) && (System.currentTimeMillis() >= restartAt) &&
+							job.isStopped())
+					{
+						log.info("Restarting job " + name + " after a hang");
+						restarting.remove(name);
+						job.start();
+					}
+				}
+			} else if (isRunning) {
+				if (mine) {
+					// Somebody else got it - shouldn't happen unless our lease ran out
+					log.warn("Lost lease on job " + name);
+				} else {
+					// It hashes somewhere else now, so hand it over once it's stopped
+					log.info("Stopping job " + name + " to hand it to " + ring.getOwner(name));
+				}
+				
+				running.remove(name);
+				restarting.remove(name);
+				job.requestStop();
+				stopping.put(name, isHeld ? expires : 0L);
+			}
+		}
+	}
+	
+	/**
+	 * scheduleRestarts
+	 * 
+	 * Schedule jobs that stopped after a hang to start again, keeping their leases in the
+	 * meantime.  A job that was handed over or lost while it was stopping is left alone.
+	 */
+	private void scheduleRestarts() {
+		for (Job job : jobs) {
+			String name= job.getName();
+			Long retryMilliseconds= hung.remove(name);
+			
+			if ((retryMilliseconds != null) && running.containsKey(name)) {
+				log.warn("Job " + name + " stopped due to hang - restarting in " +
+						(retryMilliseconds / 1000) + " seconds");
+				restarting.put(name, System.currentTimeMillis() + retryMilliseconds);
+			}
+		}
+	}
+	
+	private void stopExpiring() {
+		// Anything whose lease could run out before the next attempt has to stop now, or
+		// there could be two instances forwarding the same mailbox.  The next attempt is up
+		// to two rounds away counting the one that just failed, and each job can take up to
+		// a minute to stop.
+		long cutoff= System.currentTimeMillis() + (2 * renewMilliseconds) + 60_000;
+		
+		for (Job job : jobs) {
+			String name= job.getName();
+			Long expires= running.get(name);
+			
+			if ((expires != null) && (expires <= cutoff)) {
+				log.warn("Stopping job " + name + " since its lease can't be renewed");
+				running.remove(name);
+				restarting.remove(name);
+				job.requestStop();
+				stopping.put(name, expires);
+			}
+		}
+	}
+}
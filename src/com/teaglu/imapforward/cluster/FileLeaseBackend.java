@@ -0,0 +1,268 @@
+/****************************************************************************
+ * Copyright 2022 Teaglu, LLC                                               *
+ *                                                                          *
+ * Licensed under the Apache License, Version 2.0 (the "License");          *
+ * you may not use this file except in compliance with the License.         *
+ * You may obtain a copy of the License at                                  *
+ *                                                                          *
+ *   http://www.apache.org/licenses/LICENSE-2.0                             *
+ *                                                                          *
+ * Unless required by applicable law or agreed to in writing, software      *
+ * distributed under the License is distributed on an "AS IS" BASIS,        *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. *
+ * See the License for the specific language governing permissions and      *
+ * limitations under the License.                                           *
+ ****************************************************************************/
+
+package com.teaglu.imapforward.cluster;
+
+import java.io.IOException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.eclipse.jdt.annotation.NonNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.teaglu.composite.Composite;
+import com.teaglu.composite.exception.SchemaException;
+
+/**
+ * FileLeaseBackend
+ *
+ * Lease backend on a directory every instance can see - a local directory for trying things
+ * out on one machine, or a network share for real.
+ *
+ * Each member has a file under members/ holding the time its membership runs out, replaced
+ * atomically on every heartbeat.  Each job has a file under leases/ holding the owner and the
+ * time the lease runs out.  A lease file is only read and written while holding an exclusive
+ * lock on it, so two instances can't both decide a lease is free.
+ *
+ * Expiry times are wall clock, so the machines need to have their clocks reasonably in sync.
+ * Network filesystems vary in how well they do locking - NFSv4 and SMB are fine, older NFS
+ * without a lock manager is not.
+ */
+public class FileLeaseBackend implements LeaseBackend {
+	private static final Logger log= LoggerFactory.getLogger(FileLeaseBackend.class);
+	
+	private final @NonNull Path memberDirectory;
+	private final @NonNull Path leaseDirectory;
+	
+	private FileLeaseBackend(
+			@NonNull Composite spec) throws SchemaException
+	{
+		Path directory= Paths.get(spec.getRequiredString("directory"));
+		
+		memberDirectory= directory.resolve("members");
+		leaseDirectory= directory.resolve("leases");
+	}
+	
+	/**
+	 * Create
+	 *
+	 * Create a backend from configuration
+	 *
+	 * @param spec						Backend configuration
+	 *
+	 * @return							New backend
+	 *
+	 * @throws SchemaException
+	 */
+	public static @NonNull FileLeaseBackend Create(
+			@NonNull Composite spec) throws SchemaException
+	{
+		return new FileLeaseBackend(spec);
+	}
+	
+	private static @NonNull String encode(
+			@NonNull String name)
+	{
+		// Job names are free text, so make them safe to use as a file name
+		return URLEncoder.encode(name, StandardCharsets.UTF_8);
+	}
+	
+	@Override
+	public void heartbeat(
+			@NonNull String instance,
+			long milliseconds) throws IOException
+	{
+		Files.createDirectories(memberDirectory);
+		
+		String name= encode(instance);
+		Path tempPath= memberDirectory.resolve("." + name + ".tmp");
+		Path path= memberDirectory.resolve(name);
+		
+		long expires= System.currentTimeMillis() + milliseconds;
+		Files.write(tempPath, Long.toString(expires).getBytes(StandardCharsets.US_ASCII));
+		Files.move(tempPath, path,
+				StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+	
+	@Override
+	public @NonNull List<@NonNull String> getMembers() throws IOException {
+		List<@NonNull String> members= new ArrayList<>();
+		if (!Files.isDirectory(memberDirectory)) {
+			return members;
+		}
+		
+		long now= System.currentTimeMillis();
+		
+		try (DirectoryStream<Path> stream= Files.newDirectoryStream(memberDirectory)) {
+			for (Path path : stream) {
+				String fileName= path.getFileName().toString();
+				if (fileName.startsWith(".")) {
+					continue;
+				}
+				
+				long expires= 0;
+				try {
+					String content= new String(
+							Files.readAllBytes(path), StandardCharsets.US_ASCII).trim();
+					expires= Long.parseLong(content);
+				} catch (NoSuchFileException e) {
+					// Somebody else cleaned it up while we were looking
+					continue;
+				} catch (NumberFormatException e) {
+					log.warn("Unreadable member file " + path);
+				}
+				
+				if (expires > now) {
+					members.add(URLDecoder.decode(fileName, StandardCharsets.UTF_8));
+				} else {
+					// Clean up after instances that went away without leaving
+					Files.deleteIfExists(path);
+				}
+			}
+		}
+		
+		return members;
+	}
+	
+	@Override
+	public void leave(
+			@NonNull String instance) throws IOException
+	{
+		Files.deleteIfExists(memberDirectory.resolve(encode(instance)));
+	}
+	
+	@Override
+	public boolean acquire(
+			@NonNull String job,
+			@NonNull String instance,
+			long milliseconds) throws IOException
+	{
+		Files.createDirectories(leaseDirectory);
+		
+		try (FileChannel channel= FileChannel.open(leaseDirectory.resolve(encode(job) + ".lease"),
+				StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE))
+		{
+			try (FileLock lock= channel.lock()) {
+				long now= System.currentTimeMillis();
+				
+				Lease current= readLease(channel);
+				if ((current != null) && (current.expires > now) &&
+						!current.owner.equals(instance))
+				{
+					return false;
+				}
+				
+				writeLease(channel, instance, now + milliseconds);
+				return true;
+			}
+		}
+	}
+	
+	@Override
+	public void release(
+			@NonNull String job,
+			@NonNull String instance) throws IOException
+	{
+		Path path= leaseDirectory.resolve(encode(job) + ".lease");
+		if (!Files.exists(path)) {
+			return;
+		}
+		
+		try (FileChannel channel= FileChannel.open(path,
+				StandardOpenOption.READ, StandardOpenOption.WRITE))
+		{
+			try (FileLock lock= channel.lock()) {
+				Lease current= readLease(channel);
+				if ((current != null) && current.owner.equals(instance)) {
+					// Leave the file in place but empty, since deleting a locked file isn't
+					// portable.  An empty file is the same as no lease.
+					channel.truncate(0);
+					channel.force(true);
+				}
+			}
+		}
+	}
+	
+	private static class Lease {
+		private final @NonNull String owner;
+		private final long expires;
+		
+		private Lease(
+				@NonNull String owner,
+				long expires)
+		{
+			this.owner= owner;
+			this.expires= expires;
+		}
+	}
+	
+	private static Lease readLease(
+			@NonNull FileChannel channel) throws IOException
+	{
+		long size= channel.size();
+		if ((size == 0) || (size > 4096)) {
+			return null;
+		}
+		
+		ByteBuffer buffer= ByteBuffer.allocate((int)size);
+		channel.position(0);
+		while (buffer.hasRemaining() && (channel.read(buffer) >= 0)) {}
+		
+		// Owner on the first line, expiry on the second
+		String[] lines= new String(buffer.array(), 0, buffer.position(),
+				StandardCharsets.UTF_8).split("\n");
+		if (lines.length < 2) {
+			return null;
+		}
+		
+		try {
+			return new Lease(lines[0], Long.parseLong(lines[1].trim()));
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+	
+	private static void writeLease(
+			@NonNull FileChannel channel,
+			@NonNull String owner,
+			long expires) throws IOException
+	{
+		byte[] content= (owner + "\n" + expires + "\n").getBytes(StandardCharsets.UTF_8);
+		
+		channel.truncate(0);
+		channel.position(0);
+		
+		ByteBuffer buffer= ByteBuffer.wrap(content);
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+		channel.force(true);
+	}
+}
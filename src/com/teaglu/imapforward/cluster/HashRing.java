@@ -0,0 +1,111 @@
+/****************************************************************************
+ * Copyright 2022 Teaglu, LLC                                               *
+ *                                                                          *
+ * Licensed under the Apache License, Version 2.0 (the "License");          *
+ * you may not use this file except in compliance with the License.         *
+ * You may obtain a copy of the License at                                  *
+ *                                                                          *
+ *   http://www.apache.org/licenses/LICENSE-2.0                             *
+ *                                                                          *
+ * Unless required by applicable law or agreed to in writing, software      *
+ * distributed under the License is distributed on an "AS IS" BASIS,        *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. *
+ * See the License for the specific language governing permissions and      *
+ * limitations under the License.                                           *
+ ****************************************************************************/
+
+package com.teaglu.imapforward.cluster;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.eclipse.jdt.annotation.NonNull;
+import org.eclipse.jdt.annotation.Nullable;
+
+/**
+ * HashRing
+ *
+ * Consistent hash ring for deciding which instance should own which job.  Every instance
+ * builds the same ring from the same member list, so they all agree on the assignment without
+ * talking to each other.  When an instance joins or leaves only the jobs that hash near it
+ * move, instead of everything being reshuffled.
+ *
+ * Each member is placed on the ring many times so the jobs spread out evenly even with only
+ * two or three instances.
+ */
+public class HashRing {
+	private static final int POINTS_PER_MEMBER= 64;
+	
+	private final TreeMap<Long, @NonNull String> ring= new TreeMap<>();
+	
+	private HashRing(
+			@NonNull Iterable<@NonNull String> members)
+	{
+		for (String member : members) {
+			for (int i= 0; i < POINTS_PER_MEMBER; i++) {
+				ring.put(hash(member + "#" + i), member);
+			}
+		}
+	}
+	
+	/**
+	 * Create
+	 *
+	 * Build a ring from a list of members
+	 *
+	 * @param members					Instance IDs
+	 *
+	 * @return							New ring
+	 */
+	public static @NonNull HashRing Create(
+			@NonNull Iterable<@NonNull String> members)
+	{
+		return new HashRing(members);
+	}
+	
+	/**
+	 * getOwner
+	 *
+	 * Find the member that should own a key
+	 *
+	 * @param key						Job name
+	 *
+	 * @return							Owning member, or null if the ring is empty
+	 */
+	public @Nullable String getOwner(
+			@NonNull String key)
+	{
+		if (ring.isEmpty()) {
+			return null;
+		}
+		
+		Map.Entry<Long, @NonNull String> entry= ring.ceilingEntry(hash(key));
+		if (entry == null) {
+			entry= ring.firstEntry();
+		}
+		return entry.getValue();
+	}
+	
+	private static long hash(
+			@NonNull String value)
+	{
+		// This has to come out the same on every instance, so no String.hashCode
+		MessageDigest digest;
+		try {
+			digest= MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException("SHA-256 not available", e);
+		}
+		
+		byte[] bytes= digest.digest(value.getBytes(StandardCharsets.UTF_8));
+		
+		long rval= 0;
+		for (int i= 0; i < 8; i++) {
+			rval= (rval << 8) | (bytes[i] & 0xFF);
+		}
+		return rval;
+	}
+}
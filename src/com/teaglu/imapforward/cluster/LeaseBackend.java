@@ -0,0 +1,99 @@
+/****************************************************************************
+ * Copyright 2022 Teaglu, LLC                                               *
+ *                                                                          *
+ * Licensed under the Apache License, Version 2.0 (the "License");          *
+ * you may not use this file except in compliance with the License.         *
+ * You may obtain a copy of the License at                                  *
+ *                                                                          *
+ *   http://www.apache.org/licenses/LICENSE-2.0                             *
+ *                                                                          *
+ * Unless required by applicable law or agreed to in writing, software      *
+ * distributed under the License is distributed on an "AS IS" BASIS,        *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. *
+ * See the License for the specific language governing permissions and      *
+ * limitations under the License.                                           *
+ ****************************************************************************/
+
+package com.teaglu.imapforward.cluster;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.eclipse.jdt.annotation.NonNull;
+
+/**
+ * LeaseBackend
+ *
+ * Shared storage that instances in a cluster use to find each other and to agree on who owns
+ * each job.  Everything is based on leases that expire unless renewed, so an instance that
+ * dies or loses contact just drops out after the lease time.
+ */
+public interface LeaseBackend {
+	/**
+	 * heartbeat
+	 *
+	 * Announce that an instance is alive, extending its membership
+	 *
+	 * @param instance					Instance ID
+	 * @param milliseconds				How long the membership lasts without another heartbeat
+	 *
+	 * @throws IOException
+	 */
+	public void heartbeat(
+			@NonNull String instance,
+			long milliseconds) throws IOException;
+	
+	/**
+	 * getMembers
+	 *
+	 * @return							IDs of instances whose membership hasn't expired
+	 *
+	 * @throws IOException
+	 */
+	public @NonNull List<@NonNull String> getMembers() throws IOException;
+	
+	/**
+	 * leave
+	 *
+	 * Remove an instance's membership right away, for a clean shutdown
+	 *
+	 * @param instance					Instance ID
+	 *
+	 * @throws IOException
+	 */
+	public void leave(
+			@NonNull String instance) throws IOException;
+	
+	/**
+	 * acquire
+	 *
+	 * Take or renew the lease on a job.  This succeeds if nobody holds the lease, the lease
+	 * has expired, or the instance already holds it.
+	 *
+	 * @param job						Job name
+	 * @param instance					Instance ID
+	 * @param milliseconds				How long the lease lasts without renewal
+	 *
+	 * @return							True if the instance now holds the lease
+	 *
+	 * @throws IOException
+	 */
+	public boolean acquire(
+			@NonNull String job,
+			@NonNull String instance,
+			long milliseconds) throws IOException;
+	
+	/**
+	 * release
+	 *
+	 * Give up the lease on a job if the instance holds it
+	 *
+	 * @param job						Job name
+	 * @param instance					Instance ID
+	 *
+	 * @throws IOException
+	 */
+	public void release(
+			@NonNull String job,
+			@NonNull String instance) throws IOException;
+}
@@ -0,0 +1,43 @@
+/****************************************************************************
+ * Copyright 2022 Teaglu, LLC                                               *
+ *                                                                          *
+ * Licensed under the Apache License, Version 2.0 (the "License");          *
+ * you may not use this file except in compliance with the License.         *
+ * You may obtain a copy of the License at                                  *
+ *                                                                          *
+ *   http://www.apache.org/licenses/LICENSE-2.0                             *
+ *                                                                          *
+ * Unless required by applicable law or agreed to in writing, software      *
+ * distributed under the License is distributed on an "AS IS" BASIS,        *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. *
+ * See the License for the specific language governing permissions and      *
+ * limitations under the License.                                           *
+ ****************************************************************************/
+
+package com.teaglu.imapforward.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * FolderOpenEvent
+ *
+ * JFR event for selecting a source folder.
+ */
+@Name("com.teaglu.imapforward.FolderOpen")
+@Label("Folder Open")
+@Category({ "IMAP Forward" })
+@Description("Selecting a folder on an IMAP server")
+public class FolderOpenEvent extends Event {
+	@Label("Job")
+	public String job;
+
+	@Label("Folder")
+	public String folder;
+
+	@Label("Messages")
+	public int messages;
+}
@@ -0,0 +1,51 @@
+/****************************************************************************
+ * Copyright 2022 Teaglu, LLC                                               *
+ *                                                                          *
+ * Licensed under the Apache License, Version 2.0 (the "License");          *
+ * you may not use this file except in compliance with the License.         *
+ * You may obtain a copy of the License at                                  *
+ *                                                                          *
+ *   http://www.apache.org/licenses/LICENSE-2.0                             *
+ *                                                                          *
+ * Unless required by applicable law or agreed to in writing, software      *
+ * distributed under the License is distributed on an "AS IS" BASIS,        *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. *
+ * See the License for the specific language governing permissions and      *
+ * limitations under the License.                                           *
+ ****************************************************************************/
+
+package com.teaglu.imapforward.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * JobCycleEvent
+ *
+ * JFR event covering one polling cycle of a job, from connecting to going back to sleep.
+ */
+@Name("com.teaglu.imapforward.JobCycle")
+@Label("Job Cycle")
+@Category({ "IMAP Forward" })
+@Description("One polling cycle of a job")
+public class JobCycleEvent extends Event {
+	@Label("Job")
+	public String job;
+
+	@Label("Folders Polled")
+	public int foldersPolled;
+
+	@Label("Messages Transferred")
+	public int messages;
+
+	@Label("Message Bytes")
+	@DataAmount
+	public long bytes;
+
+	@Label("Failed")
+	public boolean failed;
+}
@@ -0,0 +1,51 @@
+/****************************************************************************
+ * Copyright 2022 Teaglu, LLC                                               *
+ *                                                                          *
+ * Licensed under the Apache License, Version 2.0 (the "License");          *
+ * you may not use this file except in compliance with the License.         *
+ * You may obtain a copy of the License at                                  *
+ *                                                                          *
+ *   http://www.apache.org/licenses/LICENSE-2.0                             *
+ *                                                                          *
+ * Unless required by applicable law or agreed to in writing, software      *
+ * distributed under the License is distributed on an "AS IS" BASIS,        *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. *
+ * See the License for the specific language governing permissions and      *
+ * limitations under the License.                                           *
+ ****************************************************************************/
+
+package com.teaglu.imapforward.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * MessageTransferEvent
+ *
+ * JFR event for moving a single message from the source to the destination.
+ */
+@Name("com.teaglu.imapforward.MessageTransfer")
+@Label("Message Transfer")
+@Category({ "IMAP Forward" })
+@Description("Transferring one message between servers")
+public class MessageTransferEvent extends Event {
+	@Label("Job")
+	public String job;
+
+	@Label("Source Folder")
+	public String sourceFolder;
+
+	@Label("Destination Folder")
+	public String destinationFolder;
+
+	@Label("Method")
+	public String method;
+
+	@Label("Size")
+	@DataAmount
+	public long size;
+}
@@ -0,0 +1,47 @@
+/****************************************************************************
+ * Copyright 2022 Teaglu, LLC                                               *
+ *                                                                          *
+ * Licensed under the Apache License, Version 2.0 (the "License");          *
+ * you may not use this file except in compliance with the License.         *
+ * You may obtain a copy of the License at                                  *
+ *                                                                          *
+ *   http://www.apache.org/licenses/LICENSE-2.0                             *
+ *                                                                          *
+ * Unless required by applicable law or agreed to in writing, software      *
+ * distributed under the License is distributed on an "AS IS" BASIS,        *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. *
+ * See the License for the specific language governing permissions and      *
+ * limitations under the License.                                           *
+ ****************************************************************************/
+
+package com.teaglu.imapforward.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * StoreConnectEvent
+ *
+ * JFR event for connecting and logging in to an IMAP store.
+ */
+@Name("com.teaglu.imapforward.StoreConnect")
+@Label("Store Connect")
+@Category({ "IMAP Forward" })
+@Description("Connecting and logging in to an IMAP server")
+public class StoreConnectEvent extends Event {
+	@Label("Job")
+	public String job;
+
+	@Label("Host")
+	public String host;
+
+	@Label("Side")
+	@Description("Whether this is the source or destination store")
+	public String side;
+
+	@Label("Succeeded")
+	public boolean succeeded;
+}
@@ -0,0 +1,662 @@
+/****************************************************************************
+ * Copyright 2022 Teaglu, LLC                                               *
+ *                                                                          *
+ * Licensed under the Apache License, Version 2.0 (the "License");          *
+ * you may not use this file except in compliance with the License.         *
+ * You may obtain a copy of the License at                                  *
+ *                                                                          *
+ *   http://www.apache.org/licenses/LICENSE-2.0                             *
+ *                                                                          *
+ * Unless required by applicable law or agreed to in writing, software      *
+ * distributed under the License is distributed on an "AS IS" BASIS,        *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. *
+ * See the License for the specific language governing permissions and      *
+ * limitations under the License.                                           *
+ ****************************************************************************/
+package com.teaglu.imapforward.job;
+
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.eclipse.jdt.annotation.NonNull;
+import org.eclipse.jdt.annotation.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.gson.JsonObject;
+import com.sun.mail.imap.IMAPMessage;
+import com.teaglu.composite.Composite;
+import com.teaglu.composite.exception.FormatException;
+import com.teaglu.composite.exception.SchemaException;
+import com.teaglu.imapforward.alert.AlertSink;
+import com.teaglu.imapforward.alert.PrefixAlertSink;
+import com.teaglu.imapforward.circuit.CircuitBreaker;
+import com.teaglu.imapforward.circuit.CircuitBreakerRegistry;
+import com.teaglu.imapforward.jfr.StoreConnectEvent;
+import com.teaglu.imapforward.mail.ByteCounter;
+import com.teaglu.imapforward.mail.ConnectionSet;
+import com.teaglu.imapforward.mail.MailSessionFactory;
+import com.teaglu.imapforward.throttle.HostThrottle;
+import com.teaglu.imapforward.throttle.ThrottleRegistry;
+import com.teaglu.imapforward.timeout.TimeoutManager;
+import com.teaglu.imapforward.timeout.Watchdog;
+import com.teaglu.imapforward.trace.ProtocolTrace;
+
+import jakarta.mail.Message;
+import jakarta.mail.MessagingException;
+import jakarta.mail.Session;
+import jakarta.mail.Store;
+
+/**
+ * AbstractImapJob
+ *
+ * What every IMAP job has in common - the job thread and the admin controls for it, the
+ * watchdog that restarts the thread when an operation hangs, and building sessions and
+ * connecting stores with the job's timeouts.
+ *
+ * A subclass supplies the loop the thread runs.  Between passes the loop should call
+ * waitForCycle, which is where stop, pause and cycle requests take effect.
+ */
+public abstract class AbstractImapJob implements Job {
+	private static final Logger log= LoggerFactory.getLogger(AbstractImapJob.class);
+	
+	// Extra allowance per message when fetching envelopes for a batch of messages
+	protected static final long FETCH_MILLISECONDS_PER_MESSAGE= 10;
+	
+	protected final @NonNull String name;
+	protected final @NonNull AlertSink alertSink;
+	protected final @NonNull TimeoutManager timeoutManager;
+	
+	protected final boolean imapDebug;
+	protected final boolean imapPartialFetch;
+	
+	// Hang detection.  Each IMAP operation gets its own deadline, and the socket timeouts
+	// catch most stalls before the watchdog has to.
+	protected final @NonNull Watchdog watchdog;
+	protected int connectSeconds= 30;
+	protected int readSeconds= 120;
+	protected int operationSeconds= 60;
+	
+	// Slowest transfer rate we'll put up with before calling it a hang, in bytes per second
+	protected int minimumTransferRate= 8192;
+	
+	// Fall back to slower cycle time on error so we don't spam the alert sink
+	protected int errorCycleSeconds= 3600;
+	
+	private volatile boolean run;
+	private final Lock runLock= new ReentrantLock();
+	private final Condition runWake= runLock.newCondition();
+	private Thread thread= null;
+	
+	// The last thread told to stop, which may not have exited yet
+	private Thread stoppingThread= null;
+	
+	// Whoever restarts the job after a hang, if it doesn't do it itself
+	private volatile HangHandler hangHandler= null;
+	
+	// Controls from the admin interface
+	protected volatile boolean paused= false;
+	protected volatile boolean cycleRequested= false;
+	
+	// Last failure, for the admin interface
+	protected volatile String lastError= null;
+	
+	protected AbstractImapJob(
+			@NonNull Composite spec,
+			@NonNull AlertSink alertSink,
+			@NonNull TimeoutManager timeoutManager) throws SchemaException
+	{
+		this.name= spec.getRequiredString("name");
+		this.alertSink= PrefixAlertSink.Create(alertSink, "[" + name + "] ");
+		this.timeoutManager= timeoutManager;
+		this.watchdog= Watchdog.Create(timeoutManager, () -> { timeoutFired(); });
+		
+		this.imapDebug= spec.getOptionalBoolean("debug", false);
+		this.imapPartialFetch= spec.getOptionalBoolean("partialFetch", true);
+		
+		Integer connectSpec= spec.getOptionalInteger("connectSeconds");
+		if (connectSpec != null) {
+			connectSeconds= connectSpec;
+		}
+		Integer readSpec= spec.getOptionalInteger("readSeconds");
+		if (readSpec != null) {
+			readSeconds= readSpec;
+		}
+		Integer operationSpec= spec.getOptionalInteger("operationSeconds");
+		if (operationSpec != null) {
+			operationSeconds= operationSpec;
+		}
+		Integer rateSpec= spec.getOptionalInteger("minimumTransferRate");
+		if (rateSpec != null) {
+			if (rateSpec < 1) {
+				throw new FormatException("minimumTransferRate must be positive");
+			}
+			minimumTransferRate= rateSpec;
+		}
+	}
+	
+	/**
+	 * runLoop
+	 * 
+	 * Body of the job thread, which runs until waitForCycle says to stop
+	 */
+	protected abstract void runLoop();
+	
+	/**
+	 * waitForCycle
+	 * 
+	 * Wait between passes until the next one is due, a cycle is requested, or the job is
+	 * stopped.  Returns right away if a cycle was requested during the last pass.
+	 * 
+	 * @param waitMilliseconds			How long to wait, or zero to wait until woken up
+	 * 
+	 * @return							False if the job is being stopped
+	 */
+	protected boolean waitForCycle(
+			long waitMilliseconds)
+	{
+		boolean localRun;
+		
+		runLock.lock();
+		try {
+			if ((localRun= run) && !cycleRequested) {
+				try {
+					if (waitMilliseconds > 0) {
+						runWake.await(waitMilliseconds, TimeUnit.MILLISECONDS);
+					} else {
+						runWake.await();
+					}
+				} catch (InterruptedException e) {
+				}
+				localRun= run;
+			}
+		} finally {
+			runLock.unlock();
+		}
+		
+		return localRun;
+	}
+	
+	/**
+	 * createStatus
+	 * 
+	 * Start a status object with the fields every job reports
+	 * 
+	 * @param type						Job type, as it appears in the configuration
+	 * 
+	 * @return							Status to add the job's own fields to
+	 */
+	protected @NonNull JsonObject createStatus(
+			@NonNull String type)
+	{
+		JsonObject status= new JsonObject();
+		status.addProperty("name", name);
+		status.addProperty("type", type);
+		status.addProperty("running", run);
+		status.addProperty("paused", paused);
+		
+		String error= lastError;
+		if (error != null) {
+			status.addProperty("lastError", error);
+		}
+		
+		return status;
+	}
+	
+	/**
+	 * buildSessionProperties
+	 * 
+	 * Properties for one of the job's mail sessions.  A subclass can add to these.
+	 * 
+	 * @param counter					Counter for the session's wire bytes
+	 * @param connections				Where to track the session's sockets, or null
+	 * 
+	 * @return							Session properties
+	 */
+	protected @NonNull Properties buildSessionProperties(
+			@NonNull ByteCounter counter,
+			@Nullable ConnectionSet connections)
+	{
+		// These belong to this job alone - they used to be the system properties, which
+		// meant every job and the alert sink saw whatever the last job set.
+		Properties props= MailSessionFactory.CreateImapProperties(counter, connections);
+		
+		// Socket level timeouts, so a dead connection turns into an exception on the job
+		// thread instead of a hang.  There's no write timeout since JavaMail implements that
+		// with an extra thread per socket - the watchdog covers stalled writes.
+		props.setProperty("mail.imaps.connectiontimeout", Long.toString(connectSeconds * 1000L));
+		props.setProperty("mail.imaps.timeout", Long.toString(readSeconds * 1000L));
+		
+		if (!imapPartialFetch) {
+			// This is a weird kluge because older Lotus Notes servers don't properly implement
+			// partial fetch, and it makes the thread hang.  Disabling partial fetch fixes that.
+			props.setProperty("mail.imaps.partialfetch", "false");
+		}
+		
+		return props;
+	}
+	
+	/**
+	 * createSession
+	 * 
+	 * Create a mail session with the job's properties
+	 * 
+	 * @param counter					Counter for the session's wire bytes
+	 * @param trace						Where to record protocol lines, or null
+	 * 
+	 * @return							New session
+	 */
+	protected @NonNull Session createSession(
+			@NonNull ByteCounter counter,
+			@Nullable ProtocolTrace trace)
+	{
+		return createSession(counter, null, trace);
+	}
+	
+	/**
+	 * createSession
+	 * 
+	 * Create a mail session whose sockets are tracked, for a thread whose watchdog breaks a
+	 * hang by closing them
+	 * 
+	 * @param counter					Counter for the session's wire bytes
+	 * @param connections				Where to track the session's sockets, or null
+	 * @param trace						Where to record protocol lines, or null
+	 * 
+	 * @return							New session
+	 */
+	protected @NonNull Session createSession(
+			@NonNull ByteCounter counter,
+			@Nullable ConnectionSet connections,
+			@Nullable ProtocolTrace trace)
+	{
+		Session session= MailSessionFactory.Create(buildSessionProperties(counter, connections));
+		
+		// The debug stream has to be set before debug is turned on, or the session prints
+		// its version banner to the console.
+		if (trace != null) {
+			session.setDebugOut(trace.getPrintStream());
+			session.setDebug(true);
+		} else if (imapDebug) {
+			// This dumps out all the IMAP commands on the console if we need to track
+			// anything down or see what it's doing.
+			session.setDebug(true);
+		}
+		
+		return session;
+	}
+	
+	/**
+	 * connectStore
+	 * 
+	 * Connect and log in to a mailbox on the job thread
+	 * 
+	 * @param session					Session to connect with
+	 * @param mailbox					Mailbox to log in to
+	 * @param side						Which side this is, for flight recorder
+	 * 
+	 * @return							Connected store
+	 * 
+	 * @throws MessagingException
+	 */
+	protected @NonNull Store connectStore(
+			@NonNull Session session,
+			@NonNull Mailbox mailbox,
+			@NonNull String side) throws MessagingException
+	{
+		return connectStore(session, mailbox, side, watchdog);
+	}
+	
+	/**
+	 * connectStore
+	 * 
+	 * Connect and log in to a mailbox, for a thread that has its own watchdog.  A failure
+	 * that looks like the host is down counts against its circuit breaker.
+	 * 
+	 * @param session					Session to connect with
+	 * @param mailbox					Mailbox to log in to
+	 * @param side						Which side this is, for flight recorder
+	 * @param connectWatchdog			Watchdog of the thread connecting
+	 * 
+	 * @return							Connected store
+	 * 
+	 * @throws MessagingException
+	 */
+	protected @NonNull Store connectStore(
+			@NonNull Session session,
+			@NonNull Mailbox mailbox,
+			@NonNull String side,
+			@NonNull Watchdog connectWatchdog) throws MessagingException
+	{
+		connectWatchdog.arm("connect " + mailbox.getHost(), connectSeconds * 2000L);
+		
+		StoreConnectEvent event= new StoreConnectEvent();
+		event.begin();
+		
+		boolean succeeded= false;
+		try {
+			Store store= session.getStore("imaps");
+			store.connect(mailbox.getHost(), mailbox.getPort(),
+					mailbox.getUsername(), mailbox.getPassword());
+			
+			succeeded= true;
+			return store;
+		} catch (MessagingException e) {
+			CircuitBreaker breaker= getBreaker(mailbox);
+			if ((breaker != null) && CircuitBreakerRegistry.IsHostFailure(e)) {
+				breaker.recordFailure(e);
+			}
+			throw e;
+		} finally {
+			event.end();
+			if (event.shouldCommit()) {
+				event.job= name;
+				event.host= mailbox.getHost();
+				event.side= side;
+				event.succeeded= succeeded;
+				event.commit();
+			}
+		}
+	}
+	
+	/**
+	 * isStoreAlive
+	 * 
+	 * Check a store that's been sitting idle, such as over a pause.  For IMAP this sends a
+	 * NOOP on the store's connection.
+	 * 
+	 * @param store						Store to check
+	 * @param side						Which side this is, for the watchdog
+	 * 
+	 * @return							True if the store still answers
+	 */
+	protected boolean isStoreAlive(
+			@NonNull Store store,
+			@NonNull String side)
+	{
+		watchdog.arm("check " + side, operationSeconds * 1000L);
+		return store.isConnected();
+	}
+	
+	/**
+	 * getBreaker
+	 * 
+	 * @param mailbox					Mailbox
+	 * 
+	 * @return							Circuit breaker for the mailbox's server, or null if
+	 * 									circuit breaking is off
+	 */
+	protected static @Nullable CircuitBreaker getBreaker(
+			@NonNull Mailbox mailbox)
+	{
+		return CircuitBreakerRegistry.Get(mailbox.getHost(), mailbox.getPort());
+	}
+	
+	/**
+	 * waitForHosts
+	 * 
+	 * Check whether any of the job's servers is down according to its circuit breaker.  If
+	 * one is, the job gets woken up with a cycle request when it comes back.  This is also
+	 * worth calling after a failed cycle, so a job sitting out its error wait is woken up
+	 * along with everything else when the server recovers.
+	 * 
+	 * @param mailboxes					Mailboxes the job uses
+	 * 
+	 * @return							True if one is down and the job should wait
+	 */
+	protected boolean waitForHosts(
+			@NonNull Mailbox... mailboxes)
+	{
+		for (Mailbox mailbox : mailboxes) {
+			CircuitBreaker breaker= getBreaker(mailbox);
+			if ((breaker != null) && breaker.addCloseListener(() -> { requestCycle(); })) {
+				log.info("Job " + name + " waiting for host " + mailbox.getHost() + " to recover");
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * throttle
+	 * 
+	 * Wait as long as a host's throttle says to before sending.  The wait is covered by the
+	 * watchdog so a long throttle delay isn't mistaken for a hang.
+	 * 
+	 * @param throttleWatchdog			Watchdog of the thread that's sending
+	 * @param mailbox					Mailbox being sent to
+	 * @param commands					Number of commands about to be sent
+	 * @param bytes						Number of message bytes about to be sent
+	 * 
+	 * @throws MessagingException		If interrupted while waiting
+	 */
+	protected void throttle(
+			@NonNull Watchdog throttleWatchdog,
+			@NonNull Mailbox mailbox,
+			int commands,
+			long bytes) throws MessagingException
+	{
+		HostThrottle throttle= ThrottleRegistry.Get(mailbox.getHost(), mailbox.getUsername());
+		if (throttle == null) {
+			return;
+		}
+		
+		long wait= throttle.reserve(commands, Math.max(0, bytes));
+		if (wait > 0) {
+			throttleWatchdog.arm("throttle " + mailbox.getHost(),
+					wait + (operationSeconds * 1000L));
+			
+			try {
+				Thread.sleep(wait);
+			} catch (InterruptedException e) {
+				throw new MessagingException("Interrupted waiting on throttle");
+			}
+		}
+	}
+	
+	/**
+	 * addTraces
+	 * 
+	 * Append whatever recent protocol the job has to an alert message.  Jobs that keep
+	 * protocol traces override this.
+	 * 
+	 * @param message					Alert message
+	 * 
+	 * @return							Message with traces added
+	 */
+	protected @NonNull String addTraces(
+			@NonNull String message)
+	{
+		return message;
+	}
+	
+	/**
+	 * releaseWindow
+	 * 
+	 * Drop the envelope and header data JavaMail has cached for a window of messages.  The
+	 * message objects themselves stay in the folder's cache, but they're small without it.
+	 * 
+	 * @param messages					Messages in the window
+	 */
+	protected static void releaseWindow(
+			@NonNull Message[] messages)
+	{
+		for (Message message : messages) {
+			if (message instanceof IMAPMessage) {
+				((IMAPMessage)message).invalidateHeaders();
+			}
+		}
+	}
+	
+	protected static void closeQuietly(
+			Store store)
+	{
+		if (store != null) {
+			try {
+				store.close();
+			} catch (MessagingException e) {
+				log.warn("Error closing store", e);
+			}
+		}
+	}
+	
+	@Override
+	public void start() {
+		runLock.lock();
+		try {
+			if (thread != null) {
+				throw new RuntimeException("Duplicate thread launch");
+			}
+			
+			run= true;
+			thread= new Thread(()->{ runLoop(); },
+					"job-" + name.toLowerCase().replace(' ', '-'));
+			thread.start();
+		} finally {
+			runLock.unlock();
+		}
+	}
+	
+	@Override
+	public void stop() {
+		requestStop();
+		
+		Thread waitThread= null;
+		
+		runLock.lock();
+		try {
+			waitThread= stoppingThread;
+		} finally {
+			runLock.unlock();
+		}
+		
+		if (waitThread != null) {
+			try {
+				waitThread.join(60_000);
+			} catch (InterruptedException e) {
+			}
+		}
+	}
+	
+	@Override
+	public void requestStop() {
+		runLock.lock();
+		try {
+			if (thread == null) {
+				// Already stopped, which can happen when a hang restart and a stop race
+				return;
+			}
+			
+			thread.interrupt();
+			
+			run= false;
+			runWake.signal();
+			stoppingThread= thread;
+			thread= null;
+		} finally {
+			runLock.unlock();
+		}
+	}
+	
+	@Override
+	public boolean isStopped() {
+		runLock.lock();
+		try {
+			return (thread == null) && ((stoppingThread == null) || !stoppingThread.isAlive());
+		} finally {
+			runLock.unlock();
+		}
+	}
+	
+	@Override
+	public void setHangHandler(
+			@Nullable HangHandler handler)
+	{
+		hangHandler= handler;
+	}
+	
+	@Override
+	public @NonNull String getName() {
+		return name;
+	}
+	
+	@Override
+	public boolean requestCycle() {
+		runLock.lock();
+		try {
+			if (paused) {
+				return false;
+			}
+			
+			cycleRequested= true;
+			runWake.signal();
+		} finally {
+			runLock.unlock();
+		}
+		return true;
+	}
+	
+	@Override
+	public void pause() {
+		// The job notices at the start of its next cycle, so one in progress finishes
+		paused= true;
+	}
+	
+	@Override
+	public void resume() {
+		runLock.lock();
+		try {
+			paused= false;
+			cycleRequested= true;
+			runWake.signal();
+		} finally {
+			runLock.unlock();
+		}
+	}
+	
+	private void timeoutFired() {
+		Thread hungThread= null;
+		
+		runLock.lock();
+		try {
+			hungThread= thread;
+		} finally {
+			runLock.unlock();
+		}
+		
+		// Send along where the thread is stuck and what it was saying to the servers, which
+		// is usually enough to figure out a hang without having to turn on debug and wait
+		// for it to happen again.
+		alertSink.sendAlert(addTraces(
+				"Detected thread hang during " + watchdog.getOperation() +
+				" - attempting auto-restart"),
+				(hungThread != null) ? HangException.Create(hungThread) : null);
+		
+		log.warn("Attempting emergency stop of thread due to hang");
+		stop();
+		
+		HangHandler handler= hangHandler;
+		if (handler != null) {
+			// In a cluster the restart has to happen under the job's lease
+			log.info("Thread stop was successful - leaving the restart to the hang handler");
+			handler.hangDetected(this, errorCycleSeconds * 1000L);
+			return;
+		}
+		
+		// Wait the error time before restarting the thread - this keeps from spamming
+		// somebody's inbox with the same error every ten seconds.
+		log.info("Thread stop was successful - waiting to retry");
+		try {
+			Thread.sleep(errorCycleSeconds * 1000);
+		} catch (InterruptedException e) {
+		}
+		
+		log.info("Attempting auto-restart of thread");
+		start();
+		
+		alertSink.sendAlert("Auto-restart was successful", null);
+	}
+}
@@ -0,0 +1,52 @@
+/****************************************************************************
+ * Copyright 2022 Teaglu, LLC                                               *
+ *                                                                          *
+ * Licensed under the Apache License, Version 2.0 (the "License");          *
+ * you may not use this file except in compliance with the License.         *
+ * You may obtain a copy of the License at                                  *
+ *                                                                          *
+ *   http://www.apache.org/licenses/LICENSE-2.0                             *
+ *                                                                          *
+ * Unless required by applicable law or agreed to in writing, software      *
+ * distributed under the License is distributed on an "AS IS" BASIS,        *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. *
+ * See the License for the specific language governing permissions and      *
+ * limitations under the License.                                           *
+ ****************************************************************************/
+
+package com.teaglu.imapforward.job;
+
+import org.eclipse.jdt.annotation.NonNull;
+
+/**
+ * HangException
+ *
+ * Never thrown - this just carries the stack of a hung job thread to the alert sink, which
+ * already knows how to format an exception's stack trace.
+ */
+public class HangException extends Exception {
+	private static final long serialVersionUID= 1L;
+
+	private HangException(
+			@NonNull Thread thread)
+	{
+		super("Stack of thread " + thread.getName() + " in state " + thread.getState());
+
+		setStackTrace(thread.getStackTrace());
+	}
+
+	/**
+	 * Create
+	 *
+	 * Capture the current stack of a thread
+	 *
+	 * @param thread					Thread that appears to be hung
+	 *
+	 * @return							Exception carrying the thread's stack
+	 */
+	public static @NonNull HangException Create(
+			@NonNull Thread thread)
+	{
+		return new HangException(thread);
+	}
+}
@@ -0,0 +1,39 @@
+/****************************************************************************
+ * Copyright 2022 Teaglu, LLC                                               *
+ *                                                                          *
+ * Licensed under the Apache License, Version 2.0 (the "License");          *
+ * you may not use this file except in compliance with the License.         *
+ * You may obtain a copy of the License at                                  *
+ *                                                                          *
+ *   http://www.apache.org/licenses/LICENSE-2.0                             *
+ *                                                                          *
+ * Unless required by applicable law or agreed to in writing, software      *
+ * distributed under the License is distributed on an "AS IS" BASIS,        *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. *
+ * See the License for the specific language governing permissions and      *
+ * limitations under the License.                                           *
+ ****************************************************************************/
+package com.teaglu.imapforward.job;
+
+import org.eclipse.jdt.annotation.NonNull;
+
+/**
+ * HangHandler
+ *
+ * Takes over restarting a job after it hangs, instead of the job restarting itself.  The
+ * cluster coordinator uses this so the restart happens under the job's lease.
+ */
+public interface HangHandler {
+	/**
+	 * hangDetected
+	 * 
+	 * Called on the timeout thread once the hung job has been stopped.  It's up to the
+	 * handler to start it again.  This shouldn't block.
+	 * 
+	 * @param job						Job that hung
+	 * @param retryMilliseconds			How long to wait before starting it again
+	 */
+	public void hangDetected(
+			@NonNull Job job,
+			long retryMilliseconds);
+}
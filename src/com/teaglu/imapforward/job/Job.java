@@ -16,6 +16,11 @@
 
 package com.teaglu.imapforward.job;
 
+import org.eclipse.jdt.annotation.NonNull;
+import org.eclipse.jdt.annotation.Nullable;
+
+import com.google.gson.JsonObject;
+
 /**
  * Job
  *
@@ -32,7 +37,75 @@ public interface Job {
 	/**
 	 * stop
 	 * 
-	 * Stop background threads and release resources
+	 * Stop background threads and release resources.  Does nothing if the job isn't running.
 	 */
 	public void stop();
+	
+	/**
+	 * requestStop
+	 * 
+	 * Tell background threads to stop without waiting for them, for a caller that can't
+	 * block.  Use isStopped to find out when they're done.
+	 */
+	public void requestStop();
+	
+	/**
+	 * isStopped
+	 * 
+	 * Whether the job's threads have actually exited.  A stop only waits so long, so a job
+	 * that's stuck badly enough can still be running after stop returns.
+	 * 
+	 * @return							True if nothing of the job is still running
+	 */
+	public boolean isStopped();
+	
+	/**
+	 * setHangHandler
+	 * 
+	 * Have something else restart the job when it hangs, instead of the job stopping and
+	 * starting itself
+	 * 
+	 * @param handler					Handler, or null for the job to restart itself
+	 */
+	public void setHangHandler(
+			@Nullable HangHandler handler);
+	
+	/**
+	 * getName
+	 * 
+	 * @return							Configured name of the job
+	 */
+	public @NonNull String getName();
+	
+	/**
+	 * requestCycle
+	 * 
+	 * Ask the job to run a cycle as soon as possible instead of waiting for its schedule
+	 * 
+	 * @return							False if the job is paused and won't run one
+	 */
+	public boolean requestCycle();
+	
+	/**
+	 * pause
+	 * 
+	 * Stop running cycles until resumed.  A cycle already running is allowed to finish.
+	 */
+	public void pause();
+	
+	/**
+	 * resume
+	 * 
+	 * Start running cycles again after a pause, beginning with one right away
+	 */
+	public void resume();
+	
+	/**
+	 * getStatus
+	 * 
+	 * Get the current state of the job for the admin interface
+	 * 
+	 * @return							Status as a JSON object
+	 */
+	public @NonNull JsonObject getStatus();
 }
@@ -22,7 +22,9 @@ import com.teaglu.composite.Composite;
 import com.teaglu.composite.exception.SchemaException;
 import com.teaglu.composite.exception.UndefinedOptionException;
 import com.teaglu.imapforward.alert.AlertSink;
+import com.teaglu.imapforward.job.archive.ImapArchiveJob;
 import com.teaglu.imapforward.job.imap.ImapForwardJob;
+import com.teaglu.imapforward.job.migrate.ImapMigrateJob;
 import com.teaglu.imapforward.timeout.TimeoutManager;
 
 /**
@@ -42,6 +44,12 @@ public final class JobFactory {
 		case "imap-forward":
 			return ImapForwardJob.Create(spec, alertSink, timeoutManager);
 			
+		case "imap-archive":
+			return ImapArchiveJob.Create(spec, alertSink, timeoutManager);
+			
+		case "imap-migrate":
+			return ImapMigrateJob.Create(spec, alertSink, timeoutManager);
+			
 		default:
 			throw new UndefinedOptionException("Unknown job type " + type);
 		}
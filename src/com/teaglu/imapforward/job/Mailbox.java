@@ -0,0 +1,67 @@
+/****************************************************************************
+ * Copyright 2022 Teaglu, LLC                                               *
+ *                                                                          *
+ * Licensed under the Apache License, Version 2.0 (the "License");          *
+ * you may not use this file except in compliance with the License.         *
+ * You may obtain a copy of the License at                                  *
+ *                                                                          *
+ *   http://www.apache.org/licenses/LICENSE-2.0                             *
+ *                                                                          *
+ * Unless required by applicable law or agreed to in writing, software      *
+ * distributed under the License is distributed on an "AS IS" BASIS,        *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. *
+ * See the License for the specific language governing permissions and      *
+ * limitations under the License.                                           *
+ ****************************************************************************/
+package com.teaglu.imapforward.job;
+
+import org.eclipse.jdt.annotation.NonNull;
+
+import com.teaglu.composite.Composite;
+import com.teaglu.composite.exception.SchemaException;
+
+/**
+ * Mailbox
+ *
+ * Where a job logs in - the host and port of an IMAP server and the account on it
+ */
+public class Mailbox {
+	private final @NonNull String host;
+	private final int port;
+	private final @NonNull String username;
+	private final @NonNull String password;
+	
+	private Mailbox(
+			@NonNull Composite spec) throws SchemaException
+	{
+		host= spec.getRequiredString("host");
+		username= spec.getRequiredString("username");
+		password= spec.getRequiredString("password");
+		
+		// Anything but 993 is mostly for test servers
+		Integer portSpec= spec.getOptionalInteger("port");
+		port= (portSpec != null) ? portSpec : -1;
+	}
+	
+	/**
+	 * Create
+	 *
+	 * Read a mailbox from configuration
+	 *
+	 * @param spec						Mailbox configuration
+	 *
+	 * @return							New mailbox
+	 *
+	 * @throws SchemaException
+	 */
+	public static @NonNull Mailbox Create(
+			@NonNull Composite spec) throws SchemaException
+	{
+		return new Mailbox(spec);
+	}
+	
+	public @NonNull String getHost() { return host; }
+	public int getPort() { return port; }
+	public @NonNull String getUsername() { return username; }
+	public @NonNull String getPassword() { return password; }
+}
@@ -0,0 +1,688 @@
+/****************************************************************************
+ * Copyright 2022 Teaglu, LLC                                               *
+ *                                                                          *
+ * Licensed under the Apache License, Version 2.0 (the "License");          *
+ * you may not use this file except in compliance with the License.         *
+ * You may obtain a copy of the License at                                  *
+ *                                                                          *
+ *   http://www.apache.org/licenses/LICENSE-2.0                             *
+ *                                                                          *
+ * Unless required by applicable law or agreed to in writing, software      *
+ * distributed under the License is distributed on an "AS IS" BASIS,        *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. *
+ * See the License for the specific language governing permissions and      *
+ * limitations under the License.                                           *
+ ****************************************************************************/
+
+package com.teaglu.imapforward.job.archive;
+
+import java.io.IOException;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.eclipse.jdt.annotation.NonNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.sun.mail.imap.IMAPFolder;
+import com.sun.mail.imap.IMAPStore;
+import com.teaglu.composite.Composite;
+import com.teaglu.composite.exception.FormatException;
+import com.teaglu.composite.exception.SchemaException;
+import com.teaglu.imapforward.alert.AlertSink;
+import com.teaglu.imapforward.circuit.CircuitBreaker;
+import com.teaglu.imapforward.circuit.CircuitBreakerRegistry;
+import com.teaglu.imapforward.jfr.JobCycleEvent;
+import com.teaglu.imapforward.jfr.MessageTransferEvent;
+import com.teaglu.imapforward.job.AbstractImapJob;
+import com.teaglu.imapforward.job.Job;
+import com.teaglu.imapforward.job.Mailbox;
+import com.teaglu.imapforward.job.imap.FolderCache;
+import com.teaglu.imapforward.job.imap.FolderStatus;
+import com.teaglu.imapforward.mail.ByteCounter;
+import com.teaglu.imapforward.state.UidMapStore;
+import com.teaglu.imapforward.timeout.TimeoutManager;
+import com.teaglu.imapforward.trace.ProtocolTrace;
+
+import jakarta.mail.FetchProfile;
+import jakarta.mail.Flags;
+import jakarta.mail.Folder;
+import jakarta.mail.Message;
+import jakarta.mail.MessagingException;
+import jakarta.mail.Session;
+import jakarta.mail.Store;
+import jakarta.mail.UIDFolder;
+
+/**
+ * ImapArchiveJob
+ *
+ * A job that moves messages from a mailbox into local storage, as a Maildir or mbox files.
+ * This used to be done by forwarding to a second IMAP server that wrote to disk, which was
+ * an extra network hop and an extra server to keep running.
+ *
+ * Messages are streamed from the server straight into the archive files.  Forcing them to
+ * disk is done in batches of "syncEvery" messages, and only messages in a batch that has
+ * been forced are removed from the server.
+ */
+public class ImapArchiveJob extends AbstractImapJob {
+	private static final Logger log= LoggerFactory.getLogger(ImapArchiveJob.class);
+	
+	private final @NonNull Composite archiveSpec;
+	
+	private final boolean statusCheck;
+	
+	// Recent protocol lines for alerts, or null if turned off
+	private final ProtocolTrace trace;
+	
+	private final @NonNull ByteCounter wireBytes= ByteCounter.Create();
+	private final AtomicLong messageBytes= new AtomicLong();
+	
+	private int maxOpenFolders= 4;
+	private int cycleSeconds= 20;
+	private int windowSize= 500;
+	
+	// Number of messages written between forces to disk
+	private int syncEvery= 100;
+	
+	private final @NonNull Mailbox source;
+	
+	// Where to keep the record of archived messages, or null to not keep one
+	private final Path stateDirectory;
+	
+	// Messages archived and flagged but not yet expunged, so a pass whose expunge failed
+	// isn't archived twice.  Only touched by the job thread.
+	private UidMapStore archivedUids= null;
+	
+	private static class FolderPair {
+		private final @NonNull String source;
+		private final @NonNull String destination;
+		
+		// For the admin interface - messages seen in the folder and when we last looked
+		private volatile int backlog= -1;
+		private volatile long lastPolled= 0;
+		
+		private FolderPair(
+				@NonNull Composite spec) throws SchemaException
+		{
+			source= spec.getRequiredString("source");
+			
+			String destinationSpec= spec.getOptionalString("destination");
+			destination= (destinationSpec != null) ? destinationSpec : source;
+			
+			// The name turns into a path, so it can't be allowed to go anywhere else
+			for (String component : destination.split("\\.", -1)) {
+				if (component.isEmpty() || component.contains("/") || component.contains("\\")) {
+					throw new FormatException("Archive folder " + destination + " is not valid");
+				}
+			}
+		}
+	}
+	
+	private final List<@NonNull FolderPair> pairs= new ArrayList<>();
+	
+	private ImapArchiveJob(
+			@NonNull Composite spec,
+			@NonNull AlertSink alertSink,
+			@NonNull TimeoutManager timeoutManager) throws SchemaException
+	{
+		super(spec, alertSink, timeoutManager);
+		
+		this.statusCheck= spec.getOptionalBoolean("statusCheck", true);
+		
+		Integer traceSpec= spec.getOptionalInteger("traceLines");
+		int traceLines= (traceSpec != null) ? traceSpec : 200;
+		if (traceLines > 0) {
+			trace= ProtocolTrace.Create(traceLines, imapDebug ? System.out : null);
+		} else {
+			trace= null;
+		}
+		
+		Integer maxOpenSpec= spec.getOptionalInteger("maxOpenFolders");
+		if (maxOpenSpec != null) {
+			if (maxOpenSpec < 1) {
+				throw new FormatException("maxOpenFolders must be at least 1");
+			}
+			maxOpenFolders= maxOpenSpec;
+		}
+		
+		Integer windowSpec= spec.getOptionalInteger("windowSize");
+		if (windowSpec != null) {
+			if (windowSpec < 1) {
+				throw new FormatException("windowSize must be at least 1");
+			}
+			windowSize= windowSpec;
+		}
+		
+		Integer syncSpec= spec.getOptionalInteger("syncEvery");
+		if (syncSpec != null) {
+			if (syncSpec < 1) {
+				throw new FormatException("syncEvery must be at least 1");
+			}
+			syncEvery= syncSpec;
+		}
+		
+		Integer cycleSpec= spec.getOptionalInteger("seconds");
+		if (cycleSpec != null) {
+			cycleSeconds= cycleSpec;
+		}
+		
+		source= Mailbox.Create(spec.getRequiredObject("source"));
+		
+		String stateSpec= spec.getOptionalString("stateDirectory");
+		stateDirectory= (stateSpec != null) ? Paths.get(stateSpec) : null;
+		
+		// Check the archive settings now, but the archive itself is opened by the job thread
+		// since it holds locks on the files
+		archiveSpec= spec.getRequiredObject("archive");
+		MessageArchiveFactory.Create(archiveSpec);
+		
+		for (Composite pairSpec : spec.getRequiredObjectArray("folders")) {
+			pairs.add(new FolderPair(pairSpec));
+		}
+	}
+	
+	public static @NonNull Job Create(
+			@NonNull Composite spec,
+			@NonNull AlertSink alertSink,
+			@NonNull TimeoutManager timeoutManager) throws SchemaException
+	{
+		return new ImapArchiveJob(spec, alertSink, timeoutManager);
+	}
+	
+	/**
+	 * archiveFolder
+	 * 
+	 * Move everything waiting in one folder into the archive
+	 * 
+	 * @param pair						Folder pair to process
+	 * @param folders					Folder cache for the source store
+	 * @param archive					Archive to write to
+	 * 
+	 * @return							Number of messages archived
+	 * 
+	 * @throws MessagingException
+	 * @throws IOException				If the archive can't be written
+	 */
+	private int archiveFolder(
+			@NonNull FolderPair pair,
+			@NonNull FolderCache folders,
+			@NonNull MessageArchive archive) throws MessagingException, IOException
+	{
+		long operationMilliseconds= operationSeconds * 1000L;
+		Folder folder= folders.getOpen(pair.source);
+		
+		if (statusCheck && (folder == null)) {
+			// One cheap round trip instead of a SELECT for the usual empty folder
+			watchdog.arm("status " + pair.source, operationMilliseconds);
+			FolderStatus status= FolderStatus.Fetch(folders.resolve(pair.source));
+			
+			pair.lastPolled= System.currentTimeMillis();
+			if (status.getMessages() == 0) {
+				pair.backlog= 0;
+				return 0;
+			}
+		}
+		
+		if (folder == null) {
+			watchdog.arm("open " + pair.source, operationMilliseconds);
+			folder= folders.open(pair.source);
+		}
+		
+		FetchProfile profile= new FetchProfile();
+		profile.add(FetchProfile.Item.ENVELOPE);
+		profile.add(FetchProfile.Item.FLAGS);
+		
+		UidMapStore map= archivedUids;
+		long uidValidity= 0;
+		if ((map != null) && (folder instanceof UIDFolder)) {
+			profile.add(UIDFolder.FetchProfileItem.UID);
+			uidValidity= ((UIDFolder)folder).getUIDValidity();
+		} else {
+			map= null;
+		}
+		
+		int total= folder.getMessageCount();
+		int archived= 0;
+		
+		// Archived by an earlier pass whose expunge didn't happen
+		List<@NonNull Message> alreadyArchived= new ArrayList<>();
+		
+		// Written to the archive but not forced to disk yet
+		List<@NonNull Message> stored= new ArrayList<>();
+		
+		// Archived and flagged for delete by this job, which is all that gets expunged
+		List<@NonNull Message> removed= new ArrayList<>();
+		List<Long> removedUids= new ArrayList<>();
+		
+		boolean finished= false;
+		try {
+			for (int start= 1; start <= total; start+= windowSize) {
+				int end= Math.min(start + windowSize - 1, total);
+				Message messages[]= folder.getMessages(start, end);
+				
+				watchdog.arm("fetch " + pair.source, operationMilliseconds +
+						(messages.length * FETCH_MILLISECONDS_PER_MESSAGE));
+				folder.fetch(messages, profile);
+				
+				try {
+					for (Message message : messages) {
+						if ((message == null) || message.isExpunged()) {
+							continue;
+						}
+						
+						// Already in the archive - storing it again would make a duplicate.  A
+						// message somebody else flagged \Deleted isn't in the record, so it gets
+						// archived like any other instead of being thrown away.
+						if ((map != null) && (map.get(pair.source, uidValidity,
+								((UIDFolder)folder).getUID(message)) != null))
+						{
+							alreadyArchived.add(message);
+							continue;
+						}
+						
+						int size= message.getSize();
+						watchdog.arm("archive message " + message.getMessageNumber() +
+								" in " + pair.source, operationMilliseconds +
+								((size > 0) ? (size * 1000L / minimumTransferRate) : 0));
+						
+						MessageTransferEvent transferEvent= new MessageTransferEvent();
+						transferEvent.begin();
+						
+						archive.store(pair.destination, message);
+						stored.add(message);
+						
+						transferEvent.end();
+						if (transferEvent.shouldCommit()) {
+							transferEvent.job= name;
+							transferEvent.sourceFolder= pair.source;
+							transferEvent.destinationFolder= pair.destination;
+							transferEvent.method= "ARCHIVE";
+							transferEvent.size= size;
+							transferEvent.commit();
+						}
+						
+						if (size > 0) {
+							messageBytes.addAndGet(size);
+						}
+						
+						if (stored.size() >= syncEvery) {
+							archived+= commit(pair, folder, uidValidity, stored, archive,
+									removed, removedUids);
+						}
+					}
+				} finally {
+					releaseWindow(messages);
+				}
+			}
+			
+			archived+= commit(pair, folder, uidValidity, stored, archive, removed, removedUids);
+			
+			if (!alreadyArchived.isEmpty()) {
+				// Normally these are flagged already, unless the job died between recording
+				// them and the STORE
+				watchdog.arm("delete from " + pair.source, operationMilliseconds);
+				folder.setFlags(alreadyArchived.toArray(new Message[0]),
+						new Flags(Flags.Flag.DELETED), true);
+				for (Message message : alreadyArchived) {
+					removed.add(message);
+					removedUids.add(((UIDFolder)folder).getUID(message));
+				}
+			}
+			
+			finished= true;
+		} finally {
+			if (!removed.isEmpty()) {
+				try {
+					watchdog.arm("expunge " + pair.source, operationMilliseconds);
+					if (expungeArchived(folder, removed, finished)) {
+						forgetArchived(pair, uidValidity, removedUids);
+					}
+				} catch (MessagingException e) {
+					alertSink.sendAlert("Error Expunging Source Folder", e);
+					
+					// Don't trust the folder state after that
+					folders.close(pair.source);
+				}
+			}
+		}
+		
+		pair.backlog= total - archived - alreadyArchived.size();
+		pair.lastPolled= System.currentTimeMillis();
+		
+		return archived;
+	}
+	
+	/**
+	 * commit
+	 * 
+	 * Force what's been written to disk, record the messages as archived, and then mark them
+	 * deleted on the server
+	 * 
+	 * @param pair						Folder pair
+	 * @param folder					Open source folder
+	 * @param uidValidity				UIDVALIDITY of the source folder, if keeping a record
+	 * @param stored					Messages written since the last commit, cleared after
+	 * @param archive					Archive they were written to
+	 * @param removed					Messages flagged for delete, added to
+	 * @param removedUids				UIDs of those messages if keeping a record, added to
+	 * 
+	 * @return							Number of messages committed
+	 * 
+	 * @throws MessagingException
+	 * @throws IOException
+	 */
+	private int commit(
+			@NonNull FolderPair pair,
+			@NonNull Folder folder,
+			long uidValidity,
+			@NonNull List<@NonNull Message> stored,
+			@NonNull MessageArchive archive,
+			@NonNull List<@NonNull Message> removed,
+			@NonNull List<Long> removedUids) throws MessagingException, IOException
+	{
+		if (stored.isEmpty()) {
+			return 0;
+		}
+		
+		watchdog.arm("sync archive", operationSeconds * 1000L);
+		archive.sync();
+		
+		// Recorded before the flag goes on, so nothing is ever flagged without a record
+		UidMapStore map= archivedUids;
+		if ((map != null) && (folder instanceof UIDFolder)) {
+			for (Message message : stored) {
+				long uid= ((UIDFolder)folder).getUID(message);
+				map.put(pair.source, uidValidity, uid, pair.destination, 0, 0);
+				removedUids.add(uid);
+			}
+			map.flush();
+		}
+		
+		// One STORE for the whole batch instead of one per message
+		watchdog.arm("delete from " + folder.getFullName(), operationSeconds * 1000L);
+		folder.setFlags(stored.toArray(new Message[stored.size()]),
+				new Flags(Flags.Flag.DELETED), true);
+		
+		int count= stored.size();
+		removed.addAll(stored);
+		stored.clear();
+		return count;
+	}
+	
+	/**
+	 * expungeArchived
+	 * 
+	 * Expunge the messages this job archived.  With UIDPLUS that's a UID EXPUNGE of just those
+	 * messages, so anything somebody else flagged \Deleted in the meantime is left alone.
+	 * Without it a plain EXPUNGE is the only choice, which is only safe once the whole folder
+	 * has been archived, so it's skipped after a failure.
+	 * 
+	 * @param folder					Open source folder
+	 * @param removed					Messages archived and flagged
+	 * @param finished					Whether the whole folder was gone through
+	 * 
+	 * @return							True if the expunge was done
+	 * 
+	 * @throws MessagingException
+	 */
+	private boolean expungeArchived(
+			@NonNull Folder folder,
+			@NonNull List<@NonNull Message> removed,
+			boolean finished) throws MessagingException
+	{
+		Store store= folder.getStore();
+		if ((folder instanceof IMAPFolder) && (store instanceof IMAPStore) &&
+				((IMAPStore)store).hasCapability("UIDPLUS"))
+		{
+			((IMAPFolder)folder).expunge(removed.toArray(new Message[0]));
+			return true;
+		}
+		
+		if (!finished) {
+			log.warn("Job " + name + " leaving " + folder.getFullName() +
+					" unexpunged after a failure, since the server has no UIDPLUS");
+			return false;
+		}
+		
+		folder.expunge();
+		return true;
+	}
+	
+	/**
+	 * forgetArchived
+	 * 
+	 * Drop the record of messages once they're expunged, so it only holds ones still on the
+	 * server
+	 * 
+	 * @param pair						Folder pair
+	 * @param uidValidity				UIDVALIDITY of the source folder
+	 * @param removedUids				UIDs that were expunged
+	 */
+	private void forgetArchived(
+			@NonNull FolderPair pair,
+			long uidValidity,
+			@NonNull List<Long> removedUids)
+	{
+		UidMapStore map= archivedUids;
+		if ((map == null) || removedUids.isEmpty()) {
+			return;
+		}
+		
+		try {
+			for (Long uid : removedUids) {
+				map.remove(pair.source, uidValidity, uid);
+			}
+		} catch (IOException e) {
+			// The worst this leaves is a dead entry that's never looked up
+			log.error("Unable to remove archive records for job " + name, e);
+		}
+	}
+	
+	@Override
+	protected @NonNull String addTraces(
+			@NonNull String message)
+	{
+		if (trace == null) {
+			return message;
+		}
+		
+		return message + "\n\nRecent protocol (" + source.getHost() + "):\n" + trace.dump();
+	}
+	
+	// Results of the last cycle, for the admin interface
+	private volatile long lastCycleStart= 0;
+	private volatile long lastCycleMilliseconds= 0;
+	private volatile int lastCycleTransferred= 0;
+	
+	@Override
+	protected void runLoop() {
+		log.info("Thread for job " + name + " is running");
+		
+		if (stateDirectory != null) {
+			try {
+				archivedUids= UidMapStore.Open(stateDirectory.resolve(
+						URLEncoder.encode(name, StandardCharsets.UTF_8) + ".archived"));
+			} catch (IOException e) {
+				alertSink.sendAlert("Unable to open archive record - continuing without it", e);
+			}
+		}
+		
+		Session session= createSession(wireBytes, trace);
+		Store store= null;
+		FolderCache folders= null;
+		MessageArchive archive= null;
+		
+		// Set while paused, so the first cycle afterwards checks the idle connection
+		boolean resuming= false;
+		
+		for (boolean localRun= true; localRun; ) {
+			boolean closeStore= false;
+			long waitMilliseconds= cycleSeconds * 1000L;
+			
+			CircuitBreaker breaker= getBreaker(source);
+			
+			if (paused) {
+				resuming= true;
+				waitMilliseconds= 0;
+			} else if (waitForHosts(source)) {
+				// The host is down - wait for the breaker to wake us up
+				closeStore= true;
+				waitMilliseconds= 0;
+			} else {
+				boolean resumeCycle= resuming;
+				resuming= false;
+				
+				cycleRequested= false;
+				
+				JobCycleEvent cycleEvent= new JobCycleEvent();
+				cycleEvent.begin();
+				
+				long cycleStart= System.currentTimeMillis();
+				long startMessageBytes= messageBytes.get();
+				int cycleArchived= 0;
+				int cyclePolled= 0;
+				
+				try {
+					if (archive == null) {
+						archive= MessageArchiveFactory.Create(archiveSpec);
+					}
+					if (resumeCycle && (store != null)) {
+						// Same as the forwarding job - let the open folders go and make sure
+						// the store is still there after sitting idle
+						folders.release();
+						if (!isStoreAlive(store, "source")) {
+							log.info("Job " + name + " lost the source connection while paused");
+							closeQuietly(store);
+							store= null;
+						}
+					}
+					if (store == null) {
+						store= connectStore(session, source, "source");
+						folders= FolderCache.Create(store, maxOpenFolders);
+					}
+					
+					for (FolderPair pair : pairs) {
+						cycleArchived+= archiveFolder(pair, folders, archive);
+						cyclePolled++;
+					}
+					
+					lastError= null;
+					if (breaker != null) {
+						breaker.recordSuccess();
+					}
+					
+					if ((archivedUids != null) && (cycleArchived > 0)) {
+						try {
+							archivedUids.compactIfNeeded();
+						} catch (IOException e) {
+							alertSink.sendAlert("Unable to compact archive record", e);
+						}
+					}
+					
+					if (cycleArchived > 0) {
+						log.info("Job " + name + " archived " + cycleArchived + " messages, " +
+								(messageBytes.get() - startMessageBytes) + " message bytes");
+					}
+				} catch (Exception e) {
+					alertSink.sendAlert(addTraces("Error in Operations"), e);
+					lastError= e.toString();
+					
+					if ((breaker != null) && CircuitBreakerRegistry.IsHostFailure(e)) {
+						breaker.recordFailure(e);
+					}
+					
+					// Those messages are still on the server and will be stored again
+					if (archive != null) {
+						archive.discard();
+					}
+					
+					closeStore= true;
+					
+					// If the host is down, its breaker wakes us up as soon as it's back.  The
+					// first cycle after a resume is retried on the normal schedule.
+					if (resumeCycle) {
+						waitMilliseconds= cycleSeconds * 1000L;
+					} else {
+						waitMilliseconds= errorCycleSeconds * 1000L;
+					}
+					waitForHosts(source);
+				} finally {
+					watchdog.disarm();
+					
+					cycleEvent.end();
+					lastCycleStart= cycleStart;
+					lastCycleMilliseconds= System.currentTimeMillis() - cycleStart;
+					lastCycleTransferred= cycleArchived;
+					
+					if (cycleEvent.shouldCommit()) {
+						cycleEvent.job= name;
+						cycleEvent.foldersPolled= cyclePolled;
+						cycleEvent.messages= cycleArchived;
+						cycleEvent.bytes= messageBytes.get() - startMessageBytes;
+						cycleEvent.failed= closeStore;
+						cycleEvent.commit();
+					}
+				}
+			}
+			
+			localRun= waitForCycle(waitMilliseconds);
+			
+			if (closeStore || !localRun) {
+				if (folders != null) {
+					folders.release();
+					folders= null;
+				}
+				if (store != null) {
+					try {
+						store.close();
+					} catch (MessagingException e) {
+						alertSink.sendAlert("Error Closing Source Store", e);
+					}
+					store= null;
+				}
+			}
+		}
+		
+		watchdog.cancel();
+		
+		if (archive != null) {
+			archive.close();
+		}
+		if (archivedUids != null) {
+			archivedUids.close();
+			archivedUids= null;
+		}
+		
+		log.info("Thread for job " + name + " is shut down");
+	}
+	
+	@Override
+	public @NonNull JsonObject getStatus() {
+		JsonObject status= createStatus("imap-archive");
+		status.addProperty("lastCycleStart", lastCycleStart);
+		status.addProperty("lastCycleMilliseconds", lastCycleMilliseconds);
+		status.addProperty("lastCycleTransferred", lastCycleTransferred);
+		status.addProperty("messageBytes", messageBytes.get());
+		status.addProperty("sourceBytesRead", wireBytes.getRead());
+		
+		JsonArray folders= new JsonArray();
+		for (FolderPair pair : pairs) {
+			JsonObject folder= new JsonObject();
+			folder.addProperty("source", pair.source);
+			folder.addProperty("destination", pair.destination);
+			folder.addProperty("backlog", pair.backlog);
+			folder.addProperty("lastPolled", pair.lastPolled);
+			folders.add(folder);
+		}
+		status.add("folders", folders);
+		
+		return status;
+	}
+}
@@ -0,0 +1,268 @@
+/****************************************************************************
+ * Copyright 2022 Teaglu, LLC                                               *
+ *                                                                          *
+ * Licensed under the Apache License, Version 2.0 (the "License");          *
+ * you may not use this file except in compliance with the License.         *
+ * You may obtain a copy of the License at                                  *
+ *                                                                          *
+ *   http://www.apache.org/licenses/LICENSE-2.0                             *
+ *                                                                          *
+ * Unless required by applicable law or agreed to in writing, software      *
+ * distributed under the License is distributed on an "AS IS" BASIS,        *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. *
+ * See the License for the specific language governing permissions and      *
+ * limitations under the License.                                           *
+ ****************************************************************************/
+
+package com.teaglu.imapforward.job.archive;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.eclipse.jdt.annotation.NonNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import jakarta.mail.Flags;
+import jakarta.mail.Message;
+import jakarta.mail.MessagingException;
+
+/**
+ * MaildirArchive
+ *
+ * Writes messages into a Maildir, one file per message.  Subfolders follow the Maildir++
+ * layout that Dovecot and Courier use - folder "Archive.2022" is the directory ".Archive.2022"
+ * under the root, and INBOX is the root itself.
+ *
+ * Each message is written into tmp and only moved into new or cur once its file has been
+ * forced to disk, which is the point where a Maildir reader can see it.  Forcing is what
+ * costs, so files are left in tmp until the job calls sync and then all forced and moved
+ * together, with one force of each directory they were moved into.
+ */
+public class MaildirArchive implements MessageArchive {
+	private static final Logger log= LoggerFactory.getLogger(MaildirArchive.class);
+	
+	private final @NonNull Path root;
+	
+	// Unique parts of the file names, per the Maildir naming convention
+	private final long pid= ProcessHandle.current().pid();
+	private final @NonNull String hostname;
+	private long sequence= 0;
+	
+	// Folder directories we've already made sure exist
+	private final Set<@NonNull Path> prepared= new HashSet<>();
+	
+	private static class Pending {
+		private final @NonNull FileChannel channel;
+		private final @NonNull Path tmpPath;
+		private final @NonNull Path finalPath;
+		
+		private Pending(
+				@NonNull FileChannel channel,
+				@NonNull Path tmpPath,
+				@NonNull Path finalPath)
+		{
+			this.channel= channel;
+			this.tmpPath= tmpPath;
+			this.finalPath= finalPath;
+		}
+	}
+	
+	// Files written to tmp since the last sync
+	private final List<@NonNull Pending> pending= new ArrayList<>();
+	
+	private MaildirArchive(
+			@NonNull Path root)
+	{
+		this.root= root;
+		
+		String host;
+		try {
+			host= InetAddress.getLocalHost().getHostName();
+		} catch (UnknownHostException e) {
+			host= "localhost";
+		}
+		
+		// Slashes would make a path and colons start the info part of the name
+		this.hostname= host.replace("/", "\\057").replace(":", "\\072");
+	}
+	
+	/**
+	 * Create
+	 * 
+	 * Create a Maildir archive
+	 * 
+	 * @param root						Root directory of the Maildir
+	 * 
+	 * @return							New archive
+	 */
+	public static @NonNull MessageArchive Create(
+			@NonNull Path root)
+	{
+		return new MaildirArchive(root);
+	}
+	
+	private @NonNull Path prepareFolder(
+			@NonNull String folder) throws IOException
+	{
+		boolean inbox= folder.equalsIgnoreCase("INBOX");
+		Path directory= inbox ? root : root.resolve("." + folder);
+		
+		if (!prepared.contains(directory)) {
+			Files.createDirectories(directory.resolve("tmp"));
+			Files.createDirectories(directory.resolve("new"));
+			Files.createDirectories(directory.resolve("cur"));
+			
+			if (!inbox) {
+				// Maildir++ marks subfolders with this so they aren't mistaken for the root
+				Path marker= directory.resolve("maildirfolder");
+				if (!Files.exists(marker)) {
+					Files.createFile(marker);
+				}
+			}
+			
+			prepared.add(directory);
+		}
+		
+		return directory;
+	}
+	
+	@Override
+	public void store(
+			@NonNull String folder,
+			@NonNull Message message) throws MessagingException, IOException
+	{
+		Path directory= prepareFolder(folder);
+		
+		Instant now= Instant.now();
+		String unique= now.getEpochSecond() + ".M" + (now.getNano() / 1000) +
+				"P" + pid + "Q" + (++sequence) + "." + hostname;
+		
+		// Messages already read or flagged go straight to cur with the flags in the info
+		// part, so a mail client shows them the way they were on the server
+		String info= "";
+		Flags flags= message.getFlags();
+		if (flags.contains(Flags.Flag.FLAGGED)) {
+			info+= "F";
+		}
+		if (flags.contains(Flags.Flag.SEEN)) {
+			info+= "S";
+		}
+		
+		Path tmpPath= directory.resolve("tmp").resolve(unique);
+		Path finalPath= info.isEmpty() ?
+				directory.resolve("new").resolve(unique) :
+				directory.resolve("cur").resolve(unique + ":2," + info);
+		
+		FileChannel channel= FileChannel.open(tmpPath,
+				StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+		
+		boolean succeeded= false;
+		try {
+			// The channel stream has no buffering of its own, and writeTo goes a byte at a
+			// time through the line conversion
+			OutputStream output= new UnixLineOutputStream(
+					new BufferedOutputStream(Channels.newOutputStream(channel), 65536), false);
+			
+			message.writeTo(output);
+			output.close();
+			
+			pending.add(new Pending(channel, tmpPath, finalPath));
+			succeeded= true;
+		} finally {
+			if (!succeeded) {
+				closeQuietly(channel);
+				deleteQuietly(tmpPath);
+			}
+		}
+	}
+	
+	@Override
+	public void sync() throws IOException {
+		Set<@NonNull Path> directories= new LinkedHashSet<>();
+		
+		try {
+			for (Pending file : pending) {
+				file.channel.force(true);
+				file.channel.close();
+			}
+			
+			for (Pending file : pending) {
+				Files.move(file.tmpPath, file.finalPath, StandardCopyOption.ATOMIC_MOVE);
+				directories.add(file.finalPath.getParent());
+			}
+		} catch (IOException e) {
+			// Whatever didn't make it out of tmp is discarded
+			discard();
+			throw e;
+		}
+		
+		pending.clear();
+		
+		// The rename isn't durable until the directory is
+		for (Path directory : directories) {
+			forceDirectory(directory);
+		}
+	}
+	
+	@Override
+	public void discard() {
+		for (Pending file : pending) {
+			closeQuietly(file.channel);
+			deleteQuietly(file.tmpPath);
+		}
+		pending.clear();
+	}
+	
+	@Override
+	public void close() {
+		discard();
+	}
+	
+	private static void forceDirectory(
+			@NonNull Path directory)
+	{
+		try (FileChannel channel= FileChannel.open(directory, StandardOpenOption.READ)) {
+			channel.force(true);
+		} catch (IOException e) {
+			// Some platforms won't open a directory at all, and there's nothing more we
+			// can do there
+			log.debug("Unable to force directory " + directory, e);
+		}
+	}
+	
+	private static void closeQuietly(
+			@NonNull FileChannel channel)
+	{
+		try {
+			channel.close();
+		} catch (IOException e) {
+			log.warn("Error closing archive file", e);
+		}
+	}
+	
+	private static void deleteQuietly(
+			@NonNull Path path)
+	{
+		try {
+			Files.deleteIfExists(path);
+		} catch (IOException e) {
+			log.warn("Unable to remove " + path, e);
+		}
+	}
+}
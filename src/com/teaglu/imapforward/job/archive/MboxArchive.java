@@ -0,0 +1,246 @@
+/****************************************************************************
+ * Copyright 2022 Teaglu, LLC                                               *
+ *                                                                          *
+ * Licensed under the Apache License, Version 2.0 (the "License");          *
+ * you may not use this file except in compliance with the License.         *
+ * You may obtain a copy of the License at                                  *
+ *                                                                          *
+ *   http://www.apache.org/licenses/LICENSE-2.0                             *
+ *                                                                          *
+ * Unless required by applicable law or agreed to in writing, software      *
+ * distributed under the License is distributed on an "AS IS" BASIS,        *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. *
+ * See the License for the specific language governing permissions and      *
+ * limitations under the License.                                           *
+ ****************************************************************************/
+
+package com.teaglu.imapforward.job.archive;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import org.eclipse.jdt.annotation.NonNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import jakarta.mail.Address;
+import jakarta.mail.Message;
+import jakarta.mail.MessagingException;
+import jakarta.mail.internet.InternetAddress;
+
+/**
+ * MboxArchive
+ *
+ * Appends messages to mbox files, one file per folder.  Folder "Archive.2022" is the file
+ * "Archive/2022" under the root directory.  Body lines that look like a message separator
+ * are quoted the mboxrd way.
+ *
+ * Each file is held open and locked for as long as the archive is, so two jobs can't write
+ * into the same one.  The length of each file at the last sync is remembered, and anything
+ * past it is cut off if the messages have to be discarded - including a message that was
+ * half written when something failed.
+ */
+public class MboxArchive implements MessageArchive {
+	private static final Logger log= LoggerFactory.getLogger(MboxArchive.class);
+	
+	// The asctime format the separator line has always used
+	private static final DateTimeFormatter FROM_DATE= DateTimeFormatter.ofPattern(
+			"EEE MMM ppd HH:mm:ss yyyy", Locale.US).withZone(ZoneOffset.UTC);
+	
+	private final @NonNull Path root;
+	
+	private static class MboxFile {
+		private final @NonNull FileChannel channel;
+		private final @NonNull FileLock lock;
+		
+		// Length when last synced, and whether anything has been added since
+		private long syncedSize;
+		private boolean dirty= false;
+		
+		private MboxFile(
+				@NonNull FileChannel channel,
+				@NonNull FileLock lock) throws IOException
+		{
+			this.channel= channel;
+			this.lock= lock;
+			this.syncedSize= channel.size();
+		}
+	}
+	
+	private final Map<@NonNull String, @NonNull MboxFile> files= new HashMap<>();
+	
+	private MboxArchive(
+			@NonNull Path root)
+	{
+		this.root= root;
+	}
+	
+	/**
+	 * Create
+	 * 
+	 * Create an mbox archive
+	 * 
+	 * @param root						Directory the mbox files go under
+	 * 
+	 * @return							New archive
+	 */
+	public static @NonNull MessageArchive Create(
+			@NonNull Path root)
+	{
+		return new MboxArchive(root);
+	}
+	
+	private @NonNull MboxFile getFile(
+			@NonNull String folder) throws IOException
+	{
+		MboxFile file= files.get(folder);
+		if (file == null) {
+			Path path= root.resolve(folder.replace('.', '/'));
+			Files.createDirectories(path.getParent());
+			
+			FileChannel channel= FileChannel.open(path,
+					StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+			
+			FileLock lock= null;
+			try {
+				lock= channel.tryLock();
+			} catch (OverlappingFileLockException e) {
+				// Another job in this process has it
+			} finally {
+				if (lock == null) {
+					channel.close();
+				}
+			}
+			if (lock == null) {
+				throw new IOException("Mbox file " + path + " is in use by another writer");
+			}
+			
+			file= new MboxFile(channel, lock);
+			files.put(folder, file);
+		}
+		
+		return file;
+	}
+	
+	@Override
+	public void store(
+			@NonNull String folder,
+			@NonNull Message message) throws MessagingException, IOException
+	{
+		MboxFile file= getFile(folder);
+		
+		long start= file.channel.size();
+		file.channel.position(start);
+		file.dirty= true;
+		
+		boolean succeeded= false;
+		try {
+			OutputStream fileOutput= new BufferedOutputStream(
+					Channels.newOutputStream(file.channel), 65536);
+			
+			fileOutput.write(buildSeparator(message).getBytes(StandardCharsets.US_ASCII));
+			
+			UnixLineOutputStream output= new UnixLineOutputStream(fileOutput, true);
+			message.writeTo(output);
+			
+			// A message always ends with a blank line before the next separator
+			if (!output.endsWithNewline()) {
+				fileOutput.write('\n');
+			}
+			fileOutput.write('\n');
+			fileOutput.flush();
+			
+			succeeded= true;
+		} finally {
+			if (!succeeded) {
+				truncateQuietly(file, start);
+			}
+		}
+	}
+	
+	private static @NonNull String buildSeparator(
+			@NonNull Message message) throws MessagingException
+	{
+		String sender= null;
+		
+		Address[] from= message.getFrom();
+		if ((from != null) && (from.length > 0) && (from[0] instanceof InternetAddress)) {
+			sender= ((InternetAddress)from[0]).getAddress();
+		}
+		if ((sender == null) || sender.isEmpty()) {
+			sender= "MAILER-DAEMON";
+		} else {
+			// The separator is split on spaces, so the address can't have any
+			sender= sender.replaceAll("\\s", "");
+		}
+		
+		Date received= message.getReceivedDate();
+		Instant when= (received != null) ? received.toInstant() : Instant.now();
+		
+		return "From " + sender + " " + FROM_DATE.format(when) + "\n";
+	}
+	
+	@Override
+	public void sync() throws IOException {
+		for (MboxFile file : files.values()) {
+			if (file.dirty) {
+				file.channel.force(true);
+				file.syncedSize= file.channel.size();
+				file.dirty= false;
+			}
+		}
+	}
+	
+	@Override
+	public void discard() {
+		for (MboxFile file : files.values()) {
+			if (file.dirty) {
+				truncateQuietly(file, file.syncedSize);
+				file.dirty= false;
+			}
+		}
+	}
+	
+	@Override
+	public void close() {
+		discard();
+		
+		for (MboxFile file : files.values()) {
+			try {
+				file.lock.release();
+				file.channel.close();
+			} catch (IOException e) {
+				log.warn("Error closing mbox file", e);
+			}
+		}
+		files.clear();
+	}
+	
+	private static void truncateQuietly(
+			@NonNull MboxFile file,
+			long size)
+	{
+		try {
+			file.channel.truncate(size);
+		} catch (IOException e) {
+			// Left as a partial message, which readers will take as part of the previous one
+			log.error("Unable to remove partial message from mbox file", e);
+		}
+	}
+}
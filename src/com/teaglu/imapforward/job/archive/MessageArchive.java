@@ -0,0 +1,73 @@
+/****************************************************************************
+ * Copyright 2022 Teaglu, LLC                                               *
+ *                                                                          *
+ * Licensed under the Apache License, Version 2.0 (the "License");          *
+ * you may not use this file except in compliance with the License.         *
+ * You may obtain a copy of the License at                                  *
+ *                                                                          *
+ *   http://www.apache.org/licenses/LICENSE-2.0                             *
+ *                                                                          *
+ * Unless required by applicable law or agreed to in writing, software      *
+ * distributed under the License is distributed on an "AS IS" BASIS,        *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. *
+ * See the License for the specific language governing permissions and      *
+ * limitations under the License.                                           *
+ ****************************************************************************/
+
+package com.teaglu.imapforward.job.archive;
+
+import java.io.IOException;
+
+import org.eclipse.jdt.annotation.NonNull;
+
+import jakarta.mail.Message;
+import jakarta.mail.MessagingException;
+
+/**
+ * MessageArchive
+ *
+ * Local storage that an archive job writes messages into.  Writes aren't durable until sync
+ * is called, and the job doesn't remove anything from the server before that - so a crash
+ * between the two can leave a message in both places, but never in neither.
+ */
+public interface MessageArchive {
+	/**
+	 * store
+	 * 
+	 * Write one message into a folder.  The body is streamed from the server into the file
+	 * without being held in memory.  If this fails nothing is left behind for the message.
+	 * 
+	 * @param folder					Archive folder name, with dots between components
+	 * @param message					Message to write
+	 * 
+	 * @throws MessagingException		If reading the message fails
+	 * @throws IOException				If writing the message fails
+	 */
+	public void store(
+			@NonNull String folder,
+			@NonNull Message message) throws MessagingException, IOException;
+	
+	/**
+	 * sync
+	 * 
+	 * Make everything stored since the last sync durable on disk
+	 * 
+	 * @throws IOException
+	 */
+	public void sync() throws IOException;
+	
+	/**
+	 * discard
+	 * 
+	 * Throw away everything stored since the last sync, for example after an error when the
+	 * messages are going to stay on the server and be stored again.
+	 */
+	public void discard();
+	
+	/**
+	 * close
+	 * 
+	 * Discard anything not synced and release files
+	 */
+	public void close();
+}
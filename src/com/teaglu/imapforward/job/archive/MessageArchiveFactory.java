@@ -0,0 +1,55 @@
+/****************************************************************************
+ * Copyright 2022 Teaglu, LLC                                               *
+ *                                                                          *
+ * Licensed under the Apache License, Version 2.0 (the "License");          *
+ * you may not use this file except in compliance with the License.         *
+ * You may obtain a copy of the License at                                  *
+ *                                                                          *
+ *   http://www.apache.org/licenses/LICENSE-2.0                             *
+ *                                                                          *
+ * Unless required by applicable law or agreed to in writing, software      *
+ * distributed under the License is distributed on an "AS IS" BASIS,        *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. *
+ * See the License for the specific language governing permissions and      *
+ * limitations under the License.                                           *
+ ****************************************************************************/
+
+package com.teaglu.imapforward.job.archive;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import org.eclipse.jdt.annotation.NonNull;
+
+import com.teaglu.composite.Composite;
+import com.teaglu.composite.exception.SchemaException;
+import com.teaglu.composite.exception.UndefinedOptionException;
+
+/**
+ * MessageArchiveFactory
+ *
+ * Static factory to build message archives
+ */
+public final class MessageArchiveFactory {
+	public static @NonNull MessageArchive Create(
+			@NonNull Composite spec) throws SchemaException
+	{
+		Path directory= Paths.get(spec.getRequiredString("directory"));
+		
+		String format= spec.getOptionalString("format");
+		if (format == null) {
+			format= "maildir";
+		}
+		
+		switch (format) {
+		case "maildir":
+			return MaildirArchive.Create(directory);
+			
+		case "mbox":
+			return MboxArchive.Create(directory);
+			
+		default:
+			throw new UndefinedOptionException("Unknown archive format " + format);
+		}
+	}
+}
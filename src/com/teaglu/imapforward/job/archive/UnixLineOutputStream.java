@@ -0,0 +1,156 @@
+/****************************************************************************
+ * Copyright 2022 Teaglu, LLC                                               *
+ *                                                                          *
+ * Licensed under the Apache License, Version 2.0 (the "License");          *
+ * you may not use this file except in compliance with the License.         *
+ * You may obtain a copy of the License at                                  *
+ *                                                                          *
+ *   http://www.apache.org/licenses/LICENSE-2.0                             *
+ *                                                                          *
+ * Unless required by applicable law or agreed to in writing, software      *
+ * distributed under the License is distributed on an "AS IS" BASIS,        *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. *
+ * See the License for the specific language governing permissions and      *
+ * limitations under the License.                                           *
+ ****************************************************************************/
+
+package com.teaglu.imapforward.job.archive;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import org.eclipse.jdt.annotation.NonNull;
+
+/**
+ * UnixLineOutputStream
+ *
+ * Converts the CRLF line endings messages have on the wire to the bare LF that local mail
+ * files use.  For mbox it also quotes body lines that would look like the start of the next
+ * message, the mboxrd way - any line matching ">*From " gets one more ">" in front, so a
+ * reader can reverse it exactly.
+ *
+ * Closing this doesn't close the underlying stream, since the archive owns the file.
+ */
+class UnixLineOutputStream extends FilterOutputStream {
+	private static final byte[] FROM= { 'F', 'r', 'o', 'm', ' ' };
+	
+	private final boolean quoteFrom;
+	
+	private boolean pendingReturn= false;
+	private boolean lineStart= true;
+	
+	// While at the start of a line, how much of >*From has been seen and held back
+	private int quoteCount= 0;
+	private int fromMatched= 0;
+	
+	// Last byte actually written, so the caller can tell if the message ended with a newline
+	private int lastByte= -1;
+	
+	UnixLineOutputStream(
+			@NonNull OutputStream out,
+			boolean quoteFrom)
+	{
+		super(out);
+		this.quoteFrom= quoteFrom;
+	}
+	
+	@Override
+	public void write(int b) throws IOException {
+		b&= 0xFF;
+		
+		if (pendingReturn) {
+			pendingReturn= false;
+			if (b == '\n') {
+				emitLine();
+				return;
+			}
+			
+			// A bare CR isn't a line ending, so it goes through as it is
+			emit('\r');
+		}
+		
+		if (b == '\r') {
+			pendingReturn= true;
+		} else if (b == '\n') {
+			emitLine();
+		} else if (quoteFrom && lineStart) {
+			if ((fromMatched == 0) && (b == '>')) {
+				quoteCount++;
+			} else if (b == FROM[fromMatched]) {
+				if (++fromMatched == FROM.length) {
+					// It's a From line - add our quote and let the rest through
+					out.write('>');
+					releaseHeld();
+					lineStart= false;
+				}
+			} else {
+				releaseHeld();
+				lineStart= false;
+				emit(b);
+			}
+		} else {
+			lineStart= false;
+			emit(b);
+		}
+	}
+	
+	@Override
+	public void write(byte[] buffer, int offset, int length) throws IOException {
+		for (int i= 0; i < length; i++) {
+			write(buffer[offset + i]);
+		}
+	}
+	
+	/**
+	 * endsWithNewline
+	 * 
+	 * Flush anything held back and report whether the output ended on a line ending
+	 * 
+	 * @return							True if the last thing written was a newline
+	 * 
+	 * @throws IOException
+	 */
+	boolean endsWithNewline() throws IOException {
+		if (pendingReturn) {
+			pendingReturn= false;
+			emit('\r');
+		}
+		if (lineStart) {
+			releaseHeld();
+		}
+		return (lastByte == -1) || (lastByte == '\n');
+	}
+	
+	@Override
+	public void close() throws IOException {
+		endsWithNewline();
+		flush();
+	}
+	
+	private void emitLine() throws IOException {
+		if (lineStart) {
+			releaseHeld();
+		}
+		emit('\n');
+		lineStart= true;
+	}
+	
+	private void releaseHeld() throws IOException {
+		for (; quoteCount > 0; quoteCount--) {
+			emit('>');
+		}
+		if (fromMatched > 0) {
+			out.write(FROM, 0, fromMatched);
+			lastByte= FROM[fromMatched - 1];
+			fromMatched= 0;
+		}
+	}
+	
+	private void emit(
+			int b) throws IOException
+	{
+		out.write(b);
+		lastByte= b;
+	}
+}
@@ -0,0 +1,463 @@
+/****************************************************************************
+ * Copyright 2022 Teaglu, LLC                                               *
+ *                                                                          *
+ * Licensed under the Apache License, Version 2.0 (the "License");          *
+ * you may not use this file except in compliance with the License.         *
+ * You may obtain a copy of the License at                                  *
+ *                                                                          *
+ *   http://www.apache.org/licenses/LICENSE-2.0                             *
+ *                                                                          *
+ * Unless required by applicable law or agreed to in writing, software      *
+ * distributed under the License is distributed on an "AS IS" BASIS,        *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. *
+ * See the License for the specific language governing permissions and      *
+ * limitations under the License.                                           *
+ ****************************************************************************/
+
+package com.teaglu.imapforward.job.imap;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.eclipse.jdt.annotation.NonNull;
+import org.eclipse.jdt.annotation.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sun.mail.imap.IMAPFolder;
+import com.sun.mail.imap.ResyncData;
+
+import jakarta.mail.Folder;
+import jakarta.mail.FolderNotFoundException;
+import jakarta.mail.MessagingException;
+import jakarta.mail.Store;
+import jakarta.mail.event.MailEvent;
+
+/**
+ * FolderCache
+ *
+ * Resolves configured folder names to Folder objects for a single connected store, and keeps
+ * a limited number of them open between cycles.
+ *
+ * Folder names in the configuration have always used dots between path components.  Plenty
+ * of servers use a slash instead, so the real hierarchy separator is asked for once with a
+ * LIST and the configured name is translated.  A name that already contains the server's
+ * separator is used as-is.  Names that came from the server itself, for example ones recorded
+ * in the UID map, are already full names and have their own methods that skip translation.
+ *
+ * Each open folder ties up its own IMAP connection, so the number kept open is capped and
+ * the least recently used one is closed when the cap is reached.
+ *
+ * A cache is only good for the life of the store connection, and should be released when
+ * the store is closed.
+ */
+public class FolderCache {
+	private static final Logger log= LoggerFactory.getLogger(FolderCache.class);
+
+	private final @NonNull Store store;
+	private final int maxOpen;
+
+	// Hierarchy separator reported by the server, or zero if we haven't asked yet
+	private char separator= 0;
+
+	// Folders resolved and checked for existence, by configured name
+	private final Map<@NonNull String, @NonNull Folder> resolved= new HashMap<>();
+
+	// Folders currently open by server full name, in least to most recently used order.  Keying
+	// by the full name means a folder reached both ways only ties up one connection.
+	private final LinkedHashMap<@NonNull String, @NonNull Folder> open=
+			new LinkedHashMap<>(16, 0.75f, true);
+
+	private FolderCache(
+			@NonNull Store store,
+			int maxOpen)
+	{
+		this.store= store;
+		this.maxOpen= maxOpen;
+	}
+
+	/**
+	 * Create
+	 *
+	 * Create a cache for a connected store
+	 *
+	 * @param store						Store, which must be connected
+	 * @param maxOpen					Maximum number of folders to keep open
+	 *
+	 * @return							New cache
+	 */
+	public static @NonNull FolderCache Create(
+			@NonNull Store store,
+			int maxOpen)
+	{
+		return new FolderCache(store, maxOpen);
+	}
+
+	/**
+	 * getSeparator
+	 *
+	 * Get the server's hierarchy separator, asking for it the first time
+	 *
+	 * @return							Separator character
+	 *
+	 * @throws MessagingException
+	 */
+	public char getSeparator() throws MessagingException {
+		if (separator == 0) {
+			separator= store.getDefaultFolder().getSeparator();
+			log.debug("Server hierarchy separator is " + separator);
+		}
+		return separator;
+	}
+
+	private @NonNull String translate(
+			@NonNull String name) throws MessagingException
+	{
+		char serverSeparator= getSeparator();
+		if ((serverSeparator == '.') || (name.indexOf(serverSeparator) >= 0)) {
+			return name;
+		}
+
+		return name.replace('.', serverSeparator);
+	}
+
+	/**
+	 * resolve
+	 *
+	 * Find a folder by configured name without opening it.  The first time a name is seen
+	 * the folder is checked for existence so a bad name gets a useful error.
+	 *
+	 * @param name						Configured folder name
+	 *
+	 * @return							Folder
+	 *
+	 * @throws MessagingException
+	 */
+	public @NonNull Folder resolve(
+			@NonNull String name) throws MessagingException
+	{
+		Folder folder= resolved.get(name);
+		if (folder == null) {
+			String fullName= translate(name);
+			folder= store.getFolder(fullName);
+
+			if (!folder.exists()) {
+				throw new FolderNotFoundException(folder,
+						"Unable to find the folder " + name + " - be sure path " +
+						"components are separated by dots.  Most folders are " +
+						"technically under Inbox, so folder Processed might be " +
+						"\"Inbox.Processed\".");
+			}
+
+			resolved.put(name, folder);
+		}
+
+		return folder;
+	}
+
+	/**
+	 * resolveOrCreate
+	 *
+	 * Find a folder by configured name, creating it if it doesn't exist.  Servers create any
+	 * missing parents along with it.
+	 *
+	 * @param name						Configured folder name
+	 *
+	 * @return							Folder
+	 *
+	 * @throws MessagingException
+	 */
+	public @NonNull Folder resolveOrCreate(
+			@NonNull String name) throws MessagingException
+	{
+		Folder folder= resolved.get(name);
+		if (folder == null) {
+			folder= store.getFolder(translate(name));
+			
+			if (!folder.exists()) {
+				log.info("Creating folder " + folder.getFullName());
+				if (!folder.create(Folder.HOLDS_MESSAGES)) {
+					throw new MessagingException("Unable to create folder " + folder.getFullName());
+				}
+			}
+			
+			resolved.put(name, folder);
+		}
+		
+		return folder;
+	}
+
+	/**
+	 * checkExists
+	 *
+	 * Ask the server whether a folder is still there, for example after an error.  If it
+	 * isn't, it's dropped from the cache.
+	 *
+	 * @param name						Configured folder name
+	 *
+	 * @return							True if the folder exists
+	 *
+	 * @throws MessagingException
+	 */
+	public boolean checkExists(
+			@NonNull String name) throws MessagingException
+	{
+		if (store.getFolder(translate(name)).exists()) {
+			return true;
+		}
+		
+		close(name);
+		resolved.remove(name);
+		return false;
+	}
+
+	/**
+	 * getFullName
+	 *
+	 * @param name						Configured folder name
+	 *
+	 * @return							Name of the folder on the server
+	 *
+	 * @throws MessagingException
+	 */
+	public @NonNull String getFullName(
+			@NonNull String name) throws MessagingException
+	{
+		return translate(name);
+	}
+
+	/**
+	 * listUnder
+	 *
+	 * List the folders that can hold messages under a prefix folder.  This is one LIST, so
+	 * the caller should hang on to the result instead of asking every cycle.
+	 *
+	 * @param prefix					Configured name of the folder to list under
+	 * @param recursive					True for all levels, false for just the next one
+	 *
+	 * @return							Full server names of the folders found
+	 *
+	 * @throws MessagingException
+	 */
+	public @NonNull List<@NonNull String> listUnder(
+			@NonNull String prefix,
+			boolean recursive) throws MessagingException
+	{
+		List<@NonNull String> names= new ArrayList<>();
+		
+		Folder parent= store.getFolder(translate(prefix));
+		if (!parent.exists()) {
+			return names;
+		}
+		
+		for (Folder folder : parent.list(recursive ? "*" : "%")) {
+			// The type comes from the LIST attributes, so this doesn't go back to the server
+			if ((folder.getType() & Folder.HOLDS_MESSAGES) != 0) {
+				names.add(folder.getFullName());
+			}
+		}
+		
+		return names;
+	}
+
+	/**
+	 * getOpen
+	 *
+	 * Return a folder if it's currently open, without opening it
+	 *
+	 * @param name						Configured folder name
+	 *
+	 * @return							Open folder or null
+	 */
+	public @Nullable Folder getOpen(
+			@NonNull String name)
+	{
+		// Anything open was resolved first
+		Folder folder= resolved.get(name);
+		if (folder == null) {
+			return null;
+		}
+		return getOpenByFullName(folder.getFullName());
+	}
+
+	/**
+	 * getOpenByFullName
+	 *
+	 * Return a folder if it's currently open, without opening it
+	 *
+	 * @param fullName					Name of the folder on the server
+	 *
+	 * @return							Open folder or null
+	 */
+	public @Nullable Folder getOpenByFullName(
+			@NonNull String fullName)
+	{
+		Folder folder= open.get(fullName);
+		if ((folder != null) && !folder.isOpen()) {
+			// The server or JavaMail closed it out from under us
+			open.remove(fullName);
+			folder= null;
+		}
+		return folder;
+	}
+
+	/**
+	 * open
+	 *
+	 * Return a folder opened read-write, reusing it if it's still open from before
+	 *
+	 * @param name						Configured folder name
+	 *
+	 * @return							Open folder
+	 *
+	 * @throws MessagingException
+	 */
+	public @NonNull Folder open(
+			@NonNull String name) throws MessagingException
+	{
+		return open(name, null, null);
+	}
+
+	/**
+	 * open
+	 *
+	 * Return a folder opened read-write, resynchronizing with CONDSTORE or QRESYNC if it has
+	 * to be selected.  If it's still open from before nothing is selected and no events are
+	 * added.
+	 *
+	 * @param name						Configured folder name
+	 * @param resync					Resync data for the select, or null for a plain one
+	 * @param events					Gets the changes reported by a QRESYNC select
+	 *
+	 * @return							Open folder
+	 *
+	 * @throws MessagingException
+	 */
+	public @NonNull Folder open(
+			@NonNull String name,
+			@Nullable ResyncData resync,
+			@Nullable List<@NonNull MailEvent> events) throws MessagingException
+	{
+		Folder folder= resolve(name);
+		
+		Folder openFolder= getOpenByFullName(folder.getFullName());
+		if (openFolder != null) {
+			return openFolder;
+		}
+		
+		if ((resync != null) && (folder instanceof IMAPFolder)) {
+			List<MailEvent> selectEvents= ((IMAPFolder)folder).open(Folder.READ_WRITE, resync);
+			if ((selectEvents != null) && (events != null)) {
+				events.addAll(selectEvents);
+			}
+		} else {
+			folder.open(Folder.READ_WRITE);
+		}
+
+		open.put(folder.getFullName(), folder);
+		trim();
+		
+		return folder;
+	}
+
+	/**
+	 * openByFullName
+	 *
+	 * Return a folder opened read-write by its name on the server, reusing it if it's still
+	 * open from before.  The name isn't translated, so this is for names that came from the
+	 * server and not from the configuration.
+	 *
+	 * @param fullName					Name of the folder on the server
+	 *
+	 * @return							Open folder
+	 *
+	 * @throws MessagingException
+	 */
+	public @NonNull Folder openByFullName(
+			@NonNull String fullName) throws MessagingException
+	{
+		Folder folder= getOpenByFullName(fullName);
+		if (folder == null) {
+			// The open fails with FolderNotFoundException if it's gone
+			folder= store.getFolder(fullName);
+			folder.open(Folder.READ_WRITE);
+
+			open.put(fullName, folder);
+			trim();
+		}
+		return folder;
+	}
+
+	/**
+	 * close
+	 *
+	 * Close a single folder and forget it, for example after it has errored.
+	 *
+	 * @param name						Configured folder name
+	 */
+	public void close(
+			@NonNull String name)
+	{
+		Folder folder= resolved.get(name);
+		if (folder != null) {
+			closeByFullName(folder.getFullName());
+		}
+	}
+
+	/**
+	 * closeByFullName
+	 *
+	 * Close a single folder and forget it, by its name on the server
+	 *
+	 * @param fullName					Name of the folder on the server
+	 */
+	public void closeByFullName(
+			@NonNull String fullName)
+	{
+		Folder folder= open.remove(fullName);
+		if (folder != null) {
+			closeQuietly(folder);
+		}
+	}
+
+	/**
+	 * release
+	 *
+	 * Close everything that's open and forget everything that's resolved.  Any deletes
+	 * should already have been committed with an expunge.
+	 */
+	public void release() {
+		for (Folder folder : open.values()) {
+			closeQuietly(folder);
+		}
+		open.clear();
+		resolved.clear();
+		separator= 0;
+	}
+
+	private void trim() {
+		Iterator<@NonNull Folder> iterator= open.values().iterator();
+		while ((open.size() > maxOpen) && iterator.hasNext()) {
+			Folder folder= iterator.next();
+			iterator.remove();
+
+			closeQuietly(folder);
+		}
+	}
+
+	private static void closeQuietly(
+			@NonNull Folder folder)
+	{
+		if (folder.isOpen()) {
+			try {
+				folder.close(false);
+			} catch (MessagingException e) {
+				log.warn("Error closing folder " + folder.getFullName(), e);
+			}
+		}
+	}
+}
@@ -0,0 +1,106 @@
+/****************************************************************************
+ * Copyright 2022 Teaglu, LLC                                               *
+ *                                                                          *
+ * Licensed under the Apache License, Version 2.0 (the "License");          *
+ * you may not use this file except in compliance with the License.         *
+ * You may obtain a copy of the License at                                  *
+ *                                                                          *
+ *   http://www.apache.org/licenses/LICENSE-2.0                             *
+ *                                                                          *
+ * Unless required by applicable law or agreed to in writing, software      *
+ * distributed under the License is distributed on an "AS IS" BASIS,        *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. *
+ * See the License for the specific language governing permissions and      *
+ * limitations under the License.                                           *
+ ****************************************************************************/
+
+package com.teaglu.imapforward.job.imap;
+
+import org.eclipse.jdt.annotation.NonNull;
+
+import com.teaglu.composite.Composite;
+import com.teaglu.composite.exception.FormatException;
+import com.teaglu.composite.exception.SchemaException;
+
+/**
+ * FolderPattern
+ *
+ * A folder pair with a wildcard at the end, like "Projects/*" to "Archive/Projects/*", which
+ * stands for one pair per folder under the source prefix.  A "*" matches everything under
+ * the prefix at any depth and a "%" only matches the level directly below it, the same as
+ * they do in an IMAP LIST.  The prefix folder itself isn't included.
+ */
+public class FolderPattern {
+	private final @NonNull String sourcePrefix;
+	private final @NonNull String destinationPrefix;
+	private final boolean recursive;
+	
+	private FolderPattern(
+			@NonNull Composite spec) throws SchemaException
+	{
+		String source= spec.getRequiredString("source");
+		String destination= spec.getRequiredString("destination");
+		
+		char wildcard= source.charAt(source.length() - 1);
+		if (destination.isEmpty() || (destination.charAt(destination.length() - 1) != wildcard)) {
+			throw new FormatException("Folder pattern " + source +
+					" needs a destination ending in the same wildcard");
+		}
+		
+		recursive= (wildcard == '*');
+		sourcePrefix= stripWildcard(source);
+		destinationPrefix= stripWildcard(destination);
+		
+		if (sourcePrefix.isEmpty() || (sourcePrefix.indexOf('*') >= 0) ||
+				(sourcePrefix.indexOf('%') >= 0))
+		{
+			throw new FormatException("Folder pattern " + source +
+					" can only have a wildcard at the end, after a folder name");
+		}
+	}
+	
+	/**
+	 * Create
+	 *
+	 * Create a pattern from a folder pair specification
+	 *
+	 * @param spec						Folder pair with wildcards
+	 *
+	 * @return							New pattern
+	 *
+	 * @throws SchemaException
+	 */
+	public static @NonNull FolderPattern Create(
+			@NonNull Composite spec) throws SchemaException
+	{
+		return new FolderPattern(spec);
+	}
+	
+	/**
+	 * IsPattern
+	 *
+	 * @param source					Configured source folder name
+	 *
+	 * @return							True if the name ends with a wildcard
+	 */
+	public static boolean IsPattern(
+			@NonNull String source)
+	{
+		return source.endsWith("*") || source.endsWith("%");
+	}
+	
+	private static @NonNull String stripWildcard(
+			@NonNull String name)
+	{
+		// Drop the wildcard and the separator in front of it
+		String prefix= name.substring(0, name.length() - 1);
+		if (prefix.endsWith(".") || prefix.endsWith("/")) {
+			prefix= prefix.substring(0, prefix.length() - 1);
+		}
+		return prefix;
+	}
+	
+	public @NonNull String getSourcePrefix() { return sourcePrefix; }
+	public @NonNull String getDestinationPrefix() { return destinationPrefix; }
+	public boolean isRecursive() { return recursive; }
+}
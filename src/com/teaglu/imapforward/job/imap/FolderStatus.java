@@ -0,0 +1,186 @@
+/****************************************************************************
+ * Copyright 2022 Teaglu, LLC                                               *
+ *                                                                          *
+ * Licensed under the Apache License, Version 2.0 (the "License");          *
+ * you may not use this file except in compliance with the License.         *
+ * You may obtain a copy of the License at                                  *
+ *                                                                          *
+ *   http://www.apache.org/licenses/LICENSE-2.0                             *
+ *                                                                          *
+ * Unless required by applicable law or agreed to in writing, software      *
+ * distributed under the License is distributed on an "AS IS" BASIS,        *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. *
+ * See the License for the specific language governing permissions and      *
+ * limitations under the License.                                           *
+ ****************************************************************************/
+
+package com.teaglu.imapforward.job.imap;
+
+import org.eclipse.jdt.annotation.NonNull;
+
+import com.sun.mail.imap.IMAPFolder;
+import com.sun.mail.imap.protocol.Status;
+
+import jakarta.mail.Folder;
+import jakarta.mail.MessagingException;
+import jakarta.mail.UIDFolder;
+
+/**
+ * FolderStatus
+ *
+ * The result of an IMAP STATUS command on a folder that isn't selected.  This is a lot
+ * cheaper than a SELECT, since the server doesn't have to send flags or set up a session
+ * on the mailbox, so we use it to find out whether a folder is worth opening at all.
+ */
+public class FolderStatus {
+	private static final String[] STATUS_ITEMS= { "MESSAGES", "UIDNEXT" };
+	private static final String[] STATUS_ITEMS_MODSEQ= { "MESSAGES", "UIDNEXT", "HIGHESTMODSEQ" };
+
+	private final int messages;
+	private final long uidNext;
+	private final long highestModSeq;
+
+	private FolderStatus(int messages, long uidNext) {
+		this(messages, uidNext, -1);
+	}
+
+	private FolderStatus(int messages, long uidNext, long highestModSeq) {
+		this.messages= messages;
+		this.uidNext= uidNext;
+		this.highestModSeq= highestModSeq;
+	}
+
+	/**
+	 * Fetch
+	 *
+	 * Ask the server for the message count and next UID of a folder in one command.
+	 *
+	 * @param folder					Folder, which should not be open
+	 *
+	 * @return							Status
+	 *
+	 * @throws MessagingException
+	 */
+	public static @NonNull FolderStatus Fetch(
+			@NonNull Folder folder) throws MessagingException
+	{
+		if (!(folder instanceof IMAPFolder)) {
+			// Shouldn't happen since we always use imaps, but fall back to the generic call
+			return new FolderStatus(folder.getMessageCount(), -1);
+		}
+
+		IMAPFolder imapFolder= (IMAPFolder)folder;
+		String fullName= imapFolder.getFullName();
+
+		Status status= (Status)imapFolder.doCommand(
+				(protocol) -> protocol.status(fullName, STATUS_ITEMS));
+
+		if (status == null) {
+			throw new MessagingException("No STATUS response for " + fullName);
+		}
+
+		return new FolderStatus(status.total, status.uidnext);
+	}
+
+	/**
+	 * FetchWithModSeq
+	 *
+	 * Same as Fetch, but also ask for the highest MODSEQ.  Any change to the folder - a new
+	 * message, a flag change, an expunge - raises it, so it tells a mirroring job whether
+	 * there's anything to do at all.  Only use this if the server supports CONDSTORE.
+	 *
+	 * @param folder					Folder, which should not be open
+	 *
+	 * @return							Status
+	 *
+	 * @throws MessagingException
+	 */
+	public static @NonNull FolderStatus FetchWithModSeq(
+			@NonNull Folder folder) throws MessagingException
+	{
+		if (!(folder instanceof IMAPFolder)) {
+			return new FolderStatus(folder.getMessageCount(), -1);
+		}
+
+		IMAPFolder imapFolder= (IMAPFolder)folder;
+		String fullName= imapFolder.getFullName();
+
+		Status status= (Status)imapFolder.doCommand(
+				(protocol) -> protocol.status(fullName, STATUS_ITEMS_MODSEQ));
+
+		if (status == null) {
+			throw new MessagingException("No STATUS response for " + fullName);
+		}
+
+		return new FolderStatus(status.total, status.uidnext, status.highestmodseq);
+	}
+
+	/**
+	 * FromOpenFolder
+	 *
+	 * Build a status for a folder that's already selected.  The message count comes from
+	 * JavaMail, which does a NOOP to pick up new EXISTS and EXPUNGE responses.  The UIDNEXT
+	 * JavaMail has for an open folder is the one from the SELECT and never moves, so instead
+	 * we use one more than the UID of the last message.  New messages always go on the end,
+	 * so a message arriving while another one was removed changes the last UID even though
+	 * the count is the same.  If that's behind the server's UIDNEXT because the newest
+	 * message was removed, the comparison just comes out as changed, which costs a search
+	 * and nothing else.
+	 *
+	 * @param folder					Open folder
+	 *
+	 * @return							Status
+	 *
+	 * @throws MessagingException
+	 */
+	public static @NonNull FolderStatus FromOpenFolder(
+			@NonNull Folder folder) throws MessagingException
+	{
+		int messages= folder.getMessageCount();
+
+		long uidNext= -1;
+		if ((messages > 0) && (folder instanceof UIDFolder)) {
+			// One UID FETCH, and only when the last message changed since JavaMail caches UIDs
+			uidNext= ((UIDFolder)folder).getUID(folder.getMessage(messages)) + 1;
+		}
+
+		return new FolderStatus(messages, uidNext);
+	}
+
+	/**
+	 * withMessages
+	 *
+	 * Copy of this status with a different message count, used to record how many messages
+	 * we deliberately left behind in the folder.
+	 *
+	 * @param count						Message count
+	 *
+	 * @return							New status
+	 */
+	public @NonNull FolderStatus withMessages(int count) {
+		return new FolderStatus(count, uidNext, highestModSeq);
+	}
+
+	public int getMessages() { return messages; }
+	public long getUidNext() { return uidNext; }
+	public long getHighestModSeq() { return highestModSeq; }
+
+	/**
+	 * isUnchangedFrom
+	 *
+	 * Whether nothing has arrived since an earlier status.  A UIDNEXT of -1 on either side
+	 * means it isn't known, in which case only the message counts are compared.
+	 *
+	 * @param other						Earlier status
+	 *
+	 * @return							True if nothing new has arrived
+	 */
+	public boolean isUnchangedFrom(
+			@NonNull FolderStatus other)
+	{
+		if ((uidNext >= 0) && (other.uidNext >= 0) && (uidNext != other.uidNext)) {
+			return false;
+		}
+		return messages == other.messages;
+	}
+}
@@ -16,114 +16,321 @@
 
 package com.teaglu.imapforward.job.imap;
 
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
-import java.util.concurrent.TimeUnit;
-import java.util.concurrent.locks.Condition;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
 
 
 import org.eclipse.jdt.annotation.NonNull;
+import org.eclipse.jdt.annotation.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.sun.mail.imap.AppendUID;
+import com.sun.mail.imap.IMAPFolder;
+import com.sun.mail.imap.IMAPMessage;
+import com.sun.mail.imap.IMAPStore;
+import com.sun.mail.imap.ResyncData;
 import com.teaglu.composite.Composite;
+import com.teaglu.composite.exception.FormatException;
 import com.teaglu.composite.exception.SchemaException;
+import com.teaglu.composite.exception.UndefinedOptionException;
 import com.teaglu.imapforward.alert.AlertSink;
-import com.teaglu.imapforward.alert.PrefixAlertSink;
+import com.teaglu.imapforward.circuit.CircuitBreaker;
+import com.teaglu.imapforward.circuit.CircuitBreakerRegistry;
+import com.teaglu.imapforward.jfr.FolderOpenEvent;
+import com.teaglu.imapforward.jfr.JobCycleEvent;
+import com.teaglu.imapforward.jfr.MessageTransferEvent;
+import com.teaglu.imapforward.job.AbstractImapJob;
+import com.teaglu.imapforward.job.HangException;
 import com.teaglu.imapforward.job.Job;
-import com.teaglu.imapforward.timeout.Timeout;
+import com.teaglu.imapforward.job.Mailbox;
+import com.teaglu.imapforward.mail.ByteCounter;
+import com.teaglu.imapforward.mail.ConnectionSet;
+import com.teaglu.imapforward.route.RouteEnvelope;
+import com.teaglu.imapforward.route.RouteRule;
+import com.teaglu.imapforward.route.RouteTable;
+import com.teaglu.imapforward.schedule.PollSchedule;
+import com.teaglu.imapforward.state.FolderSyncState;
+import com.teaglu.imapforward.state.SyncStateStore;
+import com.teaglu.imapforward.state.UidMapStore;
+import com.teaglu.imapforward.state.UidMapping;
 import com.teaglu.imapforward.timeout.TimeoutManager;
+import com.teaglu.imapforward.timeout.Watchdog;
+import com.teaglu.imapforward.trace.ProtocolTrace;
 
-import jakarta.mail.Address;
+import jakarta.mail.FetchProfile;
 import jakarta.mail.Flags;
 import jakarta.mail.Folder;
+import jakarta.mail.FolderClosedException;
 import jakarta.mail.FolderNotFoundException;
 import jakarta.mail.Message;
 import jakarta.mail.MessagingException;
 import jakarta.mail.Session;
 import jakarta.mail.Store;
+import jakarta.mail.StoreClosedException;
+import jakarta.mail.UIDFolder;
+import jakarta.mail.event.MailEvent;
+import jakarta.mail.event.MessageChangedEvent;
 
 /**
  * ImapForwardJob
  *
  * A job that replicates messages from one mailbox to another
  */
-public class ImapForwardJob implements Job {
+public class ImapForwardJob extends AbstractImapJob {
 	private static final Logger log= LoggerFactory.getLogger(ImapForwardJob.class);
 	
-	private final @NonNull AlertSink alertSink;
+	// Recent protocol lines for each side, attached to alerts.  Null if tracing is off.
+	private final ProtocolTrace sourceTrace;
+	private final ProtocolTrace destinationTrace;
 	
-	private final @NonNull String name;
+	// Negotiate COMPRESS=DEFLATE when the server supports it
+	private final boolean compress;
+	private final Integer compressLevel;
 	
-	private final boolean imapDebug;
-	private final boolean imapPartialFetch;
+	// Bytes on the wire for each side, and message bytes transferred, so the effect of
+	// compression can be seen in the logs
+	private final @NonNull ByteCounter sourceWireBytes= ByteCounter.Create();
+	private final @NonNull ByteCounter destinationWireBytes= ByteCounter.Create();
+	private final AtomicLong messageBytes= new AtomicLong();
+	
+	// Use STATUS to skip folders with nothing new instead of selecting every one
+	private final boolean statusCheck;
+	
+	// Number of folders per store kept selected between cycles
+	private int maxOpenFolders= 4;
 
 	// The normal amount of time we wait to cycle
 	private int cycleSeconds= 20;
 	
-	// Fall back to slower cycle time on error so we don't spam the alert sink
-	private int errorCycleSeconds= 3600;
+	// Never spin faster than this even if the schedule says a pair is already due
+	private static final long MINIMUM_WAIT_MILLISECONDS= 250;
 
-	private final @NonNull TimeoutManager timeoutManager;
-	private long timeoutMilliseconds= 60_000;
+	// Drain mode, for working off a large backlog over several connections at once.  A
+	// threshold of zero means it's off.
+	private int drainThreshold= 0;
+	private int drainConnections= 4;
+	private int drainBatchSize= 100;
 	
-	private static class Mailbox {
-		private @NonNull String host;
-		private @NonNull String username;
-		private @NonNull String password;
-		
-		private Mailbox(
-				@NonNull Composite spec) throws SchemaException
-		{
-			host= spec.getRequiredString("host");
-			username= spec.getRequiredString("username");
-			password= spec.getRequiredString("password");
-		}
-	}
+	// A drain batch also ends once its messages add up to this many bytes, so a run of big
+	// messages doesn't make one batch that takes forever and has to be redone on failure
+	private long drainBatchBytes= 50_000_000;
+	
+	// Where to keep state between runs, or null to not keep any
+	private final Path stateDirectory;
+	
+	// Source to destination UID mappings, open while the job thread is running.  The drain
+	// workers use it too, which is fine since it's synchronized.
+	private volatile UidMapStore uidMap= null;
+	
+	// Mirror instead of move - leave messages in the source and keep flags in sync
+	private final boolean mirror;
+	
+	// Mirror positions for each source folder, opened on the first mirror cycle
+	private SyncStateStore syncState= null;
+	
+	// Messages fetched and processed at a time, which bounds how much envelope data is held
+	private int windowSize= 500;
 	
 	private class FolderPair {
 		private @NonNull String source;
 		private @NonNull String destination;
 		
+		// Arrival statistics used to decide when to poll this pair next
+		private final PollSchedule.@NonNull FolderTracker tracker;
+		
+		// What the source folder looked like after the last pass, so an unchanged STATUS
+		// means there's nothing to do.  This is only non-null when status checks are on.
+		private FolderStatus settledStatus= null;
+		
+		// Messages the last pass left in the source folder on purpose, which don't count
+		// towards the drain threshold
+		private int skipped= 0;
+		
+		// For the admin interface - messages seen in the folder and when we last looked
+		private volatile int backlog= -1;
+		private volatile long lastPolled= 0;
+		
+		// The wildcard this pair was expanded from, or null if it was configured directly.
+		// Expanded pairs create their destination folder if it isn't there.
+		private final FolderPattern pattern;
+		
 		private FolderPair(
 				@NonNull Composite spec) throws SchemaException
 		{
 			source= spec.getRequiredString("source");
 			destination= spec.getRequiredString("destination");
+			pattern= null;
+			
+			tracker= pollSchedule.createTracker();
+		}
+		
+		private FolderPair(
+				@NonNull String source,
+				@NonNull String destination,
+				@NonNull FolderPattern pattern)
+		{
+			this.source= source;
+			this.destination= destination;
+			this.pattern= pattern;
+			
+			tracker= pollSchedule.createTracker();
 		}
 	}
 	
 	private @NonNull Mailbox source;
 	private @NonNull Mailbox destination;
 	
-	private final List<@NonNull FolderPair> pairs= new ArrayList<>();
+	// Copy-on-write since wildcard pairs come and go while the admin interface reads it
+	private final List<@NonNull FolderPair> pairs= new CopyOnWriteArrayList<>();
+	
+	// Wildcard pairs, expanded from a LIST of the source that's only redone every so often
+	private final List<@NonNull FolderPattern> patterns= new ArrayList<>();
+	private int folderRefreshSeconds= 3600;
+	private long nextFolderRefresh= 0;
+	
+	// Decides how often each folder pair gets polled
+	private final @NonNull PollSchedule pollSchedule;
+	
+	// Header-based routing rules, compiled once when the job is configured
+	private final @NonNull RouteTable routes;
 	
 	private ImapForwardJob(
 			@NonNull Composite spec,
 			@NonNull AlertSink alertSink,
 			@NonNull TimeoutManager timeoutManager) throws SchemaException
 	{
-		this.name= spec.getRequiredString("name");
-		this.alertSink= PrefixAlertSink.Create(alertSink, "[" + name + "] ");
-		this.timeoutManager= timeoutManager;
+		super(spec, alertSink, timeoutManager);
+		
+		Integer traceSpec= spec.getOptionalInteger("traceLines");
+		int traceLines= (traceSpec != null) ? traceSpec : 200;
+		if (traceLines > 0) {
+			// The debug flag used to dump everything to the console, so keep doing that
+			PrintStream tee= imapDebug ? System.out : null;
+			
+			sourceTrace= ProtocolTrace.Create(traceLines, tee);
+			destinationTrace= ProtocolTrace.Create(traceLines, tee);
+		} else {
+			sourceTrace= null;
+			destinationTrace= null;
+		}
+		this.statusCheck= spec.getOptionalBoolean("statusCheck", true);
+		this.compress= spec.getOptionalBoolean("compress", false);
+		this.compressLevel= spec.getOptionalInteger("compressLevel");
+		
+		Integer maxOpenSpec= spec.getOptionalInteger("maxOpenFolders");
+		if (maxOpenSpec != null) {
+			if (maxOpenSpec < 1) {
+				throw new FormatException("maxOpenFolders must be at least 1");
+			}
+			maxOpenFolders= maxOpenSpec;
+		}
 		
-		this.imapDebug= spec.getOptionalBoolean("debug", false);
-		this.imapPartialFetch= spec.getOptionalBoolean("partialFetch", true);
+		Composite drainSpec= spec.getOptionalObject("drain");
+		if (drainSpec != null) {
+			Integer thresholdSpec= drainSpec.getOptionalInteger("threshold");
+			drainThreshold= (thresholdSpec != null) ? thresholdSpec : 1000;
+			if (drainThreshold < 1) {
+				throw new FormatException("Drain threshold must be at least 1");
+			}
+			
+			Integer connectionsSpec= drainSpec.getOptionalInteger("connections");
+			if (connectionsSpec != null) {
+				if (connectionsSpec < 1) {
+					throw new FormatException("Drain connections must be at least 1");
+				}
+				drainConnections= connectionsSpec;
+			}
+			
+			Integer batchSpec= drainSpec.getOptionalInteger("batchSize");
+			if (batchSpec != null) {
+				if (batchSpec < 1) {
+					throw new FormatException("Drain batchSize must be at least 1");
+				}
+				drainBatchSize= batchSpec;
+			}
+			
+			Integer batchBytesSpec= drainSpec.getOptionalInteger("batchBytes");
+			if (batchBytesSpec != null) {
+				if (batchBytesSpec < 1) {
+					throw new FormatException("Drain batchBytes must be at least 1");
+				}
+				drainBatchBytes= batchBytesSpec;
+			}
+		}
+		
+		String stateSpec= spec.getOptionalString("stateDirectory");
+		stateDirectory= (stateSpec != null) ? Paths.get(stateSpec) : null;
+		
+		String modeSpec= spec.getOptionalString("mode");
+		if ((modeSpec == null) || modeSpec.equals("move")) {
+			mirror= false;
+		} else if (modeSpec.equals("mirror")) {
+			if (stateDirectory == null) {
+				throw new FormatException("Mirror mode needs a stateDirectory");
+			}
+			mirror= true;
+		} else {
+			throw new UndefinedOptionException("Job mode " + modeSpec + " not known");
+		}
+		
+		Integer refreshSpec= spec.getOptionalInteger("folderRefreshSeconds");
+		if (refreshSpec != null) {
+			folderRefreshSeconds= refreshSpec;
+		}
+		
+		Integer windowSpec= spec.getOptionalInteger("windowSize");
+		if (windowSpec != null) {
+			if (windowSpec < 1) {
+				throw new FormatException("windowSize must be at least 1");
+			}
+			windowSize= windowSpec;
+		}
 		
 		Integer cycleSpec= spec.getOptionalInteger("seconds");
 		if (cycleSpec != null) {
 			cycleSeconds= cycleSpec;
 		}
 		
-		source= new Mailbox(spec.getRequiredObject("source"));
-		destination= new Mailbox(spec.getRequiredObject("destination"));
+		pollSchedule= PollSchedule.Create(spec.getOptionalObject("adaptive"), cycleSeconds);
+		
+		source= Mailbox.Create(spec.getRequiredObject("source"));
+		destination= Mailbox.Create(spec.getRequiredObject("destination"));
 		
 		Iterable<@NonNull Composite> pairSpecs= spec.getRequiredObjectArray("folders");
 		for (Composite pairSpec : pairSpecs) {
-			pairs.add(new FolderPair(pairSpec));
+			if (FolderPattern.IsPattern(pairSpec.getRequiredString("source"))) {
+				patterns.add(FolderPattern.Create(pairSpec));
+			} else {
+				pairs.add(new FolderPair(pairSpec));
+			}
+		}
+		
+		Composite routingSpec= spec.getOptionalObject("routing");
+		if (routingSpec != null) {
+			routes= RouteTable.Create(routingSpec);
+		} else {
+			routes= RouteTable.CreateEmpty();
 		}
 	}
 	
@@ -135,32 +342,6 @@ public class ImapForwardJob implements Job {
 		return new ImapForwardJob(spec, alertSink, timeoutManager);
 	}
 	
-	private @NonNull Folder openFolder(
-			@NonNull Store store,
-			@NonNull String name) throws MessagingException
-	{
-		try {
-			String[] parts= name.split("\\.");
-			Folder folder= store.getFolder(parts[0]);
-			
-			for (int partNo= 1; partNo < parts.length; partNo++) {
-				folder= folder.getFolder(parts[partNo]);
-			}
-			
-			folder.open(Folder.READ_WRITE);
-			
-			return folder;
-		} catch (FolderNotFoundException e) {
-			System.err.println(
-					"Unable to open the folder " + name + " - be sure path " +
-					"components are separated by dots.  Most folders are " +
-					"technically under Inbox, so folder Processed might be " +
-					"\"Inbox.Processed\".");
-			
-			throw e;
-		}
-	}
-	
 	// These are different methods to move the message.  MOVEMESSAGE was supposed to be
 	// preferable because it keeps message IDs, but it blows up with a "can't move between
 	// different stores" kind of message.  COPYMESSAGE seems to work so that's what I'm using
@@ -171,6 +352,10 @@ public class ImapForwardJob implements Job {
 	// keep working with IMAPFolders to have access to the the moveMessage call, so that we
 	// could add an option to move messages after processing instead of deleting.  I guess I'll
 	// loop back to that later, converting to maven has caused N problems.
+	//
+	// Between accounts both of these end up as an APPEND, so the destination gets a new UID
+	// either way.  With a state directory configured the job records where each message went
+	// from the APPENDUID response - see copyMessages.
 	
 	private enum Method {
 		COPYMESSAGE,
@@ -178,93 +363,142 @@ public class ImapForwardJob implements Job {
 	}
 	private Method method= Method.COPYMESSAGE;
 
-	private volatile boolean run;
-	private Lock runLock= new ReentrantLock();
-	private Condition runWake= runLock.newCondition();
-	
-	private void runLoop() {
-		log.info("Thread for job " + name + " is running");
-		
-		Properties props= System.getProperties();
-		props.setProperty("mail.store.protocol", "imaps");
-		
-		if (imapDebug) {
-			// This dumps out all the IMAP commands on the console if we need to track anything
-			// down or see what it's doing.
-			props.setProperty("mail.debug", "true");
+	/**
+	 * processPair
+	 * 
+	 * Transfer everything waiting in one folder pair
+	 * 
+	 * @param pair						Folder pair to process
+	 * @param sourceFolders				Folder cache for the source store
+	 * @param destinationFolders		Folder cache for the destination store
+	 * 
+	 * @return							Number of messages transferred
+	 * 
+	 * @throws MessagingException
+	 * @throws IOException				If mirror state can't be saved
+	 */
+	private int processPair(
+			@NonNull FolderPair pair,
+			@NonNull FolderCache sourceFolders,
+			@NonNull FolderCache destinationFolders) throws MessagingException, IOException
+	{
+		if (mirror) {
+			return processMirrorPair(pair, sourceFolders, destinationFolders);
 		}
 		
-		// Set a 1M append buffer, or else IMAP store will buffer the entire message
-		props.setProperty("mail.imaps.appendbuffersize", "1048576");
+		long operationMilliseconds= operationSeconds * 1000L;
+		Folder sourceFolder= sourceFolders.getOpen(pair.source);
 		
-		if (!imapPartialFetch) {
-			// This is a weird kluge because older Lotus Notes servers don't properly implement
-			// partial fetch, and it makes the thread hang.  Disabling partial fetch fixes that.
-			props.setProperty("mail.imaps.partialfetch", "false");
+		FolderStatus status= null;
+		if (statusCheck) {
+			watchdog.arm("status " + pair.source, operationMilliseconds);
+			
+			if (sourceFolder != null) {
+				// The folder is still selected from last time, and STATUS isn't supposed to
+				// be used on a selected folder.  The message count picks up new arrivals
+				// from the NOOP it does.
+				status= FolderStatus.FromOpenFolder(sourceFolder);
+			} else {
+				// A STATUS on the unselected folder is one cheap round trip, where opening
+				// it is a SELECT plus the connection it ties up.  Most folders are empty
+				// most of the time.
+				status= FolderStatus.Fetch(sourceFolders.resolve(pair.source));
+			}
+			
+			pair.backlog= status.getMessages();
+			pair.lastPolled= System.currentTimeMillis();
+			
+			if (status.getMessages() == 0) {
+				pair.settledStatus= status;
+				pair.skipped= 0;
+				return 0;
+			}
+			
+			// Only skipped messages are left and nothing new has come in
+			FolderStatus settled= pair.settledStatus;
+			if ((settled != null) && status.isUnchangedFrom(settled)) {
+				return 0;
+			}
 		}
 		
-		Session sourceSession= Session.getInstance(props);
-		Session destinationSession= Session.getInstance(props);
+		// Appending or copying to another account never needs the destination selected, so
+		// destination folders are only resolved, not opened.
+		watchdog.arm("resolve " + pair.destination, operationMilliseconds);
+		Folder destinationFolder= resolveDestination(pair, destinationFolders);
 		
-		Store sourceStore= null;
-		Store destinationStore= null;
+		int transferred= 0;
+		int examined= 0;
 		
-		for (boolean localRun= true; localRun; ) {
-			boolean closeStores= false;
-			
-			// Start with cycle seconds - any error will kick us to the error value which is
-			// much longer to prevent spamming the alert sink.  Getting the same fail message
-			// every 10 seconds sucks.
-			int waitSeconds= cycleSeconds;
-			
-			// Schedule a timeout to detect thread hangs
-			//
-			// For some reason there's this one specific message in Lotus Notes where the IMAP
-			// state gets screwed up and the fetch thread just sits there doing nothing.  99:1
-			// it's an implementation bug in notes, but I'm having to hit a version 8.x server
-			// that can't be updated for "reasons".
-			//
-			// This at least keeps us from going catatonic.
-			Timeout timeout= timeoutManager.schedule(
-					System.currentTimeMillis() + timeoutMilliseconds,
-					() -> { timeoutFired(); });
-			
-			try {
-				// Connect the stores if they aren't already connected
-				if (sourceStore == null) {
-					sourceStore= sourceSession.getStore("imaps");
-					sourceStore.connect(source.host, source.username, source.password);
-				}
-				if (destinationStore == null) {
-					destinationStore= destinationSession.getStore("imaps");
-					destinationStore.connect(destination.host, destination.username, destination.password);
+		// Source UIDs flagged for delete, to drop from the UID map once they're expunged
+		List<Long> removedUids= new ArrayList<>();
+		
+		try {
+			if (sourceFolder == null) {
+				watchdog.arm("open " + pair.source, operationMilliseconds);
+				
+				FolderOpenEvent openEvent= new FolderOpenEvent();
+				openEvent.begin();
+				
+				sourceFolder= sourceFolders.open(pair.source);
+				
+				openEvent.end();
+				if (openEvent.shouldCommit()) {
+					openEvent.job= name;
+					openEvent.folder= pair.source;
+					openEvent.messages= sourceFolder.getMessageCount();
+					openEvent.commit();
 				}
-
-				for (FolderPair pair : pairs) {
-					Folder sourceFolder= null;
-					Folder destinationFolder= null;
-
+			}
+			
+			// A folder full of messages the routing rules skip isn't a backlog, so only
+			// count what hasn't been dealt with yet
+			if ((drainThreshold > 0) &&
+					(sourceFolder.getMessageCount() - pair.skipped >= drainThreshold))
+			{
+				// Too much to get through one message at a time on one connection
+				examined= sourceFolder.getMessageCount();
+				
+				transferred= drainPair(pair, sourceFolder);
+			} else {
+				// Walk the folder a window at a time.  JavaMail keeps whatever it fetched for
+				// a message until the folder is closed, so doing the whole folder at once
+				// after a long outage holds envelopes for every message in memory.
+				int total= sourceFolder.getMessageCount();
+				examined= total;
+				
+				for (int start= 1; start <= total; start+= windowSize) {
+					int end= Math.min(start + windowSize - 1, total);
+					Message messages[]= sourceFolder.getMessages(start, end);
+					
+					watchdog.arm("fetch " + pair.source, operationMilliseconds +
+							(messages.length * FETCH_MILLISECONDS_PER_MESSAGE));
+					
+					// Pull envelopes for the window in one FETCH, instead of letting each
+					// getFrom / getSubject round-trip on its own.  This is also what the
+					// routing rules are evaluated against, so bodies are only ever read for
+					// messages that are actually transferred.
+					sourceFolder.fetch(messages, buildFetchProfile());
+					
 					try {
-						sourceFolder= openFolder(sourceStore, pair.source);
-						destinationFolder= openFolder(destinationStore, pair.destination);
-						
-						Message messages[]= sourceFolder.getMessages();
-
 						// We could theoretically do this all in one go, but I think it's safer
 						// to go one at a time so we're in a consistent state on failure
 						for (Message message : messages) {
 							if (message != null) {
+								RouteEnvelope envelope= null;
+					
 								// This just builds up something to put in the logs
 								StringBuilder description= new StringBuilder();
 								try {
-									Address[] fromAddresses= message.getFrom();
+									envelope= RouteEnvelope.Create(message, routes.usesListId());
+						
+									String[] fromAddresses= envelope.getFrom();
 									if (fromAddresses.length > 0) {
-										description.append(fromAddresses[0].toString());
+										description.append(fromAddresses[0]);
 									} else {
 										description.append("[?]");
 									}
-									
-									String subject= message.getSubject();
+						
+									String subject= envelope.getSubject();
 									if (subject != null) {
 										description.append(" ");
 										description.append(subject);
@@ -273,167 +507,1485 @@ public class ImapForwardJob implements Job {
 									alertSink.sendAlert("Error building description", e);
 									description= new StringBuilder("EXCEPTION");
 								}
-								
+					
+								Folder targetFolder= destinationFolder;
+								if (envelope != null) {
+									RouteRule rule= routes.match(envelope);
+									if (rule != null) {
+										if (rule.getAction() == RouteRule.Action.SKIP) {
+											log.debug("Skipping message " + description.toString());
+											continue;
+										}
+							
+										String routeName= rule.getDestination();
+										if (routeName != null) {
+											targetFolder= destinationFolders.resolve(routeName);
+										}
+									}
+								}
+					
 								Message[] single= new Message[] { message };
-								
+						
+								int size= (envelope != null) ? envelope.getSize() : -1;
+								throttle(watchdog, destination, 1, size);
+						
+								// Give the transfer the normal operation time plus however long the
+								// message should take at the slowest rate we'll accept.
+								watchdog.arm("transfer " + description.toString(),
+										operationMilliseconds +
+										((size > 0) ? (size * 1000L / minimumTransferRate) : 0));
+					
+								MessageTransferEvent transferEvent= new MessageTransferEvent();
+								transferEvent.begin();
+					
 								try {
-									switch (method) {
-									case COPYMESSAGE:
-										sourceFolder.copyMessages(single, destinationFolder);
-										message.setFlag(Flags.Flag.DELETED, true);
-										break;
-										
-									case ADDMESSAGE:
-										destinationFolder.appendMessages(single);
-										message.setFlag(Flags.Flag.DELETED, true);
-										break;
+									if (isAlreadyCopied(sourceFolder, pair.source, message)) {
+										// An earlier pass copied it but failed before the expunge
+										log.info("Already copied " + description.toString());
+									} else {
+										copyMessages(sourceFolder, pair.source, single, targetFolder);
 									}
+									message.setFlag(Flags.Flag.DELETED, true);
+									noteRemoved(sourceFolder, message, removedUids);
 								} catch (MessagingException e) {
 									alertSink.sendAlert(
 											"Error Syncing Message " +
 											description.toString(), e);
-									
+						
 									throw e;
 								}
+					
+								transferEvent.end();
+								if (transferEvent.shouldCommit()) {
+									transferEvent.job= name;
+									transferEvent.sourceFolder= pair.source;
+									transferEvent.destinationFolder= targetFolder.getFullName();
+									transferEvent.method= method.name();
+									transferEvent.size= size;
+									transferEvent.commit();
+								}
+					
+								transferred++;
+								if (size > 0) {
+									messageBytes.addAndGet(size);
+								}
 							}
 						}
 					} finally {
-						if (destinationFolder != null) {
-							try {
-								destinationFolder.close(false);
-							} catch (MessagingException e) {
-								alertSink.sendAlert("Error Closing Destination Folder", e);
-							}
-						}
-						if (sourceFolder != null) {
-							try {
-								// The true on sourceFolder.close tells the backend to expunge
-								// the folder - this is what actually does the delete.  Sometimes
-								// the messages still go into a deleted folder, depending on
-								// the IMAP backend.
-								sourceFolder.close(true);
-							} catch (MessagingException e) {
-								alertSink.sendAlert("Error Closing Source Folder", e);
-							}
-						}
+						releaseWindow(messages);
 					}
 				}
-			} catch (Exception e) {
-				alertSink.sendAlert("Error in Operations", e);
-
-				// If something went wrong, close all the stores and retry.  Hopefully that will
-				// clear out any bogus connection state.
-				closeStores= true;
-				
-				// Wait longer so we don't spam the alert sink
-				waitSeconds= errorCycleSeconds;
-			} finally {
-				// Cancel the timeout if it hasn't already fired
-				timeout.cancel();
 			}
-
-			// This just waits for the timeout or a wake-up signal
-			runLock.lock();
-			try {
-				if ((localRun= run)) {
-					try {
-						runWake.await(waitSeconds, TimeUnit.SECONDS);
-					} catch (InterruptedException e) {
-					}
-					localRun= run;
+		} finally {
+			if ((sourceFolder != null) && (transferred > 0)) {
+				try {
+					watchdog.arm("expunge " + pair.source, operationMilliseconds);
+					
+					// The folder stays selected for next time, so the expunge is what
+					// actually does the delete instead of a close.  Sometimes the messages
+					// still go into a deleted folder, depending on the IMAP backend.
+					sourceFolder.expunge();
+					
+					forgetRemoved(sourceFolder, pair.source, removedUids);
+				} catch (MessagingException e) {
+					alertSink.sendAlert("Error Expunging Source Folder", e);
+					
+					// Don't trust the folder state after that
+					sourceFolders.close(pair.source);
 				}
-			} finally {
-				runLock.unlock();
 			}
-
-			// If we're suppsed to close the stores, or if we're running down
-			if (closeStores || !localRun) {
-				if (sourceStore != null) {
-					try {
-						sourceStore.close();
-					} catch (MessagingException e) {
-						alertSink.sendAlert("Error Closing Source Store", e);
-					}
-					sourceStore= null;
+		}
+		
+		pair.backlog= examined - transferred;
+		pair.skipped= examined - transferred;
+		pair.lastPolled= System.currentTimeMillis();
+		
+		if (status != null) {
+			// Whatever wasn't transferred was skipped on purpose and is still in the folder
+			pair.settledStatus= status.withMessages(examined - transferred);
+		}
+		
+		return transferred;
+	}
+	
+	private @NonNull Folder resolveDestination(
+			@NonNull FolderPair pair,
+			@NonNull FolderCache destinationFolders) throws MessagingException
+	{
+		if (pair.pattern != null) {
+			return destinationFolders.resolveOrCreate(pair.destination);
+		}
+		return destinationFolders.resolve(pair.destination);
+	}
+	
+	/**
+	 * refreshFolderTree
+	 * 
+	 * Expand the wildcard pairs against the current source folder tree, adding pairs for new
+	 * folders and dropping the ones for folders that are gone.  Pairs that are still there
+	 * keep their poll statistics.
+	 * 
+	 * @param sourceFolders				Folder cache for the source store
+	 * @param destinationFolders		Folder cache for the destination store
+	 * 
+	 * @throws MessagingException
+	 */
+	private void refreshFolderTree(
+			@NonNull FolderCache sourceFolders,
+			@NonNull FolderCache destinationFolders) throws MessagingException
+	{
+		Map<@NonNull String, @NonNull FolderPair> existing= new HashMap<>();
+		for (FolderPair pair : pairs) {
+			if (pair.pattern != null) {
+				existing.put(pair.source, pair);
+			}
+		}
+		
+		List<@NonNull FolderPair> added= new ArrayList<>();
+		char sourceSeparator= sourceFolders.getSeparator();
+		char destinationSeparator= destinationFolders.getSeparator();
+		
+		for (FolderPattern pattern : patterns) {
+			watchdog.arm("list " + pattern.getSourcePrefix(), operationSeconds * 1000L);
+			
+			String sourcePrefix= sourceFolders.getFullName(pattern.getSourcePrefix());
+			String destinationPrefix= destinationFolders.getFullName(pattern.getDestinationPrefix());
+			
+			for (String sourceName : sourceFolders.listUnder(
+					pattern.getSourcePrefix(), pattern.isRecursive()))
+			{
+				if (existing.remove(sourceName) != null) {
+					continue;
 				}
+				
+				// Same path under the destination prefix, in the destination's separator
+				String relative= sourceName.substring(sourcePrefix.length() + 1);
+				String destinationName= destinationPrefix + destinationSeparator +
+						relative.replace(sourceSeparator, destinationSeparator);
+				
+				added.add(new FolderPair(sourceName, destinationName, pattern));
+			}
+		}
+		
+		// Whatever is left over wasn't in the listing any more
+		for (FolderPair pair : existing.values()) {
+			log.info("Job " + name + " no longer polling " + pair.source);
+			pairs.remove(pair);
+			sourceFolders.close(pair.source);
+		}
+		for (FolderPair pair : added) {
+			log.info("Job " + name + " now polling " + pair.source + " to " + pair.destination);
+		}
+		pairs.addAll(added);
+		
+		nextFolderRefresh= System.currentTimeMillis() + (folderRefreshSeconds * 1000L);
+	}
 	
-				if (destinationStore != null) {
-					try {
-						destinationStore.close();
-					} catch (MessagingException e) {
-						alertSink.sendAlert("Error Closing Destination Store", e);
+	/**
+	 * buildFetchProfile
+	 * 
+	 * What to fetch for each message before deciding what to do with it - the envelope and
+	 * whatever the routing rules need, plus the UID if we're keeping a UID map.
+	 * 
+	 * @return							Fetch profile
+	 */
+	private @NonNull FetchProfile buildFetchProfile() {
+		FetchProfile profile= routes.buildFetchProfile();
+		if (uidMap != null) {
+			profile.add(UIDFolder.FetchProfileItem.UID);
+		}
+		return profile;
+	}
+	
+	/**
+	 * copyMessages
+	 * 
+	 * Copy messages to a destination folder, recording where they landed if we're keeping a
+	 * UID map and the server supports UIDPLUS.
+	 * 
+	 * A copy between accounts is always an APPEND under the covers, whichever method is
+	 * configured - JavaMail only does a real COPY within one store - so with a UID map the
+	 * APPEND is done directly to get the APPENDUID results back.
+	 * 
+	 * @param sourceFolder				Open source folder
+	 * @param sourceName				Configured source folder name
+	 * @param messages					Messages to copy
+	 * @param targetFolder				Destination folder
+	 * 
+	 * @throws MessagingException
+	 */
+	private void copyMessages(
+			@NonNull Folder sourceFolder,
+			@NonNull String sourceName,
+			@NonNull Message[] messages,
+			@NonNull Folder targetFolder) throws MessagingException
+	{
+		UidMapStore map= uidMap;
+		if ((map != null) && (targetFolder instanceof IMAPFolder) &&
+				(sourceFolder instanceof UIDFolder))
+		{
+			AppendUID[] results= ((IMAPFolder)targetFolder).appendUIDMessages(messages);
+			
+			UIDFolder uidFolder= (UIDFolder)sourceFolder;
+			long sourceValidity= uidFolder.getUIDValidity();
+			
+			try {
+				for (int i= 0; i < messages.length; i++) {
+					// Null if the server doesn't do UIDPLUS
+					if ((results != null) && (i < results.length) && (results[i] != null)) {
+						map.put(sourceName, sourceValidity, uidFolder.getUID(messages[i]),
+								targetFolder.getFullName(),
+								results[i].uidvalidity, results[i].uid);
 					}
-					destinationStore= null;
 				}
+			} catch (IOException e) {
+				// The copy itself worked, so don't fail it over bookkeeping
+				log.error("Unable to record UID mapping for job " + name, e);
 			}
+			return;
 		}
 		
-		log.info("Thread for job " + name + " is shut down");
+		switch (method) {
+		case COPYMESSAGE:
+			sourceFolder.copyMessages(messages, targetFolder);
+			break;
+			
+		case ADDMESSAGE:
+			targetFolder.appendMessages(messages);
+			break;
+		}
 	}
 	
-	private Thread thread= null;
-
-	@Override
-	public void start() {
-		runLock.lock();
+	/**
+	 * isAlreadyCopied
+	 * 
+	 * Check the UID map for a message that was copied but never removed from the source
+	 * 
+	 * @param sourceFolder				Open source folder
+	 * @param sourceName				Configured source folder name
+	 * @param message					Source message
+	 * 
+	 * @return							True if the UID map says it's already on the destination
+	 * 
+	 * @throws MessagingException
+	 */
+	private boolean isAlreadyCopied(
+			@NonNull Folder sourceFolder,
+			@NonNull String sourceName,
+			@NonNull Message message) throws MessagingException
+	{
+		UidMapStore map= uidMap;
+		if ((map == null) || !(sourceFolder instanceof UIDFolder)) {
+			return false;
+		}
+		
+		UIDFolder uidFolder= (UIDFolder)sourceFolder;
+		return map.get(sourceName, uidFolder.getUIDValidity(), uidFolder.getUID(message)) != null;
+	}
+	
+	/**
+	 * noteRemoved
+	 * 
+	 * Remember the UID of a source message that's been flagged for delete, if we're keeping a
+	 * UID map.  The UID is normally already cached from the fetch profile.
+	 * 
+	 * @param sourceFolder				Open source folder
+	 * @param message					Message flagged for delete
+	 * @param removedUids				List to add the UID to
+	 * 
+	 * @throws MessagingException
+	 */
+	private void noteRemoved(
+			@NonNull Folder sourceFolder,
+			@NonNull Message message,
+			@NonNull List<Long> removedUids) throws MessagingException
+	{
+		if ((uidMap != null) && (sourceFolder instanceof UIDFolder)) {
+			removedUids.add(((UIDFolder)sourceFolder).getUID(message));
+		}
+	}
+	
+	/**
+	 * forgetRemoved
+	 * 
+	 * Drop UID map entries for source messages once the expunge has gone through.  After that
+	 * nothing can ask about them again, and without the delete records the map would only
+	 * grow and never be worth compacting.
+	 * 
+	 * @param sourceFolder				Open source folder
+	 * @param sourceName				Configured source folder name
+	 * @param removedUids				UIDs that were expunged, cleared on return
+	 * 
+	 * @throws MessagingException
+	 */
+	private void forgetRemoved(
+			@NonNull Folder sourceFolder,
+			@NonNull String sourceName,
+			@NonNull List<Long> removedUids) throws MessagingException
+	{
+		UidMapStore map= uidMap;
+		if ((map == null) || removedUids.isEmpty() || !(sourceFolder instanceof UIDFolder)) {
+			removedUids.clear();
+			return;
+		}
+		
+		long sourceValidity= ((UIDFolder)sourceFolder).getUIDValidity();
 		try {
-			if (thread != null) {
-				throw new RuntimeException("Duplicate thread launch");
+			for (Long uid : removedUids) {
+				map.remove(sourceName, sourceValidity, uid);
 			}
-			
-			run= true;
-			thread= new Thread(()->{ runLoop(); },
-					"job-" + name.toLowerCase().replace(' ', '-'));
-			thread.start();
-		} finally {
-			runLock.unlock();
+		} catch (IOException e) {
+			// The worst this leaves is a dead entry that's never looked up
+			log.error("Unable to remove UID mappings for job " + name, e);
 		}
+		removedUids.clear();
 	}
 	
-	@Override
-	public void stop() {
-		Thread waitThread= null;
+	/**
+	 * getStatePath
+	 * 
+	 * @param extension					File extension for the kind of state
+	 * 
+	 * @return							File for this job's state of that kind
+	 */
+	private @NonNull Path getStatePath(
+			@NonNull String extension)
+	{
+		return stateDirectory.resolve(URLEncoder.encode(name, StandardCharsets.UTF_8) + extension);
+	}
+	
+	/**
+	 * processMirrorPair
+	 * 
+	 * Mirror one folder pair - copy messages that are new since last time, leaving them in
+	 * the source, and copy \Seen and \Flagged changes over to the copies already made.
+	 * 
+	 * Flag changes are found with CONDSTORE (RFC 7162) so the cost goes with the number of
+	 * changes instead of the size of the folder.  When the folder has to be selected it's
+	 * done with QRESYNC, which hands back everything changed since the saved MODSEQ as part
+	 * of the select.  When it's still open from before, a FETCH CHANGEDSINCE does the same.
+	 * The copies are found through the UID map, so servers without UIDPLUS only get new
+	 * messages mirrored, not flag changes.
+	 * 
+	 * @param pair						Folder pair to process
+	 * @param sourceFolders				Folder cache for the source store
+	 * @param destinationFolders		Folder cache for the destination store
+	 * 
+	 * @return							Number of messages copied
+	 * 
+	 * @throws MessagingException
+	 * @throws IOException				If the sync state can't be saved
+	 */
+	private int processMirrorPair(
+			@NonNull FolderPair pair,
+			@NonNull FolderCache sourceFolders,
+			@NonNull FolderCache destinationFolders) throws MessagingException, IOException
+	{
+		long operationMilliseconds= operationSeconds * 1000L;
 		
-		runLock.lock();
-		try {
-			if (thread == null) {
-				throw new RuntimeException("Attempt to stop stopped thread");
+		FolderSyncState state= syncState.get(pair.source);
+		Folder sourceFolder= sourceFolders.getOpen(pair.source);
+		
+		boolean condstore= false;
+		boolean resynced= false;
+		List<@NonNull MailEvent> events= new ArrayList<>();
+		
+		if (sourceFolder == null) {
+			Folder resolved= sourceFolders.resolve(pair.source);
+			condstore= hasCapability(resolved, "CONDSTORE");
+			
+			if (statusCheck && condstore && (state != null)) {
+				// Any change at all raises HIGHESTMODSEQ, so if it hasn't moved we're done
+				watchdog.arm("status " + pair.source, operationMilliseconds);
+				FolderStatus status= FolderStatus.FetchWithModSeq(resolved);
+				
+				pair.lastPolled= System.currentTimeMillis();
+				if (status.getHighestModSeq() == state.getHighestModSeq()) {
+					return 0;
+				}
 			}
 			
-			thread.interrupt();
+			ResyncData resync= null;
+			if (condstore) {
+				if ((state != null) && (state.getHighestModSeq() > 0) &&
+						hasCapability(resolved, "QRESYNC"))
+				{
+					resync= new ResyncData(state.getUidValidity(), state.getHighestModSeq());
+					resynced= true;
+				} else {
+					resync= ResyncData.CONDSTORE;
+				}
+			}
 			
-			run= false;
-			runWake.signal();
-			waitThread= thread;
-			thread= null;
-		} finally {
-			runLock.unlock();
+			watchdog.arm("open " + pair.source, operationMilliseconds);
+			sourceFolder= sourceFolders.open(pair.source, resync, events);
+		} else {
+			condstore= hasCapability(sourceFolder, "CONDSTORE");
 		}
-
-		try {
-			waitThread.join(60_000);
-		} catch (InterruptedException e) {
+		
+		if (!(sourceFolder instanceof IMAPFolder)) {
+			throw new MessagingException("Mirroring needs an IMAP folder");
 		}
-	}
-	
-	private void timeoutFired() {
-		alertSink.sendAlert(
-				"Detected thread hang - attempting auto-restart", null);
+		IMAPFolder imapFolder= (IMAPFolder)sourceFolder;
 		
-		log.warn("Attempting emergency stop of thread due to hang");
-		stop();
+		long uidValidity= imapFolder.getUIDValidity();
+		if ((state != null) && (state.getUidValidity() != uidValidity)) {
+			alertSink.sendAlert("UIDVALIDITY of " + pair.source + " changed - mirroring it " +
+					"again from the start, which may duplicate messages", null);
+			
+			state= null;
+			resynced= false;
+			events.clear();
+		}
 		
-		// Wait the error time before restarting the thread - this keeps from spamming
-		// somebody's inbox with the same error every ten seconds.
-		log.info("Thread stop was successful - waiting to retry");
-		try {
-			Thread.sleep(errorCycleSeconds * 1000);
-		} catch (InterruptedException e) {
+		long lastUid= (state != null) ? state.getLastUid() : 0;
+		long modSeq= (state != null) ? state.getHighestModSeq() : 0;
+		
+		// Flag changes first, while we know which messages were already there
+		if (condstore && (modSeq > 0) && (lastUid > 0)) {
+			List<Message> changed= new ArrayList<>();
+			
+			if (resynced) {
+				for (MailEvent event : events) {
+					if (event instanceof MessageChangedEvent) {
+						changed.add(((MessageChangedEvent)event).getMessage());
+					}
+				}
+			} else {
+				watchdog.arm("changes " + pair.source, operationMilliseconds);
+				
+				Message[] since= imapFolder.getMessagesByUIDChangedSince(1, lastUid, modSeq);
+				for (Message message : since) {
+					changed.add(message);
+				}
+			}
+			
+			for (Message message : changed) {
+				if (message instanceof IMAPMessage) {
+					modSeq= Math.max(modSeq, ((IMAPMessage)message).getModSeq());
+				}
+			}
+			
+			int updated= propagateFlags(pair, imapFolder, changed, lastUid, destinationFolders);
+			if (updated > 0) {
+				log.info("Job " + name + " mirrored flag changes on " + updated +
+						" messages from " + pair.source);
+			}
 		}
-
-		log.info("Attempting auto-restart of thread");
-		start();
 		
-		alertSink.sendAlert("Auto-restart was successful", null);
+		if (condstore) {
+			// From the select - anything that changes after it gets picked up next time
+			modSeq= Math.max(modSeq, imapFolder.getHighestModSeq());
+		}
+		
+		// Then anything new.  UID n:* always includes the last message even if its UID is
+		// lower than n, so the UIDs have to be checked.
+		watchdog.arm("new " + pair.source, operationMilliseconds);
+		Message[] fresh= imapFolder.getMessagesByUID(lastUid + 1, UIDFolder.LASTUID);
+		
+		Folder defaultFolder= resolveDestination(pair, destinationFolders);
+		int copied= 0;
+		
+		for (int start= 0; start < fresh.length; start+= windowSize) {
+			Message[] window= Arrays.copyOfRange(fresh, start,
+					Math.min(start + windowSize, fresh.length));
+			
+			watchdog.arm("fetch " + pair.source, operationMilliseconds +
+					(window.length * FETCH_MILLISECONDS_PER_MESSAGE));
+			
+			FetchProfile profile= buildFetchProfile();
+			profile.add(UIDFolder.FetchProfileItem.UID);
+			profile.add(FetchProfile.Item.FLAGS);
+			imapFolder.fetch(window, profile);
+			
+			try {
+				Map<Folder, List<Message>> targets= new LinkedHashMap<>();
+				Map<Folder, Long> targetBytes= new HashMap<>();
+				long windowBytes= 0;
+				long windowLastUid= lastUid;
+				
+				for (Message message : window) {
+					if (message == null) {
+						continue;
+					}
+					
+					long uid= imapFolder.getUID(message);
+					if (uid <= lastUid) {
+						continue;
+					}
+					windowLastUid= Math.max(windowLastUid, uid);
+					
+					Folder targetFolder= defaultFolder;
+					long size= 0;
+					try {
+						RouteEnvelope envelope= RouteEnvelope.Create(message, routes.usesListId());
+						
+						RouteRule rule= routes.match(envelope);
+						if (rule != null) {
+							if (rule.getAction() == RouteRule.Action.SKIP) {
+								continue;
+							}
+							
+							String routeName= rule.getDestination();
+							if (routeName != null) {
+								targetFolder= destinationFolders.resolve(routeName);
+							}
+						}
+						
+						size= Math.max(0, envelope.getSize());
+					} catch (MessagingException e) {
+						log.warn("Unable to read envelope while mirroring " + pair.source, e);
+					}
+					
+					targets.computeIfAbsent(targetFolder, (f) -> new ArrayList<>()).add(message);
+					targetBytes.merge(targetFolder, size, Long::sum);
+					windowBytes+= size;
+				}
+				
+				for (Map.Entry<Folder, List<Message>> entry : targets.entrySet()) {
+					Message[] group= entry.getValue().toArray(new Message[0]);
+					long groupBytes= targetBytes.get(entry.getKey());
+					
+					// One APPEND per message, the same as the drain copy
+					throttle(watchdog, destination, group.length, groupBytes);
+					
+					watchdog.arm("mirror " + pair.source, operationMilliseconds +
+							(groupBytes * 1000L / minimumTransferRate));
+					
+					try {
+						// The source flags go along with the APPEND
+						copyMessages(imapFolder, pair.source, group, entry.getKey());
+					} catch (MessagingException e) {
+						alertSink.sendAlert("Error Mirroring " + group.length +
+								" Messages from " + pair.source, e);
+						
+						throw e;
+					}
+					
+					copied+= group.length;
+				}
+				
+				messageBytes.addAndGet(windowBytes);
+				
+				// Save after every window so a failure doesn't redo what's been copied
+				lastUid= windowLastUid;
+				syncState.put(pair.source, FolderSyncState.Create(uidValidity, modSeq, lastUid));
+				syncState.save();
+			} finally {
+				releaseWindow(window);
+			}
+		}
+		
+		syncState.put(pair.source, FolderSyncState.Create(uidValidity, modSeq, lastUid));
+		syncState.save();
+		
+		pair.backlog= 0;
+		pair.lastPolled= System.currentTimeMillis();
+		
+		return copied;
+	}
+	
+	/**
+	 * FlagChanges
+	 * 
+	 * Destination UIDs that need a flag set or cleared, for one destination folder
+	 */
+	private static class FlagChanges {
+		private final @NonNull String folder;
+		private final long uidValidity;
+		
+		private final List<Long> seenOn= new ArrayList<>();
+		private final List<Long> seenOff= new ArrayList<>();
+		private final List<Long> flaggedOn= new ArrayList<>();
+		private final List<Long> flaggedOff= new ArrayList<>();
+		
+		private FlagChanges(
+				@NonNull String folder,
+				long uidValidity)
+		{
+			this.folder= folder;
+			this.uidValidity= uidValidity;
+		}
+	}
+	
+	/**
+	 * propagateFlags
+	 * 
+	 * Copy the \Seen and \Flagged state of changed source messages to their copies.  The
+	 * changes are grouped so each destination folder gets at most four STOREs no matter how
+	 * many messages changed.
+	 * 
+	 * @param pair						Folder pair
+	 * @param sourceFolder				Open source folder
+	 * @param changed					Source messages whose flags changed
+	 * @param lastUid					Highest UID copied before this pass - anything above
+	 * 									it is new and gets its flags with the copy
+	 * @param destinationFolders		Folder cache for the destination store
+	 * 
+	 * @return							Number of messages updated
+	 * 
+	 * @throws MessagingException
+	 */
+	private int propagateFlags(
+			@NonNull FolderPair pair,
+			@NonNull IMAPFolder sourceFolder,
+			@NonNull List<Message> changed,
+			long lastUid,
+			@NonNull FolderCache destinationFolders) throws MessagingException
+	{
+		UidMapStore map= uidMap;
+		if ((map == null) || changed.isEmpty()) {
+			return 0;
+		}
+		
+		long sourceValidity= sourceFolder.getUIDValidity();
+		Map<@NonNull String, @NonNull FlagChanges> byFolder= new LinkedHashMap<>();
+		int updated= 0;
+		
+		for (Message message : changed) {
+			if ((message == null) || message.isExpunged()) {
+				continue;
+			}
+			
+			long uid= sourceFolder.getUID(message);
+			if (uid > lastUid) {
+				continue;
+			}
+			
+			UidMapping mapping= map.get(pair.source, sourceValidity, uid);
+			if (mapping == null) {
+				continue;
+			}
+			
+			FlagChanges changes= byFolder.computeIfAbsent(
+					mapping.getFolder() + "/" + mapping.getUidValidity(),
+					(key) -> new FlagChanges(mapping.getFolder(), mapping.getUidValidity()));
+			
+			Flags flags= message.getFlags();
+			(flags.contains(Flags.Flag.SEEN) ? changes.seenOn : changes.seenOff)
+					.add(mapping.getUid());
+			(flags.contains(Flags.Flag.FLAGGED) ? changes.flaggedOn : changes.flaggedOff)
+					.add(mapping.getUid());
+			
+			updated++;
+		}
+		
+		for (FlagChanges changes : byFolder.values()) {
+			watchdog.arm("open " + changes.folder, operationSeconds * 1000L);
+			// The UID map holds server names, which mustn't go through translation again
+			Folder folder= destinationFolders.openByFullName(changes.folder);
+			
+			if (!(folder instanceof IMAPFolder) ||
+					(((IMAPFolder)folder).getUIDValidity() != changes.uidValidity))
+			{
+				log.warn("UIDVALIDITY of destination " + changes.folder +
+						" changed - can't mirror flags to it");
+				continue;
+			}
+			IMAPFolder imapFolder= (IMAPFolder)folder;
+			
+			storeFlags(imapFolder, changes.seenOn, Flags.Flag.SEEN, true);
+			storeFlags(imapFolder, changes.seenOff, Flags.Flag.SEEN, false);
+			storeFlags(imapFolder, changes.flaggedOn, Flags.Flag.FLAGGED, true);
+			storeFlags(imapFolder, changes.flaggedOff, Flags.Flag.FLAGGED, false);
+		}
+		
+		return updated;
+	}
+	
+	private void storeFlags(
+			@NonNull IMAPFolder folder,
+			@NonNull List<Long> uids,
+			Flags.@NonNull Flag flag,
+			boolean set) throws MessagingException
+	{
+		if (uids.isEmpty()) {
+			return;
+		}
+		
+		long[] uidArray= new long[uids.size()];
+		for (int i= 0; i < uidArray.length; i++) {
+			uidArray[i]= uids.get(i);
+		}
+		
+		watchdog.arm("store " + folder.getFullName(), operationSeconds * 1000L +
+				(uidArray.length * FETCH_MILLISECONDS_PER_MESSAGE));
+		
+		// Null entries are copies that have since been deleted on the destination
+		List<Message> found= new ArrayList<>();
+		for (Message message : folder.getMessagesByUID(uidArray)) {
+			if (message != null) {
+				found.add(message);
+			}
+		}
+		
+		if (!found.isEmpty()) {
+			throttle(watchdog, destination, 1, 0);
+			folder.setFlags(found.toArray(new Message[0]), new Flags(flag), set);
+		}
+	}
+	
+	private static boolean hasCapability(
+			@NonNull Folder folder,
+			@NonNull String capability) throws MessagingException
+	{
+		Store store= folder.getStore();
+		return (store instanceof IMAPStore) && ((IMAPStore)store).hasCapability(capability);
+	}
+	
+	/**
+	 * drainPair
+	 * 
+	 * Work off a large backlog in one folder pair.  The UID range is split into contiguous
+	 * slices, and each slice gets its own pair of connections and works through its messages
+	 * in batches - one FETCH, one COPY or APPEND per destination folder, one STORE and one
+	 * EXPUNGE per batch instead of per message.  Messages that arrive while this is going on
+	 * are outside every slice and get picked up by the normal loop afterwards.
+	 * 
+	 * Building descriptions for the log is skipped here, and the workers don't record protocol
+	 * traces since their lines would interleave.  A failure can leave up to a batch copied but
+	 * not yet deleted, which is the same kind of duplicate the one-at-a-time loop can leave
+	 * with a single message.
+	 * 
+	 * @param pair						Folder pair
+	 * @param sourceFolder				Source folder, open on the main connection
+	 * 
+	 * @return							Number of messages transferred
+	 * 
+	 * @throws MessagingException
+	 */
+	private int drainPair(
+			@NonNull FolderPair pair,
+			@NonNull Folder sourceFolder) throws MessagingException
+	{
+		if (!(sourceFolder instanceof UIDFolder)) {
+			throw new MessagingException("Folder " + pair.source + " doesn't support UIDs");
+		}
+		UIDFolder uidFolder= (UIDFolder)sourceFolder;
+		
+		// Only UIDs on the main connection - the workers fetch envelopes for their own slices.
+		// This goes a window at a time like the normal loop, instead of asking for a message
+		// object for the whole folder in one go.
+		FetchProfile profile= new FetchProfile();
+		profile.add(UIDFolder.FetchProfileItem.UID);
+		
+		int total= sourceFolder.getMessageCount();
+		List<Long> uids= new ArrayList<>(total);
+		
+		for (int start= 1; start <= total; start+= windowSize) {
+			int end= Math.min(start + windowSize - 1, total);
+			Message messages[]= sourceFolder.getMessages(start, end);
+			
+			watchdog.arm("fetch UIDs " + pair.source, operationSeconds * 1000L +
+					(messages.length * FETCH_MILLISECONDS_PER_MESSAGE));
+			sourceFolder.fetch(messages, profile);
+			
+			for (Message message : messages) {
+				if (message != null) {
+					uids.add(uidFolder.getUID(message));
+				}
+			}
+			
+			releaseWindow(messages);
+		}
+		
+		int batches= (uids.size() + drainBatchSize - 1) / drainBatchSize;
+		int workers= Math.max(1, Math.min(drainConnections, batches));
+		int sliceSize= (uids.size() + workers - 1) / workers;
+		
+		log.info("Job " + name + " draining " + uids.size() + " messages from " +
+				pair.source + " over " + workers + " connections");
+		
+		// Each worker has its own watchdog, so this thread is only waiting from here on
+		watchdog.disarm();
+		
+		long drainStart= System.currentTimeMillis();
+		
+		ExecutorService executor= Executors.newFixedThreadPool(workers, (runnable) -> {
+			return new Thread(runnable, "job-" + name.toLowerCase().replace(' ', '-') + "-drain");
+		});
+		
+		int transferred= 0;
+		MessagingException failure= null;
+		
+		try {
+			List<Future<Integer>> results= new ArrayList<>();
+			for (int start= 0; start < uids.size(); start+= sliceSize) {
+				int end= Math.min(start + sliceSize, uids.size()) - 1;
+				results.add(executor.submit(new DrainWorker(pair, uids.get(start), uids.get(end))));
+			}
+			
+			// Wait for all of them even if one fails, so nothing is still running on return
+			for (Future<Integer> result : results) {
+				try {
+					transferred+= result.get();
+				} catch (ExecutionException e) {
+					if (failure == null) {
+						Throwable cause= e.getCause();
+						if (cause instanceof MessagingException) {
+							failure= (MessagingException)cause;
+						} else if (cause instanceof Exception) {
+							failure= new MessagingException("Drain worker failed", (Exception)cause);
+						} else {
+							failure= new MessagingException("Drain worker failed: " + cause);
+						}
+					}
+				}
+			}
+		} catch (InterruptedException e) {
+			// The job is being stopped, probably by the watchdog
+			failure= new MessagingException("Drain interrupted");
+		} finally {
+			executor.shutdownNow();
+		}
+		
+		log.info("Job " + name + " drained " + transferred + " messages from " + pair.source +
+				" in " + (System.currentTimeMillis() - drainStart) + "ms");
+		
+		if (failure != null) {
+			throw failure;
+		}
+		
+		return transferred;
+	}
+	
+	/**
+	 * DrainWorker
+	 * 
+	 * Transfers one slice of a folder's UID range over its own connections.  The worker has
+	 * its own watchdog, since the workers run side by side and would keep pushing back each
+	 * other's deadlines on a shared one.  On a hang the watchdog closes the worker's sockets,
+	 * which fails the stuck call, and the drain fails like any other error in the cycle.
+	 */
+	private class DrainWorker implements Callable<Integer> {
+		private final @NonNull FolderPair pair;
+		private final long firstUid;
+		private final long lastUid;
+		
+		// Every socket the worker has open, so a hang can be broken from the timeout thread
+		private final @NonNull ConnectionSet connections= ConnectionSet.Create();
+		
+		private volatile Thread workerThread= null;
+		
+		private final @NonNull Watchdog workerWatchdog= Watchdog.Create(timeoutManager, () -> {
+			hangDetected();
+		});
+		
+		private DrainWorker(
+				@NonNull FolderPair pair,
+				long firstUid,
+				long lastUid)
+		{
+			this.pair= pair;
+			this.firstUid= firstUid;
+			this.lastUid= lastUid;
+		}
+		
+		/**
+		 * hangDetected
+		 * 
+		 * Called on the timeout thread when an operation overruns.  This only closes sockets,
+		 * so it can't get stuck behind the locks the hung worker is holding.
+		 */
+		private void hangDetected() {
+			Thread hungThread= workerThread;
+			
+			alertSink.sendAlert("Detected drain worker hang during " +
+					workerWatchdog.getOperation() + " - abandoning the drain",
+					(hungThread != null) ? HangException.Create(hungThread) : null);
+			
+			connections.closeAll();
+			
+			// In case it's in a sleep rather than on a socket
+			if (hungThread != null) {
+				hungThread.interrupt();
+			}
+		}
+		
+		@Override
+		public Integer call() throws MessagingException {
+			workerThread= Thread.currentThread();
+			
+			long operationMilliseconds= operationSeconds * 1000L;
+			int transferred= 0;
+			
+			Store sourceStore= null;
+			Store destinationStore= null;
+			FolderCache sourceFolders= null;
+			FolderCache destinationFolders= null;
+			
+			try {
+				sourceStore= connectStore(
+						createSession(sourceWireBytes, connections, null),
+						source, "source", workerWatchdog);
+				destinationStore= connectStore(
+						createSession(destinationWireBytes, connections, null),
+						destination, "destination", workerWatchdog);
+				
+				sourceFolders= FolderCache.Create(sourceStore, 1);
+				destinationFolders= FolderCache.Create(destinationStore, maxOpenFolders);
+				
+				workerWatchdog.arm("drain open " + pair.source, operationMilliseconds);
+				Folder sourceFolder= sourceFolders.open(pair.source);
+				Folder defaultFolder= resolveDestination(pair, destinationFolders);
+				
+				Message[] messages= ((UIDFolder)sourceFolder).getMessagesByUID(firstUid, lastUid);
+				
+				FetchProfile sizeProfile= new FetchProfile();
+				sizeProfile.add(FetchProfile.Item.SIZE);
+				
+				for (int start= 0; start < messages.length; ) {
+					int end= Math.min(start + drainBatchSize, messages.length);
+					
+					List<Message> candidates= new ArrayList<>(end - start);
+					for (int i= start; i < end; i++) {
+						// Null means it was expunged out from under us
+						if (messages[i] != null) {
+							candidates.add(messages[i]);
+						}
+					}
+					if (candidates.isEmpty()) {
+						start= end;
+						continue;
+					}
+					
+					// Sizes first, which is cheap, so the batch can stop short on bytes.
+					// Whatever doesn't fit starts the next batch.
+					workerWatchdog.arm("drain size " + pair.source, operationMilliseconds +
+							(candidates.size() * FETCH_MILLISECONDS_PER_MESSAGE));
+					sourceFolder.fetch(candidates.toArray(new Message[0]), sizeProfile);
+					
+					List<Message> batch= new ArrayList<>(candidates.size());
+					long plannedBytes= 0;
+					int next= start;
+					while (next < end) {
+						Message message= messages[next];
+						if (message != null) {
+							long size= Math.max(0, message.getSize());
+							if (!batch.isEmpty() && (plannedBytes + size > drainBatchBytes)) {
+								break;
+							}
+							batch.add(message);
+							plannedBytes+= size;
+						}
+						next++;
+					}
+					start= next;
+					
+					Message[] batchArray= batch.toArray(new Message[0]);
+					
+					try {
+						workerWatchdog.arm("drain fetch " + pair.source, operationMilliseconds +
+								(batchArray.length * FETCH_MILLISECONDS_PER_MESSAGE));
+						sourceFolder.fetch(batchArray, buildFetchProfile());
+						
+						// Group by destination so each one is a single copy call
+						Map<Folder, List<Message>> targets= new LinkedHashMap<>();
+						Map<Folder, Long> targetBytes= new HashMap<>();
+						List<Message> alreadyCopied= new ArrayList<>();
+						List<Long> removedUids= new ArrayList<>();
+						long batchBytes= 0;
+						
+						for (Message message : batchArray) {
+							Folder targetFolder= defaultFolder;
+							long size= 0;
+							try {
+								RouteEnvelope envelope= RouteEnvelope.Create(
+										message, routes.usesListId());
+								
+								RouteRule rule= routes.match(envelope);
+								if (rule != null) {
+									if (rule.getAction() == RouteRule.Action.SKIP) {
+										continue;
+									}
+									
+									String routeName= rule.getDestination();
+									if (routeName != null) {
+										targetFolder= destinationFolders.resolve(routeName);
+									}
+								}
+								
+								size= Math.max(0, envelope.getSize());
+								batchBytes+= size;
+							} catch (MessagingException e) {
+								// Same as the normal loop - can't read it, so it goes to the default
+								log.warn("Unable to read envelope while draining " + pair.source, e);
+							}
+							
+							if (isAlreadyCopied(sourceFolder, pair.source, message)) {
+								// An earlier pass copied it but failed before the expunge
+								alreadyCopied.add(message);
+							} else {
+								targets.computeIfAbsent(targetFolder, (f) -> new ArrayList<>()).add(message);
+								targetBytes.merge(targetFolder, size, Long::sum);
+							}
+						}
+						
+						if (!alreadyCopied.isEmpty()) {
+							sourceFolder.setFlags(alreadyCopied.toArray(new Message[0]),
+									new Flags(Flags.Flag.DELETED), true);
+							for (Message message : alreadyCopied) {
+								noteRemoved(sourceFolder, message, removedUids);
+							}
+							transferred+= alreadyCopied.size();
+						}
+						
+						for (Map.Entry<Folder, List<Message>> entry : targets.entrySet()) {
+							Message[] group= entry.getValue().toArray(new Message[0]);
+							long groupBytes= targetBytes.get(entry.getKey());
+							
+							// A copy to another server is one APPEND per message, since JavaMail
+							// doesn't do MULTIAPPEND, so each message is a command to the throttle
+							throttle(workerWatchdog, destination, group.length, groupBytes);
+							
+							workerWatchdog.arm("drain transfer " + pair.source, operationMilliseconds +
+									(groupBytes * 1000L / minimumTransferRate));
+							
+							try {
+								copyMessages(sourceFolder, pair.source, group, entry.getKey());
+								sourceFolder.setFlags(group, new Flags(Flags.Flag.DELETED), true);
+								for (Message message : group) {
+									noteRemoved(sourceFolder, message, removedUids);
+								}
+							} catch (MessagingException e) {
+								alertSink.sendAlert("Error Draining " + group.length +
+										" Messages from " + pair.source, e);
+								
+								throw e;
+							}
+							
+							transferred+= group.length;
+						}
+						
+						// Expunge every batch, so a failure later on doesn't redo this one
+						workerWatchdog.arm("drain expunge " + pair.source, operationMilliseconds);
+						sourceFolder.expunge();
+						forgetRemoved(sourceFolder, pair.source, removedUids);
+						
+						messageBytes.addAndGet(batchBytes);
+					} finally {
+						releaseWindow(batchArray);
+					}
+				}
+			} finally {
+				workerWatchdog.cancel();
+				
+				if (sourceFolders != null) {
+					sourceFolders.release();
+				}
+				if (destinationFolders != null) {
+					destinationFolders.release();
+				}
+				
+				closeQuietly(sourceStore);
+				closeQuietly(destinationStore);
+			}
+			
+			return transferred;
+		}
+	}
+	
+	/**
+	 * recordHostFailure
+	 * 
+	 * Count a cycle failure against whichever host's connection dropped, if we can tell
+	 * 
+	 * @param e							Exception from the cycle
+	 * @param sourceStore				Source store, or null
+	 * @param destinationStore			Destination store, or null
+	 */
+	private void recordHostFailure(
+			@NonNull Exception e,
+			@Nullable Store sourceStore,
+			@Nullable Store destinationStore)
+	{
+		if (!CircuitBreakerRegistry.IsHostFailure(e)) {
+			return;
+		}
+		
+		Store failedStore= null;
+		for (Throwable cause= e; (cause != null) && (failedStore == null); cause= cause.getCause()) {
+			if (cause instanceof StoreClosedException) {
+				failedStore= ((StoreClosedException)cause).getStore();
+			} else if (cause instanceof FolderClosedException) {
+				Folder folder= ((FolderClosedException)cause).getFolder();
+				if (folder != null) {
+					failedStore= folder.getStore();
+				}
+			}
+		}
+		
+		Mailbox failed= null;
+		if ((failedStore != null) && (failedStore == sourceStore)) {
+			failed= source;
+		} else if ((failedStore != null) && (failedStore == destinationStore)) {
+			failed= destination;
+		}
+		
+		if (failed != null) {
+			CircuitBreaker breaker= getBreaker(failed);
+			if (breaker != null) {
+				breaker.recordFailure(e);
+			}
+		}
+	}
+	
+	/**
+	 * recordHostSuccess
+	 * 
+	 * Reset the failure counts for both hosts after a clean cycle
+	 */
+	private void recordHostSuccess() {
+		for (Mailbox mailbox : new Mailbox[] { source, destination }) {
+			CircuitBreaker breaker= getBreaker(mailbox);
+			if (breaker != null) {
+				breaker.recordSuccess();
+			}
+		}
+	}
+	
+	private void saveUidMap() {
+		try {
+			uidMap.flush();
+			uidMap.compactIfNeeded();
+		} catch (IOException e) {
+			alertSink.sendAlert("Unable to save UID map", e);
+		}
+	}
+	
+	@Override
+	protected @NonNull Properties buildSessionProperties(
+			@NonNull ByteCounter counter,
+			@Nullable ConnectionSet connections)
+	{
+		Properties props= super.buildSessionProperties(counter, connections);
+		
+		// Set a 1M append buffer, or else IMAP store will buffer the entire message
+		props.setProperty("mail.imaps.appendbuffersize", "1048576");
+		
+		if (compress) {
+			// RFC 4978 - JavaMail only turns this on if the server advertises it, so it's
+			// safe to ask for everywhere.  Mail text usually deflates 3-5x.
+			props.setProperty("mail.imaps.compress.enable", "true");
+			
+			if (compressLevel != null) {
+				props.setProperty("mail.imaps.compress.level", compressLevel.toString());
+			}
+		}
+		
+		return props;
+	}
+	
+	/**
+	 * addTraces
+	 * 
+	 * Append the recent protocol traces to an alert message, if we have them
+	 * 
+	 * @param message					Alert message
+	 * 
+	 * @return							Message with traces added
+	 */
+	@Override
+	protected @NonNull String addTraces(
+			@NonNull String message)
+	{
+		if ((sourceTrace == null) || (destinationTrace == null)) {
+			return message;
+		}
+		
+		return message +
+				"\n\nRecent source protocol (" + source.getHost() + "):\n" +
+				sourceTrace.dump() +
+				"\nRecent destination protocol (" + destination.getHost() + "):\n" +
+				destinationTrace.dump();
+	}
+	
+	// Results of the last cycle, for the admin interface
+	private volatile long lastCycleStart= 0;
+	private volatile long lastCycleMilliseconds= 0;
+	private volatile int lastCycleTransferred= 0;
+	
+	@Override
+	protected void runLoop() {
+		log.info("Thread for job " + name + " is running");
+		
+		if (stateDirectory != null) {
+			try {
+				uidMap= UidMapStore.Open(getStatePath(".uidmap"));
+			} catch (IOException e) {
+				alertSink.sendAlert("Unable to open UID map - continuing without it", e);
+			}
+		}
+		
+		Session sourceSession= createSession(sourceWireBytes, sourceTrace);
+		Session destinationSession= createSession(destinationWireBytes, destinationTrace);
+		
+		Store sourceStore= null;
+		Store destinationStore= null;
+		
+		FolderCache sourceFolders= null;
+		FolderCache destinationFolders= null;
+		
+		// Set while paused, so the first cycle afterwards checks the idle connections
+		boolean resuming= false;
+		
+		for (boolean localRun= true; localRun; ) {
+			boolean closeStores= false;
+			
+			// Start with cycle seconds - any error will kick us to the error value which is
+			// much longer to prevent spamming the alert sink.  Getting the same fail message
+			// every 10 seconds sucks.
+			long waitMilliseconds= cycleSeconds * 1000L;
+			
+			if (paused) {
+				// Paused from the admin interface - the connections are left alone so
+				// resuming doesn't have to log in again, and we just wait to be resumed.
+				resuming= true;
+				waitMilliseconds= 0;
+			} else if (waitForHosts(source, destination)) {
+				// One of the hosts is down.  Rather than add to the connection attempts and
+				// the alerts, drop the connections and wait for the breaker to wake us up.
+				closeStores= true;
+				waitMilliseconds= 0;
+			} else {
+				boolean resumeCycle= resuming;
+				resuming= false;
+				
+				if (cycleRequested) {
+					// Somebody asked for a cycle right now, so everything is due
+					cycleRequested= false;
+					for (FolderPair pair : pairs) {
+						pair.tracker.pollNow();
+					}
+				}
+				
+				JobCycleEvent cycleEvent= new JobCycleEvent();
+				cycleEvent.begin();
+				
+				long cycleStart= System.currentTimeMillis();
+			
+				long startMessageBytes= messageBytes.get();
+				long startSourceRead= sourceWireBytes.getRead();
+				long startDestinationWritten= destinationWireBytes.getWritten();
+				int cycleTransferred= 0;
+				int cyclePolled= 0;
+			
+				// The watchdog detects thread hangs
+				//
+				// For some reason there's this one specific message in Lotus Notes where the IMAP
+				// state gets screwed up and the fetch thread just sits there doing nothing.  99:1
+				// it's an implementation bug in notes, but I'm having to hit a version 8.x server
+				// that can't be updated for "reasons".
+				//
+				// This at least keeps us from going catatonic.  It used to be a single timeout
+				// for the whole cycle, which a big enough backlog would trip by itself, so now
+				// each operation is armed with its own deadline as we go.
+			
+				try {
+					if (resumeCycle) {
+						// The connections sat idle for the whole pause, and servers drop idle
+						// connections.  Open folders each have their own connection, so those
+						// are just let go, and the stores get a NOOP to see if they're still
+						// there.
+						if (sourceFolders != null) {
+							sourceFolders.release();
+						}
+						if (destinationFolders != null) {
+							destinationFolders.release();
+						}
+						
+						if ((sourceStore != null) && !isStoreAlive(sourceStore, "source")) {
+							log.info("Job " + name + " lost the source connection while paused");
+							closeQuietly(sourceStore);
+							sourceStore= null;
+						}
+						if ((destinationStore != null) &&
+								!isStoreAlive(destinationStore, "destination"))
+						{
+							log.info("Job " + name + " lost the destination connection while paused");
+							closeQuietly(destinationStore);
+							destinationStore= null;
+						}
+					}
+					
+					// Connect the stores if they aren't already connected
+					if (sourceStore == null) {
+						sourceStore= connectStore(sourceSession, source, "source");
+						sourceFolders= FolderCache.Create(sourceStore, maxOpenFolders);
+					}
+					if (destinationStore == null) {
+						destinationStore= connectStore(destinationSession, destination, "destination");
+						destinationFolders= FolderCache.Create(destinationStore, maxOpenFolders);
+					}
+
+					if (mirror && (syncState == null)) {
+						syncState= SyncStateStore.Open(getStatePath(".sync"));
+					}
+					
+					if (!patterns.isEmpty() && (System.currentTimeMillis() >= nextFolderRefresh)) {
+						refreshFolderTree(sourceFolders, destinationFolders);
+					}
+					
+					long now= System.currentTimeMillis();
+					for (FolderPair pair : pairs) {
+						if (pair.tracker.isDue(now)) {
+							int transferred= 0;
+							try {
+								transferred= processPair(pair, sourceFolders, destinationFolders);
+							} catch (MessagingException e) {
+								// Depending on what we were doing a deleted folder can show up
+								// as any kind of failure, so ask before giving up on the cycle
+								if ((pair.pattern == null) ||
+										!((e instanceof FolderNotFoundException) ||
+										!sourceFolders.checkExists(pair.source)))
+								{
+									throw e;
+								}
+								
+								// An expanded folder was deleted or renamed, which is the sign
+								// the tree changed - list again next cycle instead of failing
+								log.info("Folder " + pair.source + " is gone - refreshing folder tree");
+								pairs.remove(pair);
+								nextFolderRefresh= 0;
+								continue;
+							}
+							cycleTransferred+= transferred;
+							cyclePolled++;
+						
+							pair.tracker.recordPoll(System.currentTimeMillis(), transferred);
+						}
+					}
+				
+					lastError= null;
+					recordHostSuccess();
+					
+					if ((uidMap != null) && (cycleTransferred > 0)) {
+						saveUidMap();
+					}
+					
+					if (cycleTransferred > 0) {
+						log.info("Job " + name + " transferred " + cycleTransferred +
+								" messages, " + (messageBytes.get() - startMessageBytes) +
+								" message bytes, " + (sourceWireBytes.getRead() - startSourceRead) +
+								" bytes read from source, " +
+								(destinationWireBytes.getWritten() - startDestinationWritten) +
+								" bytes written to destination");
+					}
+				
+					// Sleep until the next pair is due, which with a fixed schedule is just the
+					// cycle time.
+					long nextPoll= Long.MAX_VALUE;
+					for (FolderPair pair : pairs) {
+						nextPoll= Math.min(nextPoll, pair.tracker.getNextPoll());
+					}
+					if (nextPoll != Long.MAX_VALUE) {
+						waitMilliseconds= Math.max(
+								MINIMUM_WAIT_MILLISECONDS, nextPoll - System.currentTimeMillis());
+					}
+				} catch (Exception e) {
+					alertSink.sendAlert(addTraces("Error in Operations"), e);
+					lastError= e.toString();
+					recordHostFailure(e, sourceStore, destinationStore);
+
+					// If something went wrong, close all the stores and retry.  Hopefully that will
+					// clear out any bogus connection state.
+					closeStores= true;
+				
+					// Wait longer so we don't spam the alert sink - but if a host is down, its
+					// breaker wakes us up as soon as it's back.  Right after a resume somebody
+					// is probably watching, so that one gets retried on the normal schedule.
+					if (resumeCycle) {
+						waitMilliseconds= cycleSeconds * 1000L;
+					} else {
+						waitMilliseconds= errorCycleSeconds * 1000L;
+					}
+					waitForHosts(source, destination);
+				} finally {
+					// Nothing to watch while we're waiting for the next cycle
+					watchdog.disarm();
+				
+					cycleEvent.end();
+					lastCycleStart= cycleStart;
+					lastCycleMilliseconds= System.currentTimeMillis() - cycleStart;
+					lastCycleTransferred= cycleTransferred;
+					
+					if (cycleEvent.shouldCommit()) {
+						cycleEvent.job= name;
+						cycleEvent.foldersPolled= cyclePolled;
+						cycleEvent.messages= cycleTransferred;
+						cycleEvent.bytes= messageBytes.get() - startMessageBytes;
+						cycleEvent.failed= closeStores;
+						cycleEvent.commit();
+					}
+				}
+			}
+			
+			// This just waits for the timeout or a wake-up signal
+			localRun= waitForCycle(waitMilliseconds);
+
+			// If we're suppsed to close the stores, or if we're running down
+			if (closeStores || !localRun) {
+				if (sourceFolders != null) {
+					sourceFolders.release();
+					sourceFolders= null;
+				}
+				if (destinationFolders != null) {
+					destinationFolders.release();
+					destinationFolders= null;
+				}
+				
+				if (sourceStore != null) {
+					try {
+						sourceStore.close();
+					} catch (MessagingException e) {
+						alertSink.sendAlert("Error Closing Source Store", e);
+					}
+					sourceStore= null;
+				}
+	
+				if (destinationStore != null) {
+					try {
+						destinationStore.close();
+					} catch (MessagingException e) {
+						alertSink.sendAlert("Error Closing Destination Store", e);
+					}
+					destinationStore= null;
+				}
+			}
+		}
+		
+		watchdog.cancel();
+		
+		UidMapStore map= uidMap;
+		if (map != null) {
+			map.close();
+			uidMap= null;
+		}
+		
+		log.info("Thread for job " + name + " is shut down");
+	}
+	
+	@Override
+	public @NonNull JsonObject getStatus() {
+		JsonObject status= createStatus("imap-forward");
+		status.addProperty("lastCycleStart", lastCycleStart);
+		status.addProperty("lastCycleMilliseconds", lastCycleMilliseconds);
+		status.addProperty("lastCycleTransferred", lastCycleTransferred);
+		status.addProperty("messageBytes", messageBytes.get());
+		status.addProperty("sourceBytesRead", sourceWireBytes.getRead());
+		status.addProperty("destinationBytesWritten", destinationWireBytes.getWritten());
+		
+		JsonArray folders= new JsonArray();
+		for (FolderPair pair : pairs) {
+			JsonObject folder= new JsonObject();
+			folder.addProperty("source", pair.source);
+			folder.addProperty("destination", pair.destination);
+			folder.addProperty("backlog", pair.backlog);
+			folder.addProperty("lastPolled", pair.lastPolled);
+			folders.add(folder);
+		}
+		status.add("folders", folders);
+		
+		return status;
 	}
 }
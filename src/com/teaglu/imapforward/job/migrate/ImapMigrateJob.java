@@ -0,0 +1,835 @@
+/****************************************************************************
+ * Copyright 2022 Teaglu, LLC                                               *
+ *                                                                          *
+ * Licensed under the Apache License, Version 2.0 (the "License");          *
+ * you may not use this file except in compliance with the License.         *
+ * You may obtain a copy of the License at                                  *
+ *                                                                          *
+ *   http://www.apache.org/licenses/LICENSE-2.0                             *
+ *                                                                          *
+ * Unless required by applicable law or agreed to in writing, software      *
+ * distributed under the License is distributed on an "AS IS" BASIS,        *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. *
+ * See the License for the specific language governing permissions and      *
+ * limitations under the License.                                           *
+ ****************************************************************************/
+
+package com.teaglu.imapforward.job.migrate;
+
+import java.io.IOException;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.Properties;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.eclipse.jdt.annotation.NonNull;
+import org.eclipse.jdt.annotation.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.gson.JsonObject;
+import com.teaglu.composite.Composite;
+import com.teaglu.composite.exception.FormatException;
+import com.teaglu.composite.exception.SchemaException;
+import com.teaglu.imapforward.alert.AlertSink;
+import com.teaglu.imapforward.job.AbstractImapJob;
+import com.teaglu.imapforward.job.HangException;
+import com.teaglu.imapforward.job.Job;
+import com.teaglu.imapforward.job.Mailbox;
+import com.teaglu.imapforward.job.imap.FolderCache;
+import com.teaglu.imapforward.mail.ByteCounter;
+import com.teaglu.imapforward.mail.ConnectionSet;
+import com.teaglu.imapforward.state.MigrationStateStore;
+import com.teaglu.imapforward.state.PartitionProgress;
+import com.teaglu.imapforward.timeout.TimeoutManager;
+import com.teaglu.imapforward.timeout.Watchdog;
+
+import jakarta.mail.FetchProfile;
+import jakarta.mail.Folder;
+import jakarta.mail.Message;
+import jakarta.mail.MessagingException;
+import jakarta.mail.Session;
+import jakarta.mail.Store;
+import jakarta.mail.UIDFolder;
+import jakarta.mail.search.SearchTerm;
+
+/**
+ * ImapMigrateJob
+ *
+ * A job that copies a whole mailbox to another server, for moving a customer over.  Nothing
+ * is removed from the source.
+ *
+ * Each source folder is split into partitions by INTERNALDATE window, and a pool of workers,
+ * each with its own pair of connections, works through them newest first.  Progress is saved
+ * after every batch, so after a failure or a restart the job picks up where each partition
+ * left off.  A batch that was appended but not saved when the process died gets appended
+ * again, so the worst case is one batch of duplicates per worker.
+ *
+ * Once everything is copied the job sits idle.  A cycle requested from the admin interface
+ * runs the last window of each folder again, which copies anything that arrived since.
+ */
+public class ImapMigrateJob extends AbstractImapJob {
+	private static final Logger log= LoggerFactory.getLogger(ImapMigrateJob.class);
+	
+	private final @NonNull ByteCounter sourceWireBytes= ByteCounter.Create();
+	private final @NonNull ByteCounter destinationWireBytes= ByteCounter.Create();
+	
+	private int workers= 4;
+	private int windowDays= 30;
+	private int batchSize= 50;
+	
+	// Interval between progress lines in the log while workers are running
+	private static final long PROGRESS_MILLISECONDS= 60_000;
+	
+	// A worker that fails this many partitions in a row stops taking more
+	private static final int WORKER_FAILURE_LIMIT= 3;
+	
+	private final @NonNull Path statePath;
+	
+	private static class FolderPair {
+		private @NonNull String source;
+		private @NonNull String destination;
+		
+		private FolderPair(
+				@NonNull Composite spec) throws SchemaException
+		{
+			source= spec.getRequiredString("source");
+			destination= spec.getRequiredString("destination");
+		}
+	}
+	
+	private final @NonNull Mailbox source;
+	private final @NonNull Mailbox destination;
+	
+	private final List<@NonNull FolderPair> pairs= new ArrayList<>();
+	
+	// Progress of the whole migration, including earlier runs
+	private volatile int totalMessages= 0;
+	private final AtomicLong copiedMessages= new AtomicLong();
+	private final AtomicLong copiedBytes= new AtomicLong();
+	
+	// Progress since this run started, which is what the rates come from
+	private volatile long runStart= 0;
+	private final AtomicLong runMessages= new AtomicLong();
+	private final AtomicLong runBytes= new AtomicLong();
+	
+	private volatile int partitionsTotal= 0;
+	private final AtomicInteger partitionsDone= new AtomicInteger();
+	private final AtomicInteger partitionsFailed= new AtomicInteger();
+	
+	private volatile boolean complete= false;
+	
+	private ImapMigrateJob(
+			@NonNull Composite spec,
+			@NonNull AlertSink alertSink,
+			@NonNull TimeoutManager timeoutManager) throws SchemaException
+	{
+		super(spec, alertSink, timeoutManager);
+		
+		Integer workersSpec= spec.getOptionalInteger("workers");
+		if (workersSpec != null) {
+			if (workersSpec < 1) {
+				throw new FormatException("workers must be at least 1");
+			}
+			workers= workersSpec;
+		}
+		Integer windowSpec= spec.getOptionalInteger("windowDays");
+		if (windowSpec != null) {
+			if (windowSpec < 1) {
+				throw new FormatException("windowDays must be at least 1");
+			}
+			windowDays= windowSpec;
+		}
+		Integer batchSpec= spec.getOptionalInteger("batchSize");
+		if (batchSpec != null) {
+			if (batchSpec < 1) {
+				throw new FormatException("batchSize must be at least 1");
+			}
+			batchSize= batchSpec;
+		}
+		
+		// Without somewhere to keep progress there's nothing to resume from
+		Path stateDirectory= Paths.get(spec.getRequiredString("stateDirectory"));
+		statePath= stateDirectory.resolve(
+				URLEncoder.encode(name, StandardCharsets.UTF_8) + ".migrate");
+		
+		source= Mailbox.Create(spec.getRequiredObject("source"));
+		destination= Mailbox.Create(spec.getRequiredObject("destination"));
+		
+		for (Composite pairSpec : spec.getRequiredObjectArray("folders")) {
+			pairs.add(new FolderPair(pairSpec));
+		}
+	}
+	
+	public static @NonNull Job Create(
+			@NonNull Composite spec,
+			@NonNull AlertSink alertSink,
+			@NonNull TimeoutManager timeoutManager) throws SchemaException
+	{
+		return new ImapMigrateJob(spec, alertSink, timeoutManager);
+	}
+	
+	/**
+	 * plan
+	 * 
+	 * Split any folders that haven't been planned yet into partitions, and collect the
+	 * partitions that still have work in them.
+	 * 
+	 * @param state						Migration state
+	 * @param sourceSession				Session for the source server
+	 * 
+	 * @return							Partitions to run, newest first
+	 * 
+	 * @throws MessagingException
+	 * @throws IOException				If the plan can't be saved
+	 */
+	private @NonNull List<@NonNull Partition> plan(
+			@NonNull MigrationStateStore state,
+			@NonNull Session sourceSession) throws MessagingException, IOException
+	{
+		List<@NonNull Partition> work= new ArrayList<>();
+		int total= 0;
+		long copied= 0;
+		long bytes= 0;
+		
+		Store store= null;
+		FolderCache folders= null;
+		try {
+			for (FolderPair pair : pairs) {
+				Integer count= state.getFolderCount(pair.source);
+				if (count == null) {
+					if (store == null) {
+						store= connectStore(sourceSession, source, "source");
+						folders= FolderCache.Create(store, 1);
+					}
+					count= planFolder(pair, folders, state);
+				}
+				total+= count;
+				
+				for (String window : state.getWindows(pair.source)) {
+					Partition partition= Partition.Parse(pair.source, pair.destination, window);
+					if (partition == null) {
+						log.warn("Ignoring bad partition " + window + " for " + pair.source);
+						continue;
+					}
+					
+					PartitionProgress progress= state.get(pair.source, window);
+					if (progress != null) {
+						copied+= progress.getCopied();
+						bytes+= progress.getBytes();
+					}
+					
+					if ((progress == null) || !progress.isDone() || partition.isOpenEnded()) {
+						work.add(partition);
+					}
+				}
+			}
+		} finally {
+			watchdog.disarm();
+			
+			if (store != null) {
+				try {
+					store.close();
+				} catch (MessagingException e) {
+					log.warn("Error closing planning store", e);
+				}
+			}
+		}
+		
+		totalMessages= total;
+		copiedMessages.set(copied);
+		copiedBytes.set(bytes);
+		
+		// Newest first, since that's what the customer is going to look for first
+		Comparator<@NonNull Partition> order= Comparator.comparing(
+				Partition::getFrom, Comparator.nullsFirst(Comparator.naturalOrder()));
+		work.sort(order.reversed());
+		
+		return work;
+	}
+	
+	/**
+	 * planFolder
+	 * 
+	 * Split one folder into windows starting from the date of its first message
+	 * 
+	 * @param pair						Folder pair
+	 * @param folders					Folder cache for the source store
+	 * @param state						Migration state to record the plan in
+	 * 
+	 * @return							Messages in the folder
+	 * 
+	 * @throws MessagingException
+	 * @throws IOException
+	 */
+	private int planFolder(
+			@NonNull FolderPair pair,
+			@NonNull FolderCache folders,
+			@NonNull MigrationStateStore state) throws MessagingException, IOException
+	{
+		watchdog.arm("plan " + pair.source, operationSeconds * 1000L);
+		
+		Folder folder= folders.resolve(pair.source);
+		folder.open(Folder.READ_ONLY);
+		
+		int count;
+		LocalDate first= null;
+		try {
+			count= folder.getMessageCount();
+			if (count > 0) {
+				// Messages are usually in arrival order, and if this one isn't the first
+				// window has no start anyway
+				Date received= folder.getMessage(1).getReceivedDate();
+				if (received != null) {
+					first= received.toInstant().atZone(ZoneId.systemDefault()).toLocalDate();
+				}
+			}
+		} finally {
+			folder.close(false);
+		}
+		
+		List<@NonNull Partition> partitions= new ArrayList<>();
+		LocalDate today= LocalDate.now();
+		
+		LocalDate boundary= (first != null) ? first.plusDays(windowDays) : null;
+		if ((boundary == null) || boundary.isAfter(today)) {
+			partitions.add(Partition.Create(pair.source, pair.destination, null, null));
+		} else {
+			partitions.add(Partition.Create(pair.source, pair.destination, null, boundary));
+			
+			for (;;) {
+				LocalDate next= boundary.plusDays(windowDays);
+				if (next.isAfter(today)) {
+					partitions.add(Partition.Create(pair.source, pair.destination, boundary, null));
+					break;
+				}
+				
+				partitions.add(Partition.Create(pair.source, pair.destination, boundary, next));
+				boundary= next;
+			}
+		}
+		
+		for (Partition partition : partitions) {
+			state.put(pair.source, partition.getWindow(),
+					PartitionProgress.Create(0, 0, -1, 0, 0, false));
+		}
+		state.putFolderCount(pair.source, count);
+		state.save();
+		
+		log.info("Job " + name + " planned " + pair.source + " as " + partitions.size() +
+				" partitions with " + count + " messages");
+		
+		return count;
+	}
+	
+	/**
+	 * runPartitions
+	 * 
+	 * Work through partitions with the worker pool, logging progress while it runs
+	 * 
+	 * @param work						Partitions to run
+	 * @param state						Migration state
+	 * 
+	 * @return							First failure, or null if everything worked
+	 * 
+	 * @throws MessagingException		If interrupted
+	 */
+	private @Nullable Exception runPartitions(
+			@NonNull List<@NonNull Partition> work,
+			@NonNull MigrationStateStore state) throws MessagingException
+	{
+		if (work.isEmpty()) {
+			// Everything was already copied, and a pool of no threads isn't allowed
+			return null;
+		}
+		
+		Queue<@NonNull Partition> queue= new ConcurrentLinkedQueue<>(work);
+		AtomicReference<Exception> firstFailure= new AtomicReference<>();
+		
+		int count= Math.min(workers, work.size());
+		ExecutorService executor= Executors.newFixedThreadPool(count, (runnable) -> {
+			return new Thread(runnable, "job-" + name.toLowerCase().replace(' ', '-') + "-migrate");
+		});
+		
+		try {
+			List<Future<Integer>> results= new ArrayList<>();
+			for (int i= 0; i < count; i++) {
+				results.add(executor.submit(new MigrateWorker(queue, state, firstFailure)));
+			}
+			executor.shutdown();
+			
+			while (!executor.awaitTermination(PROGRESS_MILLISECONDS, TimeUnit.MILLISECONDS)) {
+				logProgress();
+			}
+			
+			for (Future<Integer> result : results) {
+				try {
+					result.get();
+				} catch (ExecutionException e) {
+					// Workers catch their own failures, so this would be a bug
+					Throwable cause= e.getCause();
+					firstFailure.compareAndSet(null, (cause instanceof Exception) ?
+							(Exception)cause : new MessagingException("Worker failed: " + cause));
+				}
+			}
+		} catch (InterruptedException e) {
+			// The job is being stopped, probably by the watchdog
+			throw new MessagingException("Migration interrupted");
+		} finally {
+			executor.shutdownNow();
+		}
+		
+		logProgress();
+		
+		// Anything a worker gave up on is still in the queue and gets another try next cycle
+		if ((firstFailure.get() == null) && !queue.isEmpty()) {
+			firstFailure.set(new MessagingException(queue.size() + " partitions not run"));
+		}
+		
+		return firstFailure.get();
+	}
+	
+	/**
+	 * MigrateWorker
+	 * 
+	 * Takes partitions off the shared queue until it's empty, over its own connections.  A
+	 * partition that fails is counted and left for the next cycle.
+	 * 
+	 * Each worker has its own watchdog and its own sessions.  When an operation hangs the
+	 * watchdog cuts the worker's sockets out from under it, which makes the stuck call fail,
+	 * and the worker puts the partition back on the queue and carries on with new
+	 * connections.  The other workers and the job thread are left alone.
+	 */
+	private class MigrateWorker implements Callable<Integer> {
+		private final @NonNull Queue<@NonNull Partition> queue;
+		private final @NonNull MigrationStateStore state;
+		private final @NonNull AtomicReference<Exception> firstFailure;
+		
+		// Every socket the worker has open, so a hang can be broken from the timeout thread
+		private final @NonNull ConnectionSet connections= ConnectionSet.Create();
+		private final @NonNull Session sourceSession;
+		private final @NonNull Session destinationSession;
+		
+		private volatile Thread workerThread= null;
+		
+		// Set by the watchdog when it cuts the connections
+		private volatile boolean hung= false;
+		
+		private final @NonNull Watchdog workerWatchdog= Watchdog.Create(timeoutManager, () -> {
+			hangDetected();
+		});
+		
+		private MigrateWorker(
+				@NonNull Queue<@NonNull Partition> queue,
+				@NonNull MigrationStateStore state,
+				@NonNull AtomicReference<Exception> firstFailure)
+		{
+			this.queue= queue;
+			this.state= state;
+			this.firstFailure= firstFailure;
+			
+			sourceSession= createSession(sourceWireBytes, connections, null);
+			destinationSession= createSession(destinationWireBytes, connections, null);
+		}
+		
+		/**
+		 * hangDetected
+		 * 
+		 * Called on the timeout thread when an operation overruns.  This only closes sockets,
+		 * so it can't get stuck behind the locks the hung worker is holding.
+		 */
+		private void hangDetected() {
+			Thread hungThread= workerThread;
+			
+			alertSink.sendAlert("Detected worker hang during " + workerWatchdog.getOperation() +
+					" - reconnecting and retrying the partition",
+					(hungThread != null) ? HangException.Create(hungThread) : null);
+			
+			hung= true;
+			connections.closeAll();
+			
+			// In case it's in a sleep rather than on a socket
+			if (hungThread != null) {
+				hungThread.interrupt();
+			}
+		}
+		
+		@Override
+		public Integer call() {
+			workerThread= Thread.currentThread();
+			
+			int failures= 0;
+			int consecutive= 0;
+			
+			Store sourceStore= null;
+			Store destinationStore= null;
+			FolderCache sourceFolders= null;
+			FolderCache destinationFolders= null;
+			
+			try {
+				for (Partition partition; (partition= queue.poll()) != null; ) {
+					if (Thread.currentThread().isInterrupted() && !hung) {
+						queue.add(partition);
+						break;
+					}
+					
+					try {
+						if (sourceStore == null) {
+							sourceStore= connectStore(
+									sourceSession, source, "source", workerWatchdog);
+							sourceFolders= FolderCache.Create(sourceStore, 1);
+						}
+						if (destinationStore == null) {
+							destinationStore= connectStore(
+									destinationSession, destination, "destination", workerWatchdog);
+							destinationFolders= FolderCache.Create(destinationStore, 4);
+						}
+						
+						migratePartition(partition, sourceFolders, destinationFolders,
+								state, workerWatchdog);
+						
+						partitionsDone.incrementAndGet();
+						consecutive= 0;
+					} catch (Exception e) {
+						if (hung) {
+							// The watchdog already sent the alert.  Progress is saved per batch,
+							// so the retry picks up where this left off.
+							log.warn("Job " + name + " retrying " + partition + " after a hang");
+							hung= false;
+							Thread.interrupted();
+							
+							queue.add(partition);
+						} else {
+							log.error("Job " + name + " failed migrating " + partition, e);
+							firstFailure.compareAndSet(null, e);
+							partitionsFailed.incrementAndGet();
+							failures++;
+						}
+						
+						// Start over with fresh connections for the next one
+						if (sourceFolders != null) {
+							sourceFolders.release();
+							sourceFolders= null;
+						}
+						if (destinationFolders != null) {
+							destinationFolders.release();
+							destinationFolders= null;
+						}
+						closeQuietly(sourceStore);
+						sourceStore= null;
+						closeQuietly(destinationStore);
+						destinationStore= null;
+						
+						if (++consecutive >= WORKER_FAILURE_LIMIT) {
+							log.warn("Job " + name + " worker stopping after " + consecutive +
+									" failures in a row");
+							break;
+						}
+					} finally {
+						workerWatchdog.disarm();
+					}
+				}
+			} finally {
+				workerWatchdog.cancel();
+				
+				if (sourceFolders != null) {
+					sourceFolders.release();
+				}
+				if (destinationFolders != null) {
+					destinationFolders.release();
+				}
+				closeQuietly(sourceStore);
+				closeQuietly(destinationStore);
+			}
+			
+			return failures;
+		}
+	}
+	
+	/**
+	 * migratePartition
+	 * 
+	 * Copy everything in a partition past where it got to last time
+	 * 
+	 * @param partition					Partition to run
+	 * @param sourceFolders				Folder cache for the worker's source store
+	 * @param destinationFolders		Folder cache for the worker's destination store
+	 * @param state						Migration state
+	 * @param workerWatchdog			Watchdog for the worker's thread
+	 * 
+	 * @throws MessagingException
+	 * @throws IOException				If progress can't be saved
+	 */
+	private void migratePartition(
+			@NonNull Partition partition,
+			@NonNull FolderCache sourceFolders,
+			@NonNull FolderCache destinationFolders,
+			@NonNull MigrationStateStore state,
+			@NonNull Watchdog workerWatchdog) throws MessagingException, IOException
+	{
+		long operationMilliseconds= operationSeconds * 1000L;
+		String window= partition.getWindow();
+		
+		workerWatchdog.arm("open " + partition, operationMilliseconds);
+		Folder folder= sourceFolders.resolve(partition.getSource());
+		if (!(folder instanceof UIDFolder)) {
+			throw new MessagingException("Folder " + partition.getSource() + " doesn't support UIDs");
+		}
+		
+		// Read-only, so fetching bodies can't set \Seen on the source
+		folder.open(Folder.READ_ONLY);
+		
+		try {
+			UIDFolder uidFolder= (UIDFolder)folder;
+			long uidValidity= uidFolder.getUIDValidity();
+			
+			PartitionProgress progress= state.get(partition.getSource(), window);
+			if ((progress == null) || (progress.getUidValidity() != uidValidity)) {
+				if ((progress != null) && (progress.getUidValidity() != 0)) {
+					// The UIDs we saved don't mean anything anymore
+					log.warn("UIDVALIDITY of " + partition.getSource() + " changed - " +
+							"starting partition " + window + " over");
+					copiedMessages.addAndGet(-progress.getCopied());
+					copiedBytes.addAndGet(-progress.getBytes());
+				}
+				progress= PartitionProgress.Create(uidValidity, 0, -1, 0, 0, false);
+			}
+			
+			workerWatchdog.arm("search " + partition, operationMilliseconds);
+			SearchTerm term= partition.buildSearchTerm();
+			Message[] found= (term != null) ? folder.search(term) : folder.getMessages();
+			
+			workerWatchdog.arm("fetch UIDs " + partition, operationMilliseconds +
+					(found.length * FETCH_MILLISECONDS_PER_MESSAGE));
+			FetchProfile uidProfile= new FetchProfile();
+			uidProfile.add(UIDFolder.FetchProfileItem.UID);
+			folder.fetch(found, uidProfile);
+			
+			// UID order is what makes the last UID copied a resume point
+			List<Message> remaining= new ArrayList<>(found.length);
+			long[] uids= new long[found.length];
+			for (int i= 0; i < found.length; i++) {
+				uids[i]= uidFolder.getUID(found[i]);
+			}
+			Integer[] order= new Integer[found.length];
+			for (int i= 0; i < order.length; i++) {
+				order[i]= i;
+			}
+			Arrays.sort(order, Comparator.comparingLong((i) -> uids[i]));
+			for (Integer i : order) {
+				if (uids[i] > progress.getLastUid()) {
+					remaining.add(found[i]);
+				}
+			}
+			
+			int total= progress.getCopied() + remaining.size();
+			
+			workerWatchdog.arm("resolve " + partition.getDestination(), operationMilliseconds);
+			Folder target= destinationFolders.resolveOrCreate(partition.getDestination());
+			
+			FetchProfile profile= new FetchProfile();
+			profile.add(FetchProfile.Item.ENVELOPE);
+			profile.add(FetchProfile.Item.FLAGS);
+			
+			for (int start= 0; start < remaining.size(); start+= batchSize) {
+				int end= Math.min(start + batchSize, remaining.size());
+				Message[] batch= remaining.subList(start, end).toArray(new Message[0]);
+				
+				workerWatchdog.arm("fetch " + partition, operationMilliseconds +
+						(batch.length * FETCH_MILLISECONDS_PER_MESSAGE));
+				folder.fetch(batch, profile);
+				
+				try {
+					long batchBytes= 0;
+					for (Message message : batch) {
+						batchBytes+= Math.max(0, message.getSize());
+					}
+					
+					// The batch goes up as one APPEND per message, since JavaMail doesn't do
+					// MULTIAPPEND, so each message is a command to the throttle
+					throttle(workerWatchdog, destination, batch.length, batchBytes);
+					
+					// The append carries the flags and INTERNALDATE across with each message
+					workerWatchdog.arm("append " + batch.length + " messages to " +
+							partition.getDestination(), operationMilliseconds +
+							(batchBytes * 1000L / minimumTransferRate));
+					target.appendMessages(batch);
+					
+					progress= PartitionProgress.Create(uidValidity,
+							uidFolder.getUID(batch[batch.length - 1]), total,
+							progress.getCopied() + batch.length,
+							progress.getBytes() + batchBytes, false);
+					
+					state.put(partition.getSource(), window, progress);
+					state.save();
+					
+					runMessages.addAndGet(batch.length);
+					runBytes.addAndGet(batchBytes);
+					copiedMessages.addAndGet(batch.length);
+					copiedBytes.addAndGet(batchBytes);
+				} finally {
+					releaseWindow(batch);
+				}
+			}
+			
+			state.put(partition.getSource(), window, PartitionProgress.Create(uidValidity,
+					progress.getLastUid(), total, progress.getCopied(), progress.getBytes(), true));
+			state.save();
+		} finally {
+			try {
+				folder.close(false);
+			} catch (MessagingException e) {
+				log.warn("Error closing folder " + partition.getSource(), e);
+			}
+		}
+	}
+	
+	private void logProgress() {
+		JsonObject status= getStatus();
+		
+		log.info("Job " + name + " migrated " + status.get("copiedMessages").getAsLong() +
+				" of " + totalMessages + " messages, " +
+				status.get("messagesPerSecond").getAsLong() + " messages/s, " +
+				(status.get("bytesPerSecond").getAsLong() / 1024) + " KB/s, " +
+				partitionsDone.get() + " of " + partitionsTotal + " partitions done, ETA " +
+				status.get("etaSeconds").getAsLong() + "s");
+	}
+	
+	@Override
+	protected @NonNull Properties buildSessionProperties(
+			@NonNull ByteCounter counter,
+			@Nullable ConnectionSet connections)
+	{
+		Properties props= super.buildSessionProperties(counter, connections);
+		
+		// Set a 1M append buffer, or else IMAP store will buffer the entire message
+		props.setProperty("mail.imaps.appendbuffersize", "1048576");
+		
+		// Belt and braces with the read-only open - never mark the source messages read
+		props.setProperty("mail.imaps.peek", "true");
+		
+		return props;
+	}
+	
+	@Override
+	protected void runLoop() {
+		log.info("Thread for job " + name + " is running");
+		
+		Session sourceSession= createSession(sourceWireBytes, null);
+		
+		MigrationStateStore state= null;
+		
+		for (boolean localRun= true; localRun; ) {
+			long waitMilliseconds= errorCycleSeconds * 1000L;
+			
+			if (paused) {
+				waitMilliseconds= 0;
+			} else if (complete && !cycleRequested) {
+				// Nothing to do until somebody asks for a catch-up run
+				waitMilliseconds= 0;
+			} else {
+				cycleRequested= false;
+				complete= false;
+				
+				try {
+					if (state == null) {
+						state= MigrationStateStore.Open(statePath);
+					}
+					
+					List<@NonNull Partition> work= plan(state, sourceSession);
+					
+					runStart= System.currentTimeMillis();
+					runMessages.set(0);
+					runBytes.set(0);
+					partitionsTotal= work.size();
+					partitionsDone.set(0);
+					partitionsFailed.set(0);
+					
+					Exception failure= runPartitions(work, state);
+					if (failure != null) {
+						alertSink.sendAlert(partitionsFailed.get() + " of " + partitionsTotal +
+								" partitions failed - retrying in " + errorCycleSeconds +
+								" seconds", failure);
+						lastError= failure.toString();
+						
+						// If a host is down, its breaker wakes us up as soon as it's back
+						waitForHosts(source, destination);
+					} else {
+						log.info("Job " + name + " migration complete");
+						lastError= null;
+						complete= true;
+						waitMilliseconds= 0;
+					}
+				} catch (Exception e) {
+					alertSink.sendAlert("Error in Operations", e);
+					lastError= e.toString();
+					waitForHosts(source, destination);
+				} finally {
+					watchdog.disarm();
+				}
+			}
+			
+			localRun= waitForCycle(waitMilliseconds);
+		}
+		
+		watchdog.cancel();
+		
+		log.info("Thread for job " + name + " is shut down");
+	}
+	
+	@Override
+	public @NonNull JsonObject getStatus() {
+		long elapsed= System.currentTimeMillis() - runStart;
+		long messages= runMessages.get();
+		long bytes= runBytes.get();
+		
+		long messagesPerSecond= (elapsed > 0) ? (messages * 1000 / elapsed) : 0;
+		long bytesPerSecond= (elapsed > 0) ? (bytes * 1000 / elapsed) : 0;
+		
+		long copied= copiedMessages.get();
+		long left= Math.max(0, totalMessages - copied);
+		
+		// Unknown until something has been copied this run to get a rate from
+		long eta= -1;
+		if (complete) {
+			eta= 0;
+		} else if (messages > 0) {
+			eta= left * elapsed / messages / 1000;
+		}
+		
+		JsonObject status= createStatus("imap-migrate");
+		status.addProperty("complete", complete);
+		status.addProperty("totalMessages", totalMessages);
+		status.addProperty("copiedMessages", copied);
+		status.addProperty("copiedBytes", copiedBytes.get());
+		status.addProperty("messagesPerSecond", messagesPerSecond);
+		status.addProperty("bytesPerSecond", bytesPerSecond);
+		status.addProperty("etaSeconds", eta);
+		status.addProperty("partitions", partitionsTotal);
+		status.addProperty("partitionsDone", partitionsDone.get());
+		status.addProperty("partitionsFailed", partitionsFailed.get());
+		status.addProperty("sourceBytesRead", sourceWireBytes.getRead());
+		status.addProperty("destinationBytesWritten", destinationWireBytes.getWritten());
+		
+		return status;
+	}
+}
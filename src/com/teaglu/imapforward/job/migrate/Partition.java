@@ -0,0 +1,159 @@
+/****************************************************************************
+ * Copyright 2022 Teaglu, LLC                                               *
+ *                                                                          *
+ * Licensed under the Apache License, Version 2.0 (the "License");          *
+ * you may not use this file except in compliance with the License.         *
+ * You may obtain a copy of the License at                                  *
+ *                                                                          *
+ *   http://www.apache.org/licenses/LICENSE-2.0                             *
+ *                                                                          *
+ * Unless required by applicable law or agreed to in writing, software      *
+ * distributed under the License is distributed on an "AS IS" BASIS,        *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. *
+ * See the License for the specific language governing permissions and      *
+ * limitations under the License.                                           *
+ ****************************************************************************/
+
+package com.teaglu.imapforward.job.migrate;
+
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.Date;
+
+import org.eclipse.jdt.annotation.NonNull;
+import org.eclipse.jdt.annotation.Nullable;
+
+import jakarta.mail.search.AndTerm;
+import jakarta.mail.search.ComparisonTerm;
+import jakarta.mail.search.ReceivedDateTerm;
+import jakarta.mail.search.SearchTerm;
+
+/**
+ * Partition
+ *
+ * One unit of migration work - the messages in a source folder with an INTERNALDATE in a
+ * window of days.  IMAP only searches dates to the day, so windows are whole days.  The
+ * first window of a folder has no start and the last one has no end, so between them the
+ * windows cover every message no matter what dates turn up.
+ *
+ * The window is written "from~to" with "*" for an open end, which is also how progress is
+ * keyed in the state file.
+ */
+class Partition {
+	private static final String OPEN= "*";
+	
+	private final @NonNull String source;
+	private final @NonNull String destination;
+	private final @Nullable LocalDate from;
+	private final @Nullable LocalDate to;
+	
+	private Partition(
+			@NonNull String source,
+			@NonNull String destination,
+			@Nullable LocalDate from,
+			@Nullable LocalDate to)
+	{
+		this.source= source;
+		this.destination= destination;
+		this.from= from;
+		this.to= to;
+	}
+	
+	/**
+	 * Create
+	 *
+	 * @param source					Source folder
+	 * @param destination				Destination folder
+	 * @param from						First day in the window, or null for no start
+	 * @param to						Day after the window, or null for no end
+	 *
+	 * @return							New partition
+	 */
+	static @NonNull Partition Create(
+			@NonNull String source,
+			@NonNull String destination,
+			@Nullable LocalDate from,
+			@Nullable LocalDate to)
+	{
+		return new Partition(source, destination, from, to);
+	}
+	
+	/**
+	 * Parse
+	 *
+	 * @param source					Source folder
+	 * @param destination				Destination folder
+	 * @param window					Window as written by getWindow
+	 *
+	 * @return							Partition, or null if the window isn't valid
+	 */
+	static @Nullable Partition Parse(
+			@NonNull String source,
+			@NonNull String destination,
+			@NonNull String window)
+	{
+		int split= window.indexOf('~');
+		if (split < 0) {
+			return null;
+		}
+		
+		try {
+			String fromText= window.substring(0, split);
+			String toText= window.substring(split + 1);
+			
+			return new Partition(source, destination,
+					fromText.equals(OPEN) ? null : LocalDate.parse(fromText),
+					toText.equals(OPEN) ? null : LocalDate.parse(toText));
+		} catch (RuntimeException e) {
+			return null;
+		}
+	}
+	
+	@NonNull String getSource() { return source; }
+	@NonNull String getDestination() { return destination; }
+	@Nullable LocalDate getFrom() { return from; }
+	
+	/**
+	 * isOpenEnded
+	 *
+	 * @return							True for the last window of a folder, which picks up
+	 * 									anything that arrived after the migration was planned
+	 */
+	boolean isOpenEnded() {
+		return (to == null);
+	}
+	
+	@NonNull String getWindow() {
+		return ((from != null) ? from.toString() : OPEN) + "~" +
+				((to != null) ? to.toString() : OPEN);
+	}
+	
+	/**
+	 * buildSearchTerm
+	 *
+	 * JavaMail turns these into SINCE and BEFORE using the local time zone to get the day, so
+	 * the dates are given as local midnight.
+	 *
+	 * @return							Search term for the window, or null to take everything
+	 */
+	@Nullable SearchTerm buildSearchTerm() {
+		SearchTerm since= (from != null) ? new ReceivedDateTerm(ComparisonTerm.GE, toDate(from)) : null;
+		SearchTerm before= (to != null) ? new ReceivedDateTerm(ComparisonTerm.LT, toDate(to)) : null;
+		
+		if ((since != null) && (before != null)) {
+			return new AndTerm(since, before);
+		}
+		return (since != null) ? since : before;
+	}
+	
+	private static @NonNull Date toDate(
+			@NonNull LocalDate day)
+	{
+		return Date.from(day.atStartOfDay(ZoneId.systemDefault()).toInstant());
+	}
+	
+	@Override
+	public @NonNull String toString() {
+		return source + " " + getWindow();
+	}
+}
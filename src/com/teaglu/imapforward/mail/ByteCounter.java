@@ -0,0 +1,54 @@
+/****************************************************************************
+ * Copyright 2022 Teaglu, LLC                                               *
+ *                                                                          *
+ * Licensed under the Apache License, Version 2.0 (the "License");          *
+ * you may not use this file except in compliance with the License.         *
+ * You may obtain a copy of the License at                                  *
+ *                                                                          *
+ *   http://www.apache.org/licenses/LICENSE-2.0                             *
+ *                                                                          *
+ * Unless required by applicable law or agreed to in writing, software      *
+ * distributed under the License is distributed on an "AS IS" BASIS,        *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. *
+ * See the License for the specific language governing permissions and      *
+ * limitations under the License.                                           *
+ ****************************************************************************/
+
+package com.teaglu.imapforward.mail;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.eclipse.jdt.annotation.NonNull;
+
+/**
+ * ByteCounter
+ *
+ * Running totals of bytes read and written on the wire for a set of connections.  These are
+ * counted underneath TLS and compression, so they're what actually crossed the network.
+ */
+public class ByteCounter {
+	private final AtomicLong read= new AtomicLong();
+	private final AtomicLong written= new AtomicLong();
+
+	private ByteCounter() {}
+
+	public static @NonNull ByteCounter Create() {
+		return new ByteCounter();
+	}
+
+	public void addRead(long count) {
+		read.addAndGet(count);
+	}
+
+	public void addWritten(long count) {
+		written.addAndGet(count);
+	}
+
+	public long getRead() {
+		return read.get();
+	}
+
+	public long getWritten() {
+		return written.get();
+	}
+}
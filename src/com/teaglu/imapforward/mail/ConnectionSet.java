@@ -0,0 +1,73 @@
+/****************************************************************************
+ * Copyright 2022 Teaglu, LLC                                               *
+ *                                                                          *
+ * Licensed under the Apache License, Version 2.0 (the "License");          *
+ * you may not use this file except in compliance with the License.         *
+ * You may obtain a copy of the License at                                  *
+ *                                                                          *
+ *   http://www.apache.org/licenses/LICENSE-2.0                             *
+ *                                                                          *
+ * Unless required by applicable law or agreed to in writing, software      *
+ * distributed under the License is distributed on an "AS IS" BASIS,        *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. *
+ * See the License for the specific language governing permissions and      *
+ * limitations under the License.                                           *
+ ****************************************************************************/
+package com.teaglu.imapforward.mail;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.eclipse.jdt.annotation.NonNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * ConnectionSet
+ *
+ * The sockets currently open for a mail session, so they can be closed from another thread.
+ * JavaMail does its I/O holding the folder and store locks, so a thread stuck in a read or a
+ * write can't be reached by closing the folder or store - that just blocks behind it.  Closing
+ * the socket underneath makes the stuck call fail right away.
+ */
+public class ConnectionSet {
+	private static final Logger log= LoggerFactory.getLogger(ConnectionSet.class);
+
+	private final Set<@NonNull Socket> sockets= ConcurrentHashMap.newKeySet();
+
+	private ConnectionSet() {}
+
+	public static @NonNull ConnectionSet Create() {
+		return new ConnectionSet();
+	}
+
+	void add(
+			@NonNull Socket socket)
+	{
+		sockets.add(socket);
+	}
+
+	void remove(
+			@NonNull Socket socket)
+	{
+		sockets.remove(socket);
+	}
+
+	/**
+	 * closeAll
+	 *
+	 * Close every socket in the set.  This never blocks on JavaMail, so it's safe to call from
+	 * a timeout action.
+	 */
+	public void closeAll() {
+		for (Socket socket : sockets) {
+			try {
+				socket.close();
+			} catch (IOException e) {
+				log.debug("Error closing socket", e);
+			}
+		}
+	}
+}
@@ -0,0 +1,113 @@
+/****************************************************************************
+ * Copyright 2022 Teaglu, LLC                                               *
+ *                                                                          *
+ * Licensed under the Apache License, Version 2.0 (the "License");          *
+ * you may not use this file except in compliance with the License.         *
+ * You may obtain a copy of the License at                                  *
+ *                                                                          *
+ *   http://www.apache.org/licenses/LICENSE-2.0                             *
+ *                                                                          *
+ * Unless required by applicable law or agreed to in writing, software      *
+ * distributed under the License is distributed on an "AS IS" BASIS,        *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. *
+ * See the License for the specific language governing permissions and      *
+ * limitations under the License.                                           *
+ ****************************************************************************/
+
+package com.teaglu.imapforward.mail;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+
+import org.eclipse.jdt.annotation.NonNull;
+import org.eclipse.jdt.annotation.Nullable;
+
+/**
+ * CountingSocket
+ *
+ * A plain TCP socket that adds everything read and written to a byte counter.  TLS gets
+ * layered on top of this, so the counts are raw network bytes.
+ *
+ * If it belongs to a connection set it stays in the set until it's closed.
+ */
+class CountingSocket extends Socket {
+	private final @NonNull ByteCounter counter;
+	private final @Nullable ConnectionSet connections;
+
+	private InputStream input= null;
+	private OutputStream output= null;
+
+	CountingSocket(
+			@NonNull ByteCounter counter,
+			@Nullable ConnectionSet connections)
+	{
+		this.counter= counter;
+		this.connections= connections;
+
+		if (connections != null) {
+			connections.add(this);
+		}
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		try {
+			super.close();
+		} finally {
+			if (connections != null) {
+				connections.remove(this);
+			}
+		}
+	}
+
+	@Override
+	public synchronized InputStream getInputStream() throws IOException {
+		if (input == null) {
+			input= new FilterInputStream(super.getInputStream()) {
+				@Override
+				public int read() throws IOException {
+					int rval= super.read();
+					if (rval >= 0) {
+						counter.addRead(1);
+					}
+					return rval;
+				}
+
+				@Override
+				public int read(byte[] buffer, int offset, int length) throws IOException {
+					int rval= super.read(buffer, offset, length);
+					if (rval > 0) {
+						counter.addRead(rval);
+					}
+					return rval;
+				}
+			};
+		}
+		return input;
+	}
+
+	@Override
+	public synchronized OutputStream getOutputStream() throws IOException {
+		if (output == null) {
+			output= new FilterOutputStream(super.getOutputStream()) {
+				@Override
+				public void write(int b) throws IOException {
+					out.write(b);
+					counter.addWritten(1);
+				}
+
+				@Override
+				public void write(byte[] buffer, int offset, int length) throws IOException {
+					// FilterOutputStream would otherwise write these a byte at a time
+					out.write(buffer, offset, length);
+					counter.addWritten(length);
+				}
+			};
+		}
+		return output;
+	}
+}
@@ -0,0 +1,108 @@
+/****************************************************************************
+ * Copyright 2022 Teaglu, LLC                                               *
+ *                                                                          *
+ * Licensed under the Apache License, Version 2.0 (the "License");          *
+ * you may not use this file except in compliance with the License.         *
+ * You may obtain a copy of the License at                                  *
+ *                                                                          *
+ *   http://www.apache.org/licenses/LICENSE-2.0                             *
+ *                                                                          *
+ * Unless required by applicable law or agreed to in writing, software      *
+ * distributed under the License is distributed on an "AS IS" BASIS,        *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. *
+ * See the License for the specific language governing permissions and      *
+ * limitations under the License.                                           *
+ ****************************************************************************/
+
+package com.teaglu.imapforward.mail;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+import javax.net.ssl.SSLSocketFactory;
+
+import org.eclipse.jdt.annotation.NonNull;
+import org.eclipse.jdt.annotation.Nullable;
+
+/**
+ * CountingSocketFactory
+ *
+ * SSL socket factory that counts wire bytes.  The no-argument createSocket hands JavaMail an
+ * unconnected counting plain socket, which JavaMail connects and then layers TLS on using the
+ * layered createSocket.  That goes to the shared factory, so TLS session reuse still works.
+ *
+ * The other createSocket variants connect the counting socket themselves before layering.
+ */
+class CountingSocketFactory extends SSLSocketFactory {
+	private final @NonNull SSLSocketFactory delegate;
+	private final @NonNull ByteCounter counter;
+	private final @Nullable ConnectionSet connections;
+
+	CountingSocketFactory(
+			@NonNull SSLSocketFactory delegate,
+			@NonNull ByteCounter counter,
+			@Nullable ConnectionSet connections)
+	{
+		this.delegate= delegate;
+		this.counter= counter;
+		this.connections= connections;
+	}
+
+	@Override
+	public Socket createSocket() throws IOException {
+		return new CountingSocket(counter, connections);
+	}
+
+	@Override
+	public Socket createSocket(Socket socket, String host, int port, boolean autoClose)
+			throws IOException
+	{
+		return delegate.createSocket(socket, host, port, autoClose);
+	}
+
+	@Override
+	public Socket createSocket(String host, int port) throws IOException {
+		Socket socket= new CountingSocket(counter, connections);
+		socket.connect(new InetSocketAddress(host, port));
+		return delegate.createSocket(socket, host, port, true);
+	}
+
+	@Override
+	public Socket createSocket(String host, int port, InetAddress localHost, int localPort)
+			throws IOException
+	{
+		Socket socket= new CountingSocket(counter, connections);
+		socket.bind(new InetSocketAddress(localHost, localPort));
+		socket.connect(new InetSocketAddress(host, port));
+		return delegate.createSocket(socket, host, port, true);
+	}
+
+	@Override
+	public Socket createSocket(InetAddress host, int port) throws IOException {
+		Socket socket= new CountingSocket(counter, connections);
+		socket.connect(new InetSocketAddress(host, port));
+		return delegate.createSocket(socket, host.getHostName(), port, true);
+	}
+
+	@Override
+	public Socket createSocket(InetAddress address, int port, InetAddress localAddress,
+			int localPort) throws IOException
+	{
+		Socket socket= new CountingSocket(counter, connections);
+		socket.bind(new InetSocketAddress(localAddress, localPort));
+		socket.connect(new InetSocketAddress(address, port));
+		return delegate.createSocket(socket, address.getHostName(), port, true);
+	}
+
+	@Override
+	public String[] getDefaultCipherSuites() {
+		return delegate.getDefaultCipherSuites();
+	}
+
+	@Override
+	public String[] getSupportedCipherSuites() {
+		return delegate.getSupportedCipherSuites();
+	}
+}
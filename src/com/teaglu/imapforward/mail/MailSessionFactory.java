@@ -0,0 +1,239 @@
+/****************************************************************************
+ * Copyright 2022 Teaglu, LLC                                               *
+ *                                                                          *
+ * Licensed under the Apache License, Version 2.0 (the "License");          *
+ * you may not use this file except in compliance with the License.         *
+ * You may obtain a copy of the License at                                  *
+ *                                                                          *
+ *   http://www.apache.org/licenses/LICENSE-2.0                             *
+ *                                                                          *
+ * Unless required by applicable law or agreed to in writing, software      *
+ * distributed under the License is distributed on an "AS IS" BASIS,        *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. *
+ * See the License for the specific language governing permissions and      *
+ * limitations under the License.                                           *
+ ****************************************************************************/
+
+package com.teaglu.imapforward.mail;
+
+import java.security.GeneralSecurityException;
+import java.util.Properties;
+import java.util.Set;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocketFactory;
+
+import org.eclipse.jdt.annotation.NonNull;
+import org.eclipse.jdt.annotation.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import jakarta.mail.Session;
+
+/**
+ * MailSessionFactory
+ *
+ * Builds mail sessions with their own properties, so one job's settings don't leak into
+ * another job or into the alert sink the way they did when everything went through the
+ * system properties.
+ *
+ * All IMAP sessions share one SSL context.  JSSE caches TLS sessions per context, so sharing
+ * it means a reconnect to a host we've talked to recently gets an abbreviated handshake
+ * instead of a full one.  That matters when a network blip makes every job reconnect at
+ * once.
+ *
+ * JavaMail settings given with -D on the command line still reach the IMAP sessions, as long as
+ * they're for imaps.  Anything else under mail. is logged and ignored, so a typo doesn't just
+ * silently do nothing.
+ */
+public final class MailSessionFactory {
+	private static final Logger log= LoggerFactory.getLogger(MailSessionFactory.class);
+
+	// Number of TLS sessions to remember, and for how long.  Jobs reconnect to the same
+	// handful of hosts, so this is plenty.
+	private static final int SESSION_CACHE_SIZE= 1024;
+	private static final int SESSION_CACHE_SECONDS= 4 * 60 * 60;
+
+	// IMAP settings JavaMail knows about, after the mail.imaps. prefix
+	private static final Set<@NonNull String> IMAP_SETTINGS= Set.of(
+			"user", "host", "port", "partialfetch", "fetchsize", "peek",
+			"ignorebodystructuresize", "connectiontimeout", "timeout", "writetimeout",
+			"statuscachetimeout", "appendbuffersize", "connectionpoolsize",
+			"connectionpooltimeout", "separatestoreconnection", "allowreadonlyselect",
+			"auth.mechanisms", "auth.login.disable", "auth.plain.disable",
+			"auth.ntlm.disable", "auth.ntlm.domain", "auth.ntlm.flags",
+			"auth.xoauth2.disable", "proxyauth.user", "localaddress", "localport",
+			"sasl.enable", "sasl.mechanisms", "sasl.authorizationid", "sasl.realm",
+			"sasl.usecanonicalhostname", "sasl.xgwtrustedapphack.enable",
+			"ssl.enable", "ssl.checkserveridentity", "ssl.trust", "ssl.protocols",
+			"ssl.ciphersuites", "starttls.enable", "starttls.required",
+			"proxy.host", "proxy.port", "proxy.user", "proxy.password",
+			"socks.host", "socks.port", "minidletime", "enableresponseevents",
+			"enableimapevents", "throwsearchexception", "compress.enable",
+			"compress.level", "compress.strategy", "reusetagprefix",
+			"referralexception", "closefoldersonstorefailure", "finalizecleanclose",
+			"usesocketchannels");
+
+	// Settings that aren't tied to a protocol
+	private static final Set<@NonNull String> SESSION_SETTINGS= Set.of(
+			"mail.debug", "mail.debug.auth", "mail.debug.auth.username",
+			"mail.debug.auth.password", "mail.event.scope");
+
+	private static SSLSocketFactory sharedSocketFactory= null;
+	private static Properties systemOverrides= null;
+
+	private MailSessionFactory() {}
+
+	private static synchronized @NonNull SSLSocketFactory getSocketFactory() {
+		if (sharedSocketFactory == null) {
+			SSLSocketFactory factory= null;
+			try {
+				SSLContext context= SSLContext.getInstance("TLS");
+				context.init(null, null, null);
+
+				SSLSessionContext sessionContext= context.getClientSessionContext();
+				sessionContext.setSessionCacheSize(SESSION_CACHE_SIZE);
+				sessionContext.setSessionTimeout(SESSION_CACHE_SECONDS);
+
+				factory= context.getSocketFactory();
+			} catch (GeneralSecurityException e) {
+				// The default factory still works, it just has its own session cache
+				log.warn("Unable to build shared TLS context - using default", e);
+				factory= (SSLSocketFactory)SSLSocketFactory.getDefault();
+			}
+
+			sharedSocketFactory= factory;
+		}
+
+		return sharedSocketFactory;
+	}
+
+	/**
+	 * getSystemOverrides
+	 *
+	 * The mail. system properties that apply to IMAP sessions, read once.  Each one that
+	 * doesn't is logged when it's read.
+	 *
+	 * @return							Overrides
+	 */
+	private static synchronized @NonNull Properties getSystemOverrides() {
+		if (systemOverrides == null) {
+			Properties overrides= new Properties();
+
+			Properties system= System.getProperties();
+			for (String key : system.stringPropertyNames()) {
+				if (!key.startsWith("mail.") || key.startsWith("mail.mime.")) {
+					// JavaMail reads the mail.mime settings from the system properties itself
+					continue;
+				}
+
+				String reason= null;
+				if (key.startsWith("mail.imaps.")) {
+					String setting= key.substring("mail.imaps.".length());
+					if (setting.startsWith("ssl.socketFactory") ||
+							setting.startsWith("socketFactory"))
+					{
+						reason= "the forwarder sets its own socket factory";
+					} else if (!IMAP_SETTINGS.contains(setting)) {
+						reason= "it isn't a JavaMail IMAP setting";
+					}
+				} else if (key.startsWith("mail.imap.")) {
+					reason= "the jobs only use imaps - use mail.imaps." +
+							key.substring("mail.imap.".length()) + " instead";
+				} else if (!SESSION_SETTINGS.contains(key)) {
+					reason= "it doesn't apply to IMAP sessions";
+				}
+
+				if (reason != null) {
+					log.warn("Ignoring system property " + key + " since " + reason);
+				} else {
+					overrides.setProperty(key, system.getProperty(key));
+				}
+			}
+
+			systemOverrides= overrides;
+		}
+
+		return systemOverrides;
+	}
+
+	/**
+	 * CreateImapProperties
+	 *
+	 * Create a fresh set of properties for an IMAPS session, with the shared TLS socket
+	 * factory already set.  The caller owns the result and can add whatever it needs.
+	 *
+	 * @return							New properties
+	 */
+	public static @NonNull Properties CreateImapProperties() {
+		return CreateImapProperties(null);
+	}
+
+	/**
+	 * CreateImapProperties
+	 *
+	 * Create a fresh set of properties for an IMAPS session, counting the bytes that cross
+	 * the network on its connections.
+	 *
+	 * @param counter					Counter to add wire bytes to, or null to not count
+	 *
+	 * @return							New properties
+	 */
+	public static @NonNull Properties CreateImapProperties(
+			@Nullable ByteCounter counter)
+	{
+		return CreateImapProperties(counter, null);
+	}
+
+	/**
+	 * CreateImapProperties
+	 *
+	 * Create a fresh set of properties for an IMAPS session, counting wire bytes and keeping
+	 * track of the session's sockets so another thread can cut them off.
+	 *
+	 * @param counter					Counter to add wire bytes to, or null to not count
+	 * @param connections				Set to keep the sockets in, or null to not track them
+	 *
+	 * @return							New properties
+	 */
+	public static @NonNull Properties CreateImapProperties(
+			@Nullable ByteCounter counter,
+			@Nullable ConnectionSet connections)
+	{
+		Properties props= new Properties();
+		props.setProperty("mail.store.protocol", "imaps");
+
+		SSLSocketFactory factory= getSocketFactory();
+		if ((counter != null) || (connections != null)) {
+			factory= new CountingSocketFactory(factory,
+					(counter != null) ? counter : ByteCounter.Create(), connections);
+		}
+
+		// This has to be put as an object, not a string, for JavaMail to use the instance
+		props.put("mail.imaps.ssl.socketFactory", factory);
+
+		return props;
+	}
+
+	/**
+	 * Create
+	 *
+	 * Create a session from properties.  This never uses the default session, which would
+	 * be shared with everything else in the process.  Any mail. settings given on the command
+	 * line go on top of the properties.
+	 *
+	 * @param props						Session properties
+	 *
+	 * @return							New session
+	 */
+	public static @NonNull Session Create(
+			@NonNull Properties props)
+	{
+		Properties merged= new Properties();
+		merged.putAll(props);
+		merged.putAll(getSystemOverrides());
+
+		return Session.getInstance(merged);
+	}
+}
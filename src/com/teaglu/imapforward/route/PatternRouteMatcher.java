@@ -0,0 +1,98 @@
+/****************************************************************************
+ * Copyright 2022 Teaglu, LLC                                               *
+ *                                                                          *
+ * Licensed under the Apache License, Version 2.0 (the "License");          *
+ * you may not use this file except in compliance with the License.         *
+ * You may obtain a copy of the License at                                  *
+ *                                                                          *
+ *   http://www.apache.org/licenses/LICENSE-2.0                             *
+ *                                                                          *
+ * Unless required by applicable law or agreed to in writing, software      *
+ * distributed under the License is distributed on an "AS IS" BASIS,        *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. *
+ * See the License for the specific language governing permissions and      *
+ * limitations under the License.                                           *
+ ****************************************************************************/
+
+package com.teaglu.imapforward.route;
+
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import org.eclipse.jdt.annotation.NonNull;
+
+import com.teaglu.composite.exception.FormatException;
+
+/**
+ * PatternRouteMatcher
+ *
+ * Matches a regular expression against one of the text fields of the envelope.  The pattern
+ * is compiled once when the configuration is loaded, and is case-insensitive since nobody
+ * agrees on the case of email addresses.
+ */
+public class PatternRouteMatcher implements RouteMatcher {
+	public enum Field {
+		FROM,
+		TO,
+		SUBJECT,
+		LIST_ID
+	}
+
+	private final @NonNull Field field;
+	private final @NonNull Pattern pattern;
+
+	private PatternRouteMatcher(
+			@NonNull Field field,
+			@NonNull String expression) throws FormatException
+	{
+		this.field= field;
+
+		try {
+			this.pattern= Pattern.compile(expression,
+					Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE);
+		} catch (PatternSyntaxException e) {
+			throw new FormatException(
+					"Unable to parse routing pattern " + expression + ": " + e.getDescription());
+		}
+	}
+
+	public static @NonNull RouteMatcher Create(
+			@NonNull Field field,
+			@NonNull String expression) throws FormatException
+	{
+		return new PatternRouteMatcher(field, expression);
+	}
+
+	@Override
+	public boolean matches(
+			@NonNull RouteEnvelope envelope)
+	{
+		switch (field) {
+		case FROM:
+			return matchesAny(envelope.getFrom());
+		case TO:
+			return matchesAny(envelope.getTo());
+		case SUBJECT:
+			return matchesOne(envelope.getSubject());
+		case LIST_ID:
+			return matchesOne(envelope.getListId());
+		default:
+			return false;
+		}
+	}
+
+	private boolean matchesAny(
+			@NonNull String[] values)
+	{
+		for (String value : values) {
+			if (pattern.matcher(value).find()) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private boolean matchesOne(String value) {
+		return (value != null) && pattern.matcher(value).find();
+	}
+}
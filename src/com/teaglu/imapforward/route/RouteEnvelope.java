@@ -0,0 +1,99 @@
+/****************************************************************************
+ * Copyright 2022 Teaglu, LLC                                               *
+ *                                                                          *
+ * Licensed under the Apache License, Version 2.0 (the "License");          *
+ * you may not use this file except in compliance with the License.         *
+ * You may obtain a copy of the License at                                  *
+ *                                                                          *
+ *   http://www.apache.org/licenses/LICENSE-2.0                             *
+ *                                                                          *
+ * Unless required by applicable law or agreed to in writing, software      *
+ * distributed under the License is distributed on an "AS IS" BASIS,        *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. *
+ * See the License for the specific language governing permissions and      *
+ * limitations under the License.                                           *
+ ****************************************************************************/
+
+package com.teaglu.imapforward.route;
+
+import org.eclipse.jdt.annotation.NonNull;
+import org.eclipse.jdt.annotation.Nullable;
+
+import jakarta.mail.Address;
+import jakarta.mail.Message;
+import jakarta.mail.MessagingException;
+
+/**
+ * RouteEnvelope
+ *
+ * The subset of a message that routing rules are allowed to look at.  Everything in here
+ * comes out of the bulk ENVELOPE / header fetch, so evaluating rules never pulls a body.
+ */
+public class RouteEnvelope {
+	private static final @NonNull String[] NO_ADDRESSES= new String[0];
+
+	private final @NonNull String[] from;
+	private final @NonNull String[] to;
+	private final @Nullable String subject;
+	private final @Nullable String listId;
+	private final int size;
+
+	private RouteEnvelope(
+			@NonNull Message message,
+			boolean includeListId) throws MessagingException
+	{
+		from= toStrings(message.getFrom());
+		to= toStrings(message.getAllRecipients());
+		subject= message.getSubject();
+		size= message.getSize();
+
+		String listIdValue= null;
+		if (includeListId) {
+			String[] values= message.getHeader("List-Id");
+			if ((values != null) && (values.length > 0)) {
+				listIdValue= values[0];
+			}
+		}
+		listId= listIdValue;
+	}
+
+	/**
+	 * Create
+	 *
+	 * Build an envelope from a message.  The message should already have had ENVELOPE (and
+	 * List-Id if requested) fetched as part of a bulk fetch, otherwise this will round-trip.
+	 *
+	 * @param message					Message to read
+	 * @param includeListId				Whether to read the List-Id header
+	 *
+	 * @return							Envelope
+	 *
+	 * @throws MessagingException
+	 */
+	public static @NonNull RouteEnvelope Create(
+			@NonNull Message message,
+			boolean includeListId) throws MessagingException
+	{
+		return new RouteEnvelope(message, includeListId);
+	}
+
+	private static @NonNull String[] toStrings(
+			@Nullable Address[] addresses)
+	{
+		if ((addresses == null) || (addresses.length == 0)) {
+			return NO_ADDRESSES;
+		}
+
+		String[] rval= new String[addresses.length];
+		for (int i= 0; i < addresses.length; i++) {
+			rval[i]= addresses[i].toString();
+		}
+		return rval;
+	}
+
+	public @NonNull String[] getFrom() { return from; }
+	public @NonNull String[] getTo() { return to; }
+	public @Nullable String getSubject() { return subject; }
+	public @Nullable String getListId() { return listId; }
+	public int getSize() { return size; }
+}
@@ -0,0 +1,38 @@
+/****************************************************************************
+ * Copyright 2022 Teaglu, LLC                                               *
+ *                                                                          *
+ * Licensed under the Apache License, Version 2.0 (the "License");          *
+ * you may not use this file except in compliance with the License.         *
+ * You may obtain a copy of the License at                                  *
+ *                                                                          *
+ *   http://www.apache.org/licenses/LICENSE-2.0                             *
+ *                                                                          *
+ * Unless required by applicable law or agreed to in writing, software      *
+ * distributed under the License is distributed on an "AS IS" BASIS,        *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. *
+ * See the License for the specific language governing permissions and      *
+ * limitations under the License.                                           *
+ ****************************************************************************/
+
+package com.teaglu.imapforward.route;
+
+import org.eclipse.jdt.annotation.NonNull;
+
+/**
+ * RouteMatcher
+ *
+ * A single compiled condition in a routing rule
+ */
+public interface RouteMatcher {
+	/**
+	 * matches
+	 *
+	 * Test the condition against a message envelope
+	 *
+	 * @param envelope					Envelope to test
+	 *
+	 * @return							True if the condition holds
+	 */
+	public boolean matches(
+			@NonNull RouteEnvelope envelope);
+}
@@ -0,0 +1,122 @@
+/****************************************************************************
+ * Copyright 2022 Teaglu, LLC                                               *
+ *                                                                          *
+ * Licensed under the Apache License, Version 2.0 (the "License");          *
+ * you may not use this file except in compliance with the License.         *
+ * You may obtain a copy of the License at                                  *
+ *                                                                          *
+ *   http://www.apache.org/licenses/LICENSE-2.0                             *
+ *                                                                          *
+ * Unless required by applicable law or agreed to in writing, software      *
+ * distributed under the License is distributed on an "AS IS" BASIS,        *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. *
+ * See the License for the specific language governing permissions and      *
+ * limitations under the License.                                           *
+ ****************************************************************************/
+
+package com.teaglu.imapforward.route;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.eclipse.jdt.annotation.NonNull;
+import org.eclipse.jdt.annotation.Nullable;
+
+import com.teaglu.composite.Composite;
+import com.teaglu.composite.exception.FormatException;
+import com.teaglu.composite.exception.MissingValueException;
+import com.teaglu.composite.exception.SchemaException;
+import com.teaglu.composite.exception.UndefinedOptionException;
+
+/**
+ * RouteRule
+ *
+ * A single routing rule.  All of the conditions have to match for the rule to match, and a
+ * rule with no conditions matches everything.
+ */
+public class RouteRule {
+	public enum Action {
+		// Send the message to the rule's destination folder
+		ROUTE,
+
+		// Leave the message in the source folder and don't transfer it
+		SKIP
+	}
+
+	private final @NonNull Action action;
+	private final @Nullable String destination;
+	private final boolean usesListId;
+
+	private final List<@NonNull RouteMatcher> matchers= new ArrayList<>();
+
+	private RouteRule(
+			@NonNull Composite spec) throws SchemaException
+	{
+		String actionName= spec.getOptionalString("action");
+		if ((actionName == null) || actionName.equals("route")) {
+			action= Action.ROUTE;
+			destination= spec.getRequiredString("destination");
+		} else if (actionName.equals("skip")) {
+			action= Action.SKIP;
+			destination= null;
+		} else {
+			throw new UndefinedOptionException("Unknown routing action " + actionName);
+		}
+
+		addPattern(spec, "from", PatternRouteMatcher.Field.FROM);
+		addPattern(spec, "to", PatternRouteMatcher.Field.TO);
+		addPattern(spec, "subject", PatternRouteMatcher.Field.SUBJECT);
+		usesListId= addPattern(spec, "listId", PatternRouteMatcher.Field.LIST_ID);
+
+		Integer minSize= spec.getOptionalInteger("minSize");
+		Integer maxSize= spec.getOptionalInteger("maxSize");
+		if ((minSize != null) || (maxSize != null)) {
+			int min= (minSize != null) ? minSize : 0;
+			int max= (maxSize != null) ? maxSize : Integer.MAX_VALUE;
+
+			if (min > max) {
+				throw new FormatException("Routing rule minSize is larger than maxSize");
+			}
+			matchers.add(SizeRouteMatcher.Create(min, max));
+		}
+
+		if ((action == Action.SKIP) && matchers.isEmpty()) {
+			throw new MissingValueException("A skip rule with no conditions would skip everything");
+		}
+	}
+
+	public static @NonNull RouteRule Create(
+			@NonNull Composite spec) throws SchemaException
+	{
+		return new RouteRule(spec);
+	}
+
+	private boolean addPattern(
+			@NonNull Composite spec,
+			@NonNull String name,
+			PatternRouteMatcher.@NonNull Field field) throws SchemaException
+	{
+		String expression= spec.getOptionalString(name);
+		if (expression == null) {
+			return false;
+		}
+
+		matchers.add(PatternRouteMatcher.Create(field, expression));
+		return true;
+	}
+
+	public boolean matches(
+			@NonNull RouteEnvelope envelope)
+	{
+		for (RouteMatcher matcher : matchers) {
+			if (!matcher.matches(envelope)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	public @NonNull Action getAction() { return action; }
+	public @Nullable String getDestination() { return destination; }
+	public boolean usesListId() { return usesListId; }
+}
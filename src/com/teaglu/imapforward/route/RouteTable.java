@@ -0,0 +1,128 @@
+/****************************************************************************
+ * Copyright 2022 Teaglu, LLC                                               *
+ *                                                                          *
+ * Licensed under the Apache License, Version 2.0 (the "License");          *
+ * you may not use this file except in compliance with the License.         *
+ * You may obtain a copy of the License at                                  *
+ *                                                                          *
+ *   http://www.apache.org/licenses/LICENSE-2.0                             *
+ *                                                                          *
+ * Unless required by applicable law or agreed to in writing, software      *
+ * distributed under the License is distributed on an "AS IS" BASIS,        *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. *
+ * See the License for the specific language governing permissions and      *
+ * limitations under the License.                                           *
+ ****************************************************************************/
+
+package com.teaglu.imapforward.route;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.eclipse.jdt.annotation.NonNull;
+import org.eclipse.jdt.annotation.Nullable;
+
+import com.teaglu.composite.Composite;
+import com.teaglu.composite.exception.SchemaException;
+
+import jakarta.mail.FetchProfile;
+
+/**
+ * RouteTable
+ *
+ * An ordered list of routing rules for a job.  Rules are compiled when the configuration is
+ * loaded, and the first rule that matches a message wins.  If nothing matches the message
+ * goes to the folder pair's normal destination.
+ */
+public class RouteTable {
+	private final List<@NonNull RouteRule> rules= new ArrayList<>();
+	private final boolean usesListId;
+
+	private RouteTable(
+			@NonNull Composite spec) throws SchemaException
+	{
+		boolean listId= false;
+
+		Iterable<@NonNull Composite> ruleSpecs= spec.getRequiredObjectArray("rules");
+		for (Composite ruleSpec : ruleSpecs) {
+			RouteRule rule= RouteRule.Create(ruleSpec);
+			rules.add(rule);
+
+			listId|= rule.usesListId();
+		}
+
+		usesListId= listId;
+	}
+
+	private RouteTable() {
+		usesListId= false;
+	}
+
+	public static @NonNull RouteTable Create(
+			@NonNull Composite spec) throws SchemaException
+	{
+		return new RouteTable(spec);
+	}
+
+	/**
+	 * CreateEmpty
+	 *
+	 * Create a table with no rules, so everything goes to the default destination
+	 *
+	 * @return							Empty table
+	 */
+	public static @NonNull RouteTable CreateEmpty() {
+		return new RouteTable();
+	}
+
+	/**
+	 * match
+	 *
+	 * Find the first rule that matches an envelope
+	 *
+	 * @param envelope					Envelope to test
+	 *
+	 * @return							Matching rule, or null to use the default destination
+	 */
+	public @Nullable RouteRule match(
+			@NonNull RouteEnvelope envelope)
+	{
+		for (RouteRule rule : rules) {
+			if (rule.matches(envelope)) {
+				return rule;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * usesListId
+	 *
+	 * Whether any rule needs the List-Id header, which isn't part of the IMAP envelope and
+	 * has to be fetched separately.
+	 *
+	 * @return							True if List-Id is needed
+	 */
+	public boolean usesListId() {
+		return usesListId;
+	}
+
+	/**
+	 * buildFetchProfile
+	 *
+	 * Build the fetch profile needed to evaluate the rules in bulk.  The envelope is always
+	 * fetched since we need From and Subject for the log description anyway.
+	 *
+	 * @return							Fetch profile
+	 */
+	public @NonNull FetchProfile buildFetchProfile() {
+		FetchProfile profile= new FetchProfile();
+		profile.add(FetchProfile.Item.ENVELOPE);
+
+		if (usesListId) {
+			profile.add("List-Id");
+		}
+
+		return profile;
+	}
+}
@@ -0,0 +1,48 @@
+/****************************************************************************
+ * Copyright 2022 Teaglu, LLC                                               *
+ *                                                                          *
+ * Licensed under the Apache License, Version 2.0 (the "License");          *
+ * you may not use this file except in compliance with the License.         *
+ * You may obtain a copy of the License at                                  *
+ *                                                                          *
+ *   http://www.apache.org/licenses/LICENSE-2.0                             *
+ *                                                                          *
+ * Unless required by applicable law or agreed to in writing, software      *
+ * distributed under the License is distributed on an "AS IS" BASIS,        *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. *
+ * See the License for the specific language governing permissions and      *
+ * limitations under the License.                                           *
+ ****************************************************************************/
+
+package com.teaglu.imapforward.route;
+
+import org.eclipse.jdt.annotation.NonNull;
+
+/**
+ * SizeRouteMatcher
+ *
+ * Matches the RFC822.SIZE of the message against an inclusive range
+ */
+public class SizeRouteMatcher implements RouteMatcher {
+	private final int minSize;
+	private final int maxSize;
+
+	private SizeRouteMatcher(int minSize, int maxSize) {
+		this.minSize= minSize;
+		this.maxSize= maxSize;
+	}
+
+	public static @NonNull RouteMatcher Create(int minSize, int maxSize) {
+		return new SizeRouteMatcher(minSize, maxSize);
+	}
+
+	@Override
+	public boolean matches(
+			@NonNull RouteEnvelope envelope)
+	{
+		int size= envelope.getSize();
+
+		// A size of -1 means the server didn't tell us, so don't pretend we know
+		return (size >= 0) && (size >= minSize) && (size <= maxSize);
+	}
+}
@@ -0,0 +1,183 @@
+/****************************************************************************
+ * Copyright 2022 Teaglu, LLC                                               *
+ *                                                                          *
+ * Licensed under the Apache License, Version 2.0 (the "License");          *
+ * you may not use this file except in compliance with the License.         *
+ * You may obtain a copy of the License at                                  *
+ *                                                                          *
+ *   http://www.apache.org/licenses/LICENSE-2.0                             *
+ *                                                                          *
+ * Unless required by applicable law or agreed to in writing, software      *
+ * distributed under the License is distributed on an "AS IS" BASIS,        *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. *
+ * See the License for the specific language governing permissions and      *
+ * limitations under the License.                                           *
+ ****************************************************************************/
+
+package com.teaglu.imapforward.schedule;
+
+import org.eclipse.jdt.annotation.NonNull;
+import org.eclipse.jdt.annotation.Nullable;
+
+import com.teaglu.composite.Composite;
+import com.teaglu.composite.exception.FormatException;
+import com.teaglu.composite.exception.SchemaException;
+
+/**
+ * PollSchedule
+ *
+ * Decides how long to wait between polls of a folder.  Without an adaptive configuration
+ * every folder is polled on the job's fixed cycle, which is how things always worked.
+ *
+ * With an adaptive configuration each folder keeps an exponentially weighted moving average
+ * of the time between arrivals, and polls at a fraction of that, clamped between a minimum
+ * and maximum.  A folder that hasn't seen anything for longer than its average stretches out
+ * towards the maximum, and a folder that just received something gets a short burst of fast
+ * polls since mail tends to arrive in clumps.
+ */
+public class PollSchedule {
+	// Weight given to the newest inter-arrival sample in the moving average
+	private static final double EWMA_ALPHA= 0.25;
+
+	// Poll at this fraction of the expected time between arrivals.  Polling at half the
+	// interval keeps the average pickup latency around a quarter of the arrival interval.
+	private static final double INTERVAL_FRACTION= 0.5;
+
+	private final long minMilliseconds;
+	private final long maxMilliseconds;
+	private final long initialMilliseconds;
+	private final long burstMilliseconds;
+	private final int burstPolls;
+
+	private PollSchedule(
+			@Nullable Composite spec,
+			int cycleSeconds) throws SchemaException
+	{
+		initialMilliseconds= cycleSeconds * 1000L;
+
+		if (spec == null) {
+			minMilliseconds= initialMilliseconds;
+			maxMilliseconds= initialMilliseconds;
+			burstMilliseconds= initialMilliseconds;
+			burstPolls= 0;
+		} else {
+			Integer minSeconds= spec.getOptionalInteger("minSeconds");
+			Integer maxSeconds= spec.getOptionalInteger("maxSeconds");
+			Integer burstSeconds= spec.getOptionalInteger("burstSeconds");
+			Integer burstCount= spec.getOptionalInteger("burstPolls");
+
+			minMilliseconds= ((minSeconds != null) ? minSeconds : 2) * 1000L;
+			maxMilliseconds= ((maxSeconds != null) ? maxSeconds : 300) * 1000L;
+			burstMilliseconds= (burstSeconds != null) ? burstSeconds * 1000L : minMilliseconds;
+			burstPolls= (burstCount != null) ? burstCount : 3;
+
+			if ((minMilliseconds <= 0) || (minMilliseconds > maxMilliseconds)) {
+				throw new FormatException(
+						"Adaptive polling needs 0 < minSeconds <= maxSeconds");
+			}
+		}
+	}
+
+	/**
+	 * Create
+	 *
+	 * Create a poll schedule
+	 *
+	 * @param spec						Adaptive configuration, or null for a fixed cycle
+	 * @param cycleSeconds				The job's normal cycle time
+	 *
+	 * @return							New schedule
+	 *
+	 * @throws SchemaException
+	 */
+	public static @NonNull PollSchedule Create(
+			@Nullable Composite spec,
+			int cycleSeconds) throws SchemaException
+	{
+		return new PollSchedule(spec, cycleSeconds);
+	}
+
+	/**
+	 * FolderTracker
+	 *
+	 * Arrival statistics and next poll time for a single folder.  These are only touched
+	 * from the job thread so there's no locking.
+	 */
+	public class FolderTracker {
+		// When we should next look at this folder - zero means right away
+		private long nextPoll= 0;
+
+		// Last time a poll found something, or zero if never
+		private long lastArrival= 0;
+
+		// Moving average of the time between arrivals, or zero if we don't have a sample
+		private double averageInterval= 0;
+
+		// Fast polls left in the current burst
+		private int burstLeft= 0;
+
+		private FolderTracker() {}
+
+		public boolean isDue(long now) {
+			return now >= nextPoll;
+		}
+
+		public long getNextPoll() {
+			return nextPoll;
+		}
+
+		/**
+		 * recordPoll
+		 *
+		 * Record the result of a poll and work out when the next one should be
+		 *
+		 * @param now					Time of the poll
+		 * @param arrivals				Number of messages found
+		 */
+		public void recordPoll(long now, int arrivals) {
+			if (arrivals > 0) {
+				if (lastArrival > 0) {
+					// Several messages found in one poll count as several arrivals spread
+					// over the time since the last one.
+					double sample= (double)(now - lastArrival) / arrivals;
+
+					if (averageInterval > 0) {
+						averageInterval+= EWMA_ALPHA * (sample - averageInterval);
+					} else {
+						averageInterval= sample;
+					}
+				}
+				lastArrival= now;
+				burstLeft= burstPolls;
+			}
+
+			long wait;
+			if (burstLeft > 0) {
+				burstLeft--;
+				wait= burstMilliseconds;
+			} else if (averageInterval <= 0) {
+				wait= initialMilliseconds;
+			} else {
+				// If it's been quiet for longer than usual, treat the quiet period as the
+				// interval so idle folders back off towards the maximum.
+				double expected= Math.max(averageInterval, (double)(now - lastArrival));
+				wait= (long)(expected * INTERVAL_FRACTION);
+			}
+
+			nextPoll= now + Math.max(minMilliseconds, Math.min(maxMilliseconds, wait));
+		}
+
+		/**
+		 * pollNow
+		 *
+		 * Make the folder due immediately, for example after an error or a forced cycle
+		 */
+		public void pollNow() {
+			nextPoll= 0;
+		}
+	}
+
+	public @NonNull FolderTracker createTracker() {
+		return new FolderTracker();
+	}
+}
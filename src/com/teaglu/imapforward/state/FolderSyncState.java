@@ -0,0 +1,62 @@
+/****************************************************************************
+ * Copyright 2022 Teaglu, LLC                                               *
+ *                                                                          *
+ * Licensed under the Apache License, Version 2.0 (the "License");          *
+ * you may not use this file except in compliance with the License.         *
+ * You may obtain a copy of the License at                                  *
+ *                                                                          *
+ *   http://www.apache.org/licenses/LICENSE-2.0                             *
+ *                                                                          *
+ * Unless required by applicable law or agreed to in writing, software      *
+ * distributed under the License is distributed on an "AS IS" BASIS,        *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. *
+ * See the License for the specific language governing permissions and      *
+ * limitations under the License.                                           *
+ ****************************************************************************/
+
+package com.teaglu.imapforward.state;
+
+import org.eclipse.jdt.annotation.NonNull;
+
+/**
+ * FolderSyncState
+ *
+ * How far a mirrored source folder has been synchronized.  UIDs and MODSEQs are only good for
+ * one UIDVALIDITY, so a change there means starting over.
+ */
+public class FolderSyncState {
+	private final long uidValidity;
+	private final long highestModSeq;
+	private final long lastUid;
+	
+	private FolderSyncState(
+			long uidValidity,
+			long highestModSeq,
+			long lastUid)
+	{
+		this.uidValidity= uidValidity;
+		this.highestModSeq= highestModSeq;
+		this.lastUid= lastUid;
+	}
+	
+	/**
+	 * Create
+	 *
+	 * @param uidValidity				UIDVALIDITY of the source folder
+	 * @param highestModSeq				Highest MODSEQ whose flag changes have been copied
+	 * @param lastUid					Highest UID that has been copied
+	 *
+	 * @return							New state
+	 */
+	public static @NonNull FolderSyncState Create(
+			long uidValidity,
+			long highestModSeq,
+			long lastUid)
+	{
+		return new FolderSyncState(uidValidity, highestModSeq, lastUid);
+	}
+	
+	public long getUidValidity() { return uidValidity; }
+	public long getHighestModSeq() { return highestModSeq; }
+	public long getLastUid() { return lastUid; }
+}
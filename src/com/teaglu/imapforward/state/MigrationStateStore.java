@@ -0,0 +1,221 @@
+/****************************************************************************
+ * Copyright 2022 Teaglu, LLC                                               *
+ *                                                                          *
+ * Licensed under the Apache License, Version 2.0 (the "License");          *
+ * you may not use this file except in compliance with the License.         *
+ * You may obtain a copy of the License at                                  *
+ *                                                                          *
+ *   http://www.apache.org/licenses/LICENSE-2.0                             *
+ *                                                                          *
+ * Unless required by applicable law or agreed to in writing, software      *
+ * distributed under the License is distributed on an "AS IS" BASIS,        *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. *
+ * See the License for the specific language governing permissions and      *
+ * limitations under the License.                                           *
+ ****************************************************************************/
+
+package com.teaglu.imapforward.state;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import org.eclipse.jdt.annotation.NonNull;
+import org.eclipse.jdt.annotation.Nullable;
+
+/**
+ * MigrationStateStore
+ *
+ * Persistent progress for one migration job - how each source folder was split into
+ * partitions, and how far each partition has got.  Workers save after every batch, so this
+ * is a properties file rewritten as a whole and renamed into place, the same as the mirror
+ * state.  Even a big mailbox only has a few thousand partitions.
+ *
+ * Folder entries are keyed "folder|name" with the message count when the folder was planned,
+ * and partition entries "partition|name|window".
+ */
+public class MigrationStateStore {
+	private static final String FOLDER_PREFIX= "folder|";
+	private static final String PARTITION_PREFIX= "partition|";
+	
+	private final @NonNull Path path;
+	private final @NonNull Properties properties= new Properties();
+	private boolean dirty= false;
+	
+	private MigrationStateStore(
+			@NonNull Path path) throws IOException
+	{
+		this.path= path;
+		
+		try (InputStream stream= Files.newInputStream(path)) {
+			properties.load(stream);
+		} catch (NoSuchFileException e) {
+			// Nothing planned yet
+		}
+	}
+	
+	/**
+	 * Open
+	 *
+	 * Load the store, or start an empty one if the file doesn't exist
+	 *
+	 * @param path						File to keep the state in
+	 *
+	 * @return							Store
+	 *
+	 * @throws IOException
+	 */
+	public static @NonNull MigrationStateStore Open(
+			@NonNull Path path) throws IOException
+	{
+		return new MigrationStateStore(path);
+	}
+	
+	/**
+	 * getFolderCount
+	 *
+	 * @param folder					Source folder name
+	 *
+	 * @return							Messages in the folder when it was planned, or null if
+	 * 									it hasn't been
+	 */
+	public synchronized @Nullable Integer getFolderCount(
+			@NonNull String folder)
+	{
+		String value= properties.getProperty(FOLDER_PREFIX + folder);
+		if (value == null) {
+			return null;
+		}
+		try {
+			return Integer.parseInt(value);
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+	
+	/**
+	 * putFolderCount
+	 *
+	 * Record that a folder has been planned
+	 *
+	 * @param folder					Source folder name
+	 * @param count						Messages in the folder
+	 */
+	public synchronized void putFolderCount(
+			@NonNull String folder,
+			int count)
+	{
+		properties.setProperty(FOLDER_PREFIX + folder, Integer.toString(count));
+		dirty= true;
+	}
+	
+	/**
+	 * getWindows
+	 *
+	 * @param folder					Source folder name
+	 *
+	 * @return							Windows of the partitions planned for the folder
+	 */
+	public synchronized @NonNull List<@NonNull String> getWindows(
+			@NonNull String folder)
+	{
+		String prefix= PARTITION_PREFIX + folder + "|";
+		
+		List<@NonNull String> windows= new ArrayList<>();
+		for (String key : properties.stringPropertyNames()) {
+			// The window never has a separator in it, so a folder name that does can't
+			// match a different folder's partitions
+			if (key.startsWith(prefix) && (key.indexOf('|', prefix.length()) < 0)) {
+				windows.add(key.substring(prefix.length()));
+			}
+		}
+		return windows;
+	}
+	
+	/**
+	 * get
+	 *
+	 * @param folder					Source folder name
+	 * @param window					Partition window
+	 *
+	 * @return							Saved progress, or null if nothing was saved
+	 */
+	public synchronized @Nullable PartitionProgress get(
+			@NonNull String folder,
+			@NonNull String window)
+	{
+		String value= properties.getProperty(PARTITION_PREFIX + folder + "|" + window);
+		if (value == null) {
+			return null;
+		}
+		
+		// UIDVALIDITY, last UID, total, copied, bytes, done
+		String[] parts= value.split(",");
+		if (parts.length != 6) {
+			return null;
+		}
+		try {
+			return PartitionProgress.Create(
+					Long.parseLong(parts[0]), Long.parseLong(parts[1]),
+					Integer.parseInt(parts[2]), Integer.parseInt(parts[3]),
+					Long.parseLong(parts[4]), parts[5].equals("1"));
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+	
+	/**
+	 * put
+	 *
+	 * Update a partition's progress in memory
+	 *
+	 * @param folder					Source folder name
+	 * @param window					Partition window
+	 * @param progress					New progress
+	 */
+	public synchronized void put(
+			@NonNull String folder,
+			@NonNull String window,
+			@NonNull PartitionProgress progress)
+	{
+		properties.setProperty(PARTITION_PREFIX + folder + "|" + window,
+				progress.getUidValidity() + "," + progress.getLastUid() + "," +
+				progress.getTotal() + "," + progress.getCopied() + "," +
+				progress.getBytes() + "," + (progress.isDone() ? "1" : "0"));
+		dirty= true;
+	}
+	
+	/**
+	 * save
+	 *
+	 * Write the state out if anything changed
+	 *
+	 * @throws IOException
+	 */
+	public synchronized void save() throws IOException {
+		if (!dirty) {
+			return;
+		}
+		
+		Path parent= path.getParent();
+		if (parent != null) {
+			Files.createDirectories(parent);
+		}
+		
+		Path tempPath= path.resolveSibling(path.getFileName() + ".tmp");
+		try (OutputStream stream= Files.newOutputStream(tempPath)) {
+			properties.store(stream, "imapforward migration state");
+		}
+		Files.move(tempPath, path,
+				StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		
+		dirty= false;
+	}
+}
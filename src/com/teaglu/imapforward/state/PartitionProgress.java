@@ -0,0 +1,81 @@
+/****************************************************************************
+ * Copyright 2022 Teaglu, LLC                                               *
+ *                                                                          *
+ * Licensed under the Apache License, Version 2.0 (the "License");          *
+ * you may not use this file except in compliance with the License.         *
+ * You may obtain a copy of the License at                                  *
+ *                                                                          *
+ *   http://www.apache.org/licenses/LICENSE-2.0                             *
+ *                                                                          *
+ * Unless required by applicable law or agreed to in writing, software      *
+ * distributed under the License is distributed on an "AS IS" BASIS,        *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. *
+ * See the License for the specific language governing permissions and      *
+ * limitations under the License.                                           *
+ ****************************************************************************/
+
+package com.teaglu.imapforward.state;
+
+import org.eclipse.jdt.annotation.NonNull;
+
+/**
+ * PartitionProgress
+ *
+ * How far a migration has got through one partition of a source folder.  Messages in a
+ * partition are copied in UID order, so the last UID copied is enough to resume, as long as
+ * the UIDVALIDITY hasn't changed.
+ */
+public class PartitionProgress {
+	private final long uidValidity;
+	private final long lastUid;
+	private final int total;
+	private final int copied;
+	private final long bytes;
+	private final boolean done;
+	
+	private PartitionProgress(
+			long uidValidity,
+			long lastUid,
+			int total,
+			int copied,
+			long bytes,
+			boolean done)
+	{
+		this.uidValidity= uidValidity;
+		this.lastUid= lastUid;
+		this.total= total;
+		this.copied= copied;
+		this.bytes= bytes;
+		this.done= done;
+	}
+	
+	/**
+	 * Create
+	 *
+	 * @param uidValidity				UIDVALIDITY of the source folder
+	 * @param lastUid					Highest UID in the partition that has been copied
+	 * @param total						Messages in the partition when it was searched
+	 * @param copied					Messages copied so far
+	 * @param bytes						Message bytes copied so far
+	 * @param done						True once everything in the partition was copied
+	 *
+	 * @return							New progress
+	 */
+	public static @NonNull PartitionProgress Create(
+			long uidValidity,
+			long lastUid,
+			int total,
+			int copied,
+			long bytes,
+			boolean done)
+	{
+		return new PartitionProgress(uidValidity, lastUid, total, copied, bytes, done);
+	}
+	
+	public long getUidValidity() { return uidValidity; }
+	public long getLastUid() { return lastUid; }
+	public int getTotal() { return total; }
+	public int getCopied() { return copied; }
+	public long getBytes() { return bytes; }
+	public boolean isDone() { return done; }
+}
@@ -0,0 +1,143 @@
+/****************************************************************************
+ * Copyright 2022 Teaglu, LLC                                               *
+ *                                                                          *
+ * Licensed under the Apache License, Version 2.0 (the "License");          *
+ * you may not use this file except in compliance with the License.         *
+ * You may obtain a copy of the License at                                  *
+ *                                                                          *
+ *   http://www.apache.org/licenses/LICENSE-2.0                             *
+ *                                                                          *
+ * Unless required by applicable law or agreed to in writing, software      *
+ * distributed under the License is distributed on an "AS IS" BASIS,        *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. *
+ * See the License for the specific language governing permissions and      *
+ * limitations under the License.                                           *
+ ****************************************************************************/
+
+package com.teaglu.imapforward.state;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
+
+import org.eclipse.jdt.annotation.NonNull;
+import org.eclipse.jdt.annotation.Nullable;
+
+/**
+ * SyncStateStore
+ *
+ * Persistent sync positions for the folders of one mirroring job.  There are only ever a
+ * handful of folders, so this is a properties file rewritten as a whole and renamed into
+ * place on save.
+ */
+public class SyncStateStore {
+	private final @NonNull Path path;
+	private final @NonNull Properties properties= new Properties();
+	private boolean dirty= false;
+	
+	private SyncStateStore(
+			@NonNull Path path) throws IOException
+	{
+		this.path= path;
+		
+		try (InputStream stream= Files.newInputStream(path)) {
+			properties.load(stream);
+		} catch (NoSuchFileException e) {
+			// Nothing synchronized yet
+		}
+	}
+	
+	/**
+	 * Open
+	 *
+	 * Load the store, or start an empty one if the file doesn't exist
+	 *
+	 * @param path						File to keep the state in
+	 *
+	 * @return							Store
+	 *
+	 * @throws IOException
+	 */
+	public static @NonNull SyncStateStore Open(
+			@NonNull Path path) throws IOException
+	{
+		return new SyncStateStore(path);
+	}
+	
+	/**
+	 * get
+	 *
+	 * @param folder					Source folder name
+	 *
+	 * @return							Saved state, or null if the folder has never synced
+	 */
+	public synchronized @Nullable FolderSyncState get(
+			@NonNull String folder)
+	{
+		String value= properties.getProperty(folder);
+		if (value == null) {
+			return null;
+		}
+		
+		// UIDVALIDITY, MODSEQ, last UID
+		String[] parts= value.split(",");
+		if (parts.length != 3) {
+			return null;
+		}
+		try {
+			return FolderSyncState.Create(
+					Long.parseLong(parts[0]), Long.parseLong(parts[1]), Long.parseLong(parts[2]));
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+	
+	/**
+	 * put
+	 *
+	 * Update a folder's state in memory
+	 *
+	 * @param folder					Source folder name
+	 * @param state						New state
+	 */
+	public synchronized void put(
+			@NonNull String folder,
+			@NonNull FolderSyncState state)
+	{
+		properties.setProperty(folder, state.getUidValidity() + "," +
+				state.getHighestModSeq() + "," + state.getLastUid());
+		dirty= true;
+	}
+	
+	/**
+	 * save
+	 *
+	 * Write the state out if anything changed
+	 *
+	 * @throws IOException
+	 */
+	public synchronized void save() throws IOException {
+		if (!dirty) {
+			return;
+		}
+		
+		Path parent= path.getParent();
+		if (parent != null) {
+			Files.createDirectories(parent);
+		}
+		
+		Path tempPath= path.resolveSibling(path.getFileName() + ".tmp");
+		try (OutputStream stream= Files.newOutputStream(tempPath)) {
+			properties.store(stream, "imapforward mirror state");
+		}
+		Files.move(tempPath, path,
+				StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		
+		dirty= false;
+	}
+}
@@ -0,0 +1,476 @@
+/****************************************************************************
+ * Copyright 2022 Teaglu, LLC                                               *
+ *                                                                          *
+ * Licensed under the Apache License, Version 2.0 (the "License");          *
+ * you may not use this file except in compliance with the License.         *
+ * You may obtain a copy of the License at                                  *
+ *                                                                          *
+ *   http://www.apache.org/licenses/LICENSE-2.0                             *
+ *                                                                          *
+ * Unless required by applicable law or agreed to in writing, software      *
+ * distributed under the License is distributed on an "AS IS" BASIS,        *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. *
+ * See the License for the specific language governing permissions and      *
+ * limitations under the License.                                           *
+ ****************************************************************************/
+
+package com.teaglu.imapforward.state;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import org.eclipse.jdt.annotation.NonNull;
+import org.eclipse.jdt.annotation.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * UidMapStore
+ *
+ * Persistent map from a source message (folder, UIDVALIDITY, UID) to where it landed on the
+ * destination, built from the APPENDUID responses of servers that support UIDPLUS.  With this
+ * a retry can tell a message was already copied without searching the destination for it.
+ *
+ * The file is an append-only log of small checksummed records, with everything indexed in
+ * memory when it's opened.  Folder names are written once and referred to by number after
+ * that.  A record torn by a crash fails its checksum, and the log is cut off there on the
+ * next open.  When the log has built up enough dead records it gets rewritten with only the
+ * live ones and renamed over the old one.
+ *
+ * Records go straight to the file without buffering, so they survive the process dying.
+ * Call flush to make them survive the machine dying too.
+ */
+public class UidMapStore {
+	private static final Logger log= LoggerFactory.getLogger(UidMapStore.class);
+	
+	private static final int MAGIC= 0x49465531;		// IFU1
+	
+	private static final byte FOLDER_RECORD= 'F';
+	private static final byte MAP_RECORD= 'M';
+	private static final byte DELETE_RECORD= 'D';
+	
+	// Header of type and payload length, trailer of CRC
+	private static final int RECORD_OVERHEAD= 1 + 2 + 4;
+	
+	// Don't bother compacting small logs
+	private static final long COMPACT_MINIMUM_RECORDS= 10_000;
+	
+	private final @NonNull Path path;
+	private FileChannel channel;
+	
+	private final Map<@NonNull String, Integer> folderIds= new HashMap<>();
+	private final List<@NonNull String> folderNames= new ArrayList<>();
+	
+	private final Map<Key, @NonNull UidMapping> mappings= new HashMap<>();
+	
+	// Mapping and delete records in the log, live or not
+	private long recordCount= 0;
+	
+	private static class Key {
+		private final int folder;
+		private final long uidValidity;
+		private final long uid;
+		
+		private Key(int folder, long uidValidity, long uid) {
+			this.folder= folder;
+			this.uidValidity= uidValidity;
+			this.uid= uid;
+		}
+		
+		@Override
+		public boolean equals(Object other) {
+			if (!(other instanceof Key)) {
+				return false;
+			}
+			Key key= (Key)other;
+			return (folder == key.folder) && (uidValidity == key.uidValidity) && (uid == key.uid);
+		}
+		
+		@Override
+		public int hashCode() {
+			return (int)((folder * 31L + uidValidity) * 31L + uid) ^ (int)(uid >>> 32);
+		}
+	}
+	
+	private UidMapStore(
+			@NonNull Path path) throws IOException
+	{
+		this.path= path;
+		load();
+	}
+	
+	/**
+	 * Open
+	 *
+	 * Open a store, creating the file if it doesn't exist
+	 *
+	 * @param path						File to keep the store in
+	 *
+	 * @return							Open store
+	 *
+	 * @throws IOException
+	 */
+	public static @NonNull UidMapStore Open(
+			@NonNull Path path) throws IOException
+	{
+		return new UidMapStore(path);
+	}
+	
+	private void load() throws IOException {
+		Path parent= path.getParent();
+		if (parent != null) {
+			Files.createDirectories(parent);
+		}
+		
+		channel= FileChannel.open(path,
+				StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		
+		if (channel.size() == 0) {
+			ByteBuffer header= ByteBuffer.allocate(4);
+			header.putInt(MAGIC);
+			header.flip();
+			writeFully(header);
+			return;
+		}
+		
+		ByteBuffer data= ByteBuffer.allocate((int)Math.min(channel.size(), Integer.MAX_VALUE));
+		channel.position(0);
+		while (data.hasRemaining() && (channel.read(data) >= 0)) {}
+		data.flip();
+		
+		if ((data.remaining() < 4) || (data.getInt() != MAGIC)) {
+			throw new IOException("File " + path + " is not a UID map");
+		}
+		
+		long goodEnd= data.position();
+		CRC32 crc= new CRC32();
+		
+		while (data.remaining() >= RECORD_OVERHEAD) {
+			int start= data.position();
+			byte type= data.get();
+			int length= data.getShort() & 0xFFFF;
+			
+			if (data.remaining() < length + 4) {
+				break;
+			}
+			
+			crc.reset();
+			crc.update(data.array(), start, 3 + length);
+			
+			ByteBuffer payload= data.slice();
+			payload.limit(length);
+			data.position(data.position() + length);
+			
+			if (data.getInt() != (int)crc.getValue()) {
+				break;
+			}
+			
+			apply(type, payload);
+			goodEnd= data.position();
+		}
+		
+		if (goodEnd < channel.size()) {
+			log.warn("Discarding " + (channel.size() - goodEnd) +
+					" bytes of incomplete records at the end of " + path);
+			channel.truncate(goodEnd);
+		}
+		channel.position(goodEnd);
+	}
+	
+	private void apply(
+			byte type,
+			@NonNull ByteBuffer payload)
+	{
+		switch (type) {
+		case FOLDER_RECORD: {
+			int id= payload.getInt();
+			byte[] nameBytes= new byte[payload.remaining()];
+			payload.get(nameBytes);
+			
+			String name= new String(nameBytes, StandardCharsets.UTF_8);
+			while (folderNames.size() <= id) {
+				folderNames.add("");
+			}
+			folderNames.set(id, name);
+			folderIds.put(name, id);
+			break;
+		}
+			
+		case MAP_RECORD: {
+			Key key= new Key(payload.getInt(), payload.getLong(), payload.getLong());
+			int destinationFolder= payload.getInt();
+			long destinationValidity= payload.getLong();
+			long destinationUid= payload.getLong();
+			
+			mappings.put(key, new UidMapping(
+					folderNames.get(destinationFolder), destinationValidity, destinationUid));
+			recordCount++;
+			break;
+		}
+			
+		case DELETE_RECORD:
+			mappings.remove(new Key(payload.getInt(), payload.getLong(), payload.getLong()));
+			recordCount++;
+			break;
+			
+		default:
+			log.warn("Unknown record type " + type + " in " + path);
+		}
+	}
+	
+	private void writeFully(
+			@NonNull ByteBuffer buffer) throws IOException
+	{
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+	}
+	
+	private void writeRecord(
+			byte type,
+			@NonNull ByteBuffer payload) throws IOException
+	{
+		int length= payload.remaining();
+		
+		ByteBuffer record= ByteBuffer.allocate(RECORD_OVERHEAD + length);
+		record.put(type);
+		record.putShort((short)length);
+		record.put(payload);
+		
+		CRC32 crc= new CRC32();
+		crc.update(record.array(), 0, 3 + length);
+		record.putInt((int)crc.getValue());
+		
+		record.flip();
+		writeFully(record);
+	}
+	
+	private int folderId(
+			@NonNull String name) throws IOException
+	{
+		Integer id= folderIds.get(name);
+		if (id == null) {
+			id= folderNames.size();
+			
+			byte[] nameBytes= name.getBytes(StandardCharsets.UTF_8);
+			ByteBuffer payload= ByteBuffer.allocate(4 + nameBytes.length);
+			payload.putInt(id);
+			payload.put(nameBytes);
+			payload.flip();
+			writeRecord(FOLDER_RECORD, payload);
+			
+			folderNames.add(name);
+			folderIds.put(name, id);
+		}
+		return id;
+	}
+	
+	/**
+	 * put
+	 *
+	 * Record where a source message was copied to
+	 *
+	 * @param sourceFolder				Source folder name
+	 * @param sourceValidity			Source folder UIDVALIDITY
+	 * @param sourceUid					Source message UID
+	 * @param destinationFolder			Destination folder name
+	 * @param destinationValidity		Destination folder UIDVALIDITY
+	 * @param destinationUid			Destination message UID
+	 *
+	 * @throws IOException
+	 */
+	public synchronized void put(
+			@NonNull String sourceFolder,
+			long sourceValidity,
+			long sourceUid,
+			@NonNull String destinationFolder,
+			long destinationValidity,
+			long destinationUid) throws IOException
+	{
+		int sourceId= folderId(sourceFolder);
+		int destinationId= folderId(destinationFolder);
+		
+		ByteBuffer payload= ByteBuffer.allocate(4 + 8 + 8 + 4 + 8 + 8);
+		payload.putInt(sourceId);
+		payload.putLong(sourceValidity);
+		payload.putLong(sourceUid);
+		payload.putInt(destinationId);
+		payload.putLong(destinationValidity);
+		payload.putLong(destinationUid);
+		payload.flip();
+		writeRecord(MAP_RECORD, payload);
+		
+		mappings.put(new Key(sourceId, sourceValidity, sourceUid),
+				new UidMapping(destinationFolder, destinationValidity, destinationUid));
+		recordCount++;
+	}
+	
+	/**
+	 * get
+	 *
+	 * Look up where a source message was copied to
+	 *
+	 * @param sourceFolder				Source folder name
+	 * @param sourceValidity			Source folder UIDVALIDITY
+	 * @param sourceUid					Source message UID
+	 *
+	 * @return							Destination, or null if there's no record of it
+	 */
+	public synchronized @Nullable UidMapping get(
+			@NonNull String sourceFolder,
+			long sourceValidity,
+			long sourceUid)
+	{
+		Integer sourceId= folderIds.get(sourceFolder);
+		if (sourceId == null) {
+			return null;
+		}
+		return mappings.get(new Key(sourceId, sourceValidity, sourceUid));
+	}
+	
+	/**
+	 * remove
+	 *
+	 * Forget a source message
+	 *
+	 * @param sourceFolder				Source folder name
+	 * @param sourceValidity			Source folder UIDVALIDITY
+	 * @param sourceUid					Source message UID
+	 *
+	 * @throws IOException
+	 */
+	public synchronized void remove(
+			@NonNull String sourceFolder,
+			long sourceValidity,
+			long sourceUid) throws IOException
+	{
+		Integer sourceId= folderIds.get(sourceFolder);
+		if ((sourceId == null) ||
+				(mappings.remove(new Key(sourceId, sourceValidity, sourceUid)) == null))
+		{
+			return;
+		}
+		
+		ByteBuffer payload= ByteBuffer.allocate(4 + 8 + 8);
+		payload.putInt(sourceId);
+		payload.putLong(sourceValidity);
+		payload.putLong(sourceUid);
+		payload.flip();
+		writeRecord(DELETE_RECORD, payload);
+		
+		recordCount++;
+	}
+	
+	/**
+	 * size
+	 *
+	 * @return							Number of live mappings
+	 */
+	public synchronized int size() {
+		return mappings.size();
+	}
+	
+	/**
+	 * flush
+	 *
+	 * Force everything written so far to disk
+	 *
+	 * @throws IOException
+	 */
+	public synchronized void flush() throws IOException {
+		channel.force(false);
+	}
+	
+	/**
+	 * compactIfNeeded
+	 *
+	 * Rewrite the log without dead records if more than half of it is dead
+	 *
+	 * @throws IOException
+	 */
+	public synchronized void compactIfNeeded() throws IOException {
+		if ((recordCount < COMPACT_MINIMUM_RECORDS) || (recordCount < mappings.size() * 2L)) {
+			return;
+		}
+		
+		long before= recordCount;
+		Path tempPath= path.resolveSibling(path.getFileName() + ".compact");
+		
+		// Write the live entries to a new file through the normal record code, then swap
+		FileChannel oldChannel= channel;
+		Map<Key, @NonNull UidMapping> live= new HashMap<>(mappings);
+		List<@NonNull String> names= new ArrayList<>(folderNames);
+		
+		channel= FileChannel.open(tempPath, StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+		try {
+			folderIds.clear();
+			folderNames.clear();
+			mappings.clear();
+			recordCount= 0;
+			
+			ByteBuffer header= ByteBuffer.allocate(4);
+			header.putInt(MAGIC);
+			header.flip();
+			writeFully(header);
+			
+			for (Map.Entry<Key, @NonNull UidMapping> entry : live.entrySet()) {
+				Key key= entry.getKey();
+				UidMapping mapping= entry.getValue();
+				
+				put(names.get(key.folder), key.uidValidity, key.uid,
+						mapping.getFolder(), mapping.getUidValidity(), mapping.getUid());
+			}
+			channel.force(true);
+			channel.close();
+		} catch (IOException e) {
+			// Put everything back the way it was and keep using the old file
+			channel.close();
+			oldChannel.close();
+			
+			Files.deleteIfExists(tempPath);
+			
+			folderIds.clear();
+			folderNames.clear();
+			mappings.clear();
+			recordCount= 0;
+			
+			load();
+			throw e;
+		}
+		
+		oldChannel.close();
+		Files.move(tempPath, path,
+				StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		
+		channel= FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		channel.position(channel.size());
+		
+		log.info("Compacted " + path + " from " + before + " to " + recordCount + " records");
+	}
+	
+	/**
+	 * close
+	 *
+	 * Flush and close the file
+	 */
+	public synchronized void close() {
+		try {
+			channel.force(false);
+			channel.close();
+		} catch (IOException e) {
+			log.warn("Error closing " + path, e);
+		}
+	}
+}
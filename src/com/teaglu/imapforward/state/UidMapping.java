@@ -0,0 +1,44 @@
+/****************************************************************************
+ * Copyright 2022 Teaglu, LLC                                               *
+ *                                                                          *
+ * Licensed under the Apache License, Version 2.0 (the "License");          *
+ * you may not use this file except in compliance with the License.         *
+ * You may obtain a copy of the License at                                  *
+ *                                                                          *
+ *   http://www.apache.org/licenses/LICENSE-2.0                             *
+ *                                                                          *
+ * Unless required by applicable law or agreed to in writing, software      *
+ * distributed under the License is distributed on an "AS IS" BASIS,        *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. *
+ * See the License for the specific language governing permissions and      *
+ * limitations under the License.                                           *
+ ****************************************************************************/
+
+package com.teaglu.imapforward.state;
+
+import org.eclipse.jdt.annotation.NonNull;
+
+/**
+ * UidMapping
+ *
+ * Where a source message ended up on the destination
+ */
+public class UidMapping {
+	private final @NonNull String folder;
+	private final long uidValidity;
+	private final long uid;
+	
+	UidMapping(
+			@NonNull String folder,
+			long uidValidity,
+			long uid)
+	{
+		this.folder= folder;
+		this.uidValidity= uidValidity;
+		this.uid= uid;
+	}
+	
+	public @NonNull String getFolder() { return folder; }
+	public long getUidValidity() { return uidValidity; }
+	public long getUid() { return uid; }
+}
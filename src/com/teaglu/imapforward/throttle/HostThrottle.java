@@ -0,0 +1,115 @@
+/****************************************************************************
+ * Copyright 2022 Teaglu, LLC                                               *
+ *                                                                          *
+ * Licensed under the Apache License, Version 2.0 (the "License");          *
+ * you may not use this file except in compliance with the License.         *
+ * You may obtain a copy of the License at                                  *
+ *                                                                          *
+ *   http://www.apache.org/licenses/LICENSE-2.0                             *
+ *                                                                          *
+ * Unless required by applicable law or agreed to in writing, software      *
+ * distributed under the License is distributed on an "AS IS" BASIS,        *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. *
+ * See the License for the specific language governing permissions and      *
+ * limitations under the License.                                           *
+ ****************************************************************************/
+
+package com.teaglu.imapforward.throttle;
+
+import org.eclipse.jdt.annotation.NonNull;
+
+import com.teaglu.composite.Composite;
+import com.teaglu.composite.exception.FormatException;
+import com.teaglu.composite.exception.SchemaException;
+
+/**
+ * HostThrottle
+ *
+ * Rate limits for one server, or one account on a server - commands per second and bytes per
+ * second, either of which can be left out.  Every job talking to that server draws from the
+ * same buckets, so the total stays under the limit no matter how many jobs there are.
+ */
+public class HostThrottle {
+	private final @NonNull String host;
+	private final String account;
+	
+	private final TokenBucket commands;
+	private final TokenBucket bytes;
+	
+	private HostThrottle(
+			@NonNull Composite spec) throws SchemaException
+	{
+		host= spec.getRequiredString("host");
+		account= spec.getOptionalString("account");
+		
+		Integer burstSpec= spec.getOptionalInteger("burstSeconds");
+		int burstSeconds= (burstSpec != null) ? burstSpec : 2;
+		if (burstSeconds < 1) {
+			throw new FormatException("Throttle burstSeconds must be at least 1");
+		}
+		
+		Integer commandSpec= spec.getOptionalInteger("commandsPerSecond");
+		if (commandSpec != null) {
+			if (commandSpec < 1) {
+				throw new FormatException("Throttle commandsPerSecond must be positive");
+			}
+			commands= TokenBucket.Create(commandSpec, burstSeconds);
+		} else {
+			commands= null;
+		}
+		
+		Integer byteSpec= spec.getOptionalInteger("bytesPerSecond");
+		if (byteSpec != null) {
+			if (byteSpec < 1) {
+				throw new FormatException("Throttle bytesPerSecond must be positive");
+			}
+			bytes= TokenBucket.Create(byteSpec, burstSeconds);
+		} else {
+			bytes= null;
+		}
+	}
+	
+	/**
+	 * Create
+	 *
+	 * Create a throttle from configuration
+	 *
+	 * @param spec						Throttle configuration
+	 *
+	 * @return							New throttle
+	 *
+	 * @throws SchemaException
+	 */
+	public static @NonNull HostThrottle Create(
+			@NonNull Composite spec) throws SchemaException
+	{
+		return new HostThrottle(spec);
+	}
+	
+	public @NonNull String getHost() { return host; }
+	public String getAccount() { return account; }
+	
+	/**
+	 * reserve
+	 *
+	 * Account for commands and bytes about to be sent
+	 *
+	 * @param commandCount				Number of commands
+	 * @param byteCount					Number of bytes, or zero if not known
+	 *
+	 * @return							Milliseconds to wait before sending
+	 */
+	public long reserve(
+			int commandCount,
+			long byteCount)
+	{
+		long wait= 0;
+		if ((commands != null) && (commandCount > 0)) {
+			wait= commands.reserve(commandCount);
+		}
+		if ((bytes != null) && (byteCount > 0)) {
+			wait= Math.max(wait, bytes.reserve(byteCount));
+		}
+		return wait;
+	}
+}
@@ -0,0 +1,96 @@
+/****************************************************************************
+ * Copyright 2022 Teaglu, LLC                                               *
+ *                                                                          *
+ * Licensed under the Apache License, Version 2.0 (the "License");          *
+ * you may not use this file except in compliance with the License.         *
+ * You may obtain a copy of the License at                                  *
+ *                                                                          *
+ *   http://www.apache.org/licenses/LICENSE-2.0                             *
+ *                                                                          *
+ * Unless required by applicable law or agreed to in writing, software      *
+ * distributed under the License is distributed on an "AS IS" BASIS,        *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. *
+ * See the License for the specific language governing permissions and      *
+ * limitations under the License.                                           *
+ ****************************************************************************/
+
+package com.teaglu.imapforward.throttle;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.eclipse.jdt.annotation.NonNull;
+import org.eclipse.jdt.annotation.Nullable;
+
+import com.teaglu.composite.Composite;
+import com.teaglu.composite.exception.SchemaException;
+
+/**
+ * ThrottleRegistry
+ *
+ * Process-wide lookup of host throttles, so every job sending to the same server shares the
+ * same limits.  A throttle for a specific account on a host takes priority over one for the
+ * host as a whole.
+ *
+ * The table is replaced as a whole on reconfiguration, which starts the buckets over full.
+ */
+public final class ThrottleRegistry {
+	private static volatile Map<@NonNull String, @NonNull HostThrottle> throttles= new HashMap<>();
+	
+	private ThrottleRegistry() {}
+	
+	private static @NonNull String key(
+			@NonNull String host,
+			@Nullable String account)
+	{
+		String lowerHost= host.toLowerCase();
+		return (account != null) ? (lowerHost + "/" + account.toLowerCase()) : lowerHost;
+	}
+	
+	/**
+	 * Configure
+	 *
+	 * Replace all the throttles
+	 *
+	 * @param spec						Throttle configuration, or null for none
+	 *
+	 * @throws SchemaException
+	 */
+	public static void Configure(
+			@Nullable Composite spec) throws SchemaException
+	{
+		Map<@NonNull String, @NonNull HostThrottle> newThrottles= new HashMap<>();
+		
+		if (spec != null) {
+			for (Composite hostSpec : spec.getRequiredObjectArray("hosts")) {
+				HostThrottle throttle= HostThrottle.Create(hostSpec);
+				newThrottles.put(key(throttle.getHost(), throttle.getAccount()), throttle);
+			}
+		}
+		
+		throttles= newThrottles;
+	}
+	
+	/**
+	 * Get
+	 *
+	 * Find the throttle for an account on a host
+	 *
+	 * @param host						Host name
+	 * @param account					Account name
+	 *
+	 * @return							Throttle, or null if there's no limit
+	 */
+	public static @Nullable HostThrottle Get(
+			@NonNull String host,
+			@NonNull String account)
+	{
+		Map<@NonNull String, @NonNull HostThrottle> current= throttles;
+		
+		HostThrottle throttle= current.get(key(host, account));
+		if (throttle == null) {
+			throttle= current.get(key(host, null));
+		}
+		return throttle;
+	}
+}
@@ -0,0 +1,88 @@
+/****************************************************************************
+ * Copyright 2022 Teaglu, LLC                                               *
+ *                                                                          *
+ * Licensed under the Apache License, Version 2.0 (the "License");          *
+ * you may not use this file except in compliance with the License.         *
+ * You may obtain a copy of the License at                                  *
+ *                                                                          *
+ *   http://www.apache.org/licenses/LICENSE-2.0                             *
+ *                                                                          *
+ * Unless required by applicable law or agreed to in writing, software      *
+ * distributed under the License is distributed on an "AS IS" BASIS,        *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. *
+ * See the License for the specific language governing permissions and      *
+ * limitations under the License.                                           *
+ ****************************************************************************/
+
+package com.teaglu.imapforward.throttle;
+
+import org.eclipse.jdt.annotation.NonNull;
+
+/**
+ * TokenBucket
+ *
+ * Classic token bucket - tokens drip in at a fixed rate up to a burst limit, and each use
+ * takes some out.  Instead of blocking inside, a caller reserves what it needs and is told
+ * how long to wait.  The balance can go negative, so a request bigger than the whole bucket
+ * still goes through eventually, and callers queue up in the order they asked.
+ */
+public class TokenBucket {
+	private final double ratePerMillisecond;
+	private final double capacity;
+	
+	private double tokens;
+	private long lastRefill;
+	
+	private TokenBucket(
+			double ratePerSecond,
+			double burstSeconds)
+	{
+		this.ratePerMillisecond= ratePerSecond / 1000.0;
+		this.capacity= Math.max(1.0, ratePerSecond * burstSeconds);
+		
+		this.tokens= capacity;
+		this.lastRefill= System.currentTimeMillis();
+	}
+	
+	/**
+	 * Create
+	 *
+	 * Create a bucket, initially full
+	 *
+	 * @param ratePerSecond				Tokens added per second
+	 * @param burstSeconds				Size of the bucket, in seconds worth of tokens
+	 *
+	 * @return							New bucket
+	 */
+	public static @NonNull TokenBucket Create(
+			double ratePerSecond,
+			double burstSeconds)
+	{
+		return new TokenBucket(ratePerSecond, burstSeconds);
+	}
+	
+	/**
+	 * reserve
+	 *
+	 * Take tokens out of the bucket
+	 *
+	 * @param count						Number of tokens
+	 *
+	 * @return							Milliseconds to wait before using them
+	 */
+	public synchronized long reserve(
+			double count)
+	{
+		long now= System.currentTimeMillis();
+		
+		tokens= Math.min(capacity, tokens + ((now - lastRefill) * ratePerMillisecond));
+		lastRefill= now;
+		
+		tokens-= count;
+		if (tokens >= 0) {
+			return 0;
+		}
+		
+		return (long)Math.ceil(-tokens / ratePerMillisecond);
+	}
+}
@@ -31,6 +31,9 @@ import org.eclipse.jdt.annotation.NonNull;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.teaglu.imapforward.jfr.TimeoutCancelEvent;
+import com.teaglu.imapforward.jfr.TimeoutFireEvent;
+
 /**
  * TimeoutManagerImpl
  * 
@@ -68,6 +71,10 @@ public class TimeoutManagerImpl implements TimeoutManager {
 			// ExecutorService.  We try to catch any exceptions/errors so that a problem
 			// in a callback doesn't disrupt the executor.
 			
+			TimeoutFireEvent event= new TimeoutFireEvent();
+			long started= event.isEnabled() ? System.currentTimeMillis() : 0;
+			event.begin();
+			
 			try {
 				target.call();
 			} catch (Exception e) {
@@ -78,6 +85,12 @@ public class TimeoutManagerImpl implements TimeoutManager {
 				// An error is usually a null pointer or something else indicating corruption,
 				// so better to shut down and let the container recycle.
 				System.exit(1);
+			} finally {
+				event.end();
+				if (event.shouldCommit()) {
+					event.lateness= Math.max(0, started - when);
+					event.commit();
+				}
 			}
 		}
 	}
@@ -139,11 +152,13 @@ public class TimeoutManagerImpl implements TimeoutManager {
 	}
 
 	// This is called by the cancel call on the timeout
-	private void removeCallback(@NonNull Timeout handle) {
+	private void removeCallback(@NonNull TimeoutImpl handle) {
+		boolean removed= false;
+		
 		queueLock.lock();
 		try {
 			boolean isFirst= (handle == queue.peek());
-			queue.remove(handle);
+			removed= queue.remove(handle);
 			
 			if (isFirst) {
 				// All this really does is prevent a spurious wakeup, but it seems like the
@@ -153,6 +168,14 @@ public class TimeoutManagerImpl implements TimeoutManager {
 		} finally {
 			queueLock.unlock();
 		}
+		
+		if (removed) {
+			TimeoutCancelEvent event= new TimeoutCancelEvent();
+			if (event.shouldCommit()) {
+				event.remaining= handle.when - System.currentTimeMillis();
+				event.commit();
+			}
+		}
 	}
 	
 	// This is the dispatch thread
@@ -0,0 +1,164 @@
+/****************************************************************************
+ * Copyright 2022 Teaglu, LLC                                               *
+ *                                                                          *
+ * Licensed under the Apache License, Version 2.0 (the "License");          *
+ * you may not use this file except in compliance with the License.         *
+ * You may obtain a copy of the License at                                  *
+ *                                                                          *
+ *   http://www.apache.org/licenses/LICENSE-2.0                             *
+ *                                                                          *
+ * Unless required by applicable law or agreed to in writing, software      *
+ * distributed under the License is distributed on an "AS IS" BASIS,        *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. *
+ * See the License for the specific language governing permissions and      *
+ * limitations under the License.                                           *
+ ****************************************************************************/
+
+package com.teaglu.imapforward.timeout;
+
+import org.eclipse.jdt.annotation.NonNull;
+import org.eclipse.jdt.annotation.Nullable;
+
+/**
+ * Watchdog
+ *
+ * A deadline that gets pushed forward every time the owner makes progress.  The owner arms
+ * it before each operation with however long that operation is allowed to take, and the
+ * action only fires if an operation overruns its own deadline.
+ *
+ * Arming is meant to be cheap enough to do per message, so it doesn't touch the timeout
+ * manager when the deadline moves later.  The one scheduled timeout checks the current
+ * deadline when it goes off and reschedules itself if there's been progress in the meantime.
+ */
+public class Watchdog {
+	private final @NonNull TimeoutManager timeoutManager;
+	private final @NonNull TimeoutAction action;
+
+	// Current deadline, or zero if disarmed
+	private volatile long deadline= 0;
+
+	// What we're waiting on, for the alert
+	private volatile @NonNull String operation= "idle";
+
+	// These are protected by synchronizing on the watchdog
+	private Timeout timeout= null;
+	private long scheduledFor= 0;
+
+	private Watchdog(
+			@NonNull TimeoutManager timeoutManager,
+			@NonNull TimeoutAction action)
+	{
+		this.timeoutManager= timeoutManager;
+		this.action= action;
+	}
+
+	/**
+	 * Create
+	 *
+	 * Create a watchdog, initially disarmed
+	 *
+	 * @param timeoutManager			Timeout manager to schedule on
+	 * @param action					Action to call when a deadline is missed
+	 *
+	 * @return							New watchdog
+	 */
+	public static @NonNull Watchdog Create(
+			@NonNull TimeoutManager timeoutManager,
+			@NonNull TimeoutAction action)
+	{
+		return new Watchdog(timeoutManager, action);
+	}
+
+	/**
+	 * arm
+	 *
+	 * Start the clock on an operation, replacing whatever deadline was there before.
+	 *
+	 * @param operation					Short description of the operation
+	 * @param milliseconds				How long the operation is allowed to take
+	 */
+	public void arm(
+			@NonNull String operation,
+			long milliseconds)
+	{
+		long newDeadline= System.currentTimeMillis() + milliseconds;
+
+		this.operation= operation;
+		this.deadline= newDeadline;
+
+		synchronized (this) {
+			// Only go to the timeout manager if nothing is scheduled or the new deadline is
+			// sooner than what's scheduled.  A later deadline gets picked up by check().
+			if ((timeout == null) || (newDeadline < scheduledFor)) {
+				if (timeout != null) {
+					timeout.cancel();
+				}
+				schedule(newDeadline);
+			}
+		}
+	}
+
+	/**
+	 * disarm
+	 *
+	 * Stop watching, for example while the owner is sleeping between cycles.  The scheduled
+	 * timeout is left in place and does nothing when it goes off.
+	 */
+	public void disarm() {
+		deadline= 0;
+		operation= "idle";
+	}
+
+	/**
+	 * cancel
+	 *
+	 * Disarm and remove anything scheduled with the timeout manager, for shutdown.
+	 */
+	public synchronized void cancel() {
+		disarm();
+
+		if (timeout != null) {
+			timeout.cancel();
+			timeout= null;
+		}
+	}
+
+	/**
+	 * getOperation
+	 *
+	 * @return							The operation the watchdog is currently waiting on
+	 */
+	public @NonNull String getOperation() {
+		return operation;
+	}
+
+	// Must be called holding the monitor
+	private void schedule(long when) {
+		scheduledFor= when;
+		timeout= timeoutManager.schedule(when, () -> { check(); });
+	}
+
+	private void check() {
+		@Nullable TimeoutAction fire= null;
+
+		synchronized (this) {
+			timeout= null;
+
+			long current= deadline;
+			if (current != 0) {
+				if (System.currentTimeMillis() < current) {
+					// There's been progress since this was scheduled
+					schedule(current);
+				} else {
+					deadline= 0;
+					fire= action;
+				}
+			}
+		}
+
+		// Call outside the lock, since the action is likely to stop the owner
+		if (fire != null) {
+			fire.call();
+		}
+	}
+}
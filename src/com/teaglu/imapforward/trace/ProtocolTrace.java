@@ -0,0 +1,263 @@
+/****************************************************************************
+ * Copyright 2022 Teaglu, LLC                                               *
+ *                                                                          *
+ * Licensed under the Apache License, Version 2.0 (the "License");          *
+ * you may not use this file except in compliance with the License.         *
+ * You may obtain a copy of the License at                                  *
+ *                                                                          *
+ *   http://www.apache.org/licenses/LICENSE-2.0                             *
+ *                                                                          *
+ * Unless required by applicable law or agreed to in writing, software      *
+ * distributed under the License is distributed on an "AS IS" BASIS,        *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. *
+ * See the License for the specific language governing permissions and      *
+ * limitations under the License.                                           *
+ ****************************************************************************/
+
+package com.teaglu.imapforward.trace;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.eclipse.jdt.annotation.NonNull;
+import org.eclipse.jdt.annotation.Nullable;
+
+/**
+ * ProtocolTrace
+ *
+ * Keeps the last N lines of a mail session's protocol trace in memory so they can be attached
+ * to an alert after something goes wrong.  This is what mail.debug used to be for, except
+ * that dumped everything for every job to the console and was too slow and noisy to leave on.
+ *
+ * JavaMail writes its trace to the session's debug stream, which is this.  The stream is
+ * split into lines, long lines are truncated, and literal data (message bodies going either
+ * way) is counted and skipped instead of recorded.  Login commands are masked in case
+ * authentication tracing is ever turned on.
+ *
+ * All the methods are synchronized, since the job thread writes and whoever is sending the
+ * alert reads.
+ */
+public class ProtocolTrace extends OutputStream {
+	// Longest line we keep, anything past this is cut off
+	private static final int MAX_LINE= 200;
+
+	// A line ending in {123} or {123+} announces a literal of that many bytes
+	private static final Pattern LITERAL_PATTERN= Pattern.compile("\\{(\\d+)\\+?\\}$");
+
+	// LOGIN user password, with an optional tag in front
+	private static final Pattern LOGIN_PATTERN= Pattern.compile(
+			"^(\\S+\\s+)?(LOGIN)\\s.*$", Pattern.CASE_INSENSITIVE);
+
+	private final @NonNull String[] lines;
+	private int nextLine= 0;
+	private long lineCount= 0;
+
+	// The line currently being assembled
+	private final byte[] current= new byte[MAX_LINE];
+	private int currentLength= 0;
+	private int currentDropped= 0;
+
+	// Bytes of literal left to skip
+	private long literalLeft= 0;
+	private long literalSize= 0;
+
+	// A client literal waits for a "+" continuation from the server before it's sent
+	private boolean awaitingContinuation= false;
+
+	// The next line carries on an untagged response after one of its literals, so it's
+	// server data even though it doesn't start with "*"
+	private boolean continuingResponse= false;
+
+	// Optional copy of everything to another stream, for the old debug flag
+	private final @Nullable PrintStream tee;
+
+	private final @NonNull PrintStream printStream;
+
+	private ProtocolTrace(
+			int size,
+			@Nullable PrintStream tee)
+	{
+		this.lines= new String[size];
+		this.tee= tee;
+		this.printStream= new PrintStream(this, true);
+	}
+
+	/**
+	 * Create
+	 *
+	 * Create a trace buffer
+	 *
+	 * @param size						Number of lines to keep
+	 * @param tee						Stream to copy everything to, or null
+	 *
+	 * @return							New trace
+	 */
+	public static @NonNull ProtocolTrace Create(
+			int size,
+			@Nullable PrintStream tee)
+	{
+		return new ProtocolTrace(Math.max(1, size), tee);
+	}
+
+	/**
+	 * getPrintStream
+	 *
+	 * @return							Stream to give to Session.setDebugOut
+	 */
+	public @NonNull PrintStream getPrintStream() {
+		return printStream;
+	}
+
+	@Override
+	public synchronized void write(int b) {
+		if (tee != null) {
+			tee.write(b);
+		}
+		accept((byte)b);
+	}
+
+	@Override
+	public synchronized void write(byte[] buffer, int offset, int length) {
+		if (tee != null) {
+			tee.write(buffer, offset, length);
+		}
+
+		int end= offset + length;
+		for (int i= offset; i < end; ) {
+			if (literalLeft > 0) {
+				// Skip over literal data in bulk rather than a byte at a time
+				int skip= (int)Math.min(literalLeft, end - i);
+				literalLeft-= skip;
+				i+= skip;
+
+				if (literalLeft == 0) {
+					addLine("[literal " + literalSize + " bytes]");
+				}
+			} else {
+				accept(buffer[i++]);
+			}
+		}
+	}
+
+	private void accept(byte b) {
+		if (literalLeft > 0) {
+			if (--literalLeft == 0) {
+				addLine("[literal " + literalSize + " bytes]");
+			}
+		} else if (b == '\n') {
+			finishLine();
+		} else if (b != '\r') {
+			if (currentLength < MAX_LINE) {
+				current[currentLength++]= b;
+			} else {
+				currentDropped++;
+			}
+		}
+	}
+
+	private void finishLine() {
+		String line= new String(current, 0, currentLength, StandardCharsets.ISO_8859_1);
+		int dropped= currentDropped;
+
+		currentLength= 0;
+		currentDropped= 0;
+
+		// The CRLF that ends a command after a literal leaves an empty line
+		if (line.isEmpty() && (dropped == 0)) {
+			continuingResponse= false;
+			return;
+		}
+
+		// A response with several literals, like a FETCH of header and text, comes through as
+		// a line per literal, and only the first one starts with "*"
+		boolean response= continuingResponse || line.startsWith("*");
+		continuingResponse= false;
+
+		if (awaitingContinuation && line.startsWith("+")) {
+			// This is the server saying go ahead - the literal starts after it
+			awaitingContinuation= false;
+			addLine(line);
+			literalLeft= literalSize;
+			return;
+		}
+
+		Matcher loginMatcher= LOGIN_PATTERN.matcher(line);
+		if (loginMatcher.matches()) {
+			String tag= loginMatcher.group(1);
+			line= ((tag != null) ? tag : "") + loginMatcher.group(2) + " [masked]";
+			dropped= 0;
+		}
+
+		if (dropped > 0) {
+			addLine(line + "... [" + dropped + " more]");
+		} else {
+			addLine(line);
+		}
+
+		// Only look for a literal if we saw the end of the line
+		if (dropped == 0) {
+			Matcher literalMatcher= LITERAL_PATTERN.matcher(line);
+			if (literalMatcher.find()) {
+				// Whatever follows the literal, even an empty one, is still the response
+				continuingResponse= response;
+
+				try {
+					literalSize= Long.parseLong(literalMatcher.group(1));
+				} catch (NumberFormatException e) {
+					literalSize= 0;
+				}
+
+				if (literalSize > 0) {
+					if (response || line.contains("{" + literalSize + "+}")) {
+						// Server data, or a non-synchronizing literal - it follows directly
+						literalLeft= literalSize;
+					} else {
+						awaitingContinuation= true;
+					}
+				}
+			}
+		}
+	}
+
+	private void addLine(
+			@NonNull String line)
+	{
+		lines[nextLine]= line;
+		nextLine= (nextLine + 1) % lines.length;
+		lineCount++;
+	}
+
+	/**
+	 * dump
+	 *
+	 * Get the recorded lines, oldest first
+	 *
+	 * @return							Trace text, one line per line
+	 */
+	public synchronized @NonNull String dump() {
+		StringBuilder rval= new StringBuilder();
+
+		int count= (int)Math.min(lineCount, lines.length);
+		int start= (lineCount > lines.length) ? nextLine : 0;
+
+		if (lineCount > lines.length) {
+			rval.append("[" + (lineCount - lines.length) + " earlier lines not kept]\n");
+		}
+		for (int i= 0; i < count; i++) {
+			rval.append(lines[(start + i) % lines.length]);
+			rval.append('\n');
+		}
+		if (currentLength > 0) {
+			rval.append(new String(current, 0, currentLength, StandardCharsets.ISO_8859_1));
+			rval.append(" [incomplete]\n");
+		}
+		if (literalLeft > 0) {
+			rval.append("[in literal, " + literalLeft + " of " + literalSize + " bytes left]\n");
+		}
+
+		return rval.toString();
+	}
+}
@@ -21,4 +21,12 @@ module com.teaglu.imapforward {
 	requires jakarta.mail;
 	requires org.slf4j;
 	requires com.teaglu.configure;
+	
+	requires jdk.jfr;
+	requires jdk.httpserver;
+	requires java.net.http;
+	requires com.google.gson;
+	
+	// Flight recorder has to be able to see the event classes
+	exports com.teaglu.imapforward.jfr to jdk.jfr;
 }
\ No newline at end of file
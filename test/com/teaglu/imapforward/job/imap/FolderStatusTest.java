@@ -0,0 +1,166 @@
+/****************************************************************************
+ * Copyright 2022 Teaglu, LLC                                               *
+ *                                                                          *
+ * Licensed under the Apache License, Version 2.0 (the "License");          *
+ * you may not use this file except in compliance with the License.         *
+ * You may obtain a copy of the License at                                  *
+ *                                                                          *
+ *   http://www.apache.org/licenses/LICENSE-2.0                             *
+ *                                                                          *
+ * Unless required by applicable law or agreed to in writing, software      *
+ * distributed under the License is distributed on an "AS IS" BASIS,        *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. *
+ * See the License for the specific language governing permissions and      *
+ * limitations under the License.                                           *
+ ****************************************************************************/
+
+package com.teaglu.imapforward.job.imap;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import org.eclipse.jdt.annotation.NonNull;
+import org.junit.jupiter.api.Test;
+
+import jakarta.mail.Flags;
+import jakarta.mail.Folder;
+import jakarta.mail.Message;
+import jakarta.mail.MessagingException;
+import jakarta.mail.Session;
+import jakarta.mail.UIDFolder;
+import jakarta.mail.internet.MimeMessage;
+
+/**
+ * FolderStatusTest
+ *
+ * Checks on the status of an already-selected folder, which is what decides whether the
+ * forwarding job searches it again.
+ */
+public class FolderStatusTest {
+	private static final Session session= Session.getInstance(new Properties());
+	
+	@Test
+	public void unchangedFolderIsUnchanged() throws MessagingException {
+		SelectedFolder folder= new SelectedFolder(3);
+		
+		FolderStatus before= FolderStatus.FromOpenFolder(folder);
+		FolderStatus after= FolderStatus.FromOpenFolder(folder);
+		
+		assertTrue(after.isUnchangedFrom(before));
+	}
+	
+	@Test
+	public void arrivalIsAChange() throws MessagingException {
+		SelectedFolder folder= new SelectedFolder(3);
+		
+		FolderStatus before= FolderStatus.FromOpenFolder(folder);
+		folder.arrive();
+		FolderStatus after= FolderStatus.FromOpenFolder(folder);
+		
+		assertFalse(after.isUnchangedFrom(before));
+	}
+	
+	@Test
+	public void arrivalWithExpungeIsAChange() throws MessagingException {
+		SelectedFolder folder= new SelectedFolder(3);
+		
+		// Another client removes a message while a new one arrives, so the count stays the
+		// same and the UIDNEXT from the SELECT doesn't move
+		FolderStatus before= FolderStatus.FromOpenFolder(folder);
+		folder.expungeFirst();
+		folder.arrive();
+		FolderStatus after= FolderStatus.FromOpenFolder(folder);
+		
+		assertEquals(before.getMessages(), after.getMessages());
+		assertFalse(after.isUnchangedFrom(before));
+	}
+	
+	@Test
+	public void emptyFolderIsUnchanged() throws MessagingException {
+		SelectedFolder folder= new SelectedFolder(0);
+		
+		FolderStatus before= FolderStatus.FromOpenFolder(folder);
+		FolderStatus after= FolderStatus.FromOpenFolder(folder);
+		
+		assertEquals(-1, after.getUidNext());
+		assertTrue(after.isUnchangedFrom(before));
+	}
+	
+	/**
+	 * UidMessage
+	 *
+	 * A message that only knows its UID
+	 */
+	private static class UidMessage extends MimeMessage {
+		private final long uid;
+		
+		private UidMessage(long uid) {
+			super(session);
+			this.uid= uid;
+		}
+	}
+	
+	/**
+	 * SelectedFolder
+	 *
+	 * An open folder the way JavaMail sees it after a NOOP, with the UIDNEXT it was given at
+	 * SELECT time and never updates.
+	 */
+	private static class SelectedFolder extends Folder implements UIDFolder {
+		private final List<@NonNull UidMessage> messages= new ArrayList<>();
+		private final long selectedUidNext;
+		private long uidNext= 1;
+		
+		private SelectedFolder(int count) throws MessagingException {
+			super(session.getStore("imaps"));
+			
+			for (int i= 0; i < count; i++) {
+				arrive();
+			}
+			selectedUidNext= uidNext;
+		}
+		
+		private void arrive() {
+			messages.add(new UidMessage(uidNext++));
+		}
+		
+		private void expungeFirst() {
+			messages.remove(0);
+		}
+		
+		@Override public int getMessageCount() { return messages.size(); }
+		@Override public Message getMessage(int msgnum) { return messages.get(msgnum - 1); }
+		@Override public long getUID(Message message) { return ((UidMessage)message).uid; }
+		@Override public long getUIDNext() { return selectedUidNext; }
+		@Override public long getUIDValidity() { return 1; }
+		
+		@Override public boolean isOpen() { return true; }
+		@Override public String getName() { return "INBOX"; }
+		@Override public String getFullName() { return "INBOX"; }
+		@Override public Folder getParent() { return null; }
+		@Override public boolean exists() { return true; }
+		@Override public Folder[] list(String pattern) { return new Folder[0]; }
+		@Override public char getSeparator() { return '/'; }
+		@Override public int getType() { return HOLDS_MESSAGES; }
+		@Override public boolean hasNewMessages() { return false; }
+		@Override public Flags getPermanentFlags() { return new Flags(); }
+		
+		@Override public boolean create(int type) { throw new UnsupportedOperationException(); }
+		@Override public Folder getFolder(String name) { throw new UnsupportedOperationException(); }
+		@Override public boolean delete(boolean recurse) { throw new UnsupportedOperationException(); }
+		@Override public boolean renameTo(Folder folder) { throw new UnsupportedOperationException(); }
+		@Override public void open(int mode) { throw new UnsupportedOperationException(); }
+		@Override public void close(boolean expunge) { throw new UnsupportedOperationException(); }
+		@Override public void appendMessages(Message[] add) { throw new UnsupportedOperationException(); }
+		@Override public Message[] expunge() { throw new UnsupportedOperationException(); }
+		
+		@Override public Message getMessageByUID(long uid) { throw new UnsupportedOperationException(); }
+		@Override public Message[] getMessagesByUID(long start, long end) { throw new UnsupportedOperationException(); }
+		@Override public Message[] getMessagesByUID(long[] uids) { throw new UnsupportedOperationException(); }
+	}
+}